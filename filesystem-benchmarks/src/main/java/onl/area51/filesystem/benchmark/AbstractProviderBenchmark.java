@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import onl.area51.filesystem.FileSystemUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Common benchmarks run against a {@link FileSystem} through the {@link Files} api so the cost of the provider and
+ * {@link onl.area51.filesystem.AbstractPath} are included.
+ *
+ * @author peter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AbstractProviderBenchmark
+{
+
+    static {
+        // Keep the provider's default directories out of the users home directory
+        if( System.getProperty( FileSystemUtils.CACHEBASE_PROPERTY ) == null ) {
+            System.setProperty( FileSystemUtils.CACHEBASE_PROPERTY,
+                                Paths.get( System.getProperty( "java.io.tmpdir" ), "area51-benchmarks" ).toString() );
+        }
+    }
+
+    /**
+     * Size of each file in bytes
+     */
+    @Param({"4096", "4194304"})
+    public int fileSize;
+
+    protected FileSystem fileSystem;
+    protected Path[] paths;
+    private byte[] content;
+
+    /**
+     * Create the FileSystem under test
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    protected abstract FileSystem createFileSystem()
+            throws IOException;
+
+    /**
+     * Release any resources created by {@link #createFileSystem()}
+     *
+     * @throws IOException
+     */
+    protected void destroyFileSystem()
+            throws IOException
+    {
+    }
+
+    @Setup(Level.Trial)
+    public void setUp()
+            throws IOException
+    {
+        fileSystem = createFileSystem();
+
+        content = BenchmarkUtils.content( fileSize );
+        paths = new Path[BenchmarkUtils.FILE_COUNT];
+        for( int i = 0; i < paths.length; i++ ) {
+            paths[i] = fileSystem.getPath( "/read/file" + i + ".dat" );
+            write( paths[i] );
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+            throws IOException
+    {
+        try {
+            fileSystem.close();
+        }
+        finally {
+            destroyFileSystem();
+        }
+    }
+
+    private void write( Path path )
+            throws IOException
+    {
+        try( OutputStream os = Files.newOutputStream( path,
+                                                      StandardOpenOption.CREATE,
+                                                      StandardOpenOption.TRUNCATE_EXISTING,
+                                                      StandardOpenOption.WRITE ) ) {
+            os.write( content );
+        }
+    }
+
+    /**
+     * Per thread state so that concurrent writers do not contend on the same file
+     */
+    @State(Scope.Thread)
+    public static class ThreadState
+    {
+
+        private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+        private final byte[] buffer = new byte[BenchmarkUtils.BUFFER_SIZE];
+        private final int id = THREAD_IDS.incrementAndGet();
+        private int next;
+        private Path writePath;
+        private Path missingPath;
+
+        Path next( Path[] paths )
+        {
+            Path path = paths[next];
+            next = (next + 1) % paths.length;
+            return path;
+        }
+
+        Path writePath( FileSystem fileSystem )
+        {
+            if( writePath == null || writePath.getFileSystem() != fileSystem ) {
+                writePath = fileSystem.getPath( "/write/thread" + id + ".dat" );
+            }
+            return writePath;
+        }
+
+        Path missingPath( FileSystem fileSystem )
+        {
+            if( missingPath == null || missingPath.getFileSystem() != fileSystem ) {
+                missingPath = fileSystem.getPath( String.valueOf( BenchmarkUtils.MISSING ) );
+            }
+            return missingPath;
+        }
+    }
+
+    @Benchmark
+    public void open( ThreadState state )
+            throws IOException
+    {
+        Files.newInputStream( state.next( paths ) ).close();
+    }
+
+    @Benchmark
+    public long read( ThreadState state )
+            throws IOException
+    {
+        try( InputStream is = Files.newInputStream( state.next( paths ) ) ) {
+            return BenchmarkUtils.drain( is, state.buffer );
+        }
+    }
+
+    @Benchmark
+    public void write( ThreadState state )
+            throws IOException
+    {
+        write( state.writePath( fileSystem ) );
+    }
+
+    @Benchmark
+    public boolean exists( ThreadState state )
+    {
+        return Files.exists( state.next( paths ) );
+    }
+
+    @Benchmark
+    public boolean existsMissing( ThreadState state )
+    {
+        return Files.exists( state.missingPath( fileSystem ) );
+    }
+
+    /**
+     * Delete needs something to delete so this measures a write followed by the delete. Subtract {@link #write(ThreadState)}
+     * to get the cost of the delete on its own.
+     *
+     * @param state
+     *
+     * @throws IOException
+     */
+    @Benchmark
+    public void writeThenDelete( ThreadState state )
+            throws IOException
+    {
+        write( state.writePath( fileSystem ) );
+        Files.delete( state.writePath( fileSystem ) );
+    }
+
+}
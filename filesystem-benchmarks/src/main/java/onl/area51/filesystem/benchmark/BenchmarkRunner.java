@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once for each thread count so that contention can be compared between runs.
+ * <p>
+ * The thread counts are taken from the "benchmark.threads" system property, a comma separated list which defaults to
+ * "1,4,16". Any command line arguments are the usual JMH options, e.g. a regex to select which benchmarks to run. If the "-t"
+ * option is present then the benchmarks are run just once with that thread count.
+ * <p>
+ * Results are written to benchmark-N.json where N is the thread count so runs can be compared with the JMH tooling.
+ *
+ * @author peter
+ */
+public class BenchmarkRunner
+{
+
+    public static final String THREADS = "benchmark.threads";
+
+    public static void main( String... args )
+            throws RunnerException,
+                   CommandLineOptionException
+    {
+        CommandLineOptions cmd = new CommandLineOptions( args );
+
+        if( cmd.getThreads().hasValue() ) {
+            new Runner( cmd ).run();
+            return;
+        }
+
+        for( String threads: System.getProperty( THREADS, "1,4,16" ).split( "," ) ) {
+            int t = Integer.parseInt( threads.trim() );
+            Options opts = new OptionsBuilder()
+                    .parent( cmd )
+                    .threads( t )
+                    .resultFormat( ResultFormatType.JSON )
+                    .result( "benchmark-" + t + ".json" )
+                    .build();
+            new Runner( opts ).run();
+        }
+    }
+
+}
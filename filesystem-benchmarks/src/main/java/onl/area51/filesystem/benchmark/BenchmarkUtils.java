@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Common fixtures used by the benchmarks
+ *
+ * @author peter
+ */
+final class BenchmarkUtils
+{
+
+    /**
+     * Number of files each benchmark reads from
+     */
+    static final int FILE_COUNT = 32;
+
+    /**
+     * Buffer size used when reading
+     */
+    static final int BUFFER_SIZE = 8192;
+
+    /**
+     * A path that never exists
+     */
+    static final char[] MISSING = "/missing/file.dat".toCharArray();
+
+    private BenchmarkUtils()
+    {
+    }
+
+    /**
+     * Generate the content of a file. This is random but seeded so each run writes the same bytes
+     *
+     * @param size
+     *
+     * @return
+     */
+    static byte[] content( int size )
+    {
+        byte[] b = new byte[size];
+        new Random( 42L ).nextBytes( b );
+        return b;
+    }
+
+    /**
+     * Generate a set of paths
+     *
+     * @param prefix directory name
+     * @param count  number of paths
+     *
+     * @return
+     */
+    static char[][] paths( String prefix, int count )
+    {
+        char[][] paths = new char[count][];
+        for( int i = 0; i < count; i++ ) {
+            paths[i] = ("/" + prefix + "/file" + i + ".dat").toCharArray();
+        }
+        return paths;
+    }
+
+    /**
+     * Read a stream to the end
+     *
+     * @param is
+     * @param buffer
+     *
+     * @return number of bytes read
+     *
+     * @throws IOException
+     */
+    static long drain( InputStream is, byte[] buffer )
+            throws IOException
+    {
+        long total = 0L;
+        int n;
+        while( (n = is.read( buffer )) > -1 ) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Remove a directory on the local filesystem
+     *
+     * @param dir
+     *
+     * @throws IOException
+     */
+    static void deleteDirectory( Path dir )
+            throws IOException
+    {
+        if( dir == null || Files.notExists( dir ) ) {
+            return;
+        }
+
+        Files.walkFileTree( dir, new SimpleFileVisitor<Path>()
+                    {
+                        @Override
+                        public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+                                throws IOException
+                        {
+                            Files.delete( file );
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult postVisitDirectory( Path dir, IOException exc )
+                                throws IOException
+                        {
+                            Files.delete( dir );
+                            return FileVisitResult.CONTINUE;
+                        }
+                    } );
+    }
+}
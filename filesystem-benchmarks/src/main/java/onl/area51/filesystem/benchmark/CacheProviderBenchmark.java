@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.benchmark;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.FileSystemIORepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks the cache:// provider for each of the local layouts
+ *
+ * @author peter
+ */
+public class CacheProviderBenchmark
+        extends AbstractProviderBenchmark
+{
+
+    /**
+     * The fileSystemType to benchmark
+     */
+    @Param({"cache", "flat", "mediawiki", "opendata", "xxhash64", "murmur3"})
+    public String layout;
+
+    private Path baseDirectory;
+
+    @Override
+    protected FileSystem createFileSystem()
+            throws IOException
+    {
+        baseDirectory = Files.createTempDirectory( "cachefs-" + layout );
+
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIORepository.KEY, layout );
+        env.put( FileSystemIO.BASE_DIRECTORY, baseDirectory.toString() );
+        return FileSystems.newFileSystem( URI.create( "cache://benchmark." + layout + "." + System.nanoTime() ), env );
+    }
+
+    @Override
+    protected void destroyFileSystem()
+            throws IOException
+    {
+        BenchmarkUtils.deleteDirectory( baseDirectory );
+    }
+
+    @Benchmark
+    public BasicFileAttributes getAttributes( ThreadState state )
+            throws IOException
+    {
+        return Files.readAttributes( state.next( paths ), BasicFileAttributes.class );
+    }
+
+    @Benchmark
+    public long size( ThreadState state )
+            throws IOException
+    {
+        return Files.size( state.next( paths ) );
+    }
+
+}
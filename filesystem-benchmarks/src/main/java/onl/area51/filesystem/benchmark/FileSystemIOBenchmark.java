@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import onl.area51.filesystem.io.Cache;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.FileSystemIORepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks each {@link FileSystemIO} layout directly, bypassing the NIO provider so that the cost of the layout's path
+ * mapping and the underlying local IO can be measured on their own.
+ *
+ * @author peter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSystemIOBenchmark
+{
+
+    /**
+     * The fileSystemType to benchmark
+     */
+    @Param({"cache", "flat", "mediawiki", "opendata", "xxhash64", "murmur3"})
+    public String layout;
+
+    /**
+     * Size of each file in bytes
+     */
+    @Param({"4096", "4194304"})
+    public int fileSize;
+
+    private Path baseDirectory;
+    private FileSystemIO io;
+    private char[][] paths;
+    private byte[] content;
+
+    private final AtomicInteger threadIds = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp()
+            throws IOException
+    {
+        baseDirectory = Files.createTempDirectory( "fsio-" + layout );
+
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIORepository.KEY, layout );
+        io = FileSystemIORepository.create( layout, baseDirectory, env, Cache::new );
+
+        content = BenchmarkUtils.content( fileSize );
+        paths = BenchmarkUtils.paths( "read", BenchmarkUtils.FILE_COUNT );
+        for( char[] path: paths ) {
+            try( OutputStream os = io.newOutputStream( path ) ) {
+                os.write( content );
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+            throws IOException
+    {
+        try {
+            io.close();
+        }
+        finally {
+            BenchmarkUtils.deleteDirectory( baseDirectory );
+        }
+    }
+
+    /**
+     * Per thread state so that concurrent writers do not contend on the same file
+     */
+    @State(Scope.Thread)
+    public static class ThreadState
+    {
+
+        private final byte[] buffer = new byte[BenchmarkUtils.BUFFER_SIZE];
+        private int next;
+        private char[] writePath;
+
+        @Setup(Level.Trial)
+        public void setUp( FileSystemIOBenchmark benchmark )
+        {
+            writePath = ("/write/thread" + benchmark.threadIds.incrementAndGet() + ".dat").toCharArray();
+        }
+
+        char[] next( char[][] paths )
+        {
+            char[] path = paths[next];
+            next = (next + 1) % paths.length;
+            return path;
+        }
+    }
+
+    @Benchmark
+    public void open( ThreadState state )
+            throws IOException
+    {
+        io.newInputStream( state.next( paths ) ).close();
+    }
+
+    @Benchmark
+    public long read( ThreadState state )
+            throws IOException
+    {
+        try( InputStream is = io.newInputStream( state.next( paths ) ) ) {
+            return BenchmarkUtils.drain( is, state.buffer );
+        }
+    }
+
+    @Benchmark
+    public void write( ThreadState state )
+            throws IOException
+    {
+        try( OutputStream os = io.newOutputStream( state.writePath ) ) {
+            os.write( content );
+        }
+    }
+
+    @Benchmark
+    public boolean exists( ThreadState state )
+            throws IOException
+    {
+        return io.exists( state.next( paths ) );
+    }
+
+    @Benchmark
+    public boolean existsMissing()
+            throws IOException
+    {
+        return io.exists( BenchmarkUtils.MISSING );
+    }
+
+    @Benchmark
+    public BasicFileAttributes getAttributes( ThreadState state )
+            throws IOException
+    {
+        return io.getAttributes( state.next( paths ) );
+    }
+
+    @Benchmark
+    public long size( ThreadState state )
+            throws IOException
+    {
+        return io.size( state.next( paths ) );
+    }
+
+    /**
+     * Delete needs something to delete so this measures a write followed by the delete. Subtract {@link #write(ThreadState)}
+     * to get the cost of the delete on its own.
+     *
+     * @param state
+     *
+     * @throws IOException
+     */
+    @Benchmark
+    public void writeThenDelete( ThreadState state )
+            throws IOException
+    {
+        write( state );
+        io.deleteFile( state.writePath, true );
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.benchmark;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import onl.area51.filesystem.io.FileSystemIO;
+
+/**
+ * Benchmarks the memory:// provider
+ *
+ * @author peter
+ */
+public class MemoryProviderBenchmark
+        extends AbstractProviderBenchmark
+{
+
+    private Path baseDirectory;
+
+    @Override
+    protected FileSystem createFileSystem()
+            throws IOException
+    {
+        // The memory filesystem still creates a local FileSystemIO so give it somewhere we can remove afterwards
+        baseDirectory = Files.createTempDirectory( "memoryfs" );
+
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.BASE_DIRECTORY, baseDirectory.toString() );
+        return FileSystems.newFileSystem( URI.create( "memory://benchmark." + System.nanoTime() ), env );
+    }
+
+    @Override
+    protected void destroyFileSystem()
+            throws IOException
+    {
+        BenchmarkUtils.deleteDirectory( baseDirectory );
+    }
+
+}
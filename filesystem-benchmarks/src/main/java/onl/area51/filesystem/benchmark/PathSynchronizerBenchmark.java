@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import onl.area51.filesystem.io.overlay.PathSynchronizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures contention in {@link PathSynchronizer}, the gate every overlay retrieval goes through. Run it with high thread
+ * counts, e.g. -Dbenchmark.threads=1,16,64,128.
+ * <p>
+ * With a single key every thread is after the same path so most calls join another thread's task. With many keys the calls
+ * rarely overlap so this measures the cost of the gate itself and how well it scales.
+ *
+ * @author peter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PathSynchronizerBenchmark
+{
+
+    /**
+     * Number of distinct paths
+     */
+    @Param({"1", "64", "65536"})
+    public int keyCount;
+
+    /**
+     * Simulated cost of the task, in JMH tokens
+     */
+    @Param({"0", "1000"})
+    public int work;
+
+    private PathSynchronizer synchronizer;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        synchronizer = new PathSynchronizer();
+        keys = new String[keyCount];
+        for( int i = 0; i < keyCount; i++ ) {
+            keys[i] = "/path/" + i + ".dat";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+            throws IOException
+    {
+        synchronizer.close();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState
+    {
+
+        private int next = (int) Thread.currentThread().getId();
+
+        String next( String[] keys )
+        {
+            next = (next + 1) & Integer.MAX_VALUE;
+            return keys[next % keys.length];
+        }
+    }
+
+    @Benchmark
+    public void execute( ThreadState state )
+            throws IOException
+    {
+        synchronizer.execute( state.next( keys ), () -> {
+                          Blackhole.consumeCPU( work );
+                          return null;
+                      } );
+    }
+}
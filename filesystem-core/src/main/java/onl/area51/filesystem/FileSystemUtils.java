@@ -15,6 +15,7 @@
  */
 package onl.area51.filesystem;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -23,23 +24,32 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
+import onl.area51.filesystem.io.FileChannelWrapper;
 import onl.area51.filesystem.io.FileSystemIO;
 
 /**
@@ -59,6 +69,23 @@ public class FileSystemUtils
      */
     public static final String CACHEBASE_ENV = "FILESYSTEM_BASE";
 
+    /**
+     * System property holding the maximum number of background worker threads
+     */
+    public static final String WORKER_THREADS_PROPERTY = "area51.workerThreads";
+    /**
+     * Environment variable holding the maximum number of background worker threads
+     */
+    public static final String WORKER_THREADS_ENV = "FILESYSTEM_WORKER_THREADS";
+    /**
+     * System property holding the maximum number of tasks waiting for a background worker
+     */
+    public static final String WORKER_QUEUE_PROPERTY = "area51.workerQueueSize";
+    /**
+     * Environment variable holding the maximum number of tasks waiting for a background worker
+     */
+    public static final String WORKER_QUEUE_ENV = "FILESYSTEM_WORKER_QUEUE_SIZE";
+
     public static final String UTF8 = StandardCharsets.UTF_8.name();
 
     private static final ScheduledExecutorService TIMERS = Executors.newScheduledThreadPool( 1, r
@@ -68,6 +95,8 @@ public class FileSystemUtils
                                                                                          return t;
                                                                                      } );
 
+    private static final ExecutorService WORKERS = createWorkers();
+
     private static String CACHE_BASE;
 
     public static synchronized String getCacheBase()
@@ -118,6 +147,75 @@ public class FileSystemUtils
         return TIMERS.schedule( command, delay, unit );
     }
 
+    /**
+     * The pool of background workers. It is bounded so a burst of retrievals cannot create a thread each, and once the queue is
+     * full new tasks are rejected. The caller is never made to run the task itself as it may have asked for it to be run in
+     * the background precisely so that it does not block.
+     */
+    private static ExecutorService createWorkers()
+    {
+        int threads = getSetting( WORKER_THREADS_ENV, WORKER_THREADS_PROPERTY, Math.max( 8, Runtime.getRuntime().availableProcessors() * 4 ) );
+        int queueSize = getSetting( WORKER_QUEUE_ENV, WORKER_QUEUE_PROPERTY, 10000 );
+        ThreadPoolExecutor executor = new ThreadPoolExecutor( threads, threads, 60L, TimeUnit.SECONDS,
+                                                              new LinkedBlockingQueue<>( queueSize ),
+                                                              r -> {
+                                                                  Thread t = new Thread( r );
+                                                                  t.setDaemon( true );
+                                                                  return t;
+                                                              },
+                                                              new ThreadPoolExecutor.AbortPolicy() );
+        executor.allowCoreThreadTimeOut( true );
+        return executor;
+    }
+
+    /**
+     * A positive integer from the environment or a system property
+     */
+    private static int getSetting( String env, String property, int defaultValue )
+    {
+        String v = System.getenv( env );
+        if( v == null || v.trim().isEmpty() ) {
+            v = System.getProperty( property );
+        }
+        if( v != null && !v.trim().isEmpty() ) {
+            try {
+                int i = Integer.parseInt( v.trim() );
+                if( i > 0 ) {
+                    return i;
+                }
+            }
+            catch( NumberFormatException ex ) {
+                // Use the default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Run a blocking task in the background, e.g. a retrieval from a remote store that has no asynchronous API
+     *
+     * @param command Task to execute
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the workers are all busy and their queue is full
+     */
+    public static void execute( Runnable command )
+    {
+        WORKERS.execute( command );
+    }
+
+    /**
+     * Per thread state used to map paths into the cache layout without allocating on each call
+     */
+    private static final ThreadLocal<Md5Mapper> MD5_MAPPER = ThreadLocal.withInitial( Md5Mapper::new );
+
+    /**
+     * True if the platform's default charset encodes ASCII as single bytes so we can skip {@link String#getBytes()}
+     */
+    private static final boolean ASCII_COMPATIBLE = Arrays.equals( "azAZ09./-_".getBytes(),
+                                                                   "azAZ09./-_".getBytes( StandardCharsets.US_ASCII ) );
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     /**
      * Get the MD5 of a string
      * <p>
@@ -127,12 +225,9 @@ public class FileSystemUtils
     public static byte[] md5( String s )
             throws IOException
     {
-        try {
-            return MessageDigest.getInstance( "MD5" ).digest( s.getBytes() );
-        }
-        catch( NoSuchAlgorithmException ex ) {
-            throw new IOException( ex );
-        }
+        MessageDigest md = MD5_MAPPER.get().digest;
+        md.reset();
+        return md.digest( s.getBytes() );
     }
 
     /**
@@ -144,8 +239,7 @@ public class FileSystemUtils
      */
     private static String fix( byte b )
     {
-        String p = Integer.toHexString( Byte.toUnsignedInt( b ) );
-        return p.length() == 1 ? ("0" + p) : p;
+        return new String( new char[]{HEX[(b >> 4) & 0xf], HEX[b & 0xf]} );
     }
 
     /**
@@ -197,23 +291,118 @@ public class FileSystemUtils
     public static String getCachePrefix( String path )
             throws IOException
     {
-        String suffix = "";
-        int i = path.lastIndexOf( '.' ), j = path.lastIndexOf( '/' );
-        if( i > -1 && i > j ) {
-            suffix = path.substring( i );
+        return getCachePrefix( path.toCharArray() );
+    }
+
+    /**
+     * Converts the supplied path into a path for a cache. This is the same as {@link #getCachePrefix(java.lang.String)} but
+     * works directly on the path's characters, reusing a per-thread digest and buffers so the only allocation is the
+     * returned String.
+     *
+     * @param path Path to convert
+     *
+     * @return the full cache path name
+     *
+     * @throws IOException
+     */
+    public static String getCachePrefix( char[] path )
+            throws IOException
+    {
+        return MD5_MAPPER.get().getCachePrefix( path );
+    }
+
+    private static final class Md5Mapper
+    {
+
+        private static final int MD5_LENGTH = 16;
+
+        private final MessageDigest digest;
+        private final byte[] md5 = new byte[MD5_LENGTH];
+        private byte[] bytes = new byte[256];
+        private char[] chars = new char[128];
+
+        Md5Mapper()
+        {
+            try {
+                digest = MessageDigest.getInstance( "MD5" );
+            }
+            catch( NoSuchAlgorithmException ex ) {
+                throw new IllegalStateException( ex );
+            }
         }
 
-        StringBuilder sb = new StringBuilder();
-        for( byte b: md5( path ) ) {
-            String p = Integer.toHexString( Byte.toUnsignedInt( b ) );
-            if( p.length() == 1 ) {
-                sb.append( '0' );
+        String getCachePrefix( char[] path )
+                throws IOException
+        {
+            int len = path.length;
+
+            int suffix = len;
+            for( int i = len - 1; i >= 0 && path[i] != '/'; i-- ) {
+                if( path[i] == '.' ) {
+                    suffix = i;
+                    break;
+                }
+            }
+
+            digest.reset();
+            if( !updateAscii( path ) ) {
+                digest.update( String.valueOf( path ).getBytes() );
             }
-            sb.append( p );
+            try {
+                digest.digest( md5, 0, MD5_LENGTH );
+            }
+            catch( DigestException ex ) {
+                throw new IOException( ex );
+            }
+
+            // Layout is 0/01/0123456789abcdef0123456789abcdef.suffix
+            int size = 5 + (MD5_LENGTH << 1) + len - suffix;
+            if( chars.length < size ) {
+                chars = new char[size];
+            }
+            char[] c = chars;
+            int p = 5;
+            for( byte b: md5 ) {
+                c[p++] = HEX[(b >> 4) & 0xf];
+                c[p++] = HEX[b & 0xf];
+            }
+            c[0] = c[5];
+            c[1] = '/';
+            c[2] = c[5];
+            c[3] = c[6];
+            c[4] = '/';
+            System.arraycopy( path, suffix, c, p, len - suffix );
+            return new String( c, 0, size );
         }
 
-        String p = sb.toString();
-        return p.substring( 0, 1 ) + "/" + p.substring( 0, 2 ) + "/" + p + suffix;
+        /**
+         * Update the digest with the path if it's pure ASCII
+         *
+         * @param path
+         *
+         * @return false if the path cannot be encoded here
+         */
+        private boolean updateAscii( char[] path )
+        {
+            if( !ASCII_COMPATIBLE ) {
+                return false;
+            }
+
+            int len = path.length;
+            if( bytes.length < len ) {
+                bytes = new byte[Math.max( len, bytes.length << 1 )];
+            }
+            byte[] b = bytes;
+            for( int i = 0; i < len; i++ ) {
+                char c = path[i];
+                if( c > 0x7f ) {
+                    return false;
+                }
+                b[i] = (byte) c;
+            }
+            digest.update( b, 0, len );
+            return true;
+        }
     }
 
     /**
@@ -435,19 +624,39 @@ public class FileSystemUtils
     }
 
     // buffer size used for reading and writing
-    private static final int BUFFER_SIZE = 8192;
+    private static final int BUFFER_SIZE = 65536;
+
+    // Per thread buffers so copies don't allocate. A copy takes the buffer for its duration so a copy made from within another,
+    // e.g. by the source filling itself, gets a buffer of its own.
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<>();
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER = new ThreadLocal<>();
+
+    private static <T> T takeBuffer( ThreadLocal<T> cache, Supplier<T> factory )
+    {
+        T buf = cache.get();
+        if( buf == null ) {
+            return factory.get();
+        }
+        cache.set( null );
+        return buf;
+    }
 
     public static long copy( InputStream source, OutputStream sink )
             throws IOException
     {
         long nread = 0L;
-        byte[] buf = new byte[BUFFER_SIZE];
-        int n;
-        while( (n = source.read( buf )) > 0 ) {
-            sink.write( buf, 0, n );
-            nread += n;
+        byte[] buf = takeBuffer( BUFFER, () -> new byte[BUFFER_SIZE] );
+        try {
+            int n;
+            while( (n = source.read( buf )) > 0 ) {
+                sink.write( buf, 0, n );
+                nread += n;
+            }
+            return nread;
+        }
+        finally {
+            BUFFER.set( buf );
         }
-        return nread;
     }
 
     public static <E extends Enum<E>> E getEnum( Class<E> clazz, Map<String, ?> env, String key, E defaultValue )
@@ -466,7 +675,92 @@ public class FileSystemUtils
     }
 
     /**
-     * Copy from an InputStream and write to the filesystem
+     * Copy from an InputStream into a FileChannel.
+     * <p>
+     * If the stream is a FileInputStream then this uses {@link FileChannel#transferFrom} so the kernel does the copy.
+     * Otherwise the content has to pass through the heap once so it's read into a per thread buffer and written straight to
+     * the channel.
+     *
+     * @param source
+     * @param sink
+     *
+     * @return number of bytes copied
+     *
+     * @throws IOException
+     */
+    public static long copy( InputStream source, FileChannel sink )
+            throws IOException
+    {
+        if( source instanceof FileInputStream ) {
+            return copy( ((FileInputStream) source).getChannel(), sink );
+        }
+
+        long nread = 0L;
+        byte[] buf = takeBuffer( BUFFER, () -> new byte[BUFFER_SIZE] );
+        try {
+            ByteBuffer b = ByteBuffer.wrap( buf );
+            int n;
+            while( (n = source.read( buf )) > 0 ) {
+                b.clear().limit( n );
+                while( b.hasRemaining() ) {
+                    sink.write( b );
+                }
+                nread += n;
+            }
+            return nread;
+        }
+        finally {
+            BUFFER.set( buf );
+        }
+    }
+
+    /**
+     * Copy from a channel into a FileChannel.
+     * <p>
+     * If the source is a FileChannel then this uses {@link FileChannel#transferFrom} so the kernel does the copy, otherwise it
+     * reads into a per thread direct buffer so there is no copy onto the heap.
+     *
+     * @param source
+     * @param sink
+     *
+     * @return number of bytes copied
+     *
+     * @throws IOException
+     */
+    public static long copy( ReadableByteChannel source, FileChannel sink )
+            throws IOException
+    {
+        long pos = sink.position();
+        long start = pos;
+        if( source instanceof FileChannel ) {
+            long n;
+            while( (n = sink.transferFrom( source, pos, Long.MAX_VALUE - pos )) > 0L ) {
+                pos += n;
+            }
+            sink.position( pos );
+        }
+        else {
+            ByteBuffer b = takeBuffer( DIRECT_BUFFER, () -> ByteBuffer.allocateDirect( BUFFER_SIZE ) );
+            try {
+                b.clear();
+                while( source.read( b ) >= 0 || b.position() > 0 ) {
+                    b.flip();
+                    pos += sink.write( b );
+                    b.compact();
+                }
+            }
+            finally {
+                DIRECT_BUFFER.set( b );
+            }
+        }
+        return pos - start;
+    }
+
+    /**
+     * Copy from an InputStream and write to the filesystem.
+     * <p>
+     * The content is written through {@link FileSystemIO#newWritableChannel(char[])} so if the copy fails then the partial
+     * content is discarded rather than left in the filesystem.
      *
      * @param src
      * @param io
@@ -478,12 +772,51 @@ public class FileSystemUtils
             throws IOException
     {
         try( InputStream is = src.get() ) {
-            try( OutputStream os = io.newOutputStream( path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) ) {
-                FileSystemUtils.copy( is, os );
-            }
+            write( io, path, c -> copy( is, c ) );
         }
     }
 
+    /**
+     * Copy from a channel and write to the filesystem.
+     *
+     * @param src
+     * @param io
+     * @param path
+     *
+     * @throws IOException
+     *
+     * @see #copyFromRemote(onl.area51.filesystem.FileSystemUtils.IOSupplier, onl.area51.filesystem.io.FileSystemIO, char[])
+     */
+    public static void copyChannelFromRemote( IOSupplier<ReadableByteChannel> src, FileSystemIO io, char[] path )
+            throws IOException
+    {
+        try( ReadableByteChannel ch = src.get() ) {
+            write( io, path, c -> copy( ch, c ) );
+        }
+    }
+
+    private static void write( FileSystemIO io, char[] path, IOFunction<FileChannel, Long> action )
+            throws IOException
+    {
+        FileChannel channel = io.newWritableChannel( path );
+        try {
+            action.apply( channel );
+        }
+        catch( IOException | RuntimeException | Error ex ) {
+            FileChannelWrapper.abort( channel );
+            throw ex;
+        }
+        channel.close();
+    }
+
+    @FunctionalInterface
+    public static interface IOFunction<T, R>
+    {
+
+        R apply( T t )
+                throws IOException;
+    }
+
     @FunctionalInterface
     public static interface IOSupplier<T>
     {
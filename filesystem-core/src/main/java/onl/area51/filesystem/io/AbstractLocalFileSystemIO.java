@@ -19,27 +19,42 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import onl.area51.filesystem.FileSystemUtils;
 import onl.area51.filesystem.RootFileAttributes;
+import onl.area51.filesystem.io.overlay.SparseFile;
+import onl.area51.filesystem.io.overlay.Validators;
 
 /**
  * {@link FileSystemIO} implementation of a directory
@@ -50,7 +65,27 @@ public abstract class AbstractLocalFileSystemIO
         implements FileSystemIO
 {
 
+    /**
+     * Environment key for the minimum size in bytes of a file to read through a memory mapping rather than a stream. If 0
+     * (default) files are never mapped. Files over 2GB are never mapped.
+     */
+    public static final String MMAP_THRESHOLD = "mmapThreshold";
+    /**
+     * Environment key for the maximum number of memory mappings to keep for reuse by other readers, default 64.
+     */
+    public static final String MMAP_CACHE_SIZE = "mmapCacheSize";
+    /**
+     * Environment key for the maximum total size in bytes of the memory mappings to keep for reuse, default 1GB.
+     */
+    public static final String MMAP_CACHE_BYTES = "mmapCacheBytes";
+
     private final Map<String, ?> env;
+    private final MappedFileCache mappedFiles;
+    /**
+     * Files currently being written by {@link #newWritableChannel(char[])}
+     */
+    private final Map<Path, StagedFileChannel> staging = new ConcurrentHashMap<>();
+    private final Map<Path, CompletableFuture<Void>> stagingWaiters = new ConcurrentHashMap<>();
 
     protected final Path basePath;
     protected final File baseFile;
@@ -72,12 +107,22 @@ public abstract class AbstractLocalFileSystemIO
         }
 
         baseFile.mkdirs();
+
+        long mmapThreshold = FileSystemUtils.getLong( env, MMAP_THRESHOLD, 0L );
+        mappedFiles = mmapThreshold > 0L
+                      ? new MappedFileCache( mmapThreshold,
+                                             (int) FileSystemUtils.getLong( env, MMAP_CACHE_SIZE, 64L ),
+                                             FileSystemUtils.getLong( env, MMAP_CACHE_BYTES, 1L << 30 ) )
+                      : null;
     }
 
     @Override
     public void close()
             throws IOException
     {
+        if( mappedFiles != null ) {
+            mappedFiles.clear();
+        }
         if( isTemporary() ) {
             clearFileSystem();
         }
@@ -94,6 +139,34 @@ public abstract class AbstractLocalFileSystemIO
         return f.delete();
     }
 
+    /**
+     * Called when a file has been opened for reading
+     *
+     * @param p physical path of the file
+     */
+    protected void fileAccessed( Path p )
+    {
+    }
+
+    /**
+     * Called once a file has been written
+     *
+     * @param p      physical path of the file
+     * @param length size of the file or -1 if not known
+     */
+    protected void fileWritten( Path p, long length )
+    {
+    }
+
+    /**
+     * Called when a file has been deleted
+     *
+     * @param p physical path of the file
+     */
+    protected void fileDeleted( Path p )
+    {
+    }
+
     private void deleteDir( File d )
             throws IOException
     {
@@ -124,7 +197,12 @@ public abstract class AbstractLocalFileSystemIO
     protected final File toFile( char[] path )
             throws IOException
     {
-        File f = toPath( path ).toFile();
+        return toFile( toPath( path ) );
+    }
+
+    private File toFile( Path p )
+    {
+        File f = p.toFile();
         if( isTemporary() ) {
             f.deleteOnExit();
         }
@@ -157,13 +235,39 @@ public abstract class AbstractLocalFileSystemIO
             throws IOException
     {
         try {
-            return new FileInputStream( toFile( path ) );
+            Path p = toPath( path );
+            ByteBuffer b = getMapping( p );
+            InputStream is = b == null ? new FileInputStream( toFile( p ) ) : new ByteBufferInputStream( b );
+            fileAccessed( p );
+            return is;
         }
-        catch( FileNotFoundException ex ) {
+        catch( FileNotFoundException | NoSuchFileException ex ) {
             throw new FileNotFoundException( String.valueOf( path ) );
         }
     }
 
+    /**
+     * Get a memory mapping of a file if it should be read that way
+     *
+     * @param p
+     *
+     * @return buffer or null if the file should not be mapped
+     *
+     * @throws IOException
+     */
+    private ByteBuffer getMapping( Path p )
+            throws IOException
+    {
+        return mappedFiles == null ? null : mappedFiles.get( p );
+    }
+
+    private void invalidateMapping( Path p )
+    {
+        if( mappedFiles != null ) {
+            mappedFiles.invalidate( p );
+        }
+    }
+
     @Override
     public final OutputStream newOutputStream( char[] path, OpenOption... options )
             throws IOException
@@ -171,7 +275,13 @@ public abstract class AbstractLocalFileSystemIO
         try {
             Path p = toPath( path );
             Files.createDirectories( p.getParent() );
-            return new FileOutputStream( p.toFile() );
+            if( mappedFiles != null ) {
+                // Closing the stream closes the channel which moves the file into place
+                return Channels.newOutputStream( newStagedChannel( p, EnumSet.of( StandardOpenOption.CREATE,
+                                                                                  StandardOpenOption.TRUNCATE_EXISTING,
+                                                                                  StandardOpenOption.WRITE ) ) );
+            }
+            return new IndexedOutputStream( p, new FileOutputStream( p.toFile() ) );
         }
         catch( FileNotFoundException ex ) {
             throw new FileNotFoundException( String.valueOf( path ) );
@@ -182,7 +292,10 @@ public abstract class AbstractLocalFileSystemIO
     public final void deleteFile( char[] path, boolean exists )
             throws IOException
     {
-        toFile( path ).delete();
+        Path p = toPath( path );
+        toFile( p ).delete();
+        invalidateMapping( p );
+        fileDeleted( p );
     }
 
     @Override
@@ -204,31 +317,266 @@ public abstract class AbstractLocalFileSystemIO
             throws IOException
     {
         try {
-            return Files.newByteChannel( toPath( path ), options, attrs );
+            Path p = toPath( path );
+            if( mappedFiles != null && isReadOnly( options ) ) {
+                ByteBuffer b = getMapping( p );
+                if( b != null ) {
+                    fileAccessed( p );
+                    return new ByteBufferChannel( b );
+                }
+            }
+            if( isStagedWrite( options ) ) {
+                return newStagedChannel( p, options );
+            }
+            return Files.newByteChannel( p, options, attrs );
         }
         catch( FileNotFoundException ex ) {
             throw new FileNotFoundException( String.valueOf( path ) );
         }
     }
 
+    private static boolean isReadOnly( Set<? extends OpenOption> options )
+    {
+        for( OpenOption o: options ) {
+            if( o != StandardOpenOption.READ && o != LinkOption.NOFOLLOW_LINKS ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Should a write be staged rather than made in place. When files are memory mapped a reader may still hold a mapping of
+     * the file, which would see the file change underneath it or fail if it was truncated.
+     *
+     * @param options open options
+     *
+     * @return true to stage the write
+     */
+    private boolean isStagedWrite( Set<? extends OpenOption> options )
+    {
+        return mappedFiles != null && !isReadOnly( options ) && !options.contains( StandardOpenOption.DELETE_ON_CLOSE );
+    }
+
+    /**
+     * Open a channel that writes a copy of a file, moving it into place once closed so existing mappings remain valid.
+     *
+     * @param p       physical path of the file
+     * @param options open options
+     *
+     * @return channel
+     *
+     * @throws IOException
+     */
+    private StagedFileChannel newStagedChannel( Path p, Set<? extends OpenOption> options )
+            throws IOException
+    {
+        boolean exists = Files.exists( p );
+        if( exists && options.contains( StandardOpenOption.CREATE_NEW ) ) {
+            throw new FileAlreadyExistsException( p.toString() );
+        }
+        if( !exists && !options.contains( StandardOpenOption.CREATE ) && !options.contains( StandardOpenOption.CREATE_NEW ) ) {
+            throw new NoSuchFileException( p.toString() );
+        }
+
+        Files.createDirectories( p.getParent() );
+        // Registers the file for deletion if we are temporary
+        toFile( p );
+        StagedFileChannel channel = StagedFileChannel.open( p, size -> {
+                                                            invalidateMapping( p );
+                                                            fileWritten( p, size );
+                                                        } );
+        try {
+            if( exists && !options.contains( StandardOpenOption.TRUNCATE_EXISTING ) ) {
+                // Modifying the file so start with its existing content
+                try( FileChannel src = FileChannel.open( p, StandardOpenOption.READ ) ) {
+                    long size = src.size();
+                    for( long n = 0L; n < size; ) {
+                        n += src.transferTo( n, size - n, channel );
+                    }
+                }
+                if( !options.contains( StandardOpenOption.APPEND ) ) {
+                    channel.position( 0L );
+                }
+            }
+            return channel;
+        }
+        catch( IOException | RuntimeException ex ) {
+            channel.abort();
+            throw ex;
+        }
+    }
+
     @Override
     public final FileChannel newFileChannel( char[] path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
             throws IOException
     {
         try {
-            return FileChannel.open( toPath( path ), options, attrs );
+            Path p = toPath( path );
+            if( isStagedWrite( options ) ) {
+                return newStagedChannel( p, options );
+            }
+            return FileChannel.open( p, options, attrs );
         }
         catch( FileNotFoundException ex ) {
             throw new FileNotFoundException( String.valueOf( path ) );
         }
     }
 
+    @Override
+    public final AsynchronousFileChannel newAsynchronousFileChannel( char[] path, Set<? extends OpenOption> options,
+                                                                     ExecutorService exec, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        try {
+            Path p = toPath( path );
+            if( isStagedWrite( options ) ) {
+                return newStagedAsynchronousChannel( p, options, exec, attrs );
+            }
+            if( options.contains( StandardOpenOption.CREATE ) || options.contains( StandardOpenOption.CREATE_NEW ) ) {
+                Files.createDirectories( p.getParent() );
+            }
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open( p, options, exec, attrs );
+            if( isReadOnly( options ) ) {
+                fileAccessed( p );
+                return channel;
+            }
+            // Notify once written as IndexedOutputStream does
+            return new AsynchronousFileChannelWrapper( channel )
+            {
+                private boolean closed;
+
+                @Override
+                public synchronized void close()
+                        throws IOException
+                {
+                    if( !closed ) {
+                        closed = true;
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            invalidateMapping( p );
+                            if( !options.contains( StandardOpenOption.DELETE_ON_CLOSE ) ) {
+                                fileWritten( p, -1L );
+                            }
+                        }
+                    }
+                }
+            };
+        }
+        catch( NoSuchFileException ex ) {
+            throw new NoSuchFileException( String.valueOf( path ) );
+        }
+    }
+
+    /**
+     * The asynchronous form of {@link #newStagedChannel(java.nio.file.Path, java.util.Set)}. The staged file is written through
+     * an {@link AsynchronousFileChannel} and moved into place once that is closed.
+     */
+    private AsynchronousFileChannel newStagedAsynchronousChannel( Path p, Set<? extends OpenOption> options,
+                                                                  ExecutorService exec, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        StagedFileChannel staged = newStagedChannel( p, options );
+        AsynchronousFileChannel channel;
+        try {
+            // The staged file already exists with the right content
+            Set<OpenOption> stagedOptions = new HashSet<>( options );
+            stagedOptions.removeAll( EnumSet.of( StandardOpenOption.CREATE, StandardOpenOption.CREATE_NEW,
+                                                 StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.APPEND ) );
+            channel = AsynchronousFileChannel.open( staged.getTemporaryPath(), stagedOptions, exec, attrs );
+        }
+        catch( IOException | RuntimeException ex ) {
+            staged.abort();
+            throw ex;
+        }
+
+        return new AsynchronousFileChannelWrapper( channel )
+        {
+            private boolean closed;
+
+            @Override
+            public synchronized void close()
+                    throws IOException
+            {
+                if( !closed ) {
+                    closed = true;
+                    try {
+                        super.close();
+                    }
+                    catch( IOException | RuntimeException ex ) {
+                        staged.abort();
+                        throw ex;
+                    }
+                    finally {
+                        // Moves it into place then notifies as any other staged write
+                        staged.close();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes to a temporary file which is moved into place once the channel is closed, so readers never see a partial file.
+     */
+    @Override
+    public final FileChannel newWritableChannel( char[] path )
+            throws IOException
+    {
+        Path p = toPath( path );
+        Files.createDirectories( p.getParent() );
+        // Registers the file for deletion if we are temporary
+        toFile( p );
+        StagedFileChannel channel = StagedFileChannel.open( p,
+                                                            size -> {
+                                                                invalidateMapping( p );
+                                                                fileWritten( p, size );
+                                                            },
+                                                            c -> staging.remove( p, c ) );
+        staging.put( p, channel );
+        CompletableFuture<Void> waiter = stagingWaiters.get( p );
+        if( waiter != null ) {
+            waiter.complete( null );
+        }
+        return channel;
+    }
+
+    @Override
+    public final CompletableFuture<Void> whenStaged( char[] path )
+            throws IOException
+    {
+        Path p = toPath( path );
+        CompletableFuture<Void> waiter = stagingWaiters.computeIfAbsent( p, k -> {
+                                                                      CompletableFuture<Void> f = new CompletableFuture<>();
+                                                                      f.whenComplete( ( v, ex ) -> stagingWaiters.remove( k, f ) );
+                                                                      return f;
+                                                                  } );
+        // The channel may have been opened before we were registered
+        if( staging.containsKey( p ) ) {
+            waiter.complete( null );
+        }
+        return waiter;
+    }
+
+    @Override
+    public final InputStream newStreamingInputStream( char[] path )
+            throws IOException
+    {
+        StagedFileChannel channel = staging.get( toPath( path ) );
+        return channel == null ? null : channel.newInputStream();
+    }
+
     @Override
     public final void copyFile( boolean b, char[] src, char[] dest, CopyOption... options )
             throws IOException
     {
         try {
-            Files.copy( toPath( src ), toPath( dest ), options );
+            Path p = toPath( dest );
+            Files.copy( toPath( src ), p, options );
+            invalidateMapping( p );
+            fileWritten( p, -1L );
         }
         catch( FileNotFoundException ex ) {
             throw new FileNotFoundException( String.valueOf( src ) );
@@ -254,6 +602,15 @@ public abstract class AbstractLocalFileSystemIO
         }
     }
 
+    @Override
+    public final void touch( char[] path )
+            throws IOException
+    {
+        Path p = toPath( path );
+        Files.setLastModifiedTime( p, FileTime.fromMillis( System.currentTimeMillis() ) );
+        fileWritten( p, -1L );
+    }
+
     @Override
     public final BasicFileAttributeView getAttributeView( char[] path )
     {
@@ -275,7 +632,11 @@ public abstract class AbstractLocalFileSystemIO
     {
         try {
             Path p = toPath( path );
-            DirectoryStream<Path> ds = p.getFileSystem().provider().newDirectoryStream( p, filter );
+            // Hide the files we keep alongside the real ones
+            DirectoryStream<Path> ds = p.getFileSystem().provider()
+                    .newDirectoryStream( p, e -> !Validators.isSidecar( e ) && !StagedFileChannel.isStaging( e )
+                                                 && !CacheJournal.isJournal( e ) && !SparseFile.isSparse( e )
+                                                 && (filter == null || filter.accept( e )) );
 
             // FIXME ensure we cannot go outside of the cache directory, i.e. root does not show ..
             return ds;
@@ -285,4 +646,53 @@ public abstract class AbstractLocalFileSystemIO
         }
     }
 
+    /**
+     * OutputStream that notifies {@link #fileWritten(java.nio.file.Path, long)} once it's closed
+     */
+    private class IndexedOutputStream
+            extends FilterOutputStream
+    {
+
+        private final Path path;
+        private long length;
+        private boolean closed;
+
+        public IndexedOutputStream( Path path, OutputStream out )
+        {
+            super( out );
+            this.path = path;
+        }
+
+        @Override
+        public void write( int b )
+                throws IOException
+        {
+            out.write( b );
+            length++;
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+                throws IOException
+        {
+            out.write( b, off, len );
+            length += len;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if( !closed ) {
+                closed = true;
+                try {
+                    super.close();
+                }
+                finally {
+                    invalidateMapping( path );
+                    fileWritten( path, length );
+                }
+            }
+        }
+    }
 }
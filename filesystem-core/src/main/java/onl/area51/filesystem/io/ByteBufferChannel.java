@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read only SeekableByteChannel reading from a ByteBuffer
+ *
+ * @author peter
+ */
+public class ByteBufferChannel
+        implements SeekableByteChannel
+{
+
+    private ByteBuffer buffer;
+
+    public ByteBufferChannel( ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+    }
+
+    private ByteBuffer buffer()
+            throws IOException
+    {
+        if( buffer == null ) {
+            throw new ClosedChannelException();
+        }
+        return buffer;
+    }
+
+    @Override
+    public int read( ByteBuffer dst )
+            throws IOException
+    {
+        ByteBuffer b = buffer();
+        if( !b.hasRemaining() ) {
+            return -1;
+        }
+        int n = Math.min( dst.remaining(), b.remaining() );
+        ByteBuffer src = b.duplicate();
+        src.limit( src.position() + n );
+        dst.put( src );
+        b.position( b.position() + n );
+        return n;
+    }
+
+    @Override
+    public int write( ByteBuffer src )
+            throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position()
+            throws IOException
+    {
+        return buffer().position();
+    }
+
+    @Override
+    public SeekableByteChannel position( long newPosition )
+            throws IOException
+    {
+        ByteBuffer b = buffer();
+        b.position( (int) Math.min( newPosition, b.limit() ) );
+        return this;
+    }
+
+    @Override
+    public long size()
+            throws IOException
+    {
+        return buffer().limit();
+    }
+
+    @Override
+    public SeekableByteChannel truncate( long size )
+            throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return buffer != null;
+    }
+
+    @Override
+    public void close()
+    {
+        buffer = null;
+    }
+
+}
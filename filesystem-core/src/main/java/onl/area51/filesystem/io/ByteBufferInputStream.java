@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream reading from a ByteBuffer
+ *
+ * @author peter
+ */
+public class ByteBufferInputStream
+        extends InputStream
+{
+
+    private ByteBuffer buffer;
+
+    public ByteBufferInputStream( ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+    }
+
+    private ByteBuffer buffer()
+            throws IOException
+    {
+        if( buffer == null ) {
+            throw new IOException( "Stream closed" );
+        }
+        return buffer;
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        ByteBuffer b = buffer();
+        return b.hasRemaining() ? b.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len )
+            throws IOException
+    {
+        ByteBuffer buf = buffer();
+        if( len == 0 ) {
+            return 0;
+        }
+        if( !buf.hasRemaining() ) {
+            return -1;
+        }
+        int n = Math.min( len, buf.remaining() );
+        buf.get( b, off, n );
+        return n;
+    }
+
+    @Override
+    public long skip( long n )
+            throws IOException
+    {
+        ByteBuffer b = buffer();
+        int s = (int) Math.max( 0L, Math.min( n, b.remaining() ) );
+        b.position( b.position() + s );
+        return s;
+    }
+
+    @Override
+    public int available()
+            throws IOException
+    {
+        return buffer().remaining();
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark( int readlimit )
+    {
+        if( buffer != null ) {
+            buffer.mark();
+        }
+    }
+
+    @Override
+    public synchronized void reset()
+            throws IOException
+    {
+        buffer().reset();
+    }
+
+    @Override
+    public void close()
+    {
+        buffer = null;
+    }
+
+}
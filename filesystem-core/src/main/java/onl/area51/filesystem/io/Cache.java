@@ -50,7 +50,7 @@ public class Cache
     protected String getPath( char[] path )
             throws IOException
     {
-        return FileSystemUtils.getCachePrefix( String.valueOf( path ) );
+        return FileSystemUtils.getCachePrefix( path );
     }
 
     @Override
@@ -0,0 +1,656 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in memory index of the files within a {@link LocalFileSystemIO} so that it can be bounded by total size or number of
+ * files without walking the directory tree.
+ * <p>
+ * Every operation including choosing the next victim is O(1). For LRU the entries are kept in a single list in access order.
+ * For LFU the entries are kept in a list of frequency buckets, each holding its entries in access order, so the victim is
+ * the least recently used of the least frequently used entries.
+ * <p>
+ * Reads do not take the index lock. They are queued in a bounded buffer which is applied to the order under the lock before
+ * it is next needed, i.e. on a write, an eviction or a visit. If the buffer is full the access time is still updated but the
+ * entry is not moved, which only makes the order approximate under very heavy reads.
+ *
+ * @author peter
+ */
+public final class CacheIndex
+{
+
+    /**
+     * The eviction policy
+     */
+    public static enum Policy
+    {
+        /**
+         * Least recently used
+         */
+        LRU,
+        /**
+         * Least frequently used, ties broken by least recently used
+         */
+        LFU
+    }
+
+    /**
+     * The maximum number of reads waiting to be applied to the order
+     */
+    private static final int MAX_PENDING = 4096;
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> accesses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Order order;
+    private final long maxSize;
+    private final long maxFiles;
+    private long size;
+    private Set<Path> tombstones;
+
+    /**
+     *
+     * @param policy   eviction policy
+     * @param maxSize  max total size in bytes, 0 for unlimited
+     * @param maxFiles max number of files, 0 for unlimited
+     */
+    public CacheIndex( Policy policy, long maxSize, long maxFiles )
+    {
+        this.order = policy == Policy.LFU ? new Lfu() : new Lru();
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * The total size of all files in the index
+     *
+     * @return
+     */
+    public synchronized long size()
+    {
+        return size;
+    }
+
+    /**
+     * The number of files in the index
+     *
+     * @return
+     */
+    public synchronized int count()
+    {
+        return entries.size();
+    }
+
+    public synchronized boolean contains( Path path )
+    {
+        return entries.containsKey( path );
+    }
+
+    /**
+     * Is the index outside its limits, i.e. would {@link #evict()} remove anything
+     *
+     * @return
+     */
+    public synchronized boolean isOverLimit()
+    {
+        return (maxSize > 0L && size > maxSize) || (maxFiles > 0L && entries.size() > maxFiles);
+    }
+
+    /**
+     * Record that a file has been read. Unknown files are ignored.
+     * <p>
+     * This does not lock the index, the access is applied to the order when it is next needed.
+     *
+     * @param path
+     */
+    public void accessed( Path path )
+    {
+        Entry e = entries.get( path );
+        if( e != null ) {
+            e.lastAccess = System.currentTimeMillis();
+            if( pending.incrementAndGet() <= MAX_PENDING ) {
+                accesses.offer( e );
+            }
+            else {
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Apply queued reads to the order. Must be called whilst holding the lock.
+     */
+    private void drain()
+    {
+        Entry e;
+        while( (e = accesses.poll()) != null ) {
+            pending.decrementAndGet();
+            // Ignore entries removed since they were read
+            if( entries.get( e.path ) == e ) {
+                order.touch( e );
+            }
+        }
+    }
+
+    /**
+     * Record that a file has been written
+     *
+     * @param path
+     * @param length size of the file
+     */
+    public synchronized void written( Path path, long length )
+    {
+        drain();
+        long now = System.currentTimeMillis();
+        Entry e = entries.get( path );
+        if( e == null ) {
+            e = new Entry( path );
+            entries.put( path, e );
+            order.add( e, true );
+        }
+        else {
+            size -= e.size;
+            order.touch( e );
+        }
+        e.size = length;
+        e.lastModified = now;
+        e.lastAccess = now;
+        size += length;
+    }
+
+    /**
+     * Add an existing file to the index, for example when scanning the filesystem. If the file is already present it is left
+     * alone as that entry will be more recent. Loaded entries are treated as older than any entry accessed since startup.
+     *
+     * @param path
+     * @param length
+     * @param lastModified
+     * @param lastAccess
+     *
+     * @return true if the entry was added
+     */
+    public synchronized boolean load( Path path, long length, long lastModified, long lastAccess )
+    {
+        if( entries.containsKey( path ) || (tombstones != null && tombstones.contains( path )) ) {
+            return false;
+        }
+        else {
+            Entry e = new Entry( path );
+            e.size = length;
+            e.lastModified = lastModified;
+            e.lastAccess = lastAccess;
+            entries.put( path, e );
+            order.add( e, false );
+            size += length;
+            return true;
+        }
+    }
+
+    /**
+     * Record that a file has been deleted
+     *
+     * @param path
+     *
+     * @return true if the path was in the index
+     */
+    public synchronized boolean removed( Path path )
+    {
+        if( tombstones != null ) {
+            tombstones.add( path );
+        }
+        Entry e = entries.remove( path );
+        if( e != null ) {
+            remove( e );
+            return true;
+        }
+        return false;
+    }
+
+    private void remove( Entry e )
+    {
+        order.remove( e );
+        size -= e.size;
+    }
+
+    /**
+     * Remove entries from the index until it is back within its limits.
+     *
+     * @return the paths removed from the index which should now be deleted
+     */
+    public synchronized List<Path> evict()
+    {
+        drain();
+        List<Path> victims = null;
+        while( isOverLimit() ) {
+            Entry e = order.victim();
+            if( e == null ) {
+                break;
+            }
+            entries.remove( e.path );
+            remove( e );
+            if( victims == null ) {
+                victims = new ArrayList<>();
+            }
+            victims.add( e.path );
+        }
+        return victims == null ? Collections.emptyList() : victims;
+    }
+
+    /**
+     * Remove entries last modified before a specific time
+     *
+     * @param cull time in millis
+     *
+     * @return the paths removed from the index which should now be deleted
+     */
+    public synchronized List<Path> expire( long cull )
+    {
+        List<Path> victims = new ArrayList<>();
+        entries.values().removeIf( e -> {
+            if( e.lastModified < cull ) {
+                remove( e );
+                victims.add( e.path );
+                return true;
+            }
+            return false;
+        } );
+        return victims;
+    }
+
+    /**
+     * Replace an entry, used when restoring the index from a journal
+     *
+     * @param path
+     * @param length
+     * @param lastModified
+     * @param lastAccess
+     */
+    public synchronized void restore( Path path, long length, long lastModified, long lastAccess )
+    {
+        removed( path );
+        Entry e = new Entry( path );
+        e.size = length;
+        e.lastModified = lastModified;
+        e.lastAccess = lastAccess;
+        entries.put( path, e );
+        order.add( e, true );
+        size += length;
+    }
+
+    /**
+     * Start scanning the filesystem. Until {@link #endScan()} is called any path removed from the index will be ignored by
+     * {@link #load(java.nio.file.Path, long, long, long)} so a file deleted after the scan has seen it is not added back.
+     */
+    public synchronized void beginScan()
+    {
+        tombstones = new HashSet<>();
+    }
+
+    public synchronized void endScan()
+    {
+        tombstones = null;
+    }
+
+    /**
+     * Remove entries not in a set of paths. Entries modified since a specific time are kept as they may have been added after
+     * the set was built.
+     *
+     * @param paths paths to keep
+     * @param since time in millis
+     *
+     * @return the paths removed from the index
+     */
+    public synchronized List<Path> retain( Set<Path> paths, long since )
+    {
+        List<Path> removed = new ArrayList<>();
+        entries.values().removeIf( e -> {
+            if( e.lastModified < since && !paths.contains( e.path ) ) {
+                remove( e );
+                removed.add( e.path );
+                return true;
+            }
+            return false;
+        } );
+        return removed;
+    }
+
+    /**
+     * Visit every entry in eviction order, i.e. the next victim first. The entries are copied first so the index is not
+     * locked whilst the visitor runs.
+     *
+     * @param visitor
+     *
+     * @throws IOException from the visitor
+     */
+    public void forEach( Visitor visitor )
+            throws IOException
+    {
+        Path[] paths;
+        long[] values;
+        synchronized( this ) {
+            drain();
+            paths = new Path[entries.size()];
+            values = new long[paths.length * 3];
+            int i = 0;
+            for( Entry e = order.first(); e != null; e = order.next( e ) ) {
+                paths[i] = e.path;
+                values[i * 3] = e.size;
+                values[i * 3 + 1] = e.lastModified;
+                values[i * 3 + 2] = e.lastAccess;
+                i++;
+            }
+        }
+
+        for( int i = 0; i < paths.length; i++ ) {
+            visitor.visit( paths[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2] );
+        }
+    }
+
+    @FunctionalInterface
+    public static interface Visitor
+    {
+
+        void visit( Path path, long length, long lastModified, long lastAccess )
+                throws IOException;
+    }
+
+    public synchronized void clear()
+    {
+        drain();
+        entries.clear();
+        order.clear();
+        size = 0L;
+    }
+
+    private static final class Entry
+    {
+
+        private final Path path;
+        private long size;
+        private long lastModified;
+        private volatile long lastAccess;
+        private Entry prev;
+        private Entry next;
+        private Bucket bucket;
+
+        Entry( Path path )
+        {
+            this.path = path;
+        }
+    }
+
+    /**
+     * A doubly linked list of entries, oldest at the head
+     */
+    private static class EntryList
+    {
+
+        Entry head;
+        Entry tail;
+
+        void addFirst( Entry e )
+        {
+            e.prev = null;
+            e.next = head;
+            if( head == null ) {
+                tail = e;
+            }
+            else {
+                head.prev = e;
+            }
+            head = e;
+        }
+
+        void addLast( Entry e )
+        {
+            e.next = null;
+            e.prev = tail;
+            if( tail == null ) {
+                head = e;
+            }
+            else {
+                tail.next = e;
+            }
+            tail = e;
+        }
+
+        void unlink( Entry e )
+        {
+            if( e.prev == null ) {
+                head = e.next;
+            }
+            else {
+                e.prev.next = e.next;
+            }
+            if( e.next == null ) {
+                tail = e.prev;
+            }
+            else {
+                e.next.prev = e.prev;
+            }
+            e.prev = null;
+            e.next = null;
+        }
+
+        boolean isEmpty()
+        {
+            return head == null;
+        }
+    }
+
+    private static interface Order
+    {
+
+        /**
+         * Add a new entry
+         *
+         * @param e
+         * @param recent true if just used, false if it should be treated as older than everything else
+         */
+        void add( Entry e, boolean recent );
+
+        void touch( Entry e );
+
+        void remove( Entry e );
+
+        Entry victim();
+
+        Entry first();
+
+        Entry next( Entry e );
+
+        void clear();
+    }
+
+    private static final class Lru
+            extends EntryList
+            implements Order
+    {
+
+        @Override
+        public void add( Entry e, boolean recent )
+        {
+            if( recent ) {
+                addLast( e );
+            }
+            else {
+                addFirst( e );
+            }
+        }
+
+        @Override
+        public void touch( Entry e )
+        {
+            if( e != tail ) {
+                unlink( e );
+                addLast( e );
+            }
+        }
+
+        @Override
+        public void remove( Entry e )
+        {
+            unlink( e );
+        }
+
+        @Override
+        public Entry victim()
+        {
+            return head;
+        }
+
+        @Override
+        public Entry first()
+        {
+            return head;
+        }
+
+        @Override
+        public Entry next( Entry e )
+        {
+            return e.next;
+        }
+
+        @Override
+        public void clear()
+        {
+            head = null;
+            tail = null;
+        }
+    }
+
+    /**
+     * A frequency bucket holding all entries used the same number of times
+     */
+    private static final class Bucket
+            extends EntryList
+    {
+
+        private final long frequency;
+        private Bucket prev;
+        private Bucket next;
+
+        Bucket( long frequency )
+        {
+            this.frequency = frequency;
+        }
+    }
+
+    private static final class Lfu
+            implements Order
+    {
+
+        private Bucket head;
+
+        @Override
+        public void add( Entry e, boolean recent )
+        {
+            if( head == null || head.frequency != 1L ) {
+                Bucket b = new Bucket( 1L );
+                b.next = head;
+                if( head != null ) {
+                    head.prev = b;
+                }
+                head = b;
+            }
+            e.bucket = head;
+            if( recent ) {
+                head.addLast( e );
+            }
+            else {
+                head.addFirst( e );
+            }
+        }
+
+        @Override
+        public void touch( Entry e )
+        {
+            Bucket b = e.bucket;
+            Bucket n = b.next;
+            if( n == null || n.frequency != b.frequency + 1L ) {
+                n = new Bucket( b.frequency + 1L );
+                n.prev = b;
+                n.next = b.next;
+                if( b.next != null ) {
+                    b.next.prev = n;
+                }
+                b.next = n;
+            }
+            remove( e );
+            e.bucket = n;
+            n.addLast( e );
+        }
+
+        @Override
+        public void remove( Entry e )
+        {
+            Bucket b = e.bucket;
+            b.unlink( e );
+            e.bucket = null;
+            if( b.isEmpty() ) {
+                if( b.prev == null ) {
+                    head = b.next;
+                }
+                else {
+                    b.prev.next = b.next;
+                }
+                if( b.next != null ) {
+                    b.next.prev = b.prev;
+                }
+            }
+        }
+
+        @Override
+        public Entry victim()
+        {
+            return head == null ? null : head.head;
+        }
+
+        @Override
+        public Entry first()
+        {
+            return victim();
+        }
+
+        @Override
+        public Entry next( Entry e )
+        {
+            if( e.next != null ) {
+                return e.next;
+            }
+            Bucket b = e.bucket.next;
+            return b == null ? null : b.head;
+        }
+
+        @Override
+        public void clear()
+        {
+            head = null;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persists a {@link CacheIndex} so it can be restored when the filesystem is opened without walking the directory tree.
+ * <p>
+ * Changes are appended to a journal which is periodically compacted into a snapshot of the whole index. On startup the
+ * snapshot is read followed by the journal. Records are idempotent so it does not matter if a change is in both the
+ * snapshot and the journal, and a truncated record at the end of the journal, e.g. after a crash, is ignored.
+ * <p>
+ * Appends are buffered and written by {@link #flush()} so a crash can lose the last few changes. That drift is picked up by
+ * the reconciliation walk in {@link LocalFileSystemIO}.
+ *
+ * @author peter
+ */
+public final class CacheJournal
+        implements Closeable
+{
+
+    private static final Logger LOG = Logger.getLogger( CacheJournal.class.getName() );
+
+    /**
+     * Prefix of the journal files in the base directory. Files with this prefix are not part of the cache.
+     */
+    public static final String PREFIX = ".cacheindex";
+
+    private static final int MAGIC = 0x41353149;
+    private static final byte WRITE = 'W';
+    private static final byte DELETE = 'D';
+
+    private final Path basePath;
+    private final Path snapshot;
+    private final Path journal;
+    private final Path previous;
+    private DataOutputStream out;
+
+    public CacheJournal( Path basePath )
+    {
+        this.basePath = basePath;
+        snapshot = basePath.resolve( PREFIX + ".snapshot" );
+        journal = basePath.resolve( PREFIX + ".journal" );
+        previous = basePath.resolve( PREFIX + ".journal.1" );
+    }
+
+    /**
+     * Is a path one of the journal's files
+     *
+     * @param p
+     *
+     * @return
+     */
+    public static boolean isJournal( Path p )
+    {
+        Path n = p.getFileName();
+        return n != null && n.toString().startsWith( PREFIX );
+    }
+
+    /**
+     * Restore the index from the snapshot and journal then open the journal for appending
+     *
+     * @param index
+     *
+     * @return true if there was anything to restore
+     *
+     * @throws IOException
+     */
+    public synchronized boolean open( CacheIndex index )
+            throws IOException
+    {
+        boolean restored = false;
+        for( Path p: new Path[]{snapshot, previous, journal} ) {
+            if( Files.exists( p ) ) {
+                read( p, index );
+                restored = true;
+            }
+        }
+        out = open( journal );
+        return restored;
+    }
+
+    private void read( Path p, CacheIndex index )
+            throws IOException
+    {
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( p ) ) ) ) {
+            if( in.readInt() != MAGIC ) {
+                LOG.log( Level.WARNING, () -> "Ignoring invalid journal " + p );
+                return;
+            }
+            while( true ) {
+                byte op = in.readByte();
+                Path path = basePath.resolve( in.readUTF() );
+                if( op == WRITE ) {
+                    index.restore( path, in.readLong(), in.readLong(), in.readLong() );
+                }
+                else if( op == DELETE ) {
+                    index.removed( path );
+                }
+                else {
+                    LOG.log( Level.WARNING, () -> "Ignoring corrupt journal " + p );
+                    return;
+                }
+            }
+        }
+        catch( EOFException ex ) {
+            // End of the journal or a partial record
+        }
+    }
+
+    private DataOutputStream open( Path p )
+            throws IOException
+    {
+        boolean exists = Files.exists( p );
+        DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( p.toFile(), true ) ) );
+        if( !exists ) {
+            dos.writeInt( MAGIC );
+        }
+        return dos;
+    }
+
+    private String relative( Path p )
+    {
+        return basePath.relativize( p ).toString();
+    }
+
+    /**
+     * Record a file being written
+     *
+     * @param p
+     * @param length
+     * @param lastModified
+     * @param lastAccess
+     */
+    public synchronized void written( Path p, long length, long lastModified, long lastAccess )
+    {
+        if( out != null ) {
+            try {
+                write( out, p, length, lastModified, lastAccess );
+            }
+            catch( IOException ex ) {
+                failed( ex );
+            }
+        }
+    }
+
+    private void write( DataOutputStream dos, Path p, long length, long lastModified, long lastAccess )
+            throws IOException
+    {
+        dos.writeByte( WRITE );
+        dos.writeUTF( relative( p ) );
+        dos.writeLong( length );
+        dos.writeLong( lastModified );
+        dos.writeLong( lastAccess );
+    }
+
+    /**
+     * Record a file being deleted
+     *
+     * @param p
+     */
+    public synchronized void deleted( Path p )
+    {
+        if( out != null ) {
+            try {
+                out.writeByte( DELETE );
+                out.writeUTF( relative( p ) );
+            }
+            catch( IOException ex ) {
+                failed( ex );
+            }
+        }
+    }
+
+    private void failed( IOException ex )
+    {
+        // Stop journalling, the reconciliation walk will recover on the next startup
+        LOG.log( Level.WARNING, "Journal failed, disabling", ex );
+        try {
+            out.close();
+        }
+        catch( IOException ex1 ) {
+            // Ignore
+        }
+        out = null;
+    }
+
+    /**
+     * Write any buffered changes to disk
+     */
+    public synchronized void flush()
+    {
+        if( out != null ) {
+            try {
+                out.flush();
+            }
+            catch( IOException ex ) {
+                failed( ex );
+            }
+        }
+    }
+
+    /**
+     * Replace the snapshot with the current index and truncate the journal
+     *
+     * @param index
+     *
+     * @throws IOException
+     */
+    public void compact( CacheIndex index )
+            throws IOException
+    {
+        // Start a new journal. Anything changing the index after this point will be in the new journal, anything already in
+        // the index will be in the snapshot. Some changes may be in both which is fine as replaying them is idempotent.
+        synchronized( this ) {
+            if( out == null ) {
+                return;
+            }
+            out.close();
+            Files.move( journal, previous, StandardCopyOption.REPLACE_EXISTING );
+            out = open( journal );
+        }
+
+        Path tmp = basePath.resolve( PREFIX + ".snapshot.tmp" );
+        try( DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ) ) {
+            dos.writeInt( MAGIC );
+            index.forEach( ( p, l, m, a ) -> write( dos, p, l, m, a ) );
+        }
+        Files.move( tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        Files.deleteIfExists( previous );
+    }
+
+    /**
+     * Delete the journal, e.g. when the filesystem is cleared
+     *
+     * @throws IOException
+     */
+    public synchronized void delete()
+            throws IOException
+    {
+        close();
+        for( Path p: new Path[]{snapshot, previous, journal} ) {
+            Files.deleteIfExists( p );
+        }
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        if( out != null ) {
+            try {
+                out.close();
+            }
+            finally {
+                out = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import onl.area51.filesystem.io.overlay.SparseFile;
+import onl.area51.filesystem.io.overlay.Validators;
+
+/**
+ * Expires files from a directory tree in parallel.
+ * <p>
+ * Each top level directory, i.e. the shards 0/ to f/ in the {@link Cache} layout, is walked as a separate task in a
+ * {@link ForkJoinPool}. Each entry is examined with a single {@link BasicFileAttributes} read from the walk. An optional
+ * rate limit on the number of entries examined per second stops an expiry run from starving foreground reads of I/O.
+ * <p>
+ * Progress of the current or last run is available from the metrics methods.
+ *
+ * @author peter
+ */
+public final class ExpiryWalker
+{
+
+    private static final Logger LOG = Logger.getLogger( ExpiryWalker.class.getName() );
+
+    private final Path basePath;
+    private final int parallelism;
+    private final long intervalNanos;
+    private final Consumer<Path> deleted;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong nextPermit = new AtomicLong();
+
+    private final AtomicLong filesScanned = new AtomicLong();
+    private final AtomicLong filesExpired = new AtomicLong();
+    private final AtomicLong bytesExpired = new AtomicLong();
+    private final AtomicLong directoriesRemoved = new AtomicLong();
+    private volatile long lastStarted;
+    private volatile long lastDuration;
+
+    private ForkJoinPool pool;
+
+    /**
+     *
+     * @param basePath    base directory, which is never deleted
+     * @param parallelism number of threads to walk with
+     * @param rateLimit   maximum number of entries to examine per second, 0 for unlimited
+     * @param deleted     notified of each file deleted
+     */
+    public ExpiryWalker( Path basePath, int parallelism, long rateLimit, Consumer<Path> deleted )
+    {
+        this.basePath = basePath;
+        this.parallelism = Math.max( 1, parallelism );
+        this.intervalNanos = rateLimit > 0L ? TimeUnit.SECONDS.toNanos( 1L ) / rateLimit : 0L;
+        this.deleted = deleted;
+    }
+
+    /**
+     * Expire all files last modified before a specific time. If a run is already in progress this returns immediately.
+     *
+     * @param cull time in millis
+     */
+    public void expire( long cull )
+    {
+        if( !running.compareAndSet( false, true ) ) {
+            return;
+        }
+        try {
+            filesScanned.set( 0L );
+            filesExpired.set( 0L );
+            bytesExpired.set( 0L );
+            directoriesRemoved.set( 0L );
+            lastStarted = System.currentTimeMillis();
+
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            try( DirectoryStream<Path> ds = Files.newDirectoryStream( basePath ) ) {
+                for( Path p: ds ) {
+                    if( !CacheJournal.isJournal( p ) ) {
+                        tasks.add( new Shard( p, cull ) );
+                    }
+                }
+            }
+
+            getPool().invoke( new RecursiveAction()
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute()
+                {
+                    invokeAll( tasks );
+                }
+            } );
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.WARNING, ex, () -> "Failed to expire " + basePath );
+        }
+        finally {
+            lastDuration = System.currentTimeMillis() - lastStarted;
+            running.set( false );
+        }
+    }
+
+    private synchronized ForkJoinPool getPool()
+    {
+        if( pool == null ) {
+            pool = new ForkJoinPool( parallelism );
+        }
+        return pool;
+    }
+
+    public synchronized void close()
+    {
+        if( pool != null ) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Block until we are allowed to examine another entry
+     */
+    private void acquire()
+    {
+        if( intervalNanos > 0L ) {
+            long now = System.nanoTime();
+            long permit = nextPermit.getAndAccumulate( now, ( n, t ) -> Math.max( n, t ) + intervalNanos );
+            long wait = permit - now;
+            if( wait > 0L ) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep( wait );
+                }
+                catch( InterruptedException ex ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    public boolean isRunning()
+    {
+        return running.get();
+    }
+
+    /**
+     * @return number of files examined in the current or last run
+     */
+    public long getFilesScanned()
+    {
+        return filesScanned.get();
+    }
+
+    /**
+     * @return number of files deleted in the current or last run
+     */
+    public long getFilesExpired()
+    {
+        return filesExpired.get();
+    }
+
+    /**
+     * @return number of bytes deleted in the current or last run
+     */
+    public long getBytesExpired()
+    {
+        return bytesExpired.get();
+    }
+
+    /**
+     * @return number of empty directories removed in the current or last run
+     */
+    public long getDirectoriesRemoved()
+    {
+        return directoriesRemoved.get();
+    }
+
+    /**
+     * @return time in millis the current or last run started, 0 if never run
+     */
+    public long getLastStarted()
+    {
+        return lastStarted;
+    }
+
+    /**
+     * @return duration in millis of the last completed run
+     */
+    public long getLastDuration()
+    {
+        return lastDuration;
+    }
+
+    /**
+     * Walks a single top level entry
+     */
+    private class Shard
+            extends RecursiveAction
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path path;
+        private final long cull;
+
+        Shard( Path path, long cull )
+        {
+            this.path = path;
+            this.cull = cull;
+        }
+
+        @Override
+        protected void compute()
+        {
+            try {
+                Files.walkFileTree( path, new Visitor( cull ) );
+            }
+            catch( IOException ex ) {
+                LOG.log( Level.WARNING, ex, () -> "Failed to expire " + path );
+            }
+        }
+    }
+
+    private class Visitor
+            extends SimpleFileVisitor<Path>
+    {
+
+        private final long cull;
+        /**
+         * For each directory being walked, true whilst everything within it has been expired
+         */
+        private final Deque<Boolean> expired = new ArrayDeque<>();
+
+        Visitor( long cull )
+        {
+            this.cull = cull;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs )
+                throws IOException
+        {
+            acquire();
+            // Record the modified time before we delete anything from it
+            expired.push( attrs.lastModifiedTime().toMillis() < cull );
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+                throws IOException
+        {
+            acquire();
+            filesScanned.incrementAndGet();
+            if( Validators.isSidecar( file ) ) {
+                // Kept with the file it belongs to, only removed here if that has already gone
+                if( !Files.exists( Validators.owner( file ) ) && Files.deleteIfExists( file ) ) {
+                    return FileVisitResult.CONTINUE;
+                }
+            }
+            else if( SparseFile.isSparse( file ) ) {
+                // Partial retrievals are not part of the cache and may still be open, they are kept so they can be resumed
+            }
+            else if( attrs.isRegularFile() && attrs.lastModifiedTime().toMillis() < cull ) {
+                try {
+                    Files.delete( file );
+                    Validators.delete( file );
+                    filesExpired.incrementAndGet();
+                    bytesExpired.addAndGet( attrs.size() );
+                    deleted.accept( file );
+                    return FileVisitResult.CONTINUE;
+                }
+                catch( NoSuchFileException ex ) {
+                    return FileVisitResult.CONTINUE;
+                }
+                catch( IOException ex ) {
+                    LOG.log( Level.FINE, ex, () -> "Failed to expire " + file );
+                }
+            }
+            keep();
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed( Path file, IOException exc )
+                throws IOException
+        {
+            keep();
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory( Path dir, IOException exc )
+                throws IOException
+        {
+            if( expired.pop() && exc == null ) {
+                try {
+                    Files.delete( dir );
+                    directoriesRemoved.incrementAndGet();
+                    return FileVisitResult.CONTINUE;
+                }
+                catch( DirectoryNotEmptyException | NoSuchFileException ex ) {
+                    // Something was written whilst we were walking it
+                }
+            }
+            keep();
+            return FileVisitResult.CONTINUE;
+        }
+
+        /**
+         * Mark the directory being walked as not empty
+         */
+        private void keep()
+        {
+            if( !expired.isEmpty() ) {
+                expired.pop();
+                expired.push( false );
+            }
+        }
+    }
+}
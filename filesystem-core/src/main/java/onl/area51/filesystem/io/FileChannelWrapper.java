@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link FileChannel} that delegates to another so that subclasses can hook into when the channel is closed.
+ * <p>
+ * A writer that fails part way through can call {@link #abort()} instead of {@link #close()} so that anything hooked into
+ * close knows not to treat the content as complete.
+ *
+ * @author peter
+ */
+public class FileChannelWrapper
+        extends FileChannel
+{
+
+    private final FileChannel delegate;
+    private volatile boolean aborted;
+
+    public FileChannelWrapper( FileChannel delegate )
+    {
+        this.delegate = delegate;
+    }
+
+    protected final FileChannel getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * Close this channel discarding what has been written
+     *
+     * @throws IOException
+     */
+    public void abort()
+            throws IOException
+    {
+        aborted = true;
+        if( delegate instanceof FileChannelWrapper ) {
+            ((FileChannelWrapper) delegate).abort();
+        }
+        close();
+    }
+
+    /**
+     * Has {@link #abort()} been called
+     *
+     * @return
+     */
+    protected final boolean isAborted()
+    {
+        return aborted;
+    }
+
+    /**
+     * Abort a channel if it supports it, otherwise just close it
+     *
+     * @param channel
+     *
+     * @throws IOException
+     */
+    public static void abort( FileChannel channel )
+            throws IOException
+    {
+        if( channel instanceof FileChannelWrapper ) {
+            ((FileChannelWrapper) channel).abort();
+        }
+        else {
+            channel.close();
+        }
+    }
+
+    @Override
+    public int read( ByteBuffer dst )
+            throws IOException
+    {
+        return delegate.read( dst );
+    }
+
+    @Override
+    public long read( ByteBuffer[] dsts, int offset, int length )
+            throws IOException
+    {
+        return delegate.read( dsts, offset, length );
+    }
+
+    @Override
+    public int write( ByteBuffer src )
+            throws IOException
+    {
+        return delegate.write( src );
+    }
+
+    @Override
+    public long write( ByteBuffer[] srcs, int offset, int length )
+            throws IOException
+    {
+        return delegate.write( srcs, offset, length );
+    }
+
+    @Override
+    public long position()
+            throws IOException
+    {
+        return delegate.position();
+    }
+
+    @Override
+    public FileChannel position( long newPosition )
+            throws IOException
+    {
+        delegate.position( newPosition );
+        return this;
+    }
+
+    @Override
+    public long size()
+            throws IOException
+    {
+        return delegate.size();
+    }
+
+    @Override
+    public FileChannel truncate( long size )
+            throws IOException
+    {
+        delegate.truncate( size );
+        return this;
+    }
+
+    @Override
+    public void force( boolean metaData )
+            throws IOException
+    {
+        delegate.force( metaData );
+    }
+
+    @Override
+    public long transferTo( long position, long count, WritableByteChannel target )
+            throws IOException
+    {
+        return delegate.transferTo( position, count, target );
+    }
+
+    @Override
+    public long transferFrom( ReadableByteChannel src, long position, long count )
+            throws IOException
+    {
+        return delegate.transferFrom( src, position, count );
+    }
+
+    @Override
+    public int read( ByteBuffer dst, long position )
+            throws IOException
+    {
+        return delegate.read( dst, position );
+    }
+
+    @Override
+    public int write( ByteBuffer src, long position )
+            throws IOException
+    {
+        return delegate.write( src, position );
+    }
+
+    @Override
+    public MappedByteBuffer map( MapMode mode, long position, long size )
+            throws IOException
+    {
+        return delegate.map( mode, position, size );
+    }
+
+    @Override
+    public FileLock lock( long position, long size, boolean shared )
+            throws IOException
+    {
+        return delegate.lock( position, size, shared );
+    }
+
+    @Override
+    public FileLock tryLock( long position, long size, boolean shared )
+            throws IOException
+    {
+        return delegate.tryLock( position, size, shared );
+    }
+
+    @Override
+    protected void implCloseChannel()
+            throws IOException
+    {
+        delegate.close();
+    }
+
+}
@@ -20,6 +20,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.CopyOption;
@@ -27,10 +28,15 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.util.EnumSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Class that performs the actual IO to the underlying store
@@ -183,6 +189,79 @@ public interface FileSystemIO
     FileChannel newFileChannel( char path[], Set<? extends OpenOption> options, FileAttribute<?>... attrs )
             throws IOException;
 
+    /**
+     * Create an AsynchronousFileChannel
+     *
+     * @param path
+     * @param options
+     * @param exec    the thread pool to associate with the channel, null for the default pool
+     * @param attrs
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    default AsynchronousFileChannel newAsynchronousFileChannel( char path[], Set<? extends OpenOption> options,
+                                                                ExecutorService exec, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Create a FileChannel to write a complete file, e.g. when retrieving it from a remote store.
+     * <p>
+     * Implementations may write to a temporary location and only replace the file when the channel is closed, so if writing
+     * fails then {@link FileChannelWrapper#abort(java.nio.channels.FileChannel)} should be used instead of closing it.
+     *
+     * @param path
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    default FileChannel newWritableChannel( char path[] )
+            throws IOException
+    {
+        return newFileChannel( path, EnumSet.of( StandardOpenOption.CREATE,
+                                                 StandardOpenOption.TRUNCATE_EXISTING,
+                                                 StandardOpenOption.WRITE ) );
+    }
+
+    /**
+     * Open a file that is currently being written by {@link #newWritableChannel(char[])} so that it can be read whilst it is
+     * being written. Reads block until the bytes have been written and the stream ends once the writer has finished.
+     *
+     * @param path
+     *
+     * @return stream or null if the file is not being written
+     *
+     * @throws IOException
+     */
+    default InputStream newStreamingInputStream( char path[] )
+            throws IOException
+    {
+        return null;
+    }
+
+    /**
+     * A future completed once a file is being written by {@link #newWritableChannel(char[])}, so a reader waiting for it to
+     * appear in {@link #newStreamingInputStream(char[])} need not poll. Cancel it once no longer needed.
+     * <p>
+     * By default this never completes as the file cannot be streamed.
+     *
+     * @param path
+     *
+     * @return future, already complete if the file is being written now
+     *
+     * @throws IOException
+     */
+    default CompletableFuture<Void> whenStaged( char path[] )
+            throws IOException
+    {
+        return new CompletableFuture<>();
+    }
+
     /**
      * Copy a file. Both src and dest must be paths within this filesystem
      *
@@ -248,6 +327,20 @@ public interface FileSystemIO
     {
     }
 
+    /**
+     * Mark a file as just written without changing its content, e.g. once a cached copy has been revalidated against its
+     * origin, so that expiry treats it as new.
+     *
+     * @param path
+     *
+     * @throws IOException
+     */
+    default void touch( char[] path )
+            throws IOException
+    {
+        getAttributeView( path ).setTimes( FileTime.fromMillis( System.currentTimeMillis() ), null, null );
+    }
+
     /**
      * The length of the file at a path
      *
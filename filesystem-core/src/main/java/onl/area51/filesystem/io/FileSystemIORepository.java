@@ -73,6 +73,25 @@ public class FileSystemIORepository
         }
     }
 
+    private static void registerOverlay( String l )
+    {
+        try {
+            Class<FileSystemIO> clazz = (Class<FileSystemIO>) Class.forName( l );
+            OVERLAYS.computeIfAbsent( clazz.getSimpleName().toLowerCase(), k -> ( p, e ) -> {
+                                  try {
+                                      return clazz.getConstructor( FileSystemIO.class, Map.class ).newInstance( p, e );
+                                  } catch( NoSuchMethodException |
+                                           InstantiationException |
+                                           IllegalAccessException |
+                                           InvocationTargetException ex ) {
+                                      throw new RuntimeException( ex );
+                                  }
+                              } );
+        } catch( ClassNotFoundException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+
     public static void init()
     {
         forEach( FileSystemIO.class,
@@ -101,25 +120,8 @@ public class FileSystemIORepository
                  .collect( Collectors.joining( ", ", "Available FileSystemIO implementations: ", "" ) )
         );
 
-        forEach( OverlayFileSystemIO.class,
-                 l -> {
-                     try {
-                         Class<FileSystemIO> clazz = (Class<FileSystemIO>) Class.forName( l );
-                         OVERLAYS.computeIfAbsent( clazz.getSimpleName().toLowerCase(), k -> ( p, e ) -> {
-                                               try {
-                                                   return clazz.getConstructor( FileSystemIO.class, Map.class ).newInstance( p, e );
-                                               } catch( NoSuchMethodException |
-                                                        InstantiationException |
-                                                        IllegalAccessException |
-                                                        InvocationTargetException ex ) {
-                                                   throw new RuntimeException( ex );
-                                               }
-                                           } );
-                     } catch( ClassNotFoundException ex ) {
-                         throw new RuntimeException( ex );
-                     }
-                 }
-        );
+        forEach( OverlayFileSystemIO.class, FileSystemIORepository::registerOverlay );
+        forEach( FileSystemIOWrapper.class, FileSystemIORepository::registerOverlay );
 
         LOG.log( Level.INFO, () -> OVERLAYS.keySet()
                  .stream()
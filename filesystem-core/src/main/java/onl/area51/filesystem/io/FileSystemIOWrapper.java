@@ -18,6 +18,7 @@ package onl.area51.filesystem.io;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.CopyOption;
@@ -28,6 +29,8 @@ import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 /**
  * A wrapper that delegates to another {@link FileSystemIO} instance with a hook implemented for retrieving a path from another
@@ -140,6 +143,35 @@ public abstract class FileSystemIOWrapper
         return delegate.newFileChannel( path, options, attrs );
     }
 
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel( char[] path, Set<? extends OpenOption> options,
+                                                               ExecutorService exec, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        return delegate.newAsynchronousFileChannel( path, options, exec, attrs );
+    }
+
+    @Override
+    public FileChannel newWritableChannel( char[] path )
+            throws IOException
+    {
+        return delegate.newWritableChannel( path );
+    }
+
+    @Override
+    public InputStream newStreamingInputStream( char[] path )
+            throws IOException
+    {
+        return delegate.newStreamingInputStream( path );
+    }
+
+    @Override
+    public CompletableFuture<Void> whenStaged( char[] path )
+            throws IOException
+    {
+        return delegate.whenStaged( path );
+    }
+
     @Override
     public void copyFile( boolean b, char[] src, char[] dest, CopyOption... options )
             throws IOException
@@ -157,6 +189,13 @@ public abstract class FileSystemIOWrapper
         return delegate.getAttributes( path );
     }
 
+    @Override
+    public void touch( char[] path )
+            throws IOException
+    {
+        delegate.touch( path );
+    }
+
     @Override
     public BasicFileAttributeView getAttributeView( char[] path )
     {
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import onl.area51.filesystem.FileSystemUtils;
+
+/**
+ * Base of the {@link Cache} layouts that shard by a fast non-cryptographic hash rather than md5.
+ * <p>
+ * The local file will be of the form ab/cd/abcd0123456789ef.suffix where each directory level takes the next
+ * {@link #FAN_OUT} hex digits of the hash and there are {@link #DEPTH} levels. With the defaults of 2 and 2 that gives 65536
+ * leaf directories, a fan out of 3 and depth of 2 gives 16 million.
+ * <p>
+ * If {@link #LEGACY_MIGRATION} is set then a path that does not exist under this layout is looked up under the original md5
+ * {@link Cache} layout and, if present there, moved across. As md5 paths cannot be reversed this happens lazily on first
+ * access rather than in bulk.
+ *
+ * @author peter
+ */
+public abstract class HashedCache
+        extends Cache
+{
+
+    /**
+     * Environment key for the number of hex digits per directory level, 1 to 4. Defaults to 2, i.e. 256 directories per level.
+     */
+    public static final String FAN_OUT = "hashFanOut";
+    /**
+     * Environment key for the number of directory levels. Defaults to 2.
+     */
+    public static final String DEPTH = "hashDepth";
+    /**
+     * Environment key to migrate files from the md5 {@link Cache} layout when they are first accessed.
+     */
+    public static final String LEGACY_MIGRATION = "legacyMigration";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial( Buffers::new );
+
+    private final int fanOut;
+    private final int depth;
+    private final boolean legacyMigration;
+
+    public HashedCache( Path basePath, Map<String, ?> env )
+    {
+        super( basePath, env );
+
+        fanOut = (int) FileSystemUtils.getLong( env, FAN_OUT, 2 );
+        depth = (int) FileSystemUtils.getLong( env, DEPTH, 2 );
+        if( fanOut < 1 || fanOut > 4 ) {
+            throw new IllegalArgumentException( FAN_OUT + " must be between 1 and 4" );
+        }
+        if( depth < 0 || fanOut * depth > getHashSize() << 4 ) {
+            throw new IllegalArgumentException( "Invalid " + DEPTH + " " + depth );
+        }
+
+        legacyMigration = FileSystemUtils.isTrue( env, LEGACY_MIGRATION );
+    }
+
+    /**
+     * The number of longs in the hash
+     *
+     * @return
+     */
+    protected abstract int getHashSize();
+
+    /**
+     * Hash the supplied bytes
+     *
+     * @param data   data to hash
+     * @param len    number of bytes in data to hash
+     * @param result array of {@link #getHashSize()} longs to receive the hash
+     */
+    protected abstract void hash( byte[] data, int len, long[] result );
+
+    @Override
+    protected String getPath( char[] path )
+            throws IOException
+    {
+        Buffers b = BUFFERS.get();
+
+        int len = b.encode( path );
+        long[] h = b.hash( getHashSize() );
+        hash( b.bytes, len, h );
+
+        int suffix = path.length;
+        for( int i = path.length - 1; i >= 0 && path[i] != '/'; i-- ) {
+            if( path[i] == '.' ) {
+                suffix = i;
+                break;
+            }
+        }
+
+        int hexLength = h.length << 4;
+        int prefix = depth * (fanOut + 1);
+        int size = prefix + hexLength + path.length - suffix;
+        char[] c = b.chars( size );
+
+        int p = prefix;
+        for( long l: h ) {
+            for( int s = 60; s >= 0; s -= 4 ) {
+                c[p++] = HEX[(int) (l >>> s) & 0xf];
+            }
+        }
+
+        int d = 0;
+        for( int level = 0, o = prefix; level < depth; level++ ) {
+            for( int i = 0; i < fanOut; i++ ) {
+                c[d++] = c[o++];
+            }
+            c[d++] = '/';
+        }
+
+        System.arraycopy( path, suffix, c, p, path.length - suffix );
+        return new String( c, 0, size );
+    }
+
+    @Override
+    protected Path resolve( char[] path )
+            throws IOException
+    {
+        Path p = super.resolve( path );
+        if( legacyMigration && !Files.exists( p ) ) {
+            Path legacy = getBaseDirectory().resolve( FileSystemUtils.getCachePrefix( path ) );
+            if( Files.exists( legacy ) ) {
+                Files.createDirectories( p.getParent() );
+                try {
+                    Files.move( legacy, p, StandardCopyOption.ATOMIC_MOVE );
+                }
+                catch( NoSuchFileException ex ) {
+                    // Another thread has migrated it
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Read a little endian long
+     */
+    protected static long getLong( byte[] b, int i )
+    {
+        return (b[i] & 0xffL)
+               | (b[i + 1] & 0xffL) << 8
+               | (b[i + 2] & 0xffL) << 16
+               | (b[i + 3] & 0xffL) << 24
+               | (b[i + 4] & 0xffL) << 32
+               | (b[i + 5] & 0xffL) << 40
+               | (b[i + 6] & 0xffL) << 48
+               | (b[i + 7] & 0xffL) << 56;
+    }
+
+    /**
+     * Read a little endian unsigned int
+     */
+    protected static long getInt( byte[] b, int i )
+    {
+        return (b[i] & 0xffL)
+               | (b[i + 1] & 0xffL) << 8
+               | (b[i + 2] & 0xffL) << 16
+               | (b[i + 3] & 0xffL) << 24;
+    }
+
+    /**
+     * Per thread buffers so mapping a path only allocates the result
+     */
+    private static final class Buffers
+    {
+
+        private byte[] bytes = new byte[256];
+        private char[] chars = new char[128];
+        private final long[][] hashes = new long[3][];
+
+        /**
+         * Encode the path as UTF-8 into bytes
+         *
+         * @return number of bytes
+         */
+        int encode( char[] path )
+        {
+            int len = path.length;
+            if( bytes.length < len ) {
+                bytes = new byte[Math.max( len, bytes.length << 1 )];
+            }
+            for( int i = 0; i < len; i++ ) {
+                char c = path[i];
+                if( c > 0x7f ) {
+                    byte[] b = String.valueOf( path ).getBytes( StandardCharsets.UTF_8 );
+                    if( bytes.length < b.length ) {
+                        bytes = b;
+                    }
+                    else {
+                        System.arraycopy( b, 0, bytes, 0, b.length );
+                    }
+                    return b.length;
+                }
+                bytes[i] = (byte) c;
+            }
+            return len;
+        }
+
+        long[] hash( int size )
+        {
+            if( size >= hashes.length ) {
+                return new long[size];
+            }
+            if( hashes[size] == null ) {
+                hashes[size] = new long[size];
+            }
+            return hashes[size];
+        }
+
+        char[] chars( int size )
+        {
+            if( chars.length < size ) {
+                chars = new char[size];
+            }
+            return chars;
+        }
+    }
+}
@@ -17,11 +17,24 @@ package onl.area51.filesystem.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import onl.area51.filesystem.FileSystemUtils;
+import onl.area51.filesystem.io.overlay.SparseFile;
+import onl.area51.filesystem.io.overlay.Validators;
 
 /**
  * {@link FileSystemIO} implementation of a directory
@@ -40,6 +53,11 @@ public abstract class LocalFileSystemIO
      * Environment key to allow a Cache to expire files based on their age in milliseconds if the value is greater than 0.
      */
     public static final String MAX_AGE = "maxAge";
+    /**
+     * Environment key for how long in milliseconds past MAX_AGE a file is kept before it is expired. This allows an overlay to
+     * revalidate a file with its origin rather than retrieve it again. Defaults to 0.
+     */
+    public static final String MAX_STALE = "maxStale";
     /**
      * Environment key to tell the cache how often to expire files. If this is missing then it will default to MAX_AGE. If it's
      * negative then it will disable the scan.
@@ -54,15 +72,93 @@ public abstract class LocalFileSystemIO
      * Environment key to tell the cache to clear the filesystem on startup
      */
     public static final String CLEAR_ON_STARTUP = "clearOnStartup";
+    /**
+     * Environment key for the number of logical to physical path mappings to keep in memory. Defaults to 10000, 0 disables
+     * the memo so every lookup recomputes the path.
+     */
+    public static final String PATH_CACHE_SIZE = "pathCacheSize";
+    /**
+     * Environment key for the maximum total size in bytes of the files in the cache. If this or MAX_FILES is greater than 0
+     * then an in memory index is kept and the least recently or least frequently used files are removed once the limit is
+     * exceeded.
+     */
+    public static final String MAX_SIZE = "maxSize";
+    /**
+     * Environment key for the maximum number of files in the cache
+     */
+    public static final String MAX_FILES = "maxFiles";
+    /**
+     * Environment key for the eviction policy when MAX_SIZE or MAX_FILES is set, either "lru" (default) or "lfu"
+     */
+    public static final String EVICTION_POLICY = "evictionPolicy";
+    /**
+     * Environment key to persist the index to a journal under the base directory so it can be restored when the filesystem is
+     * opened without walking the directory tree. Setting this also enables the index if MAX_SIZE and MAX_FILES are not set so
+     * that MAX_AGE expiry does not need to walk the tree either.
+     */
+    public static final String INDEX_JOURNAL = "indexJournal";
+    /**
+     * Environment key for how often in milliseconds the journal is compacted into a snapshot, defaults to 5 minutes
+     */
+    public static final String JOURNAL_COMPACT_INTERVAL = "journalCompactInterval";
+    /**
+     * Environment key for the delay in milliseconds after the index has been restored from the journal before the directory
+     * tree is walked in the background to catch any drift. Defaults to 1 minute, if negative then this is disabled.
+     */
+    public static final String RECONCILE_DELAY = "reconcileDelay";
+    /**
+     * Environment key for the number of threads used to walk the directory tree when expiring by MAX_AGE. Defaults to the
+     * number of processors.
+     */
+    public static final String EXPIRY_PARALLELISM = "expiryParallelism";
+    /**
+     * Environment key for the maximum number of files and directories examined per second when expiring by MAX_AGE. Defaults
+     * to 0 which is unlimited.
+     */
+    public static final String EXPIRY_RATE_LIMIT = "expiryRateLimit";
+
+    private static final Logger LOG = Logger.getLogger( LocalFileSystemIO.class.getName() );
     private final long maxAge;
+    private final long maxStale;
+    private final PathCache<Path> pathCache;
+    private final CacheIndex index;
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+    private final CacheJournal journal;
+    private final long compactInterval;
+    private final ExpiryWalker expiryWalker;
+    private long lastCompact;
 
     private ScheduledFuture<?> task;
+    private ScheduledFuture<?> journalTask;
 
     public LocalFileSystemIO( Path basePath, Map<String, ?> env )
     {
         super( basePath, env );
 
         maxAge = FileSystemUtils.getLong( env, MAX_AGE, 0 );
+        maxStale = Math.max( 0L, FileSystemUtils.getLong( env, MAX_STALE, 0 ) );
+
+        int pathCacheSize = (int) FileSystemUtils.getLong( env, PATH_CACHE_SIZE, 10000 );
+        pathCache = pathCacheSize > 0 ? new PathCache<>( pathCacheSize ) : null;
+
+        long maxSize = FileSystemUtils.getLong( env, MAX_SIZE, 0 );
+        long maxFiles = FileSystemUtils.getLong( env, MAX_FILES, 0 );
+        boolean journalled = FileSystemUtils.isTrue( env, INDEX_JOURNAL );
+        if( maxSize > 0L || maxFiles > 0L || journalled ) {
+            String policy = FileSystemUtils.getString( env, EVICTION_POLICY, CacheIndex.Policy.LRU.name() );
+            index = new CacheIndex( CacheIndex.Policy.valueOf( policy.trim().toUpperCase() ), maxSize, maxFiles );
+        }
+        else {
+            index = null;
+        }
+        journal = index != null && journalled ? new CacheJournal( getBaseDirectory() ) : null;
+        compactInterval = FileSystemUtils.getLong( env, JOURNAL_COMPACT_INTERVAL, 300000L );
+
+        expiryWalker = new ExpiryWalker( getBaseDirectory(),
+                                         (int) FileSystemUtils.getLong( env, EXPIRY_PARALLELISM,
+                                                                        Runtime.getRuntime().availableProcessors() ),
+                                         FileSystemUtils.getLong( env, EXPIRY_RATE_LIMIT, 0L ),
+                                         this::fileDeleted );
 
         long delay = FileSystemUtils.getLong( env, SCAN_DELAY, maxAge );
 
@@ -71,6 +167,10 @@ public abstract class LocalFileSystemIO
         boolean clearOnStartup = FileSystemUtils.isTrue( env, CLEAR_ON_STARTUP );
         if( clearOnStartup ) {
             try {
+                // Removed first so a failure clearing the tree cannot leave an index of files which have gone
+                if( journal != null ) {
+                    journal.delete();
+                }
                 clearFileSystem();
             }
             catch( IOException ex ) {
@@ -78,6 +178,31 @@ public abstract class LocalFileSystemIO
             }
         }
 
+        boolean restored = false;
+        if( journal != null ) {
+            try {
+                Files.createDirectories( getBaseDirectory() );
+                restored = journal.open( index );
+                evict();
+            }
+            catch( IOException ex ) {
+                LOG.log( Level.WARNING, ex, () -> "Failed to restore index for " + getBaseDirectory() );
+            }
+            lastCompact = System.currentTimeMillis();
+            journalTask = FileSystemUtils.scheduleAtFixedRate( this::flushJournal, 1000L, 1000L, TimeUnit.MILLISECONDS );
+        }
+
+        if( restored ) {
+            long reconcileDelay = FileSystemUtils.getLong( env, RECONCILE_DELAY, 60000L );
+            if( reconcileDelay >= 0L ) {
+                FileSystemUtils.schedule( this::reconcile, reconcileDelay, TimeUnit.MILLISECONDS );
+            }
+        }
+        else if( index != null && !clearOnStartup ) {
+            // Populate the index in the background so we don't delay opening the filesystem
+            FileSystemUtils.schedule( this::reconcile, 0L, TimeUnit.MILLISECONDS );
+        }
+
         if( maxAge > 0L ) {
             if( delay > 0L ) {
                 task = FileSystemUtils.scheduleAtFixedRate( this::expire,
@@ -99,6 +224,31 @@ public abstract class LocalFileSystemIO
     @Override
     public Path toPath( char[] path )
             throws IOException
+    {
+        if( pathCache == null ) {
+            return resolve( path );
+        }
+
+        Path p = pathCache.get( path );
+        if( p == null ) {
+            p = resolve( path );
+            pathCache.put( path, p );
+        }
+        return p;
+    }
+
+    /**
+     * Resolve a path into the physical path within the base directory. The result of this is memoized by
+     * {@link #toPath(char[])} so it must always return the same value for the same path.
+     *
+     * @param path
+     *
+     * @return
+     *
+     * @throws IOException if the path is outside the FileSystem
+     */
+    protected Path resolve( char[] path )
+            throws IOException
     {
         Path p = getBaseDirectory().resolve( getPath( path ) ).toAbsolutePath();
         if( p.startsWith( getBaseDirectory() ) ) {
@@ -107,6 +257,182 @@ public abstract class LocalFileSystemIO
         throw new IOException( "Path is outside the FileSystem" );
     }
 
+    /**
+     * The index of files in this filesystem
+     *
+     * @return the index or null if MAX_SIZE and MAX_FILES are not set
+     */
+    public final CacheIndex getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * The walker used to expire files by MAX_AGE when there is no index. This provides the progress of the current or last
+     * expiry run.
+     *
+     * @return
+     */
+    public final ExpiryWalker getExpiryWalker()
+    {
+        return expiryWalker;
+    }
+
+    /**
+     * Walk the directory tree adding any files missing from the index and removing any entries whose file has gone
+     */
+    private void reconcile()
+    {
+        long start = System.currentTimeMillis();
+        Set<Path> seen = new HashSet<>();
+        index.beginScan();
+        try {
+            Files.walkFileTree( getBaseDirectory(), new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+                        throws IOException
+                {
+                    if( attrs.isRegularFile() && !CacheJournal.isJournal( file ) && !StagedFileChannel.isStaging( file )
+                        && !Validators.isSidecar( file ) && !SparseFile.isSparse( file ) ) {
+                        seen.add( file );
+                        long modified = attrs.lastModifiedTime().toMillis();
+                        long accessed = attrs.lastAccessTime().toMillis();
+                        if( index.load( file, attrs.size(), modified, accessed ) && journal != null ) {
+                            journal.written( file, attrs.size(), modified, accessed );
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed( Path file, IOException exc )
+                        throws IOException
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+            } );
+
+            for( Path p: index.retain( seen, start ) ) {
+                if( journal != null ) {
+                    journal.deleted( p );
+                }
+            }
+            evict();
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.WARNING, ex, () -> "Failed to index " + getBaseDirectory() );
+        }
+        finally {
+            index.endScan();
+        }
+    }
+
+    private void flushJournal()
+    {
+        journal.flush();
+        long now = System.currentTimeMillis();
+        if( compactInterval > 0L && now - lastCompact >= compactInterval ) {
+            lastCompact = now;
+            try {
+                journal.compact( index );
+            }
+            catch( IOException ex ) {
+                LOG.log( Level.WARNING, ex, () -> "Failed to compact journal for " + getBaseDirectory() );
+            }
+        }
+    }
+
+    /**
+     * Delete files until the index is within its limits
+     */
+    private void evict()
+    {
+        deleteAll( index.evict() );
+    }
+
+    /**
+     * Evict in the background so the writer closing a file does not wait for other files to be deleted. Only one eviction is
+     * queued at a time, a write made whilst one is running queues another.
+     */
+    private void scheduleEviction()
+    {
+        if( index.isOverLimit() && evictionScheduled.compareAndSet( false, true ) ) {
+            try {
+                FileSystemUtils.execute( () -> {
+                    evictionScheduled.set( false );
+                    evict();
+                } );
+            }
+            catch( RejectedExecutionException ex ) {
+                // The workers are overloaded so keep within the limits here rather than let the cache grow
+                evictionScheduled.set( false );
+                evict();
+            }
+        }
+    }
+
+    private void deleteAll( List<Path> paths )
+    {
+        for( Path p: paths ) {
+            if( journal != null ) {
+                journal.deleted( p );
+            }
+            try {
+                Files.deleteIfExists( p );
+                Validators.delete( p );
+            }
+            catch( IOException ex ) {
+                LOG.log( Level.WARNING, ex, () -> "Failed to delete " + p );
+            }
+        }
+    }
+
+    @Override
+    protected void fileAccessed( Path p )
+    {
+        if( index != null ) {
+            index.accessed( p );
+        }
+    }
+
+    @Override
+    protected void fileWritten( Path p, long length )
+    {
+        if( index != null ) {
+            long l = length;
+            if( l < 0L ) {
+                try {
+                    l = Files.size( p );
+                }
+                catch( IOException ex ) {
+                    return;
+                }
+            }
+            index.written( p, l );
+            if( journal != null ) {
+                long now = System.currentTimeMillis();
+                journal.written( p, l, now, now );
+            }
+            scheduleEviction();
+        }
+    }
+
+    @Override
+    protected void fileDeleted( Path p )
+    {
+        if( index != null && index.removed( p ) && journal != null ) {
+            journal.deleted( p );
+        }
+    }
+
+    @Override
+    protected boolean delete( File f )
+    {
+        fileDeleted( f.toPath() );
+        return super.delete( f );
+    }
+
     @Override
     public void close()
             throws IOException
@@ -118,6 +444,31 @@ public abstract class LocalFileSystemIO
         }
         finally {
             task = null;
+            expiryWalker.close();
+            if( pathCache != null ) {
+                pathCache.clear();
+            }
+            if( journalTask != null ) {
+                journalTask.cancel( true );
+                journalTask = null;
+            }
+            if( journal != null && isTemporary() ) {
+                // The whole tree is about to be deleted so there's nothing worth keeping
+                journal.delete();
+            }
+            else if( journal != null ) {
+                // Leave a compact snapshot so the next startup is quick
+                try {
+                    journal.compact( index );
+                }
+                catch( IOException ex ) {
+                    LOG.log( Level.WARNING, ex, () -> "Failed to compact journal for " + getBaseDirectory() );
+                }
+                journal.close();
+            }
+            if( index != null ) {
+                index.clear();
+            }
             super.close();
         }
     }
@@ -125,27 +476,12 @@ public abstract class LocalFileSystemIO
     @Override
     public void expire()
     {
-        if( maxAge > 0L ) {
-            final long cull = System.currentTimeMillis() - maxAge;
-            for( File f: baseFile.listFiles() ) {
-                expireFile( cull, f );
-            }
-        }
-    }
-
-    private boolean expireFile( final long cull, final File f )
-    {
-        if( f.isDirectory() ) {
-            boolean d = true;
-            for( File f1: f.listFiles() ) {
-                d = d & expireFile( cull, f1 );
-            }
-            return d && f.lastModified() < cull && delete( f );
+        if( maxAge > 0L && index != null ) {
+            // The index knows every file so there's no need to walk the tree
+            deleteAll( index.expire( System.currentTimeMillis() - maxAge - maxStale ) );
         }
-        else if( f.isFile() && f.lastModified() < cull ) {
-            return delete( f );
+        else if( maxAge > 0L ) {
+            expiryWalker.expire( System.currentTimeMillis() - maxAge - maxStale );
         }
-        return false;
     }
-
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A bounded cache of read only memory mappings of files so that concurrent readers of the same hot file share one mapping.
+ * <p>
+ * A mapping is only reused whilst the file's size, modification time and file key are unchanged so replacing a file, as
+ * {@link FileSystemIO#newWritableChannel(char[])} does, is picked up on the next open. Files must not be truncated in place
+ * whilst they are being read.
+ * <p>
+ * Mappings dropped from the cache are released by the garbage collector once the last reader has finished with them.
+ *
+ * @author peter
+ */
+public final class MappedFileCache
+{
+
+    private final long threshold;
+    private final int maxMappings;
+    private final long maxBytes;
+    private final Map<Path, Mapping> mappings = new LinkedHashMap<>( 16, 0.75f, true );
+    private long bytes;
+
+    /**
+     *
+     * @param threshold   minimum size of a file to map
+     * @param maxMappings maximum number of mappings to keep
+     * @param maxBytes    maximum total size of the mappings to keep
+     */
+    public MappedFileCache( long threshold, int maxMappings, long maxBytes )
+    {
+        this.threshold = threshold;
+        this.maxMappings = maxMappings;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get a buffer containing the content of a file
+     *
+     * @param p path of the file
+     *
+     * @return a new buffer positioned at the start of the file or null if the file should not be mapped
+     *
+     * @throws IOException if the file does not exist
+     */
+    public ByteBuffer get( Path p )
+            throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes( p, BasicFileAttributes.class );
+        if( !attrs.isRegularFile() || attrs.size() < threshold || attrs.size() > Integer.MAX_VALUE ) {
+            return null;
+        }
+
+        synchronized( this ) {
+            Mapping m = mappings.get( p );
+            if( m != null && m.matches( attrs ) ) {
+                return m.buffer.duplicate();
+            }
+        }
+
+        MappedByteBuffer buffer;
+        try( FileChannel channel = FileChannel.open( p, StandardOpenOption.READ ) ) {
+            buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0L, attrs.size() );
+        }
+
+        synchronized( this ) {
+            Mapping old = mappings.put( p, new Mapping( attrs, buffer ) );
+            if( old != null ) {
+                bytes -= old.buffer.capacity();
+            }
+            bytes += buffer.capacity();
+
+            Iterator<Mapping> it = mappings.values().iterator();
+            while( it.hasNext() && mappings.size() > 1 && (mappings.size() > maxMappings || bytes > maxBytes) ) {
+                bytes -= it.next().buffer.capacity();
+                it.remove();
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Remove any mapping of a file
+     *
+     * @param p
+     */
+    public synchronized void invalidate( Path p )
+    {
+        Mapping m = mappings.remove( p );
+        if( m != null ) {
+            bytes -= m.buffer.capacity();
+        }
+    }
+
+    public synchronized void clear()
+    {
+        mappings.clear();
+        bytes = 0L;
+    }
+
+    private static final class Mapping
+    {
+
+        private final long size;
+        private final long lastModified;
+        private final Object fileKey;
+        private final MappedByteBuffer buffer;
+
+        Mapping( BasicFileAttributes attrs, MappedByteBuffer buffer )
+        {
+            this.size = attrs.size();
+            this.lastModified = attrs.lastModifiedTime().toMillis();
+            this.fileKey = attrs.fileKey();
+            this.buffer = buffer;
+        }
+
+        boolean matches( BasicFileAttributes attrs )
+        {
+            return size == attrs.size()
+                   && lastModified == attrs.lastModifiedTime().toMillis()
+                   && Objects.equals( fileKey, attrs.fileKey() );
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.nio.file.Path;
+import java.util.Map;
+import org.kohsuke.MetaInfServices;
+
+/**
+ * A {@link HashedCache} sharded by the 128 bit x64 Murmur3 hash of the path.
+ * <p>
+ * The longer hash makes collisions between file names practically impossible even with hundreds of millions of files, at the
+ * cost of a slightly longer file name than {@link XXHash64}.
+ *
+ * @author peter
+ */
+@MetaInfServices(FileSystemIO.class)
+public class Murmur3
+        extends HashedCache
+{
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    public Murmur3( Path basePath,
+                    Map<String, ?> env )
+    {
+        super( basePath, env );
+    }
+
+    @Override
+    protected int getHashSize()
+    {
+        return 2;
+    }
+
+    @Override
+    protected void hash( byte[] data, int len, long[] result )
+    {
+        hash( data, 0, len, 0, result );
+    }
+
+    /**
+     * Murmur3 x64 128 bit hash of part of an array
+     *
+     * @param b      data
+     * @param off    offset of first byte
+     * @param len    number of bytes
+     * @param seed   seed
+     * @param result array to receive the two halves of the hash
+     */
+    public static void hash( byte[] b, int off, int len, int seed, long[] result )
+    {
+        long h1 = seed & 0xffffffffL;
+        long h2 = h1;
+
+        int end = off + len;
+        int i = off;
+        for( int limit = end - 16; i <= limit; i += 16 ) {
+            long k1 = getLong( b, i );
+            long k2 = getLong( b, i + 8 );
+
+            h1 ^= mixK1( k1 );
+            h1 = Long.rotateLeft( h1, 27 );
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2( k2 );
+            h2 = Long.rotateLeft( h2, 31 );
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        switch( end - i ) {
+            case 15:
+                k2 ^= (b[i + 14] & 0xffL) << 48;
+            case 14:
+                k2 ^= (b[i + 13] & 0xffL) << 40;
+            case 13:
+                k2 ^= (b[i + 12] & 0xffL) << 32;
+            case 12:
+                k2 ^= (b[i + 11] & 0xffL) << 24;
+            case 11:
+                k2 ^= (b[i + 10] & 0xffL) << 16;
+            case 10:
+                k2 ^= (b[i + 9] & 0xffL) << 8;
+            case 9:
+                k2 ^= b[i + 8] & 0xffL;
+                h2 ^= mixK2( k2 );
+            case 8:
+                k1 ^= (b[i + 7] & 0xffL) << 56;
+            case 7:
+                k1 ^= (b[i + 6] & 0xffL) << 48;
+            case 6:
+                k1 ^= (b[i + 5] & 0xffL) << 40;
+            case 5:
+                k1 ^= (b[i + 4] & 0xffL) << 32;
+            case 4:
+                k1 ^= (b[i + 3] & 0xffL) << 24;
+            case 3:
+                k1 ^= (b[i + 2] & 0xffL) << 16;
+            case 2:
+                k1 ^= (b[i + 1] & 0xffL) << 8;
+            case 1:
+                k1 ^= b[i] & 0xffL;
+                h1 ^= mixK1( k1 );
+            default:
+                break;
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix( h1 );
+        h2 = fmix( h2 );
+        h1 += h2;
+        h2 += h1;
+
+        result[0] = h1;
+        result[1] = h2;
+    }
+
+    private static long mixK1( long k1 )
+    {
+        k1 *= C1;
+        k1 = Long.rotateLeft( k1, 31 );
+        return k1 * C2;
+    }
+
+    private static long mixK2( long k2 )
+    {
+        k2 *= C2;
+        k2 = Long.rotateLeft( k2, 33 );
+        return k2 * C1;
+    }
+
+    private static long fmix( long k )
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded memo keyed by logical path, e.g. of the physical {@link Path}.
+ * <p>
+ * Entries are held in two generations. Lookups check the current generation then the previous one, promoting any hit. Once
+ * the current generation reaches the limit it becomes the previous one and the old previous generation is dropped, so hot
+ * paths survive while the whole thing never holds more than twice the limit. There's no per entry bookkeeping so a hit costs
+ * just the lookup, which probes with a per thread key so it doesn't allocate.
+ *
+ * @author peter
+ */
+final class PathCache<V>
+{
+
+    private static final ThreadLocal<Key> PROBE = ThreadLocal.withInitial( Key::new );
+
+    private final int limit;
+    private volatile Map<Key, V> current;
+    private volatile Map<Key, V> previous;
+
+    PathCache( int limit )
+    {
+        this.limit = limit;
+        current = new ConcurrentHashMap<>();
+        previous = new ConcurrentHashMap<>();
+    }
+
+    V get( char[] path )
+    {
+        Key probe = PROBE.get().set( path );
+        try {
+            V p = current.get( probe );
+            if( p == null ) {
+                p = previous.get( probe );
+                if( p != null ) {
+                    put( new Key( path.clone(), probe.hash ), p );
+                }
+            }
+            return p;
+        }
+        finally {
+            // Don't keep the caller's array alive
+            probe.path = null;
+        }
+    }
+
+    void put( char[] path, V p )
+    {
+        // Copy the key as we don't own the callers array
+        put( new Key( path.clone(), Arrays.hashCode( path ) ), p );
+    }
+
+    private void put( Key key, V p )
+    {
+        Map<Key, V> m = current;
+        if( m.size() >= limit ) {
+            synchronized( this ) {
+                if( current == m ) {
+                    previous = m;
+                    current = new ConcurrentHashMap<>();
+                }
+                m = current;
+            }
+        }
+        m.put( key, p );
+    }
+
+    void remove( char[] path )
+    {
+        Key probe = PROBE.get().set( path );
+        try {
+            current.remove( probe );
+            previous.remove( probe );
+        }
+        finally {
+            probe.path = null;
+        }
+    }
+
+    void clear()
+    {
+        synchronized( this ) {
+            current = new ConcurrentHashMap<>();
+            previous = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * Key holding a path. Keys in the maps are never changed, only the per thread probe is reused.
+     */
+    private static final class Key
+    {
+
+        private char[] path;
+        private int hash;
+
+        Key()
+        {
+        }
+
+        Key( char[] path, int hash )
+        {
+            this.path = path;
+            this.hash = hash;
+        }
+
+        Key set( char[] path )
+        {
+            this.path = path;
+            hash = Arrays.hashCode( path );
+            return this;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            return obj instanceof Key && hash == ((Key) obj).hash && Arrays.equals( path, ((Key) obj).path );
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * A writable {@link FileChannel} which writes to a temporary file alongside the target, only moving it into place when the
+ * channel is closed. Readers therefore never see a partially written file, and if the channel is aborted the target is left
+ * untouched.
+ * <p>
+ * Whilst the channel is open {@link #newInputStream()} lets other threads read what has been written so far, following the
+ * writer as it progresses. This allows a file being retrieved from a remote store to be served before it is complete.
+ *
+ * @author peter
+ */
+public class StagedFileChannel
+        extends FileChannelWrapper
+{
+
+    /**
+     * Prefix of the temporary files
+     */
+    public static final String PREFIX = ".staging-";
+
+    private final Path target;
+    private final Path temp;
+    private final LongConsumer committed;
+    private final Consumer<StagedFileChannel> closed;
+
+    private static final int WRITING = 0;
+    private static final int COMMITTED = 1;
+    private static final int ABORTED = 2;
+
+    /**
+     * Guards written and state, notified whenever either changes
+     */
+    private final Object progress = new Object();
+    private long written;
+    private int state = WRITING;
+
+    private StagedFileChannel( Path target, Path temp, LongConsumer committed, Consumer<StagedFileChannel> closed )
+            throws IOException
+    {
+        super( FileChannel.open( temp, StandardOpenOption.WRITE, StandardOpenOption.READ ) );
+        this.target = target;
+        this.temp = temp;
+        this.committed = committed;
+        this.closed = closed;
+    }
+
+    /**
+     * Open a channel to write a file. The parent directory must exist.
+     *
+     * @param target    the file to write
+     * @param committed notified with the size of the file once it has been moved into place, may be null
+     *
+     * @return channel
+     *
+     * @throws IOException
+     */
+    public static StagedFileChannel open( Path target, LongConsumer committed )
+            throws IOException
+    {
+        return open( target, committed, null );
+    }
+
+    /**
+     * Open a channel to write a file. The parent directory must exist.
+     *
+     * @param target    the file to write
+     * @param committed notified with the size of the file once it has been moved into place, may be null
+     * @param closed    notified once the channel has closed whether committed or not, may be null
+     *
+     * @return channel
+     *
+     * @throws IOException
+     */
+    public static StagedFileChannel open( Path target, LongConsumer committed, Consumer<StagedFileChannel> closed )
+            throws IOException
+    {
+        Path temp = createTemporary( target );
+        try {
+            return new StagedFileChannel( target, temp, committed, closed );
+        }
+        catch( IOException ex ) {
+            Files.deleteIfExists( temp );
+            throw ex;
+        }
+    }
+
+    /**
+     * Create a uniquely named temporary file alongside the target. This is not {@link Files#createTempFile} as that makes the
+     * file readable only by its owner, which would then be kept when it is moved into place.
+     *
+     * @param target
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    private static Path createTemporary( Path target )
+            throws IOException
+    {
+        while( true ) {
+            Path temp = target.resolveSibling( PREFIX + Long.toUnsignedString( ThreadLocalRandom.current().nextLong(), 36 ) + ".tmp" );
+            try {
+                return Files.createFile( temp );
+            }
+            catch( FileAlreadyExistsException ex ) {
+                // Try another name
+            }
+        }
+    }
+
+    /**
+     * Is this path a temporary file
+     *
+     * @param p
+     *
+     * @return
+     */
+    public static boolean isStaging( Path p )
+    {
+        Path n = p.getFileName();
+        return n != null && n.toString().startsWith( PREFIX );
+    }
+
+    /**
+     * The file being written to
+     *
+     * @return
+     */
+    public Path getTemporaryPath()
+    {
+        return temp;
+    }
+
+    /**
+     * The file that will be written once this channel is closed
+     *
+     * @return
+     */
+    public Path getTarget()
+    {
+        return target;
+    }
+
+    @Override
+    public int write( ByteBuffer src )
+            throws IOException
+    {
+        int n = super.write( src );
+        written( position() );
+        return n;
+    }
+
+    @Override
+    public long write( ByteBuffer[] srcs, int offset, int length )
+            throws IOException
+    {
+        long n = super.write( srcs, offset, length );
+        written( position() );
+        return n;
+    }
+
+    @Override
+    public int write( ByteBuffer src, long position )
+            throws IOException
+    {
+        int n = super.write( src, position );
+        written( position + n );
+        return n;
+    }
+
+    @Override
+    public long transferFrom( ReadableByteChannel src, long position, long count )
+            throws IOException
+    {
+        long n = super.transferFrom( src, position, count );
+        written( position + n );
+        return n;
+    }
+
+    private void written( long end )
+    {
+        synchronized( progress ) {
+            if( end > written ) {
+                written = end;
+                progress.notifyAll();
+            }
+        }
+    }
+
+    private void setState( int state )
+    {
+        synchronized( progress ) {
+            this.state = state;
+            progress.notifyAll();
+        }
+    }
+
+    @Override
+    protected void implCloseChannel()
+            throws IOException
+    {
+        try {
+            commit();
+        }
+        finally {
+            if( closed != null ) {
+                closed.accept( this );
+            }
+        }
+    }
+
+    private void commit()
+            throws IOException
+    {
+        long size = -1L;
+        try {
+            if( !isAborted() ) {
+                size = getDelegate().size();
+            }
+        }
+        finally {
+            super.implCloseChannel();
+        }
+
+        if( isAborted() ) {
+            setState( ABORTED );
+            Files.deleteIfExists( temp );
+        }
+        else {
+            try {
+                Files.move( temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            }
+            catch( IOException ex ) {
+                setState( ABORTED );
+                Files.deleteIfExists( temp );
+                throw ex;
+            }
+            written( size );
+            setState( COMMITTED );
+            if( committed != null ) {
+                committed.accept( size );
+            }
+        }
+    }
+
+    /**
+     * Open a stream reading the file as it is written. Reads block until the writer has written the bytes being read, and the
+     * stream ends once the channel has been closed and everything written has been read. If the channel is aborted then reads
+     * fail with an IOException.
+     *
+     * @return stream or null if the channel has already been closed, in which case the target should be read instead
+     *
+     * @throws IOException
+     */
+    public InputStream newInputStream()
+            throws IOException
+    {
+        synchronized( progress ) {
+            if( state != WRITING ) {
+                return null;
+            }
+        }
+        try {
+            // Once open we can still read it after it has been moved into place
+            return new FollowingInputStream( FileChannel.open( temp, StandardOpenOption.READ ) );
+        }
+        catch( NoSuchFileException ex ) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the temporary file following the writer
+     */
+    private class FollowingInputStream
+            extends InputStream
+    {
+
+        private final FileChannel channel;
+        private long position;
+
+        FollowingInputStream( FileChannel channel )
+        {
+            this.channel = channel;
+        }
+
+        /**
+         * Wait until there's something to read
+         *
+         * @return number of bytes available or -1 at the end of the file
+         */
+        private long await()
+                throws IOException
+        {
+            synchronized( progress ) {
+                while( position >= written && state == WRITING ) {
+                    try {
+                        progress.wait();
+                    }
+                    catch( InterruptedException ex ) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if( state == ABORTED ) {
+                    throw new IOException( "Writing " + target + " failed" );
+                }
+                return position < written ? written - position : -1L;
+            }
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            byte[] b = new byte[1];
+            return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len )
+                throws IOException
+        {
+            if( len == 0 ) {
+                return 0;
+            }
+            long available = await();
+            if( available < 0L ) {
+                return -1;
+            }
+            int n = channel.read( ByteBuffer.wrap( b, off, (int) Math.min( len, available ) ), position );
+            if( n > 0 ) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available()
+                throws IOException
+        {
+            synchronized( progress ) {
+                return (int) Math.min( Integer.MAX_VALUE, Math.max( 0L, written - position ) );
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            channel.close();
+        }
+    }
+
+}
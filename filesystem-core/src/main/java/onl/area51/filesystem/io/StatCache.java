@@ -0,0 +1,499 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import onl.area51.filesystem.FileSystemUtils;
+import org.kohsuke.MetaInfServices;
+
+/**
+ * A wrapper that caches the existence and {@link BasicFileAttributes} of paths for a short time so repeated stats of the same
+ * file do not each go to the underlying filesystem.
+ * <p>
+ * Use it by adding statcache to fileSystemWrapper. Writes and deletes made through this instance invalidate the cache
+ * immediately. Changes made any other way, e.g. files removed by expiry or eviction, are seen once the entry's
+ * {@link #TTL} has passed.
+ *
+ * @author peter
+ */
+@MetaInfServices(FileSystemIOWrapper.class)
+public class StatCache
+        extends FileSystemIOWrapper
+{
+
+    /**
+     * Environment key for how long in milliseconds an entry is valid. Defaults to 1000.
+     */
+    public static final String TTL = "statCacheTtl";
+    /**
+     * Environment key for the number of entries to keep. Defaults to 10000.
+     */
+    public static final String SIZE = "statCacheSize";
+
+    /**
+     * Number of invalidation counters, a power of 2
+     */
+    private static final int STRIPES = 64;
+
+    private final long ttl;
+    private final PathCache<Stat> cache;
+    /**
+     * Incremented whenever a path in the stripe is invalidated, so a stat that raced with a write is not cached
+     */
+    private final AtomicLongArray versions = new AtomicLongArray( STRIPES );
+
+    public StatCache( FileSystemIO delegate, Map<String, ?> env )
+    {
+        super( delegate );
+        ttl = TimeUnit.MILLISECONDS.toNanos( FileSystemUtils.getLong( env, TTL, 1000L ) );
+        cache = new PathCache<>( (int) Math.max( 1L, FileSystemUtils.getLong( env, SIZE, 10000L ) ) );
+    }
+
+    /**
+     * Get the current entry for a path
+     *
+     * @param path
+     *
+     * @return entry or null if none or it has expired
+     */
+    private Stat get( char[] path )
+    {
+        Stat s = cache.get( path );
+        return s == null || s.expires - System.nanoTime() < 0L ? null : s;
+    }
+
+    private static int stripe( char[] path )
+    {
+        int h = Arrays.hashCode( path );
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * The invalidation count of a path, to be read before it is stat'ed
+     */
+    private long version( char[] path )
+    {
+        return versions.get( stripe( path ) );
+    }
+
+    /**
+     * Cache the result of a stat unless the path was invalidated since version was read
+     */
+    private void put( char[] path, long version, BasicFileAttributes attrs, boolean exists )
+    {
+        int stripe = stripe( path );
+        if( versions.get( stripe ) == version ) {
+            cache.put( path, new Stat( attrs, exists, System.nanoTime() + ttl ) );
+            // An invalidation may have happened between the check and the put
+            if( versions.get( stripe ) != version ) {
+                cache.remove( path );
+            }
+        }
+    }
+
+    /**
+     * Invalidate a path being written along with its parent directories as they may be created by the write
+     *
+     * @param path
+     */
+    private void written( char[] path )
+    {
+        deleted( path );
+        for( int i = path.length - 1; i > 0; i-- ) {
+            if( path[i] == '/' ) {
+                char[] parent = Arrays.copyOf( path, i );
+                versions.incrementAndGet( stripe( parent ) );
+                cache.remove( parent );
+            }
+        }
+    }
+
+    private void deleted( char[] path )
+    {
+        versions.incrementAndGet( stripe( path ) );
+        cache.remove( path );
+    }
+
+    private void clear()
+    {
+        for( int i = 0; i < STRIPES; i++ ) {
+            versions.incrementAndGet( i );
+        }
+        cache.clear();
+    }
+
+    @Override
+    public boolean exists( char[] path )
+            throws IOException
+    {
+        Stat s = get( path );
+        if( s != null ) {
+            return s.exists;
+        }
+        long version = version( path );
+        boolean exists = super.exists( path );
+        put( path, version, null, exists );
+        return exists;
+    }
+
+    @Override
+    public BasicFileAttributes getAttributes( char[] path )
+            throws IOException
+    {
+        Stat s = get( path );
+        if( s != null && s.attrs != null ) {
+            return s.attrs;
+        }
+        long version = version( path );
+        BasicFileAttributes attrs = super.getAttributes( path );
+        put( path, version, attrs, true );
+        return attrs;
+    }
+
+    @Override
+    public boolean isFile( char[] path )
+            throws IOException
+    {
+        Stat s = get( path );
+        if( s != null && (s.attrs != null || !s.exists) ) {
+            return s.exists && s.attrs.isRegularFile();
+        }
+        return super.isFile( path );
+    }
+
+    @Override
+    public boolean isDirectory( char[] path )
+            throws IOException
+    {
+        Stat s = get( path );
+        if( s != null && (s.attrs != null || !s.exists) ) {
+            return s.exists && s.attrs.isDirectory();
+        }
+        return super.isDirectory( path );
+    }
+
+    @Override
+    public long size( char[] path )
+            throws IOException
+    {
+        Stat s = get( path );
+        if( s != null && s.attrs != null ) {
+            return s.attrs.size();
+        }
+        return super.size( path );
+    }
+
+    @Override
+    public InputStream newInputStream( char[] path )
+            throws IOException
+    {
+        InputStream is = super.newInputStream( path );
+        // A wrapper below us may have just retrieved it
+        Stat s = cache.get( path );
+        if( s != null && !s.exists ) {
+            deleted( path );
+        }
+        return is;
+    }
+
+    @Override
+    public OutputStream newOutputStream( char[] path, OpenOption... options )
+            throws IOException
+    {
+        written( path );
+        return new FilterOutputStream( super.newOutputStream( path, options ) )
+        {
+            @Override
+            public void write( byte[] b, int off, int len )
+                    throws IOException
+            {
+                out.write( b, off, len );
+            }
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                try {
+                    super.close();
+                }
+                finally {
+                    deleted( path );
+                }
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory( char[] path, FileAttribute<?>[] attrs )
+            throws IOException
+    {
+        try {
+            super.createDirectory( path, attrs );
+        }
+        finally {
+            written( path );
+        }
+    }
+
+    @Override
+    public void touch( char[] path )
+            throws IOException
+    {
+        try {
+            super.touch( path );
+        }
+        finally {
+            written( path );
+        }
+    }
+
+    @Override
+    public void deleteFile( char[] path, boolean exists )
+            throws IOException
+    {
+        try {
+            super.deleteFile( path, exists );
+        }
+        finally {
+            deleted( path );
+        }
+    }
+
+    @Override
+    public void copyFile( boolean b, char[] src, char[] dest, CopyOption... options )
+            throws IOException
+    {
+        try {
+            super.copyFile( b, src, dest, options );
+        }
+        finally {
+            written( dest );
+        }
+    }
+
+    private static boolean isWrite( Set<? extends OpenOption> options )
+    {
+        return options.contains( StandardOpenOption.WRITE )
+               || options.contains( StandardOpenOption.APPEND )
+               || options.contains( StandardOpenOption.DELETE_ON_CLOSE );
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel( char[] path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        if( !isWrite( options ) ) {
+            return super.newByteChannel( path, options, attrs );
+        }
+        written( path );
+        return new InvalidatingByteChannel( path, super.newByteChannel( path, options, attrs ) );
+    }
+
+    @Override
+    public FileChannel newFileChannel( char[] path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        if( !isWrite( options ) ) {
+            return super.newFileChannel( path, options, attrs );
+        }
+        written( path );
+        return new InvalidatingFileChannel( path, super.newFileChannel( path, options, attrs ) );
+    }
+
+    @Override
+    public FileChannel newWritableChannel( char[] path )
+            throws IOException
+    {
+        written( path );
+        return new InvalidatingFileChannel( path, super.newWritableChannel( path ) );
+    }
+
+    /**
+     * Invalidates the path when the channel is opened for writing. As the channel is not wrapped, changes made whilst it is
+     * open may not be seen until the entry expires.
+     */
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel( char[] path, Set<? extends OpenOption> options,
+                                                               ExecutorService exec, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        if( isWrite( options ) ) {
+            written( path );
+        }
+        return super.newAsynchronousFileChannel( path, options, exec, attrs );
+    }
+
+    @Override
+    public void expire()
+    {
+        try {
+            super.expire();
+        }
+        finally {
+            clear();
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try {
+            super.close();
+        }
+        finally {
+            clear();
+        }
+    }
+
+    private static final class Stat
+    {
+
+        /**
+         * The attributes or null if only existence is known
+         */
+        private final BasicFileAttributes attrs;
+        private final boolean exists;
+        private final long expires;
+
+        Stat( BasicFileAttributes attrs, boolean exists, long expires )
+        {
+            this.attrs = attrs;
+            this.exists = exists;
+            this.expires = expires;
+        }
+    }
+
+    private class InvalidatingFileChannel
+            extends FileChannelWrapper
+    {
+
+        private final char[] path;
+
+        InvalidatingFileChannel( char[] path, FileChannel delegate )
+        {
+            super( delegate );
+            this.path = path;
+        }
+
+        @Override
+        protected void implCloseChannel()
+                throws IOException
+        {
+            try {
+                super.implCloseChannel();
+            }
+            finally {
+                deleted( path );
+            }
+        }
+    }
+
+    private class InvalidatingByteChannel
+            implements SeekableByteChannel
+    {
+
+        private final char[] path;
+        private final SeekableByteChannel delegate;
+
+        InvalidatingByteChannel( char[] path, SeekableByteChannel delegate )
+        {
+            this.path = path;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int read( ByteBuffer dst )
+                throws IOException
+        {
+            return delegate.read( dst );
+        }
+
+        @Override
+        public int write( ByteBuffer src )
+                throws IOException
+        {
+            return delegate.write( src );
+        }
+
+        @Override
+        public long position()
+                throws IOException
+        {
+            return delegate.position();
+        }
+
+        @Override
+        public SeekableByteChannel position( long newPosition )
+                throws IOException
+        {
+            delegate.position( newPosition );
+            return this;
+        }
+
+        @Override
+        public long size()
+                throws IOException
+        {
+            return delegate.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate( long size )
+                throws IOException
+        {
+            delegate.truncate( size );
+            return this;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            try {
+                delegate.close();
+            }
+            finally {
+                deleted( path );
+            }
+        }
+    }
+}
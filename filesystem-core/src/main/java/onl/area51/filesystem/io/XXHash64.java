@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.nio.file.Path;
+import java.util.Map;
+import org.kohsuke.MetaInfServices;
+
+/**
+ * A {@link HashedCache} sharded by the 64 bit xxHash of the path.
+ * <p>
+ * So for the file "/test.jpg" with the default fan out and depth the local file will be "12/34/1234567890abcdef.jpg"
+ *
+ * @author peter
+ */
+@MetaInfServices(FileSystemIO.class)
+public class XXHash64
+        extends HashedCache
+{
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    public XXHash64( Path basePath,
+                     Map<String, ?> env )
+    {
+        super( basePath, env );
+    }
+
+    @Override
+    protected int getHashSize()
+    {
+        return 1;
+    }
+
+    @Override
+    protected void hash( byte[] data, int len, long[] result )
+    {
+        result[0] = hash( data, 0, len, 0L );
+    }
+
+    /**
+     * xxHash64 of part of an array
+     *
+     * @param b    data
+     * @param off  offset of first byte
+     * @param len  number of bytes
+     * @param seed seed
+     *
+     * @return hash
+     */
+    public static long hash( byte[] b, int off, int len, long seed )
+    {
+        int end = off + len;
+        int i = off;
+        long h;
+
+        if( len >= 32 ) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            for( int limit = end - 32; i <= limit; i += 32 ) {
+                v1 = round( v1, getLong( b, i ) );
+                v2 = round( v2, getLong( b, i + 8 ) );
+                v3 = round( v3, getLong( b, i + 16 ) );
+                v4 = round( v4, getLong( b, i + 24 ) );
+            }
+            h = Long.rotateLeft( v1, 1 ) + Long.rotateLeft( v2, 7 ) + Long.rotateLeft( v3, 12 ) + Long.rotateLeft( v4, 18 );
+            h = merge( h, v1 );
+            h = merge( h, v2 );
+            h = merge( h, v3 );
+            h = merge( h, v4 );
+        }
+        else {
+            h = seed + PRIME5;
+        }
+
+        h += len;
+
+        for( ; i + 8 <= end; i += 8 ) {
+            h ^= round( 0, getLong( b, i ) );
+            h = Long.rotateLeft( h, 27 ) * PRIME1 + PRIME4;
+        }
+
+        if( i + 4 <= end ) {
+            h ^= getInt( b, i ) * PRIME1;
+            h = Long.rotateLeft( h, 23 ) * PRIME2 + PRIME3;
+            i += 4;
+        }
+
+        for( ; i < end; i++ ) {
+            h ^= (b[i] & 0xffL) * PRIME5;
+            h = Long.rotateLeft( h, 11 ) * PRIME1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round( long acc, long input )
+    {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft( acc, 31 );
+        return acc * PRIME1;
+    }
+
+    private static long merge( long acc, long val )
+    {
+        acc ^= round( 0, val );
+        return acc * PRIME1 + PRIME4;
+    }
+}
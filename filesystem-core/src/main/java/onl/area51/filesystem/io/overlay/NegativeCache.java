@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded set of paths known not to exist in the remote store, each remembered for a fixed time so repeated lookups of a
+ * missing path do not each go to the remote. Once full the least recently used path is forgotten.
+ *
+ * @author peter
+ */
+public final class NegativeCache
+{
+
+    private final long ttl;
+    private final int maxSize;
+    private final Map<String, Long> misses;
+
+    /**
+     *
+     * @param ttl     time in millis to remember a miss
+     * @param maxSize max number of misses to remember
+     */
+    public NegativeCache( long ttl, int maxSize )
+    {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos( ttl );
+        this.maxSize = Math.max( 1, maxSize );
+        misses = new LinkedHashMap<String, Long>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Long> eldest )
+            {
+                return size() > NegativeCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Is a path known to be missing
+     *
+     * @param path
+     *
+     * @return
+     */
+    public boolean contains( char[] path )
+    {
+        String key = String.valueOf( path );
+        synchronized( misses ) {
+            Long expires = misses.get( key );
+            if( expires == null ) {
+                return false;
+            }
+            if( expires - System.nanoTime() < 0L ) {
+                misses.remove( key );
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Record a path as missing
+     *
+     * @param path
+     */
+    public void add( char[] path )
+    {
+        String key = String.valueOf( path );
+        long expires = System.nanoTime() + ttl;
+        synchronized( misses ) {
+            misses.put( key, expires );
+        }
+    }
+
+    /**
+     * Forget a path, e.g. as it has now been written
+     *
+     * @param path
+     */
+    public void remove( char[] path )
+    {
+        String key = String.valueOf( path );
+        synchronized( misses ) {
+            misses.remove( key );
+        }
+    }
+
+    public int size()
+    {
+        synchronized( misses ) {
+            return misses.size();
+        }
+    }
+
+    public void clear()
+    {
+        synchronized( misses ) {
+            misses.clear();
+        }
+    }
+}
@@ -15,13 +15,37 @@
  */
 package onl.area51.filesystem.io.overlay;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
 import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import onl.area51.filesystem.FileSystemUtils;
+import onl.area51.filesystem.io.FileChannelWrapper;
 import onl.area51.filesystem.io.FileSystemIO;
 import onl.area51.filesystem.io.FileSystemIOWrapper;
+import onl.area51.filesystem.io.LocalFileSystemIO;
 
 /**
  * A wrapper that delegates to another {@link FileSystemIO} instance with a hook implemented for retrieving a path from another
@@ -33,9 +57,54 @@ public abstract class OverlayFileSystemIO
         extends FileSystemIOWrapper
 {
 
+    /**
+     * Environment key for how long in milliseconds a path not found in the remote store is remembered as missing. Defaults to
+     * 0 which disables it so every lookup of a missing path goes to the remote.
+     */
+    public static final String NEGATIVE_CACHE_TTL = "negativeCacheTtl";
+    /**
+     * Environment key for the number of missing paths to remember. Defaults to 10000.
+     */
+    public static final String NEGATIVE_CACHE_SIZE = "negativeCacheSize";
+    /**
+     * Environment key to serve a file being retrieved as it arrives rather than once it has been retrieved
+     */
+    public static final String STREAMING_FILL = "streamingFill";
+    /**
+     * Environment key to open remote files for random access by fetching only the blocks read. Requires the retriever to be a
+     * {@link RangeRetriever} and the delegate to support {@link FileSystemIO#toPath(char[])}.
+     */
+    public static final String SPARSE_FETCH = "sparseFetch";
+    /**
+     * Environment key for the block size used by {@link #SPARSE_FETCH}. Defaults to 1MB.
+     */
+    public static final String SPARSE_BLOCK_SIZE = "sparseBlockSize";
+    /**
+     * Environment key to revalidate a file with its origin once it is older than {@link LocalFileSystemIO#MAX_AGE} rather than
+     * retrieve it again. Requires the retriever to be a {@link ValidatingRetriever}. Set {@link LocalFileSystemIO#MAX_STALE}
+     * so that expiry does not delete files before they can be revalidated.
+     */
+    public static final String REVALIDATE = "revalidate";
+    /**
+     * Environment key to serve a file older than {@link LocalFileSystemIO#MAX_AGE} straight away whilst it is refreshed from
+     * the origin in the background, conditionally if {@link #REVALIDATE} is also set. Files older than MAX_AGE plus
+     * {@link LocalFileSystemIO#MAX_STALE} are expired as normal.
+     */
+    public static final String STALE_WHILE_REVALIDATE = "staleWhileRevalidate";
+
+    private static final Logger LOG = Logger.getLogger( OverlayFileSystemIO.class.getName() );
+
     private final PathSynchronizer pathSynchronizer;
     private final OverlayRetriever retriever;
     private final OverlaySender sender;
+    private final NegativeCache negativeCache;
+    private final boolean streamingFill;
+    private final int sparseBlockSize;
+    private final long maxAge;
+    private final boolean revalidate;
+    private final boolean staleWhileRevalidate;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final Map<String, CompletableFuture<SparseFile>> sparseFiles = new ConcurrentHashMap<>();
 
     public OverlayFileSystemIO( FileSystemIO delegate, OverlayRetriever retriever )
     {
@@ -44,7 +113,13 @@ public abstract class OverlayFileSystemIO
 
     public OverlayFileSystemIO( FileSystemIO delegate, PathSynchronizer pathSynchronizer, OverlayRetriever retriever )
     {
-        this( delegate, pathSynchronizer, retriever, null );
+        this( delegate, pathSynchronizer, retriever, Collections.emptyMap() );
+    }
+
+    public OverlayFileSystemIO( FileSystemIO delegate, PathSynchronizer pathSynchronizer, OverlayRetriever retriever,
+                                Map<String, ?> env )
+    {
+        this( delegate, pathSynchronizer, retriever, null, env );
     }
 
     public OverlayFileSystemIO( FileSystemIO delegate, OverlaySender sender )
@@ -54,15 +129,89 @@ public abstract class OverlayFileSystemIO
 
     public OverlayFileSystemIO( FileSystemIO delegate, PathSynchronizer pathSynchronizer, OverlaySender sender )
     {
-        this( delegate, pathSynchronizer, null, sender );
+        this( delegate, pathSynchronizer, null, sender, Collections.emptyMap() );
+    }
+
+    /**
+     *
+     * @param delegate
+     * @param sender
+     * @param env      if {@link WriteBehindSender#THREADS} is set then paths are sent in the background
+     */
+    public OverlayFileSystemIO( FileSystemIO delegate, OverlaySender sender, Map<String, ?> env )
+    {
+        this( delegate, null, null, sender, env );
     }
 
-    private OverlayFileSystemIO( FileSystemIO delegate, PathSynchronizer pathSynchronizer, OverlayRetriever retriever, OverlaySender sender )
+    private OverlayFileSystemIO( FileSystemIO delegate, PathSynchronizer pathSynchronizer, OverlayRetriever retriever,
+                                 OverlaySender sender, Map<String, ?> env )
     {
         super( delegate );
         this.pathSynchronizer = pathSynchronizer;
         this.retriever = retriever;
-        this.sender = sender;
+        try {
+            this.sender = WriteBehindSender.wrap( delegate, sender, env );
+        }
+        catch( IOException ex ) {
+            throw new UncheckedIOException( ex );
+        }
+
+        long negativeCacheTtl = FileSystemUtils.getLong( env, NEGATIVE_CACHE_TTL, 0L );
+        negativeCache = retriever != null && negativeCacheTtl > 0L
+                        ? new NegativeCache( negativeCacheTtl, (int) FileSystemUtils.getLong( env, NEGATIVE_CACHE_SIZE, 10000L ) )
+                        : null;
+        streamingFill = retriever != null && FileSystemUtils.isTrue( env, STREAMING_FILL );
+        sparseBlockSize = retriever instanceof RangeRetriever && FileSystemUtils.isTrue( env, SPARSE_FETCH )
+                          ? (int) FileSystemUtils.getLong( env, SPARSE_BLOCK_SIZE, 1048576L )
+                          : 0;
+        maxAge = FileSystemUtils.getLong( env, LocalFileSystemIO.MAX_AGE, 0L );
+        revalidate = retriever instanceof ValidatingRetriever && maxAge > 0L && FileSystemUtils.isTrue( env, REVALIDATE );
+        staleWhileRevalidate = retriever != null && maxAge > 0L && FileSystemUtils.isTrue( env, STALE_WHILE_REVALIDATE );
+        if( sparseBlockSize < 0 ) {
+            throw new IllegalArgumentException( "Invalid " + SPARSE_BLOCK_SIZE );
+        }
+    }
+
+    /**
+     * The cache of paths missing from the remote store
+     *
+     * @return cache or null if disabled
+     */
+    protected final NegativeCache getNegativeCache()
+    {
+        return negativeCache;
+    }
+
+    /**
+     * The background sender
+     *
+     * @return sender or null if paths are sent when they are closed
+     */
+    protected final WriteBehindSender getWriteBehindSender()
+    {
+        return sender instanceof WriteBehindSender ? (WriteBehindSender) sender : null;
+    }
+
+    /**
+     * A path is being written locally so it is no longer missing
+     *
+     * @param path
+     */
+    private void written( char[] path )
+            throws IOException
+    {
+        if( negativeCache != null ) {
+            negativeCache.remove( path );
+        }
+        if( revalidate ) {
+            // The local copy no longer matches the origin
+            Validators.delete( getDelegate().toPath( path ) );
+        }
+    }
+
+    private static boolean isWrite( Set<? extends OpenOption> options )
+    {
+        return options.contains( StandardOpenOption.WRITE ) || options.contains( StandardOpenOption.APPEND );
     }
 
     @Override
@@ -70,12 +219,144 @@ public abstract class OverlayFileSystemIO
             throws IOException
     {
         if( super.exists( path ) ) {
-            return true;
+            return !(revalidate || staleWhileRevalidate) || revalidate( path );
         }
         retrieve( path );
         return super.exists( path );
     }
 
+    @Override
+    public void deleteFile( char[] path, boolean exists )
+            throws IOException
+    {
+        super.deleteFile( path, exists );
+        if( revalidate ) {
+            Validators.delete( getDelegate().toPath( path ) );
+        }
+    }
+
+    /**
+     * Is a local file older than its maximum age. That is {@link LocalFileSystemIO#MAX_AGE} unless the origin said it was
+     * fresh for longer.
+     */
+    private boolean isStale( char[] path )
+            throws IOException
+    {
+        long age = System.currentTimeMillis() - getDelegate().getAttributes( path ).lastModifiedTime().toMillis();
+        if( age < maxAge ) {
+            return false;
+        }
+        Validators v = Validators.load( getDelegate().toPath( path ) );
+        return v == null || age >= v.getMaxAge();
+    }
+
+    /**
+     * Revalidate a local file with the origin if it is stale. If the origin cannot be reached the stale copy is used.
+     *
+     * @return false if the origin no longer has the file
+     */
+    private boolean revalidate( char[] path )
+            throws IOException
+    {
+        if( !isStale( path ) ) {
+            return true;
+        }
+        if( staleWhileRevalidate ) {
+            refreshInBackground( path );
+            return true;
+        }
+        return revalidateNow( path );
+    }
+
+    /**
+     * Refresh a stale file on a background thread unless it is already being refreshed
+     */
+    private void refreshInBackground( char[] path )
+    {
+        String key = String.valueOf( path );
+        if( refreshing.add( key ) ) {
+            char[] p = path.clone();
+            try {
+                FileSystemUtils.execute( () -> {
+                    try {
+                        revalidateNow( p );
+                    }
+                    catch( IOException | RuntimeException ex ) {
+                        LOG.log( Level.WARNING, ex, () -> "Failed to refresh " + key );
+                    }
+                    finally {
+                        refreshing.remove( key );
+                    }
+                } );
+            }
+            catch( RejectedExecutionException ex ) {
+                // Too busy, the stale copy is still served and a later read will try again
+                refreshing.remove( key );
+                LOG.log( Level.FINE, () -> "Not refreshing " + key + " as the workers are busy" );
+            }
+        }
+    }
+
+    /**
+     * Revalidate a file with the origin now
+     *
+     * @return false if the origin no longer has the file
+     */
+    private boolean revalidateNow( char[] path )
+            throws IOException
+    {
+        try {
+            if( pathSynchronizer == null ) {
+                refresh( path );
+            }
+            else {
+                pathSynchronizer.execute( path, () -> {
+                                      refresh( path );
+                                      return null;
+                                  } );
+            }
+            return true;
+        }
+        catch( FileNotFoundException ex ) {
+            getDelegate().deleteFile( path, false );
+            Validators.delete( getDelegate().toPath( path ) );
+            if( negativeCache != null ) {
+                negativeCache.add( path );
+            }
+            return false;
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.WARNING, ex, () -> "Failed to revalidate " + String.valueOf( path ) + ", using stale copy" );
+            return true;
+        }
+    }
+
+    /**
+     * Retrieve a stale file again, or if revalidation is enabled make a conditional request to the origin keeping the local
+     * file if it has not changed. Either way the new content replaces the old atomically so readers never see a partial file.
+     */
+    private void refresh( char[] path )
+            throws IOException
+    {
+        // Another thread may have just done this
+        if( getDelegate().exists( path ) && !isStale( path ) ) {
+            return;
+        }
+
+        if( !revalidate ) {
+            retriever.retrieve( path );
+            return;
+        }
+
+        Path file = getDelegate().toPath( path );
+        Validators old = Validators.load( file );
+        Validators v = ((ValidatingRetriever) retriever).retrieve( path, old != null && old.isValidatable() ? old : null );
+        if( !v.isModified() ) {
+            getDelegate().touch( path );
+        }
+        v.save( file );
+    }
+
     @Override
     public InputStream newInputStream( char[] path )
             throws IOException
@@ -92,6 +373,7 @@ public abstract class OverlayFileSystemIO
     public OutputStream newOutputStream( char[] path, OpenOption... options )
             throws IOException
     {
+        written( path );
         if( sender == null ) {
             return getDelegate().newOutputStream( path, options );
         }
@@ -100,9 +382,188 @@ public abstract class OverlayFileSystemIO
         }
     }
 
+    /**
+     * Opens the channel once the file has been retrieved, so reads never see a missing or partial file. The retrieval itself
+     * blocks the caller, after that all I/O on the channel is asynchronous.
+     * <p>
+     * Writes made through the channel are not sent to the remote store.
+     */
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel( char[] path, Set<? extends OpenOption> options,
+                                                               ExecutorService exec, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        if( isWrite( options ) ) {
+            written( path );
+        }
+        if( retriever != null && !options.contains( StandardOpenOption.CREATE_NEW ) ) {
+            exists( path );
+        }
+        return getDelegate().newAsynchronousFileChannel( path, options, exec, attrs );
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel( char[] path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        if( isWrite( options ) ) {
+            written( path );
+        }
+        else if( retriever != null ) {
+            if( isSparse( path ) ) {
+                return openSparse( path );
+            }
+            exists( path );
+        }
+        return super.newByteChannel( path, options, attrs );
+    }
+
+    @Override
+    public FileChannel newFileChannel( char[] path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        if( isWrite( options ) ) {
+            written( path );
+        }
+        else if( retriever != null ) {
+            if( isSparse( path ) ) {
+                return openSparse( path );
+            }
+            exists( path );
+        }
+        return super.newFileChannel( path, options, attrs );
+    }
+
+    /**
+     * Should a read of a path fetch just the blocks read rather than retrieving the whole file
+     */
+    private boolean isSparse( char[] path )
+            throws IOException
+    {
+        return sparseBlockSize > 0 && ((RangeRetriever) retriever).isRangeSupported() && !getDelegate().exists( path );
+    }
+
+    /**
+     * Open a channel onto the sparse copy of a remote file. All channels open on the same path share the one copy so a block is
+     * only fetched once.
+     */
+    private FileChannel openSparse( char[] path )
+            throws IOException
+    {
+        if( negativeCache != null && negativeCache.contains( path ) ) {
+            throw new FileNotFoundException( String.valueOf( path ) );
+        }
+
+        String key = String.valueOf( path );
+        while( true ) {
+            // Opening fetches the remote size so only the first caller does so, others wait on its future
+            CompletableFuture<SparseFile> future = new CompletableFuture<>();
+            CompletableFuture<SparseFile> existing = sparseFiles.putIfAbsent( key, future );
+            SparseFile file;
+            if( existing == null ) {
+                try {
+                    file = SparseFile.open( path, getDelegate(), (RangeRetriever) retriever, sparseBlockSize );
+                    future.complete( file );
+                }
+                catch( IOException | RuntimeException ex ) {
+                    sparseFiles.remove( key, future );
+                    future.completeExceptionally( ex );
+                    if( negativeCache != null && ex instanceof FileNotFoundException ) {
+                        negativeCache.add( path );
+                    }
+                    throw ex;
+                }
+            }
+            else {
+                future = existing;
+                file = getSparseFile( future );
+            }
+
+            // If the last channel closed it whilst we waited then remove it and open it again
+            if( !file.retain() ) {
+                sparseFiles.remove( key, future );
+                continue;
+            }
+
+            CompletableFuture<SparseFile> f = future;
+            return new SparseFileChannel( file, () -> {
+                                      if( file.release() ) {
+                                          sparseFiles.remove( key, f );
+                                      }
+                                  } );
+        }
+    }
+
+    private static SparseFile getSparseFile( CompletableFuture<SparseFile> future )
+            throws IOException
+    {
+        try {
+            return future.get();
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch( ExecutionException ex ) {
+            Throwable t = ex.getCause();
+            if( t instanceof FileNotFoundException ) {
+                throw new FileNotFoundException( t.getMessage() );
+            }
+            if( t instanceof RuntimeException ) {
+                throw (RuntimeException) t;
+            }
+            throw new IOException( t );
+        }
+    }
+
+    @Override
+    public void copyFile( boolean b, char[] src, char[] dest, CopyOption... options )
+            throws IOException
+    {
+        super.copyFile( b, src, dest, options );
+        written( dest );
+    }
+
+    @Override
+    public FileChannel newWritableChannel( char[] path )
+            throws IOException
+    {
+        written( path );
+        FileChannel channel = getDelegate().newWritableChannel( path );
+        if( sender == null ) {
+            return channel;
+        }
+
+        // Send once written but not if aborted
+        return new FileChannelWrapper( channel )
+        {
+            @Override
+            protected void implCloseChannel()
+                    throws IOException
+            {
+                super.implCloseChannel();
+                if( !isAborted() ) {
+                    if( pathSynchronizer == null ) {
+                        sender.send( path );
+                    }
+                    else {
+                        pathSynchronizer.execute( path, () -> {
+                                              sender.send( path );
+                                              return null;
+                                          } );
+                    }
+                }
+            }
+        };
+    }
+
     protected final InputStream newInputStreamRemote( char[] path )
             throws IOException
     {
+        if( streamingFill ) {
+            return newInputStreamStreaming( path );
+        }
+
         if( exists( path ) ) {
             try {
                 return getDelegate().newInputStream( path );
@@ -115,17 +576,221 @@ public abstract class OverlayFileSystemIO
         return getDelegate().newInputStream( path );
     }
 
+    /**
+     * Open a path, if it is being retrieved then read it as it arrives.
+     * <p>
+     * The retrieval runs in the background. Once it has started writing the local file we return a stream following it, so
+     * every concurrent reader of the path shares the one retrieval and gets the first bytes as soon as they arrive.
+     *
+     * @param path
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    private InputStream newInputStreamStreaming( char[] path )
+            throws IOException
+    {
+        CompletableFuture<Void> future = retrieveAsync( path );
+        while( true ) {
+            // Registered before we look so we cannot miss the retrieval starting to write
+            CompletableFuture<Void> staged = getDelegate().whenStaged( path );
+            try {
+                InputStream is = getDelegate().newStreamingInputStream( path );
+                if( is != null ) {
+                    return is;
+                }
+
+                // Wait until either the retrieval starts writing or it has finished
+                CompletableFuture.anyOf( future, staged ).handle( ( v, ex ) -> null ).get();
+                if( future.isDone() ) {
+                    future.get();
+                    return getDelegate().newInputStream( path );
+                }
+            }
+            catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            catch( ExecutionException ex ) {
+                Throwable cause = ex.getCause();
+                if( cause instanceof IOException ) {
+                    throw (IOException) cause;
+                }
+                throw new IOException( cause );
+            }
+            finally {
+                staged.cancel( false );
+            }
+        }
+    }
+
+    /**
+     * Make a path local without blocking the caller. If the path is already local the returned future is already complete,
+     * unless it is stale and has to be revalidated first, otherwise it completes once the path has been retrieved.
+     *
+     * @param path
+     *
+     * @return future completed exceptionally with {@link FileNotFoundException} if the remote does not have the path
+     */
+    public CompletableFuture<Void> retrieveAsync( char[] path )
+    {
+        try {
+            if( retriever == null ) {
+                return CompletableFuture.completedFuture( null );
+            }
+            if( getDelegate().exists( path ) ) {
+                return revalidateAsync( path );
+            }
+            if( path.length == 0 || (negativeCache != null && negativeCache.contains( path )) ) {
+                throw new FileNotFoundException( path.length == 0 ? "/" : String.valueOf( path ) );
+            }
+        }
+        catch( IOException | RuntimeException ex ) {
+            return failed( ex );
+        }
+
+        CompletableFuture<Void> future = pathSynchronizer == null
+                                         ? fetchAsync( path )
+                                         : pathSynchronizer.executeAsync( String.valueOf( path ), () -> fetchAsync( path ) );
+        if( negativeCache != null ) {
+            // Chained so the miss is recorded before the caller sees it
+            future = future.whenComplete( ( v, ex ) -> {
+                if( ex instanceof CompletionException ) {
+                    ex = ex.getCause();
+                }
+                if( ex instanceof FileNotFoundException ) {
+                    negativeCache.add( path );
+                }
+            } );
+        }
+        return future;
+    }
+
+    /**
+     * Open an {@link AsynchronousFileChannel} once the path is local without blocking whilst it is retrieved
+     *
+     * @param path
+     * @param options
+     * @param exec
+     * @param attrs
+     *
+     * @return future of the open channel
+     */
+    public CompletableFuture<AsynchronousFileChannel> openAsync( char[] path, Set<? extends OpenOption> options,
+                                                                 ExecutorService exec, FileAttribute<?>... attrs )
+    {
+        return retrieveAsync( path ).thenCompose( v -> {
+            try {
+                return CompletableFuture.completedFuture( getDelegate().newAsynchronousFileChannel( path, options, exec, attrs ) );
+            }
+            catch( IOException ex ) {
+                return failed( ex );
+            }
+        } );
+    }
+
+    /**
+     * Revalidate a local file if it is stale without blocking the caller
+     *
+     * @return future completed exceptionally with {@link FileNotFoundException} if the origin no longer has the file
+     */
+    private CompletableFuture<Void> revalidateAsync( char[] path )
+            throws IOException
+    {
+        if( !(revalidate || staleWhileRevalidate) || !isStale( path ) ) {
+            return CompletableFuture.completedFuture( null );
+        }
+        if( staleWhileRevalidate ) {
+            refreshInBackground( path );
+            return CompletableFuture.completedFuture( null );
+        }
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        char[] p = path.clone();
+        try {
+            FileSystemUtils.execute( () -> {
+                try {
+                    if( revalidateNow( p ) ) {
+                        future.complete( null );
+                    }
+                    else {
+                        future.completeExceptionally( new FileNotFoundException( String.valueOf( p ) ) );
+                    }
+                }
+                catch( Throwable t ) {
+                    future.completeExceptionally( t );
+                }
+            } );
+        }
+        catch( RejectedExecutionException ex ) {
+            future.completeExceptionally( ex );
+        }
+        return future;
+    }
+
+    /**
+     * Retrieve a path without blocking, keeping its validators if revalidation is enabled
+     */
+    private CompletableFuture<Void> fetchAsync( char[] path )
+    {
+        if( !revalidate ) {
+            return retriever.retrieveAsync( path );
+        }
+        return ((ValidatingRetriever) retriever).retrieveAsync( path, null ).thenAccept( v -> {
+            try {
+                v.save( getDelegate().toPath( path ) );
+            }
+            catch( IOException ex ) {
+                // The file is still usable, it will just be retrieved again once stale
+                LOG.log( Level.WARNING, ex, () -> "Failed to save validators for " + String.valueOf( path ) );
+            }
+        } );
+    }
+
+    private static <T> CompletableFuture<T> failed( Throwable t )
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally( t );
+        return future;
+    }
+
     private void retrieve( char[] path )
             throws IOException
     {
-        if( pathSynchronizer == null ) {
-            retriever.retrieve( path );
+        if( retriever == null ) {
+            return;
+        }
+        if( negativeCache != null && negativeCache.contains( path ) ) {
+            throw new FileNotFoundException( String.valueOf( path ) );
+        }
+        try {
+            if( pathSynchronizer == null ) {
+                fetch( path );
+            }
+            else {
+                pathSynchronizer.execute( path, () -> {
+                                      fetch( path );
+                                      return null;
+                                  } );
+            }
+        }
+        catch( FileNotFoundException ex ) {
+            if( negativeCache != null ) {
+                negativeCache.add( path );
+            }
+            throw ex;
+        }
+    }
+
+    private void fetch( char[] path )
+            throws IOException
+    {
+        if( revalidate ) {
+            ((ValidatingRetriever) retriever).retrieve( path, null ).save( getDelegate().toPath( path ) );
         }
         else {
-            pathSynchronizer.execute( path, () -> {
-                                  retriever.retrieve( path );
-                                  return null;
-                              } );
+            retriever.retrieve( path );
         }
     }
 
@@ -137,6 +802,15 @@ public abstract class OverlayFileSystemIO
             if( pathSynchronizer != null ) {
                 pathSynchronizer.close();
             }
+            if( negativeCache != null ) {
+                negativeCache.clear();
+            }
+            if( retriever instanceof Closeable ) {
+                ((Closeable) retriever).close();
+            }
+            if( sender instanceof Closeable ) {
+                ((Closeable) sender).close();
+            }
         }
         finally {
             super.close();
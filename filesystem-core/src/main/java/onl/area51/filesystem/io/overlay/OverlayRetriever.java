@@ -16,6 +16,9 @@
 package onl.area51.filesystem.io.overlay;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import onl.area51.filesystem.FileSystemUtils;
 
 /**
  *
@@ -24,6 +27,47 @@ import java.io.IOException;
 public interface OverlayRetriever
 {
 
+    /**
+     * Retrieve a path from the remote store into the local filesystem
+     *
+     * @param path
+     *
+     * @throws java.io.FileNotFoundException if the remote does not have the path
+     * @throws IOException
+     */
     void retrieve( char[] path )
             throws IOException;
+
+    /**
+     * Retrieve a path without blocking the caller.
+     * <p>
+     * By default this runs {@link #retrieve(char[])} on a background thread. Implementations with a non-blocking client
+     * should override it.
+     *
+     * @param path
+     *
+     * @return future completed once the path is local, or exceptionally as {@link #retrieve(char[])} would have thrown or
+     *         with {@link RejectedExecutionException} if the background threads are too busy
+     */
+    default CompletableFuture<Void> retrieveAsync( char[] path )
+    {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        // The caller may reuse the array once we return
+        char[] p = path.clone();
+        try {
+            FileSystemUtils.execute( () -> {
+                try {
+                    retrieve( p );
+                    future.complete( null );
+                }
+                catch( Throwable t ) {
+                    future.completeExceptionally( t );
+                }
+            } );
+        }
+        catch( RejectedExecutionException ex ) {
+            future.completeExceptionally( ex );
+        }
+        return future;
+    }
 }
@@ -18,15 +18,22 @@ package onl.area51.filesystem.io.overlay;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 
 /**
- * Utility class used to ensure we handle some operation on a path one thread at a time
+ * Utility class used to ensure we handle some operation on a path one thread at a time.
+ * <p>
+ * The first thread to execute a task for a path runs it. Any other thread arriving for the same path whilst it is running does
+ * not run its own task but waits for the first one and shares its outcome, so if the task failed they all see the same
+ * exception. Threads working on different paths never block each other.
  *
  * @author peter
  */
@@ -34,8 +41,7 @@ public class PathSynchronizer
         implements Closeable
 {
 
-    private final ReentrantLock lock = new ReentrantLock();
-    private final Map<String, Condition> conditions = new HashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
 
     /**
      * Execute a task with the given Path locked so that multiple tasks for the same path will run atomically
@@ -43,48 +49,105 @@ public class PathSynchronizer
      * @param key Path
      * @param t   Task
      *
-     * @throws IOException
+     * @throws IOException from the task, whichever thread ran it
      */
     public final void execute( String key, Callable<Void> t )
             throws IOException
     {
-        lock.lock();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> leader = inFlight.putIfAbsent( key, future );
+        if( leader != null ) {
+            join( leader );
+            return;
+        }
+
         try {
-            // If a condition exists then wait
-            Condition c = conditions.get( key );
-            if( c == null ) {
-                c = lock.newCondition();
-                conditions.put( key, c );
+            t.call();
+            future.complete( null );
+        }
+        catch( Throwable ex ) {
+            future.completeExceptionally( ex );
+            rethrow( ex );
+        }
+        finally {
+            inFlight.remove( key, future );
+        }
+    }
 
-                lock.unlock();
-                try {
-                    t.call();
-                }
-                catch( Exception ex ) {
-                    if( ex instanceof IOException ) {
-                        throw (IOException) ex;
-                    }
-                    if( ex instanceof UncheckedIOException ) {
-                        throw ((UncheckedIOException) ex).getCause();
-                    }
-                    throw new IOException( ex );
-                }
-                finally {
-                    lock.lock();
-                    c.signalAll();
-                    conditions.remove( key );
-                }
+    /**
+     * Start an asynchronous task for a path unless one is already running, in which case that one's future is returned.
+     *
+     * @param key  Path
+     * @param task Supplies the future of the task, only called if the task is to be started
+     *
+     * @return future shared by every caller until it completes
+     */
+    public final CompletableFuture<Void> executeAsync( String key, Supplier<CompletableFuture<Void>> task )
+    {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> leader = inFlight.putIfAbsent( key, future );
+        if( leader != null ) {
+            return leader;
+        }
+
+        CompletableFuture<Void> f;
+        try {
+            f = task.get();
+        }
+        catch( Throwable ex ) {
+            f = new CompletableFuture<>();
+            f.completeExceptionally( ex );
+        }
+        f.whenComplete( ( v, ex ) -> {
+            inFlight.remove( key, future );
+            if( ex == null ) {
+                future.complete( null );
             }
             else {
-                c.await();
+                future.completeExceptionally( ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex );
             }
+        } );
+        return future;
+    }
+
+    /**
+     * Wait for another thread's task to complete rethrowing any exception it threw
+     *
+     * @param future
+     *
+     * @throws IOException
+     */
+    private static void join( CompletableFuture<Void> future )
+            throws IOException
+    {
+        try {
+            future.get();
         }
         catch( InterruptedException ex ) {
-            throw new IOException( ex );
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
         }
-        finally {
-            lock.unlock();
+        catch( ExecutionException ex ) {
+            rethrow( ex.getCause() );
+        }
+    }
+
+    private static void rethrow( Throwable ex )
+            throws IOException
+    {
+        if( ex instanceof IOException ) {
+            throw (IOException) ex;
+        }
+        if( ex instanceof UncheckedIOException ) {
+            throw ((UncheckedIOException) ex).getCause();
+        }
+        if( ex instanceof RuntimeException ) {
+            throw (RuntimeException) ex;
         }
+        if( ex instanceof Error ) {
+            throw (Error) ex;
+        }
+        throw new IOException( ex );
     }
 
     /**
@@ -113,13 +176,10 @@ public class PathSynchronizer
     public void close()
             throws IOException
     {
-        lock.lock();
-        try {
-            conditions.values().forEach( Condition::signalAll );
-        }
-        finally {
-            lock.unlock();
-        }
+        // Release anyone waiting, the tasks themselves will complete in their own threads
+        IOException closed = new IOException( "PathSynchronizer closed" );
+        inFlight.values().forEach( f -> f.completeExceptionally( closed ) );
+        inFlight.clear();
     }
 
 }
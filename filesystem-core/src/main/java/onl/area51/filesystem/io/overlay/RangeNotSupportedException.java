@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link RangeRetriever#retrieveRange(char[], long, long)} when the remote returned the whole object rather than the
+ * range requested, so it does not support range requests.
+ *
+ * @author peter
+ */
+public class RangeNotSupportedException
+        extends IOException
+{
+
+    private static final long serialVersionUID = 1L;
+
+    public RangeNotSupportedException( String message )
+    {
+        super( message );
+    }
+}
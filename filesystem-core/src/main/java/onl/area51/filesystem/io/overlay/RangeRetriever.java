@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Implemented by an {@link OverlayRetriever} that can retrieve part of a remote object, e.g. with an HTTP Range request. This
+ * allows {@link OverlayFileSystemIO} to fetch just the blocks of a file that are read rather than the whole file.
+ *
+ * @author peter
+ */
+public interface RangeRetriever
+{
+
+    /**
+     * The size of the remote object
+     *
+     * @param path
+     *
+     * @return size in bytes
+     *
+     * @throws java.io.FileNotFoundException if the remote does not have the path
+     * @throws IOException
+     */
+    long getRemoteSize( char[] path )
+            throws IOException;
+
+    /**
+     * Retrieve part of the remote object
+     *
+     * @param path
+     * @param offset offset of the first byte
+     * @param length number of bytes, never beyond the end of the object
+     *
+     * @return stream of exactly length bytes which the caller will close
+     *
+     * @throws java.io.FileNotFoundException if the remote does not have the path
+     * @throws RangeNotSupportedException    if the remote returned the whole object instead of the range
+     * @throws IOException
+     */
+    InputStream retrieveRange( char[] path, long offset, long length )
+            throws IOException;
+
+    /**
+     * Can ranges be retrieved. Once a remote has shown it does not support them the overlay retrieves whole files instead.
+     *
+     * @return true if ranges are supported
+     */
+    default boolean isRangeSupported()
+    {
+        return true;
+    }
+}
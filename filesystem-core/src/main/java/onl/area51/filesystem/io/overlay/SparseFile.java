@@ -0,0 +1,421 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import onl.area51.filesystem.io.FileChannelWrapper;
+import onl.area51.filesystem.io.FileSystemIO;
+
+/**
+ * A local copy of part of a remote object.
+ * <p>
+ * The object is split into fixed size blocks which are fetched with {@link RangeRetriever} when first read. The blocks are
+ * written at their offset into a sparse file alongside the real one, and which blocks are present is kept in a bitmap saved
+ * to a second file when the last reader closes, so a later reader only fetches what is still missing. The bitmap is only
+ * saved after the blocks it records so a crash can only lose blocks, never claim ones that are not there.
+ * <p>
+ * The bitmaps are guarded by this object's monitor but no I/O is done whilst holding it. Blocks being fetched are marked so
+ * another reader needing them waits for that fetch rather than repeating it, whilst readers of blocks already present are not
+ * held up by a fetch at all.
+ * <p>
+ * Once every block is present the file is written to the real path through the {@link FileSystemIO} and the sparse files are
+ * removed.
+ *
+ * @author peter
+ */
+public final class SparseFile
+{
+
+    private static final Logger LOG = Logger.getLogger( SparseFile.class.getName() );
+
+    /**
+     * Prefix of the sparse data and bitmap files
+     */
+    public static final String PREFIX = ".sparse-";
+
+    private static final int MAGIC = 0x41353153;
+
+    private final char[] path;
+    private final FileSystemIO io;
+    private final RangeRetriever retriever;
+    private final Path data;
+    private final Path bitmap;
+    private final long size;
+    private final int blockSize;
+    private final int blockCount;
+    private final BitSet present;
+    // Blocks currently being fetched
+    private final BitSet fetching = new BitSet();
+    private final FileChannel channel;
+    private boolean dirty;
+    private int references;
+    private boolean closing;
+    private boolean closed;
+
+    private SparseFile( char[] path, FileSystemIO io, RangeRetriever retriever, Path data, Path bitmap, long size, int blockSize,
+                        BitSet present, FileChannel channel )
+    {
+        this.path = path;
+        this.io = io;
+        this.retriever = retriever;
+        this.data = data;
+        this.bitmap = bitmap;
+        this.size = size;
+        this.blockSize = blockSize;
+        this.blockCount = (int) ((size + blockSize - 1) / blockSize);
+        this.present = present;
+        this.channel = channel;
+    }
+
+    /**
+     * Open the sparse copy of a path, resuming from any blocks fetched previously
+     *
+     * @param path
+     * @param io        where the sparse files live and where the complete file is written
+     * @param retriever
+     * @param blockSize
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    static SparseFile open( char[] path, FileSystemIO io, RangeRetriever retriever, int blockSize )
+            throws IOException
+    {
+        long size = retriever.getRemoteSize( path );
+        if( (size + blockSize - 1) / blockSize > Integer.MAX_VALUE ) {
+            throw new IOException( "Too many blocks for " + String.valueOf( path ) );
+        }
+
+        Path target = io.toPath( path );
+        Files.createDirectories( target.getParent() );
+        Path data = target.resolveSibling( PREFIX + target.getFileName() );
+        Path bitmap = target.resolveSibling( PREFIX + target.getFileName() + ".blocks" );
+
+        BitSet present = load( bitmap, data, size, blockSize );
+        FileChannel channel = FileChannel.open( data, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        if( present.isEmpty() ) {
+            channel.truncate( 0L );
+        }
+        return new SparseFile( path, io, retriever, data, bitmap, size, blockSize, present, channel );
+    }
+
+    /**
+     * Is this path one of the sparse data or bitmap files
+     *
+     * @param p
+     *
+     * @return
+     */
+    public static boolean isSparse( Path p )
+    {
+        Path n = p.getFileName();
+        return n != null && n.toString().startsWith( PREFIX );
+    }
+
+    /**
+     * Load the bitmap of a previous sparse copy. If it does not match, e.g. the remote object has changed size or the data file
+     * has been expired, then nothing is present.
+     */
+    private static BitSet load( Path bitmap, Path data, long size, int blockSize )
+    {
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( bitmap ) ) ) ) {
+            if( in.readInt() == MAGIC && in.readLong() == size && in.readInt() == blockSize && Files.exists( data ) ) {
+                long[] words = new long[in.readInt()];
+                for( int i = 0; i < words.length; i++ ) {
+                    words[i] = in.readLong();
+                }
+                return BitSet.valueOf( words );
+            }
+        }
+        catch( NoSuchFileException | EOFException ex ) {
+            // Nothing fetched yet or a partial bitmap
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.WARNING, ex, () -> "Ignoring " + bitmap );
+        }
+        return new BitSet();
+    }
+
+    long size()
+    {
+        return size;
+    }
+
+    /**
+     * Add a reference. If the last reference is being released this waits until the file has been closed.
+     *
+     * @return false if the last reference has already been released and the file closed
+     *
+     * @throws IOException if interrupted
+     */
+    synchronized boolean retain()
+            throws IOException
+    {
+        while( closing ) {
+            await();
+        }
+        if( closed ) {
+            return false;
+        }
+        references++;
+        return true;
+    }
+
+    /**
+     * Release a reference
+     *
+     * @return true if this was the last one and the file has been closed
+     *
+     * @throws IOException
+     */
+    boolean release()
+            throws IOException
+    {
+        synchronized( this ) {
+            if( --references > 0 ) {
+                return false;
+            }
+            // No other reference so nothing else can touch the bitmaps until closed is set
+            closing = true;
+        }
+
+        try {
+            if( isComplete() ) {
+                complete();
+            }
+            else if( dirty ) {
+                channel.force( false );
+                save();
+            }
+        }
+        finally {
+            try {
+                channel.close();
+            }
+            finally {
+                synchronized( this ) {
+                    closing = false;
+                    closed = true;
+                    notifyAll();
+                }
+            }
+        }
+        return true;
+    }
+
+    private void await()
+            throws IOException
+    {
+        try {
+            wait();
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private boolean isComplete()
+    {
+        return present.nextClearBit( 0 ) >= blockCount;
+    }
+
+    /**
+     * Everything is present so write the real file and remove the sparse one
+     */
+    private void complete()
+            throws IOException
+    {
+        FileChannel out = io.newWritableChannel( path );
+        try {
+            long pos = 0L;
+            while( pos < size ) {
+                pos += out.transferFrom( channel, pos, size - pos );
+            }
+            out.close();
+        }
+        catch( IOException | RuntimeException ex ) {
+            FileChannelWrapper.abort( out );
+            throw ex;
+        }
+        Files.deleteIfExists( bitmap );
+        Files.deleteIfExists( data );
+    }
+
+    private void save()
+            throws IOException
+    {
+        Path tmp = bitmap.resolveSibling( bitmap.getFileName() + ".tmp" );
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ) ) {
+            long[] words = present.toLongArray();
+            out.writeInt( MAGIC );
+            out.writeLong( size );
+            out.writeInt( blockSize );
+            out.writeInt( words.length );
+            for( long w: words ) {
+                out.writeLong( w );
+            }
+        }
+        Files.move( tmp, bitmap, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        dirty = false;
+    }
+
+    /**
+     * Ensure a range of the file is present, fetching any missing blocks. Adjacent missing blocks are fetched in one request.
+     *
+     * @param offset
+     * @param length
+     *
+     * @throws IOException
+     */
+    void ensure( long offset, long length )
+            throws IOException
+    {
+        if( length <= 0L ) {
+            return;
+        }
+        int first = (int) (offset / blockSize);
+        int last = (int) ((Math.min( offset + length, size ) - 1L) / blockSize);
+        while( true ) {
+            int b;
+            int end;
+            synchronized( this ) {
+                b = present.nextClearBit( first );
+                if( b > last ) {
+                    return;
+                }
+                if( fetching.get( b ) ) {
+                    // Another reader is fetching it, check again once it has finished
+                    await();
+                    continue;
+                }
+                end = Math.min( nextSetBit( present, b, last + 1 ), nextSetBit( fetching, b, last + 1 ) );
+                fetching.set( b, end );
+            }
+
+            boolean fetched = false;
+            try {
+                fetch( b, end );
+                fetched = true;
+            }
+            finally {
+                synchronized( this ) {
+                    fetching.clear( b, end );
+                    if( fetched ) {
+                        present.set( b, end );
+                        dirty = true;
+                    }
+                    notifyAll();
+                }
+            }
+            first = end;
+        }
+    }
+
+    private static int nextSetBit( BitSet bits, int from, int limit )
+    {
+        int i = bits.nextSetBit( from );
+        return i < 0 || i > limit ? limit : i;
+    }
+
+    /**
+     * Fetch blocks from first up to but excluding end. Called without holding the lock.
+     */
+    private void fetch( int first, int end )
+            throws IOException
+    {
+        long start = (long) first * blockSize;
+        long length = Math.min( (long) end * blockSize, size ) - start;
+        LOG.log( Level.FINE, () -> "Fetching " + String.valueOf( path ) + " " + start + "+" + length );
+
+        byte[] buf = new byte[(int) Math.min( length, 65536L )];
+        ByteBuffer b = ByteBuffer.wrap( buf );
+        try( InputStream is = retriever.retrieveRange( path, start, length ) ) {
+            long pos = start;
+            long remaining = length;
+            while( remaining > 0L ) {
+                int n = is.read( buf, 0, (int) Math.min( buf.length, remaining ) );
+                if( n < 0 ) {
+                    throw new EOFException( "Short read of " + String.valueOf( path ) + " at " + pos );
+                }
+                b.clear().limit( n );
+                while( b.hasRemaining() ) {
+                    pos += channel.write( b, pos );
+                }
+                remaining -= n;
+            }
+        }
+    }
+
+    /**
+     * Read from the file fetching any missing blocks first
+     *
+     * @param dst
+     * @param position
+     *
+     * @return bytes read or -1 at the end of the file
+     *
+     * @throws IOException
+     */
+    int read( ByteBuffer dst, long position )
+            throws IOException
+    {
+        if( position >= size ) {
+            return -1;
+        }
+        int len = (int) Math.min( dst.remaining(), size - position );
+        ensure( position, len );
+
+        int limit = dst.limit();
+        dst.limit( dst.position() + len );
+        try {
+            return channel.read( dst, position );
+        }
+        finally {
+            dst.limit( limit );
+        }
+    }
+
+    long transferTo( long position, long count, WritableByteChannel target )
+            throws IOException
+    {
+        if( position >= size ) {
+            return 0L;
+        }
+        long len = Math.min( count, size - position );
+        ensure( position, len );
+        return channel.transferTo( position, len, target );
+    }
+}
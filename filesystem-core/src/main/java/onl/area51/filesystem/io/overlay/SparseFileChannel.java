@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A read only {@link FileChannel} over a {@link SparseFile} so seeking and reading only fetches the blocks actually read.
+ *
+ * @author peter
+ */
+final class SparseFileChannel
+        extends FileChannel
+{
+
+    private final SparseFile file;
+    private final Closeable onClose;
+    private long position;
+
+    SparseFileChannel( SparseFile file, Closeable onClose )
+    {
+        this.file = file;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public synchronized int read( ByteBuffer dst )
+            throws IOException
+    {
+        ensureOpen();
+        int n = file.read( dst, position );
+        if( n > 0 ) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized long read( ByteBuffer[] dsts, int offset, int length )
+            throws IOException
+    {
+        ensureOpen();
+        long total = 0L;
+        for( int i = offset; i < offset + length; i++ ) {
+            if( dsts[i].hasRemaining() ) {
+                int n = read( dsts[i] );
+                if( n < 0 ) {
+                    return total == 0L ? -1L : total;
+                }
+                total += n;
+                if( dsts[i].hasRemaining() ) {
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int read( ByteBuffer dst, long position )
+            throws IOException
+    {
+        if( position < 0L ) {
+            throw new IllegalArgumentException( "Negative position" );
+        }
+        ensureOpen();
+        return file.read( dst, position );
+    }
+
+    @Override
+    public synchronized long position()
+            throws IOException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position( long newPosition )
+            throws IOException
+    {
+        if( newPosition < 0L ) {
+            throw new IllegalArgumentException( "Negative position" );
+        }
+        ensureOpen();
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size()
+            throws IOException
+    {
+        ensureOpen();
+        return file.size();
+    }
+
+    @Override
+    public long transferTo( long position, long count, WritableByteChannel target )
+            throws IOException
+    {
+        ensureOpen();
+        return file.transferTo( position, count, target );
+    }
+
+    @Override
+    public int write( ByteBuffer src )
+            throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write( ByteBuffer[] srcs, int offset, int length )
+            throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write( ByteBuffer src, long position )
+            throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate( long size )
+            throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferFrom( ReadableByteChannel src, long position, long count )
+            throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force( boolean metaData )
+            throws IOException
+    {
+        ensureOpen();
+    }
+
+    @Override
+    public MappedByteBuffer map( MapMode mode, long position, long size )
+            throws IOException
+    {
+        throw new UnsupportedOperationException( "Cannot map a partially retrieved file" );
+    }
+
+    @Override
+    public FileLock lock( long position, long size, boolean shared )
+            throws IOException
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileLock tryLock( long position, long size, boolean shared )
+            throws IOException
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void implCloseChannel()
+            throws IOException
+    {
+        onClose.close();
+    }
+
+    private void ensureOpen()
+            throws IOException
+    {
+        if( !isOpen() ) {
+            throw new ClosedChannelException();
+        }
+    }
+}
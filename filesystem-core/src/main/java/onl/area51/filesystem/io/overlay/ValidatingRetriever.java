@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import onl.area51.filesystem.FileSystemUtils;
+
+/**
+ * Implemented by an {@link OverlayRetriever} that can make conditional requests to its origin, allowing
+ * {@link OverlayFileSystemIO} to revalidate a cached file once it is older than its maximum age rather than retrieving it
+ * again.
+ *
+ * @author peter
+ */
+public interface ValidatingRetriever
+{
+
+    /**
+     * Retrieve a path unless the origin says the cached copy is current
+     *
+     * @param path
+     * @param validators validators of the cached copy or null to retrieve unconditionally
+     *
+     * @return validators for the now current copy, {@link Validators#isModified()} is false if the cached copy was kept
+     *
+     * @throws java.io.FileNotFoundException if the origin no longer has the path
+     * @throws IOException
+     */
+    Validators retrieve( char[] path, Validators validators )
+            throws IOException;
+
+    /**
+     * Retrieve a path without blocking the caller.
+     * <p>
+     * By default this runs {@link #retrieve(char[], Validators)} on a background thread. Implementations with a non-blocking
+     * client should override it.
+     *
+     * @param path
+     * @param validators validators of the cached copy or null to retrieve unconditionally
+     *
+     * @return future of the validators, or completed exceptionally as {@link #retrieve(char[], Validators)} would have thrown
+     *         or with {@link RejectedExecutionException} if the background threads are too busy
+     */
+    default CompletableFuture<Validators> retrieveAsync( char[] path, Validators validators )
+    {
+        CompletableFuture<Validators> future = new CompletableFuture<>();
+        // The caller may reuse the array once we return
+        char[] p = path.clone();
+        try {
+            FileSystemUtils.execute( () -> {
+                try {
+                    future.complete( retrieve( p, validators ) );
+                }
+                catch( Throwable t ) {
+                    future.completeExceptionally( t );
+                }
+            } );
+        }
+        catch( RejectedExecutionException ex ) {
+            future.completeExceptionally( ex );
+        }
+        return future;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The validators an origin returned for a path, used to ask it whether a cached copy is still current rather than
+ * retrieving it again.
+ * <p>
+ * These are kept in a sidecar file alongside the cached file.
+ *
+ * @author peter
+ */
+public final class Validators
+{
+
+    /**
+     * Prefix of the sidecar files
+     */
+    public static final String PREFIX = ".meta-";
+
+    private static final int MAGIC = 0x4135314d;
+
+    private final String etag;
+    private final String lastModified;
+    private final long maxAge;
+    private final boolean modified;
+
+    /**
+     *
+     * @param etag         entity tag or null
+     * @param lastModified last modified date as sent by the origin or null
+     * @param maxAge       how long in milliseconds the origin says the content is fresh for, -1 if it did not say
+     * @param modified     false if the origin confirmed the cached copy is current, true if new content was retrieved
+     */
+    public Validators( String etag, String lastModified, long maxAge, boolean modified )
+    {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.maxAge = maxAge;
+        this.modified = modified;
+    }
+
+    public String getETag()
+    {
+        return etag;
+    }
+
+    public String getLastModified()
+    {
+        return lastModified;
+    }
+
+    public long getMaxAge()
+    {
+        return maxAge;
+    }
+
+    public boolean isModified()
+    {
+        return modified;
+    }
+
+    /**
+     * Can these be used to make a conditional request
+     *
+     * @return
+     */
+    public boolean isValidatable()
+    {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * The sidecar file for a cached file
+     *
+     * @param file
+     *
+     * @return
+     */
+    public static Path sidecar( Path file )
+    {
+        return file.resolveSibling( PREFIX + file.getFileName() );
+    }
+
+    /**
+     * Is a path a sidecar file
+     *
+     * @param p
+     *
+     * @return
+     */
+    public static boolean isSidecar( Path p )
+    {
+        Path n = p.getFileName();
+        return n != null && n.toString().startsWith( PREFIX );
+    }
+
+    /**
+     * The cached file a sidecar belongs to
+     *
+     * @param sidecar
+     *
+     * @return
+     */
+    public static Path owner( Path sidecar )
+    {
+        return sidecar.resolveSibling( sidecar.getFileName().toString().substring( PREFIX.length() ) );
+    }
+
+    /**
+     * Read the sidecar of a cached file
+     *
+     * @param file
+     *
+     * @return validators or null if there are none
+     *
+     * @throws IOException
+     */
+    public static Validators load( Path file )
+            throws IOException
+    {
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( sidecar( file ) ) ) ) ) {
+            if( in.readInt() != MAGIC ) {
+                return null;
+            }
+            String etag = in.readBoolean() ? in.readUTF() : null;
+            String lastModified = in.readBoolean() ? in.readUTF() : null;
+            return new Validators( etag, lastModified, in.readLong(), false );
+        }
+        catch( NoSuchFileException | EOFException ex ) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the sidecar of a cached file
+     *
+     * @param file
+     *
+     * @throws IOException
+     */
+    public void save( Path file )
+            throws IOException
+    {
+        Path p = sidecar( file );
+        Path tmp = p.resolveSibling( p.getFileName() + ".tmp" );
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ) ) {
+            out.writeInt( MAGIC );
+            write( out, etag );
+            write( out, lastModified );
+            out.writeLong( maxAge );
+        }
+        Files.move( tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    private static void write( DataOutputStream out, String s )
+            throws IOException
+    {
+        out.writeBoolean( s != null );
+        if( s != null ) {
+            out.writeUTF( s );
+        }
+    }
+
+    /**
+     * Delete the sidecar of a cached file
+     *
+     * @param file
+     *
+     * @throws IOException
+     */
+    public static void delete( Path file )
+            throws IOException
+    {
+        Files.deleteIfExists( sidecar( file ) );
+    }
+}
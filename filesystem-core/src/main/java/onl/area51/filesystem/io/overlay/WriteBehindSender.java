@@ -0,0 +1,509 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import onl.area51.filesystem.FileSystemUtils;
+import onl.area51.filesystem.io.FileSystemIO;
+
+/**
+ * An {@link OverlaySender} that queues paths and sends them with another sender on background threads, so closing a file does
+ * not wait for the upload.
+ * <p>
+ * A path written again before it has been sent is only sent once, and as the file is read when it is sent the latest content
+ * is the one uploaded. A path being sent is never sent by two threads at once, if it is written during the upload then it is
+ * sent again afterwards. When the queue is full {@link #send(char[])} blocks until there is room.
+ * <p>
+ * The queue is kept in a journal so anything not yet sent when the filesystem is closed, or the process dies, is sent once it
+ * is opened again. A failed send is retried after a delay.
+ *
+ * @author peter
+ */
+public final class WriteBehindSender
+        implements OverlaySender,
+                   Closeable
+{
+
+    private static final Logger LOG = Logger.getLogger( WriteBehindSender.class.getName() );
+
+    /**
+     * Environment key for the number of uploader threads. Defaults to 0 which disables write behind so files are sent when
+     * they are closed.
+     */
+    public static final String THREADS = "writeBehindThreads";
+    /**
+     * Environment key for the maximum number of paths waiting to be sent. Defaults to 10000.
+     */
+    public static final String QUEUE_SIZE = "writeBehindQueueSize";
+    /**
+     * Environment key for the journal file. Defaults to the base directory's name with ".writebehind" appended, alongside the
+     * base directory.
+     */
+    public static final String JOURNAL = "writeBehindJournal";
+    /**
+     * Environment key for the delay in milliseconds before retrying a failed send. Defaults to 5000.
+     */
+    public static final String RETRY_DELAY = "writeBehindRetryDelay";
+
+    private static final int MAGIC = 0x41353157;
+    private static final byte ADD = 'A';
+    private static final byte DONE = 'D';
+
+    private final FileSystemIO io;
+    private final OverlaySender sender;
+    private final int queueSize;
+    private final long retryDelay;
+    private final Path journal;
+    private final List<Thread> threads = new ArrayList<>();
+
+    /**
+     * Paths waiting to be sent in the order they were first written, with the time in millis they were
+     */
+    private final LinkedHashMap<String, Long> pending = new LinkedHashMap<>();
+    /**
+     * Paths being sent with the time they were written
+     */
+    private final Map<String, Long> inFlight = new HashMap<>();
+    /**
+     * Paths that failed with the time in millis before which they must not be sent again
+     */
+    private final Map<String, Long> retryAt = new HashMap<>();
+    /**
+     * Earliest time a path held back by {@link #retryAt} becomes due, 0 if there are none
+     */
+    private long wakeAt;
+    private DataOutputStream out;
+    private int records;
+    private boolean closed;
+
+    private long sent;
+    private long failed;
+    private long coalesced;
+
+    /**
+     * Wrap a sender if write behind is enabled
+     *
+     * @param io     filesystem the paths are in
+     * @param sender sender to upload with
+     * @param env
+     *
+     * @return sender to use
+     *
+     * @throws IOException if the journal cannot be opened
+     */
+    public static OverlaySender wrap( FileSystemIO io, OverlaySender sender, Map<String, ?> env )
+            throws IOException
+    {
+        int threads = (int) FileSystemUtils.getLong( env, THREADS, 0L );
+        return sender == null || threads < 1 ? sender : new WriteBehindSender( io, sender, threads, env );
+    }
+
+    /**
+     *
+     * @param io          filesystem the paths are in
+     * @param sender      sender to upload with
+     * @param threadCount number of uploader threads
+     * @param env
+     *
+     * @throws IOException if the journal cannot be opened
+     */
+    public WriteBehindSender( FileSystemIO io, OverlaySender sender, int threadCount, Map<String, ?> env )
+            throws IOException
+    {
+        this.io = io;
+        this.sender = sender;
+        queueSize = (int) Math.max( 1L, FileSystemUtils.getLong( env, QUEUE_SIZE, 10000L ) );
+        retryDelay = FileSystemUtils.getLong( env, RETRY_DELAY, 5000L );
+
+        String j = FileSystemUtils.getString( env, JOURNAL );
+        if( j == null || j.trim().isEmpty() ) {
+            Path base = io.getBaseDirectory();
+            journal = base.resolveSibling( base.getFileName() + ".writebehind" );
+        }
+        else {
+            journal = Paths.get( j );
+        }
+
+        restore();
+
+        for( int i = 0; i < threadCount; i++ ) {
+            Thread t = new Thread( this::run, "WriteBehind-" + i );
+            t.setDaemon( true );
+            threads.add( t );
+            t.start();
+        }
+    }
+
+    /**
+     * Read the journal then replace it with one holding just the paths still to be sent
+     */
+    private void restore()
+            throws IOException
+    {
+        long now = System.currentTimeMillis();
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( journal ) ) ) ) {
+            if( in.readInt() == MAGIC ) {
+                while( true ) {
+                    byte op = in.readByte();
+                    String path = in.readUTF();
+                    if( op == ADD ) {
+                        pending.putIfAbsent( path, now );
+                    }
+                    else if( op == DONE ) {
+                        pending.remove( path );
+                    }
+                    else {
+                        LOG.log( Level.WARNING, () -> "Ignoring corrupt journal " + journal );
+                        break;
+                    }
+                }
+            }
+            else {
+                LOG.log( Level.WARNING, () -> "Ignoring invalid journal " + journal );
+            }
+        }
+        catch( NoSuchFileException | EOFException ex ) {
+            // No journal or the end of it
+        }
+
+        if( !pending.isEmpty() ) {
+            LOG.log( Level.INFO, () -> "Resuming " + pending.size() + " unsent paths from " + journal );
+        }
+        compact();
+    }
+
+    /**
+     * Rewrite the journal with just the pending paths
+     */
+    private void compact()
+            throws IOException
+    {
+        if( out != null ) {
+            out.close();
+        }
+
+        Path tmp = journal.resolveSibling( journal.getFileName() + ".tmp" );
+        try( DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ) ) {
+            dos.writeInt( MAGIC );
+            for( String path: pending.keySet() ) {
+                dos.writeByte( ADD );
+                dos.writeUTF( path );
+            }
+            for( String path: inFlight.keySet() ) {
+                dos.writeByte( ADD );
+                dos.writeUTF( path );
+            }
+        }
+        Files.move( tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+        out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( journal.toFile(), true ) ) );
+        records = pending.size() + inFlight.size();
+    }
+
+    private void record( byte op, String path )
+            throws IOException
+    {
+        out.writeByte( op );
+        out.writeUTF( path );
+        out.flush();
+        records++;
+        if( records > 1024 && records > (pending.size() + inFlight.size()) << 2 ) {
+            compact();
+        }
+    }
+
+    /**
+     * Queue a path to be sent, blocking whilst the queue is full
+     *
+     * @param path
+     *
+     * @throws IOException
+     */
+    @Override
+    public void send( char[] path )
+            throws IOException
+    {
+        String key = String.valueOf( path );
+        synchronized( pending ) {
+            while( !closed && !pending.containsKey( key ) && pending.size() >= queueSize ) {
+                try {
+                    pending.wait();
+                }
+                catch( InterruptedException ex ) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( "Interrupted queueing " + key );
+                }
+            }
+            if( closed ) {
+                throw new IOException( "Write behind closed, cannot send " + key );
+            }
+
+            if( pending.containsKey( key ) ) {
+                coalesced++;
+            }
+            else {
+                if( !inFlight.containsKey( key ) ) {
+                    record( ADD, key );
+                }
+                pending.put( key, System.currentTimeMillis() );
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * The next path not already being sent and not waiting to be retried
+     */
+    private String next()
+    {
+        long now = System.currentTimeMillis();
+        wakeAt = 0L;
+        for( Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> e = it.next();
+            Long due = retryAt.get( e.getKey() );
+            if( due != null && due > now ) {
+                wakeAt = wakeAt == 0L ? due : Math.min( wakeAt, due );
+            }
+            else if( !inFlight.containsKey( e.getKey() ) ) {
+                it.remove();
+                inFlight.put( e.getKey(), e.getValue() );
+                // Wake anyone waiting for room in the queue
+                pending.notifyAll();
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    private void run()
+    {
+        while( true ) {
+            String path = null;
+            synchronized( pending ) {
+                while( !closed && (path = next()) == null ) {
+                    try {
+                        if( wakeAt == 0L ) {
+                            pending.wait();
+                        }
+                        else {
+                            pending.wait( Math.max( 1L, wakeAt - System.currentTimeMillis() ) );
+                        }
+                    }
+                    catch( InterruptedException ex ) {
+                        return;
+                    }
+                }
+                if( closed ) {
+                    return;
+                }
+            }
+
+            boolean ok = upload( path );
+
+            synchronized( pending ) {
+                Long written = inFlight.remove( path );
+                if( ok ) {
+                    sent++;
+                    retryAt.remove( path );
+                    if( !pending.containsKey( path ) ) {
+                        try {
+                            record( DONE, path );
+                        }
+                        catch( IOException ex ) {
+                            LOG.log( Level.WARNING, ex, () -> "Failed to update " + journal );
+                        }
+                    }
+                }
+                else {
+                    failed++;
+                    // Retry later keeping the original time so the lag shows how long it has been waiting. Other threads skip
+                    // it until the delay has passed so they carry on with the rest of the queue.
+                    Long newer = pending.remove( path );
+                    pending.put( path, newer == null ? written : Math.min( written, newer ) );
+                    retryAt.put( path, System.currentTimeMillis() + retryDelay );
+                }
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Send a path
+     *
+     * @return false if it should be retried
+     */
+    private boolean upload( String path )
+    {
+        char[] p = path.toCharArray();
+        try {
+            if( !io.exists( p ) ) {
+                LOG.log( Level.FINE, () -> "Not sending deleted " + path );
+                return true;
+            }
+            sender.send( p );
+            return true;
+        }
+        catch( IOException | RuntimeException ex ) {
+            LOG.log( Level.WARNING, ex, () -> "Failed to send " + path );
+            return false;
+        }
+    }
+
+    /**
+     * Wait until everything queued has been sent
+     *
+     * @param timeout
+     * @param unit
+     *
+     * @return true if the queue is empty, false if the timeout expired
+     *
+     * @throws InterruptedException
+     */
+    public boolean flush( long timeout, TimeUnit unit )
+            throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos( timeout );
+        synchronized( pending ) {
+            while( !pending.isEmpty() || !inFlight.isEmpty() ) {
+                long wait = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+                if( wait <= 0L ) {
+                    return false;
+                }
+                pending.wait( wait );
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return number of paths waiting to be or being sent
+     */
+    public int getPending()
+    {
+        synchronized( pending ) {
+            return pending.size() + inFlight.size();
+        }
+    }
+
+    /**
+     * @return time in millis the oldest unsent write has been waiting, 0 if there is nothing to send
+     */
+    public long getLag()
+    {
+        long oldest = Long.MAX_VALUE;
+        synchronized( pending ) {
+            for( Long t: pending.values() ) {
+                oldest = Math.min( oldest, t );
+            }
+            for( Long t: inFlight.values() ) {
+                oldest = Math.min( oldest, t );
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0L : Math.max( 0L, System.currentTimeMillis() - oldest );
+    }
+
+    /**
+     * @return number of paths sent
+     */
+    public long getSent()
+    {
+        synchronized( pending ) {
+            return sent;
+        }
+    }
+
+    /**
+     * @return number of failed sends, each of which will be retried
+     */
+    public long getFailed()
+    {
+        synchronized( pending ) {
+            return failed;
+        }
+    }
+
+    /**
+     * @return number of writes merged with one already queued
+     */
+    public long getCoalesced()
+    {
+        synchronized( pending ) {
+            return coalesced;
+        }
+    }
+
+    /**
+     * Stop the uploader threads once any send in progress has finished then close the sender. Anything not sent remains in the
+     * journal.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        synchronized( pending ) {
+            if( closed ) {
+                return;
+            }
+            closed = true;
+            pending.notifyAll();
+        }
+
+        try {
+            for( Thread t: threads ) {
+                t.join();
+            }
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            try {
+                synchronized( pending ) {
+                    out.close();
+                }
+            }
+            finally {
+                if( sender instanceof Closeable ) {
+                    ((Closeable) sender).close();
+                }
+            }
+        }
+    }
+}
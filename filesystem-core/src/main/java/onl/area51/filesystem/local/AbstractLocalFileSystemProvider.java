@@ -27,6 +27,7 @@ import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileStore;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributeView;
@@ -62,7 +63,10 @@ public abstract class AbstractLocalFileSystemProvider<F extends AbstractLocalFil
     public void checkAccess( Path path, AccessMode... modes )
             throws IOException
     {
-        //toCachePath( path ).checkAccess( modes );
+        // Files.exists() relies on this so we must at least fail if the path does not exist
+        if( !toCachePath( path ).exists() ) {
+            throw new NoSuchFileException( path.toString() );
+        }
     }
 
     @Override
@@ -130,7 +134,7 @@ public abstract class AbstractLocalFileSystemProvider<F extends AbstractLocalFil
                                                                ExecutorService exec, FileAttribute<?>... attrs )
             throws IOException
     {
-        throw new UnsupportedOperationException();
+        return toCachePath( path ).newAsynchronousFileChannel( options, exec, attrs );
     }
 
     @Override
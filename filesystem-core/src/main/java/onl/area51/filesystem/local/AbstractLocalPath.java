@@ -18,6 +18,7 @@ package onl.area51.filesystem.local;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.CopyOption;
@@ -36,6 +37,7 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import onl.area51.filesystem.AbstractPath;
 
 /**
@@ -157,6 +159,13 @@ public abstract class AbstractLocalPath<F extends AbstractLocalFileSystem<F, P,
         return fs.getFileSystemIO().newFileChannel( getResolvedPath(), options, attrs );
     }
 
+    public AsynchronousFileChannel newAsynchronousFileChannel( Set<? extends OpenOption> options, ExecutorService exec,
+                                                               FileAttribute<?>... attrs )
+            throws IOException
+    {
+        return fs.getFileSystemIO().newAsynchronousFileChannel( getResolvedPath(), options, exec, attrs );
+    }
+
     @Override
     public boolean exists()
     {
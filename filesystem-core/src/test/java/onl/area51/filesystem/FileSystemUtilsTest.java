@@ -15,7 +15,13 @@
  */
 package onl.area51.filesystem;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -52,4 +58,64 @@ public class FileSystemUtilsTest
         assertEquals( "b/ba/bac3ba4acda45d834747e5b3339f0f1c.png", FileSystemUtils.getCachePrefix( "dir/test.png" ) );
         assertEquals( "0/02/021ad58091421abab4be786251454727.jpg", FileSystemUtils.getCachePrefix( "Harry-Green-HampsteadHeath-copy.jpg" ) );
     }
+
+    @Test
+    public void getCachePrefixChars()
+            throws IOException
+    {
+        assertEquals( "0/09/098f6bcd4621d373cade4e832627b4f6", FileSystemUtils.getCachePrefix( "test".toCharArray() ) );
+        assertEquals( "b/ba/bac3ba4acda45d834747e5b3339f0f1c.png", FileSystemUtils.getCachePrefix( "dir/test.png".toCharArray() ) );
+        assertEquals( "6/6b/6b96ab441bab2f8d5022c57ffb17136e.hidden", FileSystemUtils.getCachePrefix( ".hidden".toCharArray() ) );
+        assertEquals( "8/85/854a373c229f8fd49312cdfe64002802", FileSystemUtils.getCachePrefix( "dir.d/test".toCharArray() ) );
+        assertEquals( "0/0d/0d0c9930fffe3c4a861c477eef07bc54.e", FileSystemUtils.getCachePrefix( "a.b/c.d.e".toCharArray() ) );
+
+        // Longer than the initial buffers
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < 100; i++ ) {
+            sb.append( "dir" ).append( i ).append( '/' );
+        }
+        sb.append( "long.txt" );
+        assertEquals( "9/95/95be6bf8de38011431c1857a09b99097.txt", FileSystemUtils.getCachePrefix( sb.toString().toCharArray() ) );
+
+        // Non ASCII paths are hashed in the platform charset
+        if( Charset.defaultCharset().equals( StandardCharsets.UTF_8 ) ) {
+            assertEquals( "b/b4/b4065f9268649cd2b94565eac98e4148.jpg",
+                          FileSystemUtils.getCachePrefix( "caf\u00e9/\u00fcber.jpg".toCharArray() ) );
+        }
+    }
+
+    @Test
+    public void nestedCopy()
+            throws IOException
+    {
+        byte[] outer = new byte[100];
+        Arrays.fill( outer, (byte) 'a' );
+        byte[] inner = new byte[100];
+        Arrays.fill( inner, (byte) 'b' );
+
+        ByteArrayOutputStream innerSink = new ByteArrayOutputStream();
+        ByteArrayOutputStream outerSink = new ByteArrayOutputStream();
+        // A sink that copies something else on the same thread before taking the data it was given
+        OutputStream sink = new OutputStream()
+        {
+            @Override
+            public void write( int b )
+                    throws IOException
+            {
+                outerSink.write( b );
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len )
+                    throws IOException
+            {
+                FileSystemUtils.copy( new ByteArrayInputStream( inner ), innerSink );
+                outerSink.write( b, off, len );
+            }
+        };
+
+        assertEquals( outer.length, FileSystemUtils.copy( new ByteArrayInputStream( outer ), sink ) );
+        assertArrayEquals( outer, outerSink.toByteArray() );
+        assertArrayEquals( inner, innerSink.toByteArray() );
+    }
 }
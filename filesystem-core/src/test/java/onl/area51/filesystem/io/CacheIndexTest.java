@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class CacheIndexTest
+{
+
+    private static final Path A = Paths.get( "a" );
+    private static final Path B = Paths.get( "b" );
+    private static final Path C = Paths.get( "c" );
+
+    @Test
+    public void lru()
+    {
+        CacheIndex index = new CacheIndex( CacheIndex.Policy.LRU, 0L, 2L );
+        index.written( A, 10L );
+        index.written( B, 10L );
+        index.accessed( A );
+        index.written( C, 10L );
+
+        assertEquals( Collections.singletonList( B ), index.evict() );
+        assertEquals( 2, index.count() );
+        assertEquals( 20L, index.size() );
+    }
+
+    @Test
+    public void lfu()
+    {
+        CacheIndex index = new CacheIndex( CacheIndex.Policy.LFU, 25L, 0L );
+        index.written( A, 10L );
+        index.written( B, 10L );
+        index.accessed( A );
+        index.accessed( B );
+        index.accessed( A );
+        index.written( C, 10L );
+
+        // C is the least frequently used even though it's the most recent
+        assertEquals( Collections.singletonList( C ), index.evict() );
+
+        index.written( C, 10L );
+        index.written( C, 10L );
+        index.accessed( C );
+        // Now B and C have the same frequency so the least recent goes
+        assertEquals( Collections.singletonList( B ), index.evict() );
+    }
+
+    @Test
+    public void maxFiles()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( LocalFileSystemIO.MAX_FILES, 3 );
+        try( Cache io = new Cache( Files.createTempDirectory( "cacheindex" ), env ) ) {
+            for( int i = 0; i < 4; i++ ) {
+                try( OutputStream os = io.newOutputStream( ("file" + i).toCharArray() ) ) {
+                    os.write( new byte[100] );
+                }
+                if( i == 1 ) {
+                    try( InputStream is = io.newInputStream( "file0".toCharArray() ) ) {
+                        assertEquals( 0, is.read() );
+                    }
+                }
+            }
+
+            // Eviction runs in the background after the write
+            long deadline = System.currentTimeMillis() + 5000L;
+            while( (io.getIndex().count() > 3 || io.exists( "file1".toCharArray() ))
+                   && System.currentTimeMillis() < deadline ) {
+                Thread.yield();
+            }
+            assertEquals( 3, io.getIndex().count() );
+            assertEquals( 300L, io.getIndex().size() );
+            for( String name: Arrays.asList( "file0", "file2", "file3" ) ) {
+                assertTrue( name, io.exists( name.toCharArray() ) );
+            }
+            assertFalse( io.exists( "file1".toCharArray() ) );
+        }
+    }
+
+    @Test
+    public void asynchronousWrite()
+            throws Exception
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( LocalFileSystemIO.MAX_FILES, 3 );
+        try( Cache io = new Cache( Files.createTempDirectory( "cacheindex" ), env ) ) {
+            try( AsynchronousFileChannel c = io.newAsynchronousFileChannel( "file".toCharArray(),
+                                                                             EnumSet.of( StandardOpenOption.CREATE,
+                                                                                         StandardOpenOption.WRITE ), null ) ) {
+                c.write( ByteBuffer.wrap( new byte[100] ), 0L ).get();
+            }
+            assertEquals( 1, io.getIndex().count() );
+            assertEquals( 100L, io.getIndex().size() );
+        }
+    }
+
+    @Test
+    public void journal()
+            throws IOException
+    {
+        Path base = Files.createTempDirectory( "cachejournal" );
+        Map<String, Object> env = new HashMap<>();
+        env.put( LocalFileSystemIO.INDEX_JOURNAL, true );
+        env.put( LocalFileSystemIO.RECONCILE_DELAY, -1 );
+
+        try( Cache io = new Cache( base, env ) ) {
+            for( int i = 0; i < 10; i++ ) {
+                try( OutputStream os = io.newOutputStream( ("file" + i).toCharArray() ) ) {
+                    os.write( new byte[i] );
+                }
+            }
+            io.deleteFile( "file0".toCharArray(), true );
+        }
+
+        // Reopening restores the index from the snapshot without walking the tree
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        try( Cache io = new Cache( base, env ) ) {
+            assertEquals( 9, io.getIndex().count() );
+            assertEquals( 45L, io.getIndex().size() );
+            assertTrue( io.getIndex().contains( io.toPath( "file9".toCharArray() ) ) );
+            assertFalse( io.getIndex().contains( io.toPath( "file0".toCharArray() ) ) );
+        }
+    }
+
+    @Test
+    public void clearOnStartupDeletesJournal()
+            throws IOException
+    {
+        Path base = Files.createTempDirectory( "cachejournal" );
+        Map<String, Object> env = new HashMap<>();
+        env.put( LocalFileSystemIO.INDEX_JOURNAL, true );
+        env.put( LocalFileSystemIO.RECONCILE_DELAY, -1 );
+
+        try( Cache io = new Cache( base, env ) ) {
+            try( OutputStream os = io.newOutputStream( "file".toCharArray() ) ) {
+                os.write( new byte[10] );
+            }
+        }
+        assertTrue( Files.exists( base.resolve( CacheJournal.PREFIX + ".snapshot" ) ) );
+
+        env.put( LocalFileSystemIO.CLEAR_ON_STARTUP, true );
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        try( Cache io = new Cache( base, env ) ) {
+            assertEquals( 0, io.getIndex().count() );
+            assertFalse( Files.exists( base.resolve( CacheJournal.PREFIX + ".snapshot" ) ) );
+        }
+        assertFalse( Files.exists( base ) );
+    }
+}
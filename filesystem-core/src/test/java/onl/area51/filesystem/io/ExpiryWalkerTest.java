@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class ExpiryWalkerTest
+{
+
+    private static Path create( Path p, long modified )
+            throws IOException
+    {
+        Files.createDirectories( p.getParent() );
+        Files.write( p, new byte[10] );
+        Files.setLastModifiedTime( p, FileTime.fromMillis( modified ) );
+        return p;
+    }
+
+    @Test
+    public void expire()
+            throws IOException
+    {
+        Path base = Files.createTempDirectory( "expirywalker" );
+        long old = System.currentTimeMillis() - 60000L;
+        long cull = old + 1000L;
+
+        for( int i = 0; i < 16; i++ ) {
+            String shard = Integer.toHexString( i );
+            create( base.resolve( shard + "/a/old" ), old );
+            if( i % 2 == 0 ) {
+                create( base.resolve( shard + "/b/new" ), System.currentTimeMillis() );
+            }
+            // Directories are only removed if they were old as well
+            Files.setLastModifiedTime( base.resolve( shard + "/a" ), FileTime.fromMillis( old ) );
+            Files.setLastModifiedTime( base.resolve( shard ), FileTime.fromMillis( old ) );
+        }
+
+        Set<Path> deleted = ConcurrentHashMap.newKeySet();
+        ExpiryWalker walker = new ExpiryWalker( base, 4, 0L, deleted::add );
+        try {
+            walker.expire( cull );
+        }
+        finally {
+            walker.close();
+        }
+
+        assertEquals( 24L, walker.getFilesScanned() );
+        assertEquals( 16L, walker.getFilesExpired() );
+        assertEquals( 160L, walker.getBytesExpired() );
+        assertEquals( 16, deleted.size() );
+        // 16 "a" directories plus the 8 shards which only held "a"
+        assertEquals( 24L, walker.getDirectoriesRemoved() );
+        assertTrue( Files.exists( base.resolve( "0/b/new" ) ) );
+        assertFalse( Files.exists( base.resolve( "1" ) ) );
+        assertTrue( Files.exists( base ) );
+    }
+}
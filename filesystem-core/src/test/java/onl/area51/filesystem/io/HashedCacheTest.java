@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class HashedCacheTest
+{
+
+    private static byte[] bytes( String s )
+    {
+        return s.getBytes( StandardCharsets.UTF_8 );
+    }
+
+    @Test
+    public void xxHash64()
+    {
+        assertEquals( 0xEF46DB3751D8E999L, XXHash64.hash( new byte[0], 0, 0, 0L ) );
+        assertEquals( 0x44BC2CF5AD770999L, XXHash64.hash( bytes( "abc" ), 0, 3, 0L ) );
+    }
+
+    @Test
+    public void murmur3()
+    {
+        long[] h = new long[2];
+        Murmur3.hash( bytes( "hello" ), 0, 5, 0, h );
+        assertEquals( 0xcbd8a7b341bd9b02L, h[0] );
+        assertEquals( 0x5b1e906a48ae1d19L, h[1] );
+    }
+
+    @Test
+    public void layout()
+            throws IOException
+    {
+        Path base = Files.createTempDirectory( "hashedcache" );
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( HashedCache.FAN_OUT, 3 );
+        env.put( HashedCache.DEPTH, 3 );
+        try( XXHash64 io = new XXHash64( base, env ) ) {
+            String hash = String.format( "%016x", XXHash64.hash( bytes( "abc" ), 0, 3, 0L ) );
+            assertEquals( base.resolve( "44b/c2c/f5a/" + hash ), io.toPath( "abc".toCharArray() ) );
+
+            Path p = base.relativize( io.toPath( "dir/abc.jpg".toCharArray() ) );
+            assertEquals( 4, p.getNameCount() );
+            assertTrue( p.getFileName().toString().endsWith( ".jpg" ) );
+        }
+    }
+
+    @Test
+    public void legacyMigration()
+            throws IOException
+    {
+        Path base = Files.createTempDirectory( "hashedcache" );
+        Map<String, Object> env = new HashMap<>();
+
+        try( Cache legacy = new Cache( base, env ) ) {
+            try( OutputStream os = legacy.newOutputStream( "dir/test.txt".toCharArray() ) ) {
+                os.write( 42 );
+            }
+        }
+
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( HashedCache.LEGACY_MIGRATION, true );
+        try( Murmur3 io = new Murmur3( base, env ) ) {
+            assertTrue( io.exists( "dir/test.txt".toCharArray() ) );
+            try( InputStream is = io.newInputStream( "dir/test.txt".toCharArray() ) ) {
+                assertEquals( 42, is.read() );
+            }
+            assertFalse( io.exists( "dir/other.txt".toCharArray() ) );
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import onl.area51.filesystem.FileSystemUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class MappedFileCacheTest
+{
+
+    private static void write( FileSystemIO io, String path, int size, int value )
+            throws IOException
+    {
+        byte[] b = new byte[size];
+        for( int i = 0; i < size; i++ ) {
+            b[i] = (byte) (i + value);
+        }
+        try( OutputStream os = io.newOutputStream( path.toCharArray() ) ) {
+            os.write( b );
+        }
+    }
+
+    private static byte[] read( FileSystemIO io, String path )
+            throws IOException
+    {
+        try( InputStream is = io.newInputStream( path.toCharArray() ) ) {
+            byte[] b = new byte[100000];
+            int n = 0, r;
+            while( (r = is.read( b, n, b.length - n )) > 0 ) {
+                n += r;
+            }
+            byte[] ret = new byte[n];
+            System.arraycopy( b, 0, ret, 0, n );
+            return ret;
+        }
+    }
+
+    @Test
+    public void mapped()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( AbstractLocalFileSystemIO.MMAP_THRESHOLD, 4096 );
+        try( Flat io = new Flat( Files.createTempDirectory( "mapped" ), env ) ) {
+            write( io, "small", 100, 0 );
+            write( io, "large", 50000, 0 );
+
+            try( InputStream is = io.newInputStream( "small".toCharArray() ) ) {
+                assertFalse( is instanceof ByteBufferInputStream );
+            }
+            try( InputStream is = io.newInputStream( "large".toCharArray() ) ) {
+                assertTrue( is instanceof ByteBufferInputStream );
+            }
+
+            byte[] b = read( io, "large" );
+            assertEquals( 50000, b.length );
+            assertEquals( (byte) 49999, b[49999] );
+
+            // Replacing the file must not serve the old mapping
+            FileSystemUtils.copyFromRemote( () -> new ByteArrayInputStream( new byte[60000] ), io, "large".toCharArray() );
+            b = read( io, "large" );
+            assertEquals( 60000, b.length );
+            assertEquals( 0, b[49999] );
+
+            try( SeekableByteChannel c = io.newByteChannel( "large".toCharArray(), Collections.singleton( StandardOpenOption.READ ) ) ) {
+                assertEquals( 60000L, c.size() );
+                c.position( 59990L );
+                ByteBuffer buf = ByteBuffer.allocate( 100 );
+                assertEquals( 10, c.read( buf ) );
+                assertEquals( -1, c.read( buf ) );
+            }
+        }
+    }
+
+    @Test
+    public void writesDoNotDisturbMappings()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( AbstractLocalFileSystemIO.MMAP_THRESHOLD, 4096 );
+        try( Flat io = new Flat( Files.createTempDirectory( "mapped" ), env ) ) {
+            write( io, "large", 50000, 1 );
+
+            try( InputStream is = io.newInputStream( "large".toCharArray() ) ) {
+                assertTrue( is instanceof ByteBufferInputStream );
+
+                // Truncating would fault the mapping if written in place
+                write( io, "large", 10, 2 );
+
+                // Modifying part of the file keeps the rest of its content
+                try( FileChannel c = io.newFileChannel( "large".toCharArray(), EnumSet.of( StandardOpenOption.WRITE ) ) ) {
+                    c.write( ByteBuffer.wrap( new byte[]{9} ), 5L );
+                }
+
+                is.skip( 49999L );
+                assertEquals( 49999 + 1 & 0xff, is.read() );
+                assertEquals( -1, is.read() );
+            }
+
+            byte[] b = read( io, "large" );
+            assertEquals( 10, b.length );
+            assertEquals( 2, b[0] );
+            assertEquals( 9, b[5] );
+            assertEquals( 11, b[9] );
+        }
+    }
+
+    @Test
+    public void asynchronousWritesDoNotDisturbMappings()
+            throws Exception
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( AbstractLocalFileSystemIO.MMAP_THRESHOLD, 4096 );
+        try( Flat io = new Flat( Files.createTempDirectory( "mapped" ), env ) ) {
+            write( io, "large", 50000, 1 );
+
+            try( InputStream is = io.newInputStream( "large".toCharArray() ) ) {
+                assertTrue( is instanceof ByteBufferInputStream );
+
+                // Truncating would fault the mapping if written in place
+                try( AsynchronousFileChannel c = io.newAsynchronousFileChannel( "large".toCharArray(),
+                                                                                 EnumSet.of( StandardOpenOption.WRITE,
+                                                                                             StandardOpenOption.TRUNCATE_EXISTING ),
+                                                                                 null ) ) {
+                    assertEquals( 0L, c.size() );
+                    c.write( ByteBuffer.wrap( new byte[]{7, 8} ), 0L ).get();
+                }
+
+                is.skip( 49999L );
+                assertEquals( 49999 + 1 & 0xff, is.read() );
+                assertEquals( -1, is.read() );
+            }
+
+            // Modifying part of the file keeps the rest of its content
+            try( AsynchronousFileChannel c = io.newAsynchronousFileChannel( "large".toCharArray(),
+                                                                             EnumSet.of( StandardOpenOption.WRITE ), null ) ) {
+                c.write( ByteBuffer.wrap( new byte[]{9} ), 2L ).get();
+            }
+            assertArrayEquals( new byte[]{7, 8, 9}, read( io, "large" ) );
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class PathCacheTest
+{
+
+    @Test
+    public void putGetRemove()
+    {
+        PathCache<String> cache = new PathCache<>( 10 );
+        char[] path = "dir/file".toCharArray();
+        cache.put( path, "a" );
+        assertEquals( "a", cache.get( "dir/file".toCharArray() ) );
+        assertNull( cache.get( "dir/other".toCharArray() ) );
+
+        // The cache owns a copy of the key
+        path[0] = 'x';
+        assertEquals( "a", cache.get( "dir/file".toCharArray() ) );
+        assertNull( cache.get( path ) );
+
+        cache.remove( "dir/file".toCharArray() );
+        assertNull( cache.get( "dir/file".toCharArray() ) );
+    }
+
+    @Test
+    public void hotPathsSurvive()
+    {
+        PathCache<String> cache = new PathCache<>( 2 );
+        cache.put( "a".toCharArray(), "a" );
+        cache.put( "b".toCharArray(), "b" );
+        // Rolls a and b into the previous generation
+        cache.put( "c".toCharArray(), "c" );
+
+        // Promotes a back into the current generation
+        char[] probe = "a".toCharArray();
+        assertEquals( "a", cache.get( probe ) );
+        probe[0] = 'z';
+
+        // Rolls again, dropping b
+        cache.put( "d".toCharArray(), "d" );
+        assertEquals( "a", cache.get( "a".toCharArray() ) );
+        assertNull( cache.get( "b".toCharArray() ) );
+        assertNull( cache.get( "z".toCharArray() ) );
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import onl.area51.filesystem.FileSystemUtils;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class StagedFileChannelTest
+{
+
+    @Test
+    public void copyFromRemote()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( LocalFileSystemIO.MAX_FILES, 10 );
+        try( Cache io = new Cache( Files.createTempDirectory( "staged" ), env ) ) {
+            char[] path = "dir/file.bin".toCharArray();
+            byte[] data = new byte[200000];
+            for( int i = 0; i < data.length; i++ ) {
+                data[i] = (byte) i;
+            }
+
+            FileSystemUtils.copyFromRemote( () -> new ByteArrayInputStream( data ), io, path );
+
+            assertArrayEquals( data, Files.readAllBytes( io.toPath( path ) ) );
+            assertEquals( data.length, io.getIndex().size() );
+            try( Stream<Path> s = Files.list( io.toPath( path ).getParent() ) ) {
+                assertEquals( 1L, s.count() );
+            }
+        }
+    }
+
+    @Test
+    public void abort()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        try( Cache io = new Cache( Files.createTempDirectory( "staged" ), env ) ) {
+            char[] path = "dir/file.bin".toCharArray();
+            try {
+                FileSystemUtils.copyFromRemote( () -> new InputStream()
+                {
+                    private int count;
+
+                    @Override
+                    public int read()
+                            throws IOException
+                    {
+                        if( count++ > 100 ) {
+                            throw new IOException( "Connection reset" );
+                        }
+                        return 0;
+                    }
+                }, io, path );
+                fail( "Expected IOException" );
+            }
+            catch( IOException ex ) {
+                assertEquals( "Connection reset", ex.getMessage() );
+            }
+
+            Path p = io.toPath( path );
+            assertFalse( Files.exists( p ) );
+            try( Stream<Path> s = Files.list( p.getParent() ) ) {
+                assertEquals( 0L, s.count() );
+            }
+        }
+    }
+
+    @Test
+    public void permissions()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        try( Cache io = new Cache( Files.createTempDirectory( "staged" ), env ) ) {
+            Assume.assumeNotNull( Files.getFileAttributeView( io.getBaseDirectory(), PosixFileAttributeView.class ) );
+
+            // A retrieved file must have the same permissions as one written directly
+            char[] direct = "dir/direct.bin".toCharArray();
+            io.newOutputStream( direct ).close();
+            char[] staged = "dir/staged.bin".toCharArray();
+            FileSystemUtils.copyFromRemote( () -> new ByteArrayInputStream( new byte[10] ), io, staged );
+
+            assertEquals( Files.getPosixFilePermissions( io.toPath( direct ) ),
+                          Files.getPosixFilePermissions( io.toPath( staged ) ) );
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class StatCacheTest
+{
+
+    private static FileSystemIO create( long ttl )
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( FileSystemIORepository.KEY, "flat" );
+        env.put( FileSystemIORepository.WRAPPER, "statcache" );
+        env.put( StatCache.TTL, ttl );
+        return FileSystemIORepository.create( Files.createTempDirectory( "statcache" ), env );
+    }
+
+    private static void write( FileSystemIO io, char[] path )
+            throws IOException
+    {
+        try( OutputStream os = io.newOutputStream( path ) ) {
+            os.write( new byte[123] );
+        }
+    }
+
+    @Test
+    public void invalidatedByWrites()
+            throws IOException
+    {
+        try( FileSystemIO io = create( 60000L ) ) {
+            assertTrue( io instanceof StatCache );
+            char[] path = "dir/file.txt".toCharArray();
+
+            assertFalse( io.exists( path ) );
+            assertFalse( io.exists( "dir".toCharArray() ) );
+
+            write( io, path );
+            assertTrue( io.exists( path ) );
+            assertTrue( io.isDirectory( "dir".toCharArray() ) );
+            assertEquals( 123L, io.getAttributes( path ).size() );
+            assertEquals( 123L, io.size( path ) );
+            assertTrue( io.isFile( path ) );
+
+            io.deleteFile( path, true );
+            assertFalse( io.exists( path ) );
+            assertFalse( io.isFile( path ) );
+        }
+    }
+
+    @Test
+    public void cachedUntilExpired()
+            throws IOException,
+                   InterruptedException
+    {
+        try( FileSystemIO io = create( 200L ) ) {
+            char[] path = "file.txt".toCharArray();
+            assertFalse( io.exists( path ) );
+
+            // Written behind the cache's back
+            write( ((StatCache) io).getDelegate(), path );
+            assertFalse( io.exists( path ) );
+
+            Thread.sleep( 300L );
+            assertTrue( io.exists( path ) );
+        }
+    }
+
+    @Test
+    public void statRacingWriteNotCached()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( StatCache.TTL, 60000L );
+        char[] path = "file.txt".toCharArray();
+        StatCache[] cache = new StatCache[1];
+        FileSystemIO delegate = new FileSystemIOWrapper( new Flat( Files.createTempDirectory( "statcache" ), env ) )
+        {
+            private boolean raced;
+
+            @Override
+            public boolean exists( char[] p )
+                    throws IOException
+            {
+                boolean exists = super.exists( p );
+                if( !raced ) {
+                    // Another thread writes the file after we have looked
+                    raced = true;
+                    write( cache[0], path );
+                }
+                return exists;
+            }
+        };
+
+        try( StatCache io = new StatCache( delegate, env ) ) {
+            cache[0] = io;
+            assertFalse( io.exists( path ) );
+            assertTrue( io.exists( path ) );
+        }
+    }
+}
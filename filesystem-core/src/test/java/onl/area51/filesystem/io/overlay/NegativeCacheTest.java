@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.Flat;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class NegativeCacheTest
+{
+
+    private final AtomicInteger retrieved = new AtomicInteger();
+
+    private FileSystemIO create( long ttl )
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( OverlayFileSystemIO.NEGATIVE_CACHE_TTL, ttl );
+        return new OverlayFileSystemIO( new Flat( Files.createTempDirectory( "negative" ), env ),
+                                        new PathSynchronizer(),
+                                        path -> {
+                                            retrieved.incrementAndGet();
+                                            throw new FileNotFoundException( String.valueOf( path ) );
+                                        },
+                                        env )
+        {
+        };
+    }
+
+    private static boolean exists( FileSystemIO io, char[] path )
+    {
+        try {
+            return io.exists( path );
+        }
+        catch( IOException ex ) {
+            return false;
+        }
+    }
+
+    @Test
+    public void missesAreCached()
+            throws IOException,
+                   InterruptedException
+    {
+        try( FileSystemIO io = create( 200L ) ) {
+            char[] path = "missing.txt".toCharArray();
+            for( int i = 0; i < 10; i++ ) {
+                assertFalse( exists( io, path ) );
+            }
+            assertEquals( 1, retrieved.get() );
+
+            Thread.sleep( 300L );
+            assertFalse( exists( io, path ) );
+            assertEquals( 2, retrieved.get() );
+        }
+    }
+
+    @Test
+    public void invalidatedByWrite()
+            throws IOException
+    {
+        try( FileSystemIO io = create( 60000L ) ) {
+            char[] path = "file.txt".toCharArray();
+            assertFalse( exists( io, path ) );
+
+            try( OutputStream os = io.newOutputStream( path ) ) {
+                os.write( 1 );
+            }
+            assertTrue( exists( io, path ) );
+
+            io.deleteFile( path, true );
+            assertFalse( exists( io, path ) );
+            assertEquals( 2, retrieved.get() );
+        }
+    }
+
+    @Test
+    public void disabledByDefault()
+            throws IOException
+    {
+        try( FileSystemIO io = create( 0L ) ) {
+            char[] path = "missing.txt".toCharArray();
+            for( int i = 0; i < 3; i++ ) {
+                assertFalse( exists( io, path ) );
+            }
+            assertEquals( 3, retrieved.get() );
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed()
+    {
+        NegativeCache cache = new NegativeCache( 60000L, 3 );
+        cache.add( "a".toCharArray() );
+        cache.add( "b".toCharArray() );
+        cache.add( "c".toCharArray() );
+        assertTrue( cache.contains( "a".toCharArray() ) );
+
+        cache.add( "d".toCharArray() );
+        assertEquals( 3, cache.size() );
+        assertTrue( cache.contains( "a".toCharArray() ) );
+        assertFalse( cache.contains( "b".toCharArray() ) );
+        assertTrue( cache.contains( "c".toCharArray() ) );
+        assertTrue( cache.contains( "d".toCharArray() ) );
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class PathSynchronizerTest
+{
+
+    private static final int THREADS = 8;
+
+    /**
+     * Start THREADS executions of the same path whilst the first one is blocked
+     */
+    private static List<Future<Throwable>> run( ExecutorService exec, PathSynchronizer sync, String key, AtomicInteger calls,
+                                                CountDownLatch release, IOException failure )
+            throws InterruptedException
+    {
+        CountDownLatch started = new CountDownLatch( 1 );
+        List<Future<Throwable>> results = new ArrayList<>();
+        for( int i = 0; i < THREADS; i++ ) {
+            results.add( exec.submit( () -> {
+                try {
+                    sync.execute( key, () -> {
+                              calls.incrementAndGet();
+                              started.countDown();
+                              release.await();
+                              if( failure != null ) {
+                                  throw failure;
+                              }
+                              return null;
+                          } );
+                    return null;
+                }
+                catch( Throwable t ) {
+                    return t;
+                }
+            } ) );
+            if( i == 0 ) {
+                assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+            }
+        }
+        // Give the followers time to join
+        Thread.sleep( 100L );
+        release.countDown();
+        return results;
+    }
+
+    @Test
+    public void followersShareSuccess()
+            throws Exception
+    {
+        ExecutorService exec = Executors.newFixedThreadPool( THREADS );
+        try( PathSynchronizer sync = new PathSynchronizer() ) {
+            AtomicInteger calls = new AtomicInteger();
+            for( Future<Throwable> f: run( exec, sync, "a", calls, new CountDownLatch( 1 ), null ) ) {
+                assertNull( f.get() );
+            }
+            assertEquals( 1, calls.get() );
+        }
+        finally {
+            exec.shutdownNow();
+        }
+    }
+
+    @Test
+    public void followersShareFailure()
+            throws Exception
+    {
+        ExecutorService exec = Executors.newFixedThreadPool( THREADS );
+        try( PathSynchronizer sync = new PathSynchronizer() ) {
+            AtomicInteger calls = new AtomicInteger();
+            IOException failure = new FileNotFoundException( "a" );
+            for( Future<Throwable> f: run( exec, sync, "a", calls, new CountDownLatch( 1 ), failure ) ) {
+                assertSame( failure, f.get() );
+            }
+            assertEquals( 1, calls.get() );
+
+            // Once complete the next call runs again
+            sync.execute( "a", () -> {
+                      calls.incrementAndGet();
+                      return null;
+                  } );
+            assertEquals( 2, calls.get() );
+        }
+        finally {
+            exec.shutdownNow();
+        }
+    }
+
+    @Test
+    public void differentPathsDoNotBlock()
+            throws Exception
+    {
+        try( PathSynchronizer sync = new PathSynchronizer() ) {
+            CountDownLatch inside = new CountDownLatch( 1 );
+            CountDownLatch release = new CountDownLatch( 1 );
+            Thread t = new Thread( () -> {
+                try {
+                    sync.execute( "a", () -> {
+                              inside.countDown();
+                              release.await();
+                              return null;
+                          } );
+                }
+                catch( IOException ex ) {
+                    fail( ex.getMessage() );
+                }
+            } );
+            t.start();
+            assertTrue( inside.await( 10, TimeUnit.SECONDS ) );
+
+            AtomicInteger calls = new AtomicInteger();
+            sync.execute( "b", () -> {
+                      calls.incrementAndGet();
+                      return null;
+                  } );
+            assertEquals( 1, calls.get() );
+
+            release.countDown();
+            t.join();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.Flat;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class RetrieveAsyncTest
+{
+
+    private static final byte[] CONTENT = "remote content".getBytes( StandardCharsets.UTF_8 );
+
+    private final AtomicInteger retrieved = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch( 1 );
+
+    private OverlayFileSystemIO create()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( OverlayFileSystemIO.NEGATIVE_CACHE_TTL, 60000L );
+        FileSystemIO delegate = new Flat( Files.createTempDirectory( "async" ), env );
+        return new OverlayFileSystemIO( delegate, new PathSynchronizer(), path -> {
+                                    retrieved.incrementAndGet();
+                                    try {
+                                        release.await();
+                                    }
+                                    catch( InterruptedException ex ) {
+                                        throw new IOException( ex );
+                                    }
+                                    if( String.valueOf( path ).startsWith( "missing" ) ) {
+                                        throw new FileNotFoundException( String.valueOf( path ) );
+                                    }
+                                    try( OutputStream os = delegate.newOutputStream( path ) ) {
+                                        os.write( CONTENT );
+                                    }
+                                }, env )
+        {
+        };
+    }
+
+    @Test
+    public void openAsync()
+            throws Exception
+    {
+        try( OverlayFileSystemIO io = create() ) {
+            char[] path = "file.txt".toCharArray();
+
+            List<CompletableFuture<AsynchronousFileChannel>> futures = new ArrayList<>();
+            for( int i = 0; i < 4; i++ ) {
+                futures.add( io.openAsync( path, Collections.singleton( StandardOpenOption.READ ), null ) );
+            }
+            for( CompletableFuture<AsynchronousFileChannel> f: futures ) {
+                assertFalse( f.isDone() );
+            }
+
+            release.countDown();
+            for( CompletableFuture<AsynchronousFileChannel> f: futures ) {
+                try( AsynchronousFileChannel c = f.get( 10, TimeUnit.SECONDS ) ) {
+                    ByteBuffer b = ByteBuffer.allocate( 100 );
+                    assertEquals( CONTENT.length, (int) c.read( b, 0L ).get() );
+                }
+            }
+            assertEquals( 1, retrieved.get() );
+
+            // Now local so completes immediately
+            assertTrue( io.retrieveAsync( path ).isDone() );
+            assertEquals( 1, retrieved.get() );
+        }
+    }
+
+    @Test
+    public void missingAsync()
+            throws Exception
+    {
+        release.countDown();
+        try( OverlayFileSystemIO io = create() ) {
+            char[] path = "missing.txt".toCharArray();
+            for( int i = 0; i < 2; i++ ) {
+                try {
+                    io.retrieveAsync( path ).get( 10, TimeUnit.SECONDS );
+                    fail( "Expected FileNotFoundException" );
+                }
+                catch( ExecutionException ex ) {
+                    assertTrue( ex.getCause() instanceof FileNotFoundException );
+                }
+            }
+            // The second was answered by the negative cache
+            assertEquals( 1, retrieved.get() );
+        }
+    }
+
+    @Test
+    public void adapterCopiesPath()
+            throws Exception
+    {
+        StringBuilder seen = new StringBuilder();
+        OverlayRetriever retriever = path -> {
+            try {
+                release.await();
+            }
+            catch( InterruptedException ex ) {
+                throw new IOException( ex );
+            }
+            seen.append( path );
+        };
+
+        char[] path = "file.txt".toCharArray();
+        CompletableFuture<Void> future = retriever.retrieveAsync( path );
+        // The caller is free to reuse its array once retrieveAsync returns
+        Arrays.fill( path, 'x' );
+        release.countDown();
+
+        future.get( 10, TimeUnit.SECONDS );
+        assertEquals( "file.txt", seen.toString() );
+    }
+}
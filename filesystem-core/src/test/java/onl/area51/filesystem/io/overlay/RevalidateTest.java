@@ -0,0 +1,278 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import onl.area51.filesystem.FileSystemUtils;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.Flat;
+import onl.area51.filesystem.io.LocalFileSystemIO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class RevalidateTest
+{
+
+    private static final char[] PATH = "a/file.txt".toCharArray();
+    private static final long MAX_AGE = 60000L;
+
+    private final AtomicInteger full = new AtomicInteger();
+    private final AtomicInteger conditional = new AtomicInteger();
+    private volatile String content = "v1";
+    private volatile boolean down;
+    private Map<String, Object> env;
+    private FileSystemIO delegate;
+    private OverlayFileSystemIO overlay;
+
+    private class Origin
+            implements OverlayRetriever,
+                       ValidatingRetriever
+    {
+
+        @Override
+        public void retrieve( char[] path )
+                throws IOException
+        {
+            retrieve( path, null );
+        }
+
+        @Override
+        public Validators retrieve( char[] path, Validators validators )
+                throws IOException
+        {
+            if( down ) {
+                throw new IOException( "Origin down" );
+            }
+            String c = content;
+            if( c == null ) {
+                throw new FileNotFoundException( String.valueOf( path ) );
+            }
+            if( validators == null ) {
+                full.incrementAndGet();
+            }
+            else {
+                conditional.incrementAndGet();
+                if( c.equals( validators.getETag() ) ) {
+                    return new Validators( c, null, -1L, false );
+                }
+            }
+            FileSystemUtils.copyFromRemote( () -> new ByteArrayInputStream( c.getBytes( StandardCharsets.UTF_8 ) ), delegate, path );
+            return new Validators( c, null, -1L, true );
+        }
+    }
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( LocalFileSystemIO.MAX_AGE, MAX_AGE );
+        env.put( LocalFileSystemIO.MAX_STALE, MAX_AGE * 10 );
+        env.put( LocalFileSystemIO.SCAN_DELAY, -1L );
+        env.put( LocalFileSystemIO.EXPIRE_ON_STARTUP, false );
+        env.put( OverlayFileSystemIO.REVALIDATE, true );
+        delegate = new Flat( Files.createTempDirectory( "revalidate" ), env );
+        overlay = new OverlayFileSystemIO( delegate, new PathSynchronizer(), new Origin(), env )
+        {
+        };
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        overlay.close();
+    }
+
+    private Path file()
+            throws IOException
+    {
+        return delegate.toPath( PATH );
+    }
+
+    /**
+     * Make the local copy look like it was retrieved some time ago
+     */
+    private void age( long millis )
+            throws IOException
+    {
+        Files.setLastModifiedTime( file(), FileTime.fromMillis( System.currentTimeMillis() - millis ) );
+    }
+
+    private String read()
+            throws IOException
+    {
+        try( InputStream is = overlay.newInputStream( PATH ) ) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] b = new byte[256];
+            for( int n = is.read( b ); n > 0; n = is.read( b ) ) {
+                baos.write( b, 0, n );
+            }
+            return new String( baos.toByteArray(), StandardCharsets.UTF_8 );
+        }
+    }
+
+    @Test
+    public void freshIsNotRevalidated()
+            throws IOException
+    {
+        assertEquals( "v1", read() );
+        assertEquals( "v1", read() );
+        assertEquals( 1, full.get() );
+        assertEquals( 0, conditional.get() );
+        assertTrue( Files.exists( Validators.sidecar( file() ) ) );
+    }
+
+    @Test
+    public void notModifiedKeepsFile()
+            throws IOException
+    {
+        assertEquals( "v1", read() );
+        age( MAX_AGE * 2 );
+
+        assertEquals( "v1", read() );
+        assertEquals( 1, full.get() );
+        assertEquals( 1, conditional.get() );
+
+        // The timestamp was refreshed so it is fresh again
+        assertTrue( System.currentTimeMillis() - Files.getLastModifiedTime( file() ).toMillis() < MAX_AGE );
+        assertEquals( "v1", read() );
+        assertEquals( 1, conditional.get() );
+    }
+
+    @Test
+    public void modifiedIsReplaced()
+            throws IOException
+    {
+        assertEquals( "v1", read() );
+        content = "v2";
+        age( MAX_AGE * 2 );
+
+        assertEquals( "v2", read() );
+        assertEquals( 1, conditional.get() );
+        assertEquals( "v2", Validators.load( file() ).getETag() );
+    }
+
+    @Test
+    public void removedFromOrigin()
+            throws IOException
+    {
+        assertEquals( "v1", read() );
+        content = null;
+        age( MAX_AGE * 2 );
+
+        assertFalse( overlay.exists( PATH ) );
+        assertFalse( Files.exists( file() ) );
+        assertFalse( Files.exists( Validators.sidecar( file() ) ) );
+    }
+
+    @Test
+    public void staleServedWhenOriginDown()
+            throws IOException
+    {
+        assertEquals( "v1", read() );
+        down = true;
+        age( MAX_AGE * 2 );
+
+        assertEquals( "v1", read() );
+    }
+
+    @Test
+    public void localWriteDropsValidators()
+            throws IOException
+    {
+        assertEquals( "v1", read() );
+        try( OutputStream os = overlay.newOutputStream( PATH ) ) {
+            os.write( "local".getBytes( StandardCharsets.UTF_8 ) );
+        }
+        assertFalse( Files.exists( Validators.sidecar( file() ) ) );
+    }
+
+    @Test
+    public void expiryKeepsStaleFiles()
+            throws IOException
+    {
+        assertEquals( "v1", read() );
+        age( MAX_AGE * 2 );
+        delegate.expire();
+        assertTrue( Files.exists( file() ) );
+
+        age( MAX_AGE * 12 );
+        delegate.expire();
+        assertFalse( Files.exists( file() ) );
+        assertFalse( Files.exists( Validators.sidecar( file() ) ) );
+    }
+
+    @Test
+    public void streamingFillRevalidates()
+            throws IOException
+    {
+        env.put( OverlayFileSystemIO.STREAMING_FILL, true );
+        overlay = new OverlayFileSystemIO( delegate, new PathSynchronizer(), new Origin(), env )
+        {
+        };
+
+        assertEquals( "v1", read() );
+        // The validators are saved once the retrieval completes which can be after the reader has finished
+        long deadline = System.currentTimeMillis() + 5000L;
+        while( !Files.exists( Validators.sidecar( file() ) ) && System.currentTimeMillis() < deadline ) {
+            Thread.yield();
+        }
+        assertEquals( "v1", Validators.load( file() ).getETag() );
+
+        content = "v2";
+        age( MAX_AGE * 2 );
+        assertEquals( "v2", read() );
+        assertEquals( 1, full.get() );
+        assertEquals( 1, conditional.get() );
+    }
+
+    @Test
+    public void sidecarNotListed()
+            throws IOException
+    {
+        assertEquals( "v1", read() );
+        assertTrue( Files.exists( Validators.sidecar( file() ) ) );
+        List<Path> paths = new ArrayList<>();
+        try( DirectoryStream<Path> ds = delegate.newDirectoryStream( "a".toCharArray(), p -> true ) ) {
+            ds.forEach( paths::add );
+        }
+        assertEquals( Collections.singletonList( file() ), paths );
+    }
+}
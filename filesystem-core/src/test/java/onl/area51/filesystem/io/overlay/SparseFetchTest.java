@@ -0,0 +1,367 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import onl.area51.filesystem.FileSystemUtils;
+import onl.area51.filesystem.io.ExpiryWalker;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.Flat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class SparseFetchTest
+{
+
+    private static final int BLOCK = 1024;
+    private static final int SIZE = BLOCK * 10 + 123;
+    private static final char[] PATH = "data/archive.bin".toCharArray();
+    private static final Set<OpenOption> READ = Collections.singleton( StandardOpenOption.READ );
+
+    private final List<long[]> ranges = Collections.synchronizedList( new ArrayList<>() );
+    private final AtomicInteger retrieved = new AtomicInteger();
+    private long remoteSize = SIZE;
+    private volatile boolean rangeSupported = true;
+    private volatile boolean wholeResponses;
+    // If set range requests wait for it after counting down fetching
+    private volatile CountDownLatch gate;
+    private final CountDownLatch fetching = new CountDownLatch( 1 );
+    private Path base;
+    private FileSystemIO delegate;
+    private OverlayFileSystemIO overlay;
+
+    private class Remote
+            implements OverlayRetriever,
+                       RangeRetriever
+    {
+
+        @Override
+        public void retrieve( char[] path )
+                throws IOException
+        {
+            retrieved.incrementAndGet();
+            FileSystemUtils.copyFromRemote( () -> retrieveRange( path, 0L, getRemoteSize( path ) ), delegate, path );
+        }
+
+        @Override
+        public long getRemoteSize( char[] path )
+                throws IOException
+        {
+            if( !String.valueOf( path ).equals( String.valueOf( PATH ) ) ) {
+                throw new FileNotFoundException( String.valueOf( path ) );
+            }
+            return remoteSize;
+        }
+
+        @Override
+        public InputStream retrieveRange( char[] path, long offset, long length )
+                throws IOException
+        {
+            getRemoteSize( path );
+            if( wholeResponses && offset > 0L ) {
+                rangeSupported = false;
+                throw new RangeNotSupportedException( String.valueOf( path ) );
+            }
+            ranges.add( new long[]{offset, length} );
+            CountDownLatch g = gate;
+            if( g != null ) {
+                fetching.countDown();
+                try {
+                    g.await();
+                }
+                catch( InterruptedException ex ) {
+                    throw new IOException( ex );
+                }
+            }
+            byte[] b = new byte[(int) length];
+            for( int i = 0; i < b.length; i++ ) {
+                b[i] = value( offset + i );
+            }
+            return new ByteArrayInputStream( b );
+        }
+
+        @Override
+        public boolean isRangeSupported()
+        {
+            return rangeSupported;
+        }
+    }
+
+    private static byte value( long i )
+    {
+        return (byte) (i % 251);
+    }
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        base = Files.createTempDirectory( "sparse" );
+        overlay = create( true );
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        overlay.close();
+    }
+
+    private OverlayFileSystemIO create( boolean temporary )
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, temporary );
+        env.put( OverlayFileSystemIO.SPARSE_FETCH, true );
+        env.put( OverlayFileSystemIO.SPARSE_BLOCK_SIZE, BLOCK );
+        delegate = new Flat( base, env );
+        return new OverlayFileSystemIO( delegate, new PathSynchronizer(), new Remote(), env )
+        {
+        };
+    }
+
+    private static void read( FileChannel ch, long position, int length )
+            throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate( length );
+        while( b.hasRemaining() && ch.read( b, position + b.position() ) > 0 ) {
+        }
+        assertEquals( length, b.position() );
+        for( int i = 0; i < length; i++ ) {
+            assertEquals( value( position + i ), b.get( i ) );
+        }
+    }
+
+    @Test
+    public void fetchesOnlyBlocksRead()
+            throws IOException
+    {
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            assertEquals( SIZE, ch.size() );
+            read( ch, BLOCK * 5 + 10, 100 );
+            read( ch, BLOCK * 5 + 500, 100 );
+        }
+        assertEquals( 1, ranges.size() );
+        assertEquals( BLOCK * 5, ranges.get( 0 )[0] );
+        assertEquals( BLOCK, ranges.get( 0 )[1] );
+        assertEquals( 0, retrieved.get() );
+        assertFalse( delegate.exists( PATH ) );
+    }
+
+    @Test
+    public void fetchDoesNotBlockOtherReaders()
+            throws Exception
+    {
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            read( ch, 0, 10 );
+
+            gate = new CountDownLatch( 1 );
+            CompletableFuture<Void> slow = CompletableFuture.runAsync( () -> readUnchecked( ch, BLOCK * 5, 10 ) );
+            assertTrue( fetching.await( 5, TimeUnit.SECONDS ) );
+
+            // A block already present is read whilst the fetch is in progress
+            CompletableFuture.runAsync( () -> readUnchecked( ch, 5, 10 ) ).get( 5, TimeUnit.SECONDS );
+
+            // A reader of the same block waits for that fetch rather than making its own
+            CompletableFuture<Void> waiting = CompletableFuture.runAsync( () -> readUnchecked( ch, BLOCK * 5 + 100, 10 ) );
+            gate.countDown();
+            slow.get( 5, TimeUnit.SECONDS );
+            waiting.get( 5, TimeUnit.SECONDS );
+        }
+        assertEquals( 2, ranges.size() );
+    }
+
+    private static void readUnchecked( FileChannel ch, long position, int length )
+    {
+        try {
+            read( ch, position, length );
+        }
+        catch( IOException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+
+    @Test
+    public void sparseFilesHidden()
+            throws IOException
+    {
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            read( ch, BLOCK * 5, 10 );
+
+            try( DirectoryStream<Path> s = delegate.newDirectoryStream( "data".toCharArray(), null ) ) {
+                assertFalse( s.iterator().hasNext() );
+            }
+
+            // Expiry leaves them alone even if they are old enough
+            Set<Path> deleted = ConcurrentHashMap.newKeySet();
+            ExpiryWalker walker = new ExpiryWalker( base, 1, 0L, deleted::add );
+            try {
+                walker.expire( System.currentTimeMillis() + 60000L );
+            }
+            finally {
+                walker.close();
+            }
+            assertTrue( deleted.isEmpty() );
+            read( ch, BLOCK * 6, 10 );
+        }
+    }
+
+    @Test
+    public void adjacentBlocksFetchedTogether()
+            throws IOException
+    {
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            read( ch, BLOCK * 3, 10 );
+            read( ch, BLOCK * 2 + 1, BLOCK * 2 - 1 );
+        }
+        assertEquals( 2, ranges.size() );
+        assertArrayEquals( new long[]{BLOCK * 2, BLOCK}, ranges.get( 1 ) );
+
+        ranges.clear();
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            read( ch, BLOCK, BLOCK * 5 );
+        }
+        assertEquals( 2, ranges.size() );
+        assertArrayEquals( new long[]{BLOCK, BLOCK}, ranges.get( 0 ) );
+        assertArrayEquals( new long[]{BLOCK * 4, BLOCK * 2}, ranges.get( 1 ) );
+    }
+
+    @Test
+    public void resumesAfterReopen()
+            throws IOException
+    {
+        // The first instance keeps its files on close
+        overlay.close();
+        overlay = create( false );
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            read( ch, 0, 100 );
+        }
+        overlay.close();
+
+        overlay = create( true );
+        ranges.clear();
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            read( ch, 0, 100 );
+            read( ch, SIZE - 10, 10 );
+        }
+        assertEquals( 1, ranges.size() );
+        assertArrayEquals( new long[]{BLOCK * 10, 123}, ranges.get( 0 ) );
+    }
+
+    @Test
+    public void sequentialRead()
+            throws IOException
+    {
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            ch.position( SIZE - 5 );
+            ByteBuffer b = ByteBuffer.allocate( 100 );
+            assertEquals( 5, ch.read( b ) );
+            assertEquals( -1, ch.read( b ) );
+            assertEquals( SIZE, ch.position() );
+        }
+    }
+
+    @Test
+    public void completedFileIsPromoted()
+            throws IOException
+    {
+        try( FileChannel a = overlay.newFileChannel( PATH, READ );
+             FileChannel b = overlay.newFileChannel( PATH, READ ) ) {
+            read( a, 0, SIZE / 2 );
+            read( b, SIZE / 2, SIZE - SIZE / 2 );
+        }
+        assertTrue( delegate.exists( PATH ) );
+        assertEquals( SIZE, delegate.size( PATH ) );
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            read( ch, 0, SIZE );
+        }
+
+        Path p = delegate.toPath( PATH );
+        assertFalse( Files.exists( p.resolveSibling( SparseFile.PREFIX + p.getFileName() ) ) );
+        assertFalse( Files.exists( p.resolveSibling( SparseFile.PREFIX + p.getFileName() + ".blocks" ) ) );
+        assertEquals( 0, retrieved.get() );
+    }
+
+    @Test
+    public void beyondIntegerRange()
+            throws IOException
+    {
+        remoteSize = 3L * Integer.MAX_VALUE / 2 + 123L;
+        long position = remoteSize - 10L;
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            assertEquals( remoteSize, ch.size() );
+            read( ch, position, 10 );
+        }
+        assertEquals( 1, ranges.size() );
+        long first = position / BLOCK * BLOCK;
+        assertArrayEquals( new long[]{first, remoteSize - first}, ranges.get( 0 ) );
+    }
+
+    @Test
+    public void rangesNotSupported()
+            throws IOException
+    {
+        wholeResponses = true;
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            read( ch, BLOCK * 5, 10 );
+            fail( "Range was not rejected" );
+        }
+        catch( RangeNotSupportedException ex ) {
+            // Expected
+        }
+
+        // Later reads retrieve the whole file
+        try( FileChannel ch = overlay.newFileChannel( PATH, READ ) ) {
+            read( ch, BLOCK * 5, 10 );
+        }
+        assertEquals( 1, retrieved.get() );
+        assertTrue( delegate.exists( PATH ) );
+    }
+
+    @Test( expected = FileNotFoundException.class )
+    public void missing()
+            throws IOException
+    {
+        overlay.newFileChannel( "data/missing".toCharArray(), READ );
+    }
+}
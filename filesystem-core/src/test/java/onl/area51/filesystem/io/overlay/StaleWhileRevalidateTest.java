@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import onl.area51.filesystem.FileSystemUtils;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.Flat;
+import onl.area51.filesystem.io.LocalFileSystemIO;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class StaleWhileRevalidateTest
+{
+
+    private static final char[] PATH = "a/file.txt".toCharArray();
+    private static final long MAX_AGE = 60000L;
+
+    private final AtomicInteger retrieved = new AtomicInteger();
+    private final AtomicInteger conditional = new AtomicInteger();
+    private volatile CountDownLatch release = new CountDownLatch( 0 );
+    private volatile String content = "v1";
+    private FileSystemIO delegate;
+    private OverlayFileSystemIO overlay;
+
+    private class Origin
+            implements OverlayRetriever,
+                       ValidatingRetriever
+    {
+
+        @Override
+        public void retrieve( char[] path )
+                throws IOException
+        {
+            retrieve( path, null );
+        }
+
+        @Override
+        public Validators retrieve( char[] path, Validators validators )
+                throws IOException
+        {
+            try {
+                release.await();
+            }
+            catch( InterruptedException ex ) {
+                throw new IOException( ex );
+            }
+            String c = content;
+            if( validators != null ) {
+                conditional.incrementAndGet();
+                if( c.equals( validators.getETag() ) ) {
+                    return new Validators( c, null, -1L, false );
+                }
+            }
+            retrieved.incrementAndGet();
+            FileSystemUtils.copyFromRemote( () -> new ByteArrayInputStream( c.getBytes( StandardCharsets.UTF_8 ) ), delegate, path );
+            return new Validators( c, null, -1L, true );
+        }
+    }
+
+    private void create( boolean revalidate )
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( LocalFileSystemIO.MAX_AGE, MAX_AGE );
+        env.put( LocalFileSystemIO.MAX_STALE, MAX_AGE * 10 );
+        env.put( LocalFileSystemIO.SCAN_DELAY, -1L );
+        env.put( LocalFileSystemIO.EXPIRE_ON_STARTUP, false );
+        env.put( OverlayFileSystemIO.STALE_WHILE_REVALIDATE, true );
+        env.put( OverlayFileSystemIO.REVALIDATE, revalidate );
+        delegate = new Flat( Files.createTempDirectory( "swr" ), env );
+        overlay = new OverlayFileSystemIO( delegate, new PathSynchronizer(), new Origin(), env )
+        {
+        };
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        release.countDown();
+        overlay.close();
+    }
+
+    private void age()
+            throws IOException
+    {
+        Files.setLastModifiedTime( delegate.toPath( PATH ),
+                                   FileTime.fromMillis( System.currentTimeMillis() - MAX_AGE * 2 ) );
+    }
+
+    private String read()
+            throws IOException
+    {
+        try( InputStream is = overlay.newInputStream( PATH ) ) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] b = new byte[256];
+            for( int n = is.read( b ); n > 0; n = is.read( b ) ) {
+                baos.write( b, 0, n );
+            }
+            return new String( baos.toByteArray(), StandardCharsets.UTF_8 );
+        }
+    }
+
+    private void awaitContent( String expected )
+            throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while( !expected.equals( read() ) ) {
+            assertTrue( "Timed out waiting for " + expected, System.currentTimeMillis() < deadline );
+            Thread.sleep( 5 );
+        }
+    }
+
+    @Test
+    public void staleServedWhilstRefreshing()
+            throws Exception
+    {
+        create( false );
+        assertEquals( "v1", read() );
+        assertEquals( 1, retrieved.get() );
+
+        content = "v2";
+        age();
+        release = new CountDownLatch( 1 );
+
+        // Served straight away even though the origin is blocked, and only one refresh is started
+        for( int i = 0; i < 5; i++ ) {
+            assertEquals( "v1", read() );
+        }
+
+        release.countDown();
+        awaitContent( "v2" );
+        assertEquals( 2, retrieved.get() );
+    }
+
+    @Test
+    public void backgroundRevalidation()
+            throws Exception
+    {
+        create( true );
+        assertEquals( "v1", read() );
+        age();
+
+        assertEquals( "v1", read() );
+        long deadline = System.currentTimeMillis() + 10000L;
+        while( System.currentTimeMillis() - Files.getLastModifiedTime( delegate.toPath( PATH ) ).toMillis() > MAX_AGE ) {
+            assertTrue( System.currentTimeMillis() < deadline );
+            Thread.sleep( 5 );
+        }
+        assertEquals( 1, conditional.get() );
+        assertEquals( 1, retrieved.get() );
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import onl.area51.filesystem.FileSystemUtils;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.Flat;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class StreamingFillTest
+{
+
+    private static final int CHUNK = 1000;
+
+    private final AtomicInteger retrieved = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch( 1 );
+    private final CountDownLatch finished = new CountDownLatch( 1 );
+    private volatile boolean fail;
+    private FileSystemIO delegate;
+
+    /**
+     * A remote which sends one chunk then stalls until released before sending a second
+     */
+    private InputStream remote()
+    {
+        return new InputStream()
+        {
+            private int sent;
+
+            @Override
+            public int read()
+                    throws IOException
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read( byte[] b, int off, int len )
+                    throws IOException
+            {
+                if( sent == CHUNK ) {
+                    try {
+                        release.await();
+                    }
+                    catch( InterruptedException ex ) {
+                        throw new IOException( ex );
+                    }
+                    if( fail ) {
+                        throw new IOException( "Connection reset" );
+                    }
+                }
+                if( sent == CHUNK * 2 ) {
+                    return -1;
+                }
+                int n = Math.min( len, CHUNK );
+                for( int i = 0; i < n; i++ ) {
+                    b[off + i] = (byte) (sent + i);
+                }
+                sent += n;
+                return n;
+            }
+        };
+    }
+
+    private OverlayFileSystemIO create()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( OverlayFileSystemIO.STREAMING_FILL, true );
+        delegate = new Flat( Files.createTempDirectory( "streaming" ), env );
+        return new OverlayFileSystemIO( delegate, new PathSynchronizer(), path -> {
+                                    retrieved.incrementAndGet();
+                                    try {
+                                        FileSystemUtils.copyFromRemote( this::remote, delegate, path );
+                                    }
+                                    finally {
+                                        finished.countDown();
+                                    }
+                                }, env )
+        {
+        };
+    }
+
+    private static void readChunk( InputStream is, int offset )
+            throws IOException
+    {
+        byte[] b = new byte[CHUNK];
+        int n = 0, r;
+        while( n < CHUNK && (r = is.read( b, n, CHUNK - n )) > 0 ) {
+            n += r;
+        }
+        assertEquals( CHUNK, n );
+        for( int i = 0; i < CHUNK; i++ ) {
+            assertEquals( (byte) (offset + i), b[i] );
+        }
+    }
+
+    @Test
+    public void readWhilstFilling()
+            throws IOException
+    {
+        try( OverlayFileSystemIO io = create() ) {
+            char[] path = "large.bin".toCharArray();
+            try( InputStream a = io.newInputStream( path );
+                 InputStream b = io.newInputStream( path ) ) {
+                // The remote has stalled after the first chunk but both readers have it
+                readChunk( a, 0 );
+                readChunk( b, 0 );
+                assertFalse( delegate.exists( path ) );
+
+                release.countDown();
+                readChunk( a, CHUNK );
+                readChunk( b, CHUNK );
+                assertEquals( -1, a.read() );
+                assertEquals( -1, b.read() );
+            }
+            assertEquals( 1, retrieved.get() );
+            assertEquals( CHUNK * 2L, delegate.size( path ) );
+        }
+    }
+
+    @Test
+    public void readerSeesFailure()
+            throws Exception
+    {
+        try( OverlayFileSystemIO io = create() ) {
+            char[] path = "broken.bin".toCharArray();
+            try( InputStream a = io.newInputStream( path ) ) {
+                readChunk( a, 0 );
+                fail = true;
+                release.countDown();
+                try {
+                    readChunk( a, CHUNK );
+                    fail( "Expected IOException" );
+                }
+                catch( IOException ex ) {
+                    // Expected
+                }
+            }
+            // Let the failed retrieval finish before checking nothing was left behind
+            assertTrue( finished.await( 10L, TimeUnit.SECONDS ) );
+            assertFalse( delegate.exists( path ) );
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.io.overlay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.Flat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class WriteBehindSenderTest
+{
+
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+    private final CountDownLatch started = new CountDownLatch( 1 );
+    private final CountDownLatch release = new CountDownLatch( 1 );
+    private final AtomicBoolean fail = new AtomicBoolean();
+    private Path base;
+    private Path journal;
+    private FileSystemIO delegate;
+    private OverlayFileSystemIO overlay;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        base = Files.createTempDirectory( "writebehind" );
+        journal = Files.createTempFile( "writebehind", ".journal" );
+        Files.delete( journal );
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        release.countDown();
+        overlay.close();
+        Files.deleteIfExists( journal );
+    }
+
+    private OverlayFileSystemIO create( int queueSize )
+            throws IOException
+    {
+        return create( queueSize, 1, 10 );
+    }
+
+    private OverlayFileSystemIO create( int queueSize, int threads, long retryDelay )
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( WriteBehindSender.THREADS, threads );
+        env.put( WriteBehindSender.QUEUE_SIZE, queueSize );
+        env.put( WriteBehindSender.JOURNAL, journal.toString() );
+        env.put( WriteBehindSender.RETRY_DELAY, retryDelay );
+        delegate = new Flat( base, env );
+        return new OverlayFileSystemIO( delegate, path -> {
+                                    started.countDown();
+                                    try {
+                                        release.await();
+                                    }
+                                    catch( InterruptedException ex ) {
+                                        throw new IOException( ex );
+                                    }
+                                    if( fail.get() ) {
+                                        throw new IOException( "Remote down" );
+                                    }
+                                    sent.add( String.valueOf( path ) );
+                                }, env )
+        {
+        };
+    }
+
+    private void write( String path )
+            throws IOException
+    {
+        try( OutputStream os = overlay.newOutputStream( path.toCharArray() ) ) {
+            os.write( path.getBytes() );
+        }
+    }
+
+    private WriteBehindSender sender()
+    {
+        return overlay.getWriteBehindSender();
+    }
+
+    @Test
+    public void closeDoesNotWaitForUpload()
+            throws Exception
+    {
+        overlay = create( 10 );
+        write( "a" );
+        assertTrue( sent.isEmpty() );
+        assertEquals( 1, sender().getPending() );
+
+        release.countDown();
+        assertTrue( sender().flush( 10, TimeUnit.SECONDS ) );
+        assertEquals( "[a]", sent.toString() );
+        assertEquals( 0, sender().getPending() );
+        assertEquals( 0L, sender().getLag() );
+    }
+
+    @Test
+    public void repeatedWritesCoalesce()
+            throws Exception
+    {
+        overlay = create( 10 );
+        write( "a" );
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+        for( int i = 0; i < 3; i++ ) {
+            write( "b" );
+        }
+        assertEquals( 2, sender().getPending() );
+        assertEquals( 2L, sender().getCoalesced() );
+
+        release.countDown();
+        assertTrue( sender().flush( 10, TimeUnit.SECONDS ) );
+        assertEquals( "[a, b]", sent.toString() );
+    }
+
+    @Test
+    public void fullQueueBlocks()
+            throws Exception
+    {
+        overlay = create( 1 );
+        write( "a" );
+        write( "b" );
+
+        CountDownLatch written = new CountDownLatch( 1 );
+        Thread t = new Thread( () -> {
+            try {
+                write( "c" );
+                written.countDown();
+            }
+            catch( IOException ex ) {
+                throw new RuntimeException( ex );
+            }
+        } );
+        t.start();
+
+        // c can only be queued once a has been sent and b taken
+        assertFalse( written.await( 100, TimeUnit.MILLISECONDS ) );
+        release.countDown();
+        assertTrue( written.await( 10, TimeUnit.SECONDS ) );
+        assertTrue( sender().flush( 10, TimeUnit.SECONDS ) );
+        assertEquals( "[a, b, c]", sent.toString() );
+    }
+
+    @Test
+    public void failedSendIsRetried()
+            throws Exception
+    {
+        overlay = create( 10 );
+        fail.set( true );
+        release.countDown();
+        write( "a" );
+        while( sender().getFailed() < 2L ) {
+            Thread.sleep( 5 );
+        }
+        assertTrue( sent.isEmpty() );
+
+        fail.set( false );
+        assertTrue( sender().flush( 10, TimeUnit.SECONDS ) );
+        assertEquals( "[a]", sent.toString() );
+    }
+
+    @Test
+    public void retryWaitsForDelay()
+            throws Exception
+    {
+        overlay = create( 10, 2, 60000L );
+        fail.set( true );
+        release.countDown();
+        write( "a" );
+        while( sender().getFailed() < 1L ) {
+            Thread.sleep( 5 );
+        }
+
+        // The idle thread must not pick up the failed path before the delay
+        Thread.sleep( 200 );
+        assertEquals( 1L, sender().getFailed() );
+        assertEquals( 1, sender().getPending() );
+
+        // Other paths are still sent meanwhile
+        fail.set( false );
+        write( "b" );
+        while( sender().getSent() < 1L ) {
+            Thread.sleep( 5 );
+        }
+        assertEquals( "[b]", sent.toString() );
+        assertEquals( 1L, sender().getFailed() );
+    }
+
+    @Test
+    public void pendingSurvivesRestart()
+            throws Exception
+    {
+        overlay = create( 10 );
+        fail.set( true );
+        release.countDown();
+        write( "a" );
+        write( "b" );
+        overlay.close();
+        assertTrue( sent.isEmpty() );
+
+        fail.set( false );
+        overlay = create( 10 );
+        assertTrue( sender().flush( 10, TimeUnit.SECONDS ) );
+        assertEquals( "[a, b]", sent.toString() );
+
+        // Nothing left once sent
+        overlay.close();
+        overlay = create( 10 );
+        assertEquals( 0, sender().getPending() );
+    }
+}
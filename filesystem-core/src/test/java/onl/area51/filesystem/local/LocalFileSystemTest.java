@@ -18,14 +18,19 @@ package onl.area51.filesystem.local;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import onl.area51.filesystem.CommonTestUtils;
@@ -69,6 +74,54 @@ public class LocalFileSystemTest
         write( URI.create( URI_PREFIX + "/file1.txt" ) );
     }
 
+    @Test
+    public void exists()
+            throws IOException
+    {
+        Path path = Paths.get( URI.create( URI_PREFIX + "/exists/file.txt" ) );
+        assertFalse( Files.exists( path ) );
+        assertTrue( Files.notExists( path ) );
+
+        Files.createDirectories( path.getParent() );
+        Files.write( path, "exists".getBytes( StandardCharsets.UTF_8 ) );
+        assertTrue( Files.exists( path ) );
+
+        Files.delete( path );
+        assertFalse( Files.exists( path ) );
+    }
+
+    @Test
+    public void writeThenRead()
+            throws IOException
+    {
+        Path path = Paths.get( URI.create( URI_PREFIX + "/read/file.txt" ) );
+        byte[] data = "Hello world".getBytes( StandardCharsets.UTF_8 );
+        Files.createDirectories( path.getParent() );
+        Files.write( path, data );
+        assertArrayEquals( data, Files.readAllBytes( path ) );
+    }
+
+    @Test
+    public void asynchronousFileChannel()
+            throws IOException,
+                   InterruptedException,
+                   ExecutionException
+    {
+        Path path = Paths.get( URI.create( URI_PREFIX + "/async.txt" ) );
+        byte[] data = "Hello asynchronous world".getBytes( StandardCharsets.UTF_8 );
+
+        try( AsynchronousFileChannel c = AsynchronousFileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.WRITE ) ) {
+            assertEquals( data.length, (int) c.write( ByteBuffer.wrap( data ), 0L ).get() );
+        }
+
+        try( AsynchronousFileChannel c = AsynchronousFileChannel.open( path, StandardOpenOption.READ ) ) {
+            assertEquals( data.length, c.size() );
+            ByteBuffer b = ByteBuffer.allocate( data.length );
+            assertEquals( data.length - 6, (int) c.read( b, 6L ).get() );
+            assertEquals( "asynchronous world", new String( b.array(), 0, b.position(), StandardCharsets.UTF_8 ) );
+        }
+    }
+
     @Test
     public void walk_subdirectory()
             throws URISyntaxException,
@@ -15,38 +15,179 @@
  */
 package onl.area51.filesystem.http.client;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.URI;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import onl.area51.filesystem.AbstractFileSystem;
 import onl.area51.filesystem.FileSystemUtils;
 import onl.area51.filesystem.io.FileSystemIO;
 import onl.area51.filesystem.io.overlay.OverlayFileSystemIO;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
 
 /**
  * {@link OverlayFileSystemIO} implementation to retrieve content from a remote HTTP/HTTPS server
+ * <p>
+ * Each instance has its own pool of keep-alive connections so repeated requests to the same server reuse the connection
+ * rather than paying for a new TCP connection and TLS handshake each time.
  *
  * @author peter
  */
 public abstract class AbstractBaseHttpClient
+        implements Closeable
 {
 
     protected static final String USER_AGENT = "User-Agent";
     protected static final String DEFAULT_USER_AGENT = "Area51 Mozilla/5.0 (Linux x86_64)";
 
+    /**
+     * Environment key for the maximum number of pooled connections. Defaults to 200.
+     */
+    public static final String MAX_CONNECTIONS = "httpMaxConnections";
+    /**
+     * Environment key for the maximum number of pooled connections to a single server. Defaults to 20.
+     */
+    public static final String MAX_PER_ROUTE = "httpMaxPerRoute";
+    /**
+     * Environment key for the timeout in milliseconds to establish a connection. Defaults to 10000.
+     */
+    public static final String CONNECT_TIMEOUT = "httpConnectTimeout";
+    /**
+     * Environment key for the timeout in milliseconds waiting for data. Defaults to 60000.
+     */
+    public static final String SOCKET_TIMEOUT = "httpSocketTimeout";
+    /**
+     * Environment key for the timeout in milliseconds waiting for a connection from the pool. Defaults to 10000.
+     */
+    public static final String REQUEST_TIMEOUT = "httpConnectionRequestTimeout";
+    /**
+     * Environment key for how long in milliseconds to keep a connection alive when the server does not say. Defaults to 30000.
+     */
+    public static final String KEEP_ALIVE = "httpKeepAlive";
+    /**
+     * Environment key for how long in milliseconds a connection can be idle in the pool before it is closed. Defaults to
+     * 60000.
+     */
+    public static final String IDLE_TIMEOUT = "httpIdleTimeout";
+
     private final FileSystemIO delegate;
     private final AbstractFileSystem fileSystem;
     private final String userAgent;
+    private final Map<String, Object> env;
+    private CloseableHttpClient httpClient;
+    private CloseableHttpAsyncClient asyncClient;
 
     public AbstractBaseHttpClient( FileSystemIO delegate, Map<String, Object> env )
     {
         this.delegate = delegate;
+        this.env = env;
         fileSystem = (AbstractFileSystem) env.get( FileSystem.class.getName() );
 
         userAgent = FileSystemUtils.getString( env, USER_AGENT, DEFAULT_USER_AGENT );
     }
 
+    /**
+     * The pooled client, created on first use
+     *
+     * @return
+     */
+    protected final synchronized CloseableHttpClient getHttpClient()
+    {
+        if( httpClient == null ) {
+            PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+            pool.setMaxTotal( (int) FileSystemUtils.getLong( env, MAX_CONNECTIONS, 200L ) );
+            pool.setDefaultMaxPerRoute( (int) FileSystemUtils.getLong( env, MAX_PER_ROUTE, 20L ) );
+            // Check a connection is still alive if it has not been used for a while
+            pool.setValidateAfterInactivity( 2000 );
+
+            long idleTimeout = FileSystemUtils.getLong( env, IDLE_TIMEOUT, 60000L );
+
+            httpClient = HttpClients.custom()
+                    .setConnectionManager( pool )
+                    .setDefaultRequestConfig( getRequestConfig() )
+                    .setKeepAliveStrategy( getKeepAliveStrategy() )
+                    .evictExpiredConnections()
+                    .evictIdleConnections( idleTimeout, TimeUnit.MILLISECONDS )
+                    .build();
+        }
+        return httpClient;
+    }
+
+    /**
+     * The non-blocking client, created and started on first use. It has its own connection pool configured from the same
+     * environment as {@link #getHttpClient()}.
+     *
+     * @return
+     */
+    protected final synchronized CloseableHttpAsyncClient getAsyncClient()
+    {
+        if( asyncClient == null ) {
+            asyncClient = HttpAsyncClients.custom()
+                    .setMaxConnTotal( (int) FileSystemUtils.getLong( env, MAX_CONNECTIONS, 200L ) )
+                    .setMaxConnPerRoute( (int) FileSystemUtils.getLong( env, MAX_PER_ROUTE, 20L ) )
+                    .setDefaultRequestConfig( getRequestConfig() )
+                    .setKeepAliveStrategy( getKeepAliveStrategy() )
+                    .setThreadFactory( r -> {
+                        Thread t = new Thread( r, "HTTP async" );
+                        t.setDaemon( true );
+                        return t;
+                    } )
+                    .build();
+            asyncClient.start();
+        }
+        return asyncClient;
+    }
+
+    private RequestConfig getRequestConfig()
+    {
+        return RequestConfig.custom()
+                .setConnectTimeout( (int) FileSystemUtils.getLong( env, CONNECT_TIMEOUT, 10000L ) )
+                .setSocketTimeout( (int) FileSystemUtils.getLong( env, SOCKET_TIMEOUT, 60000L ) )
+                .setConnectionRequestTimeout( (int) FileSystemUtils.getLong( env, REQUEST_TIMEOUT, 10000L ) )
+                .build();
+    }
+
+    private ConnectionKeepAliveStrategy getKeepAliveStrategy()
+    {
+        long keepAlive = FileSystemUtils.getLong( env, KEEP_ALIVE, 30000L );
+        return ( response, context ) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration( response, context );
+            return duration < 0L ? keepAlive : duration;
+        };
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        try {
+            if( httpClient != null ) {
+                httpClient.close();
+            }
+        }
+        finally {
+            httpClient = null;
+            try {
+                if( asyncClient != null ) {
+                    asyncClient.close();
+                }
+            }
+            finally {
+                asyncClient = null;
+            }
+        }
+    }
+
     protected final FileSystemIO getDelegate()
     {
         return delegate;
@@ -32,7 +32,7 @@ public class HttpAsyncRead
 
     public HttpAsyncRead( FileSystemIO delegate, Map<String, Object> env )
     {
-        super( delegate, new HttpRetriever( delegate, env ) );
+        super( delegate, null, new HttpRetriever( delegate, env ), env );
     }
 
 }
@@ -33,7 +33,7 @@ public class HttpProxy
 
     public HttpProxy( FileSystemIO delegate, Map<String, Object> env )
     {
-        super( delegate, new PathSynchronizer(), new HttpProxyRetriever( delegate, env ) );
+        super( delegate, new PathSynchronizer(), new HttpProxyRetriever( delegate, env ), env );
     }
 
 }
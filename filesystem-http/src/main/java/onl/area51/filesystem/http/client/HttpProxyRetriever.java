@@ -16,14 +16,20 @@
 package onl.area51.filesystem.http.client;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import onl.area51.filesystem.FileSystemUtils;
 import onl.area51.filesystem.io.FileSystemIO;
 import onl.area51.filesystem.io.overlay.OverlayFileSystemIO;
 import onl.area51.filesystem.io.overlay.OverlayRetriever;
+import onl.area51.filesystem.io.overlay.RangeNotSupportedException;
+import onl.area51.filesystem.io.overlay.RangeRetriever;
+import onl.area51.filesystem.io.overlay.ValidatingRetriever;
+import onl.area51.filesystem.io.overlay.Validators;
 
 /**
  * {@link OverlayFileSystemIO} implementation to retrieve content from a remote HTTP/HTTPS server
@@ -32,12 +38,15 @@ import onl.area51.filesystem.io.overlay.OverlayRetriever;
  */
 public class HttpProxyRetriever
         extends AbstractBaseHttpClient
-        implements OverlayRetriever
+        implements OverlayRetriever,
+                   RangeRetriever,
+                   ValidatingRetriever
 {
 
     public static final String MAPPINGS = "mappings";
 
     private final Map<String, URI> remoteURIS;
+    private volatile boolean rangeSupported = true;
 
     public HttpProxyRetriever( FileSystemIO delegate, Map<String, Object> env )
     {
@@ -54,7 +63,58 @@ public class HttpProxyRetriever
     public void retrieve( char[] path )
             throws IOException
     {
-        HttpUtils.retrieve( path, this::getRemoteURI, this::getDelegate, this::getUserAgent );
+        HttpUtils.retrieve( getHttpClient(), path, this::getRemoteURI, this::getDelegate, this::getUserAgent );
+    }
+
+    @Override
+    public Validators retrieve( char[] path, Validators validators )
+            throws IOException
+    {
+        return HttpUtils.retrieve( getHttpClient(), path, this::getRemoteURI, this::getDelegate, this::getUserAgent, validators );
+    }
+
+    @Override
+    public CompletableFuture<Void> retrieveAsync( char[] path )
+    {
+        return HttpUtils.retrieveAsync( getAsyncClient(), path, this::getRemoteURI, this::getDelegate, this::getUserAgent ).thenApply( v -> null );
+    }
+
+    /**
+     * Only an unconditional request can be made without blocking, so with validators this falls back to the blocking request
+     */
+    @Override
+    public CompletableFuture<Validators> retrieveAsync( char[] path, Validators validators )
+    {
+        if( validators != null ) {
+            return ValidatingRetriever.super.retrieveAsync( path, validators );
+        }
+        return HttpUtils.retrieveAsync( getAsyncClient(), path, this::getRemoteURI, this::getDelegate, this::getUserAgent );
+    }
+
+    @Override
+    public long getRemoteSize( char[] path )
+            throws IOException
+    {
+        return HttpUtils.getRemoteSize( getHttpClient(), path, this::getRemoteURI, this::getUserAgent );
+    }
+
+    @Override
+    public InputStream retrieveRange( char[] path, long offset, long length )
+            throws IOException
+    {
+        try {
+            return HttpUtils.retrieveRange( getHttpClient(), path, this::getRemoteURI, this::getUserAgent, offset, length );
+        }
+        catch( RangeNotSupportedException ex ) {
+            rangeSupported = false;
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean isRangeSupported()
+    {
+        return rangeSupported;
     }
 
     private String[] extractPath( char[] path )
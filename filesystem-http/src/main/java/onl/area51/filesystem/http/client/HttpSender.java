@@ -41,7 +41,7 @@ public class HttpSender
     public void send( char[] path )
             throws IOException
     {
-        HttpUtils.send( path, this::getRemoteURI, this::getPath, this::getUserAgent );
+        HttpUtils.send( getHttpClient(), path, this::getRemoteURI, this::getPath, this::getUserAgent );
     }
 
 }
@@ -16,8 +16,12 @@
 package onl.area51.filesystem.http.client;
 
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.logging.Level;
@@ -25,13 +29,23 @@ import java.util.logging.Logger;
 import onl.area51.filesystem.FileSystemUtils;
 import onl.area51.filesystem.io.FileSystemIO;
 import onl.area51.filesystem.io.overlay.OverlayFileSystemIO;
+import onl.area51.filesystem.io.overlay.RangeNotSupportedException;
+import onl.area51.filesystem.io.overlay.Validators;
 import org.apache.http.client.methods.HttpGet;
 import onl.area51.httpd.util.PathEntity;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.util.EntityUtils;
 
 /**
  * {@link OverlayFileSystemIO} implementation to retrieve content from a remote HTTP/HTTPS server
@@ -49,7 +63,29 @@ public final class HttpUtils
     {
     }
 
-    public static void retrieve( char[] path, Function<char[], String> remoteUri, Supplier<FileSystemIO> delegate, Supplier<String> userAgent )
+    public static void retrieve( CloseableHttpClient client, char[] path, Function<char[], String> remoteUri, Supplier<FileSystemIO> delegate, Supplier<String> userAgent )
+            throws IOException
+    {
+        retrieve( client, path, remoteUri, delegate, userAgent, null );
+    }
+
+    /**
+     * Retrieve a path. If validators are supplied then the request is conditional and the local copy is left alone if the
+     * server responds 304 Not Modified.
+     *
+     * @param client
+     * @param path
+     * @param remoteUri
+     * @param delegate
+     * @param userAgent
+     * @param validators validators of the local copy or null for an unconditional request
+     *
+     * @return the validators returned by the server
+     *
+     * @throws FileNotFoundException if the server does not have the path
+     * @throws IOException           on any other error, e.g. 403 Forbidden or 503 Service Unavailable
+     */
+    public static Validators retrieve( CloseableHttpClient client, char[] path, Function<char[], String> remoteUri, Supplier<FileSystemIO> delegate, Supplier<String> userAgent, Validators validators )
             throws IOException
     {
         if( path == null || path.length == 0 ) {
@@ -63,21 +99,212 @@ public final class HttpUtils
 
             HttpGet get = new HttpGet( uri );
             get.setHeader( USER_AGENT, userAgent.get() );
+            if( validators != null ) {
+                if( validators.getETag() != null ) {
+                    get.setHeader( HttpHeaders.IF_NONE_MATCH, validators.getETag() );
+                }
+                if( validators.getLastModified() != null ) {
+                    get.setHeader( HttpHeaders.IF_MODIFIED_SINCE, validators.getLastModified() );
+                }
+            }
+
+            try( CloseableHttpResponse response = client.execute( get ) ) {
+
+                int returnCode = response.getStatusLine().getStatusCode();
+                LOG.log( Level.FINE, () -> "ReturnCode " + returnCode + ": " + response.getStatusLine().getReasonPhrase() );
+
+                if( returnCode == 200 ) {
+                    FileSystemUtils.copyFromRemote( () -> response.getEntity().getContent(), delegate.get(), path );
+                    return getValidators( response, null, true );
+                }
+
+                // Consume the body so the connection can be reused
+                EntityUtils.consume( response.getEntity() );
+
+                if( returnCode == 304 && validators != null ) {
+                    return getValidators( response, validators, false );
+                }
+                throw statusException( returnCode, uri, path );
+            }
+        }
+
+        throw new FileNotFoundException( String.valueOf( path ) );
+    }
+
+    /**
+     * The exception for an unexpected response. Only 404 Not Found and 410 Gone mean the server does not have the path, any
+     * other status such as 403 Forbidden or 429 Too Many Requests is a failure which must not remove a local copy.
+     *
+     * @param returnCode
+     * @param uri
+     * @param path
+     *
+     * @return exception to throw
+     */
+    static IOException statusException( int returnCode, String uri, char[] path )
+    {
+        if( returnCode == 404 || returnCode == 410 ) {
+            return new FileNotFoundException( String.valueOf( path ) );
+        }
+        return new IOException( "ReturnCode " + returnCode + " retrieving " + uri );
+    }
+
+    /**
+     * The validators in a response. A 304 response need not repeat them so any missing are taken from the request.
+     */
+    static Validators getValidators( HttpResponse response, Validators request, boolean modified )
+    {
+        Header etag = response.getFirstHeader( HttpHeaders.ETAG );
+        Header lastModified = response.getFirstHeader( HttpHeaders.LAST_MODIFIED );
+        return new Validators( etag != null ? etag.getValue() : request == null ? null : request.getETag(),
+                               lastModified != null ? lastModified.getValue() : request == null ? null : request.getLastModified(),
+                               getMaxAge( response ),
+                               modified );
+    }
+
+    /**
+     * The Cache-Control max-age of a response in milliseconds
+     *
+     * @return max age or -1 if not present
+     */
+    private static long getMaxAge( HttpResponse response )
+    {
+        for( Header h: response.getHeaders( HttpHeaders.CACHE_CONTROL ) ) {
+            for( HeaderElement e: h.getElements() ) {
+                if( "max-age".equalsIgnoreCase( e.getName() ) && e.getValue() != null ) {
+                    try {
+                        return TimeUnit.SECONDS.toMillis( Long.parseLong( e.getValue().trim() ) );
+                    }
+                    catch( NumberFormatException ex ) {
+                        return -1L;
+                    }
+                }
+            }
+        }
+        return -1L;
+    }
 
-            try( CloseableHttpClient client = HttpClients.createDefault() ) {
-                try( CloseableHttpResponse response = client.execute( get ) ) {
+    /**
+     * The size of a remote path from a HEAD request
+     *
+     * @param client
+     * @param path
+     * @param remoteUri
+     * @param userAgent
+     *
+     * @return size in bytes
+     *
+     * @throws FileNotFoundException if the remote does not have the path or does not report its size
+     * @throws IOException
+     */
+    public static long getRemoteSize( CloseableHttpClient client, char[] path, Function<char[], String> remoteUri, Supplier<String> userAgent )
+            throws IOException
+    {
+        if( path == null || path.length == 0 ) {
+            throw new FileNotFoundException( "/" );
+        }
 
-                    int returnCode = response.getStatusLine().getStatusCode();
-                    LOG.log( Level.FINE, () -> "ReturnCode " + returnCode + ": " + response.getStatusLine().getReasonPhrase() );
+        String uri = remoteUri.apply( path );
+        if( uri != null ) {
+            HttpHead head = new HttpHead( uri );
+            head.setHeader( USER_AGENT, userAgent.get() );
 
-                    switch( returnCode ) {
-                        case 200:
-                        case 304:
-                            FileSystemUtils.copyFromRemote( () -> response.getEntity().getContent(), delegate.get(), path );
-                            return;
+            try( CloseableHttpResponse response = client.execute( head ) ) {
+                int returnCode = response.getStatusLine().getStatusCode();
+                LOG.log( Level.FINE, () -> "ReturnCode " + returnCode + ": " + response.getStatusLine().getReasonPhrase() );
 
-                        default:
+                if( returnCode != 200 ) {
+                    throw statusException( returnCode, uri, path );
+                }
+                Header length = response.getFirstHeader( HttpHeaders.CONTENT_LENGTH );
+                if( length != null ) {
+                    try {
+                        return Long.parseLong( length.getValue() );
                     }
+                    catch( NumberFormatException ex ) {
+                        throw new IOException( "Invalid " + HttpHeaders.CONTENT_LENGTH + " from " + uri, ex );
+                    }
+                }
+            }
+        }
+
+        throw new FileNotFoundException( String.valueOf( path ) );
+    }
+
+    /**
+     * Retrieve part of a remote path with a Range request. If the server ignores the range and returns the whole path then that
+     * is only used if the range starts at the beginning, as otherwise every range would download everything before it.
+     *
+     * @param client
+     * @param path
+     * @param remoteUri
+     * @param userAgent
+     * @param offset
+     * @param length
+     *
+     * @return stream of the range which releases the connection when closed
+     *
+     * @throws RangeNotSupportedException if the server returned the whole path for a range not at its start
+     * @throws IOException
+     */
+    public static InputStream retrieveRange( CloseableHttpClient client, char[] path, Function<char[], String> remoteUri, Supplier<String> userAgent, long offset, long length )
+            throws IOException
+    {
+        if( path == null || path.length == 0 ) {
+            throw new FileNotFoundException( "/" );
+        }
+
+        String uri = remoteUri.apply( path );
+        if( uri != null ) {
+
+            LOG.log( Level.FINE, () -> "Retrieving " + uri + " " + offset + "+" + length );
+
+            HttpGet get = new HttpGet( uri );
+            get.setHeader( USER_AGENT, userAgent.get() );
+            get.setHeader( HttpHeaders.RANGE, "bytes=" + offset + "-" + (offset + length - 1L) );
+
+            CloseableHttpResponse response = client.execute( get );
+            try {
+
+                int returnCode = response.getStatusLine().getStatusCode();
+                LOG.log( Level.FINE, "ReturnCode {0}", returnCode );
+
+                if( returnCode == 200 && offset > 0L ) {
+                    throw new RangeNotSupportedException( uri );
+                }
+                if( returnCode == 206 ) {
+                    checkContentRange( response, uri, offset, length );
+                }
+                if( returnCode == 206 || returnCode == 200 ) {
+                    InputStream is = response.getEntity().getContent();
+
+                    // The stream now owns the connection. Once a partial response has been read closing the content returns the
+                    // connection to the pool, but for a full response that would read the rest of it so just drop the connection.
+                    CloseableHttpResponse resp = response;
+                    response = null;
+                    return new FilterInputStream( is )
+                    {
+                        @Override
+                        public void close()
+                                throws IOException
+                        {
+                            try {
+                                if( returnCode == 206 ) {
+                                    super.close();
+                                }
+                            }
+                            finally {
+                                resp.close();
+                            }
+                        }
+                    };
+                }
+
+                throw statusException( returnCode, uri, path );
+            }
+            finally {
+                if( response != null ) {
+                    response.close();
                 }
             }
         }
@@ -85,7 +312,91 @@ public final class HttpUtils
         throw new FileNotFoundException( String.valueOf( path ) );
     }
 
-    public static void send( char[] path, Function<char[], String> remoteUri, Function<char[], Path> getPath, Supplier<String> userAgent )
+    /**
+     * Check a partial response is for the range requested
+     */
+    private static void checkContentRange( HttpResponse response, String uri, long offset, long length )
+            throws IOException
+    {
+        // bytes first-last/size
+        Header header = response.getFirstHeader( HttpHeaders.CONTENT_RANGE );
+        String range = header == null ? null : header.getValue().trim();
+        if( range != null && range.startsWith( "bytes " ) ) {
+            int dash = range.indexOf( '-' );
+            int slash = range.indexOf( '/' );
+            if( dash > 6 && slash > dash ) {
+                try {
+                    long first = Long.parseLong( range.substring( 6, dash ).trim() );
+                    long last = Long.parseLong( range.substring( dash + 1, slash ).trim() );
+                    if( first == offset && last >= offset + length - 1L ) {
+                        return;
+                    }
+                }
+                catch( NumberFormatException ex ) {
+                    // Reported below
+                }
+            }
+        }
+        throw new IOException( "Invalid " + HttpHeaders.CONTENT_RANGE + " " + range + " from " + uri + " for " + offset + "+" + length );
+    }
+
+    /**
+     * Retrieve a path without blocking. The response body is written to the local filesystem by the client's I/O reactor as
+     * it arrives.
+     *
+     * @param client
+     * @param path
+     * @param remoteUri
+     * @param delegate
+     * @param userAgent
+     *
+     * @return future of the validators returned by the server, completed once the path is local
+     */
+    public static CompletableFuture<Validators> retrieveAsync( CloseableHttpAsyncClient client, char[] path, Function<char[], String> remoteUri, Supplier<FileSystemIO> delegate, Supplier<String> userAgent )
+    {
+        CompletableFuture<Validators> future = new CompletableFuture<>();
+
+        if( path == null || path.length == 0 ) {
+            future.completeExceptionally( new FileNotFoundException( "/" ) );
+            return future;
+        }
+
+        String uri = remoteUri.apply( path );
+        if( uri == null ) {
+            future.completeExceptionally( new FileNotFoundException( String.valueOf( path ) ) );
+            return future;
+        }
+
+        LOG.log( Level.FINE, () -> "Retrieving " + uri );
+
+        HttpGet get = new HttpGet( uri );
+        get.setHeader( USER_AGENT, userAgent.get() );
+
+        client.execute( HttpAsyncMethods.create( get ), new RetrievalConsumer( path, uri, delegate.get() ), new FutureCallback<Validators>()
+                          {
+                              @Override
+                              public void completed( Validators result )
+                              {
+                                  future.complete( result );
+                              }
+
+                              @Override
+                              public void failed( Exception ex )
+                              {
+                                  future.completeExceptionally( ex );
+                              }
+
+                              @Override
+                              public void cancelled()
+                              {
+                                  future.cancel( false );
+                              }
+                          } );
+
+        return future;
+    }
+
+    public static void send( CloseableHttpClient client, char[] path, Function<char[], String> remoteUri, Function<char[], Path> getPath, Supplier<String> userAgent )
             throws IOException
     {
         if( path == null || path.length == 0 ) {
@@ -103,12 +414,11 @@ public final class HttpUtils
             put.setHeader( USER_AGENT, userAgent.get() );
             put.setEntity( entity );
 
-            try( CloseableHttpClient client = HttpClients.createDefault() ) {
-                try( CloseableHttpResponse response = client.execute( put ) ) {
+            try( CloseableHttpResponse response = client.execute( put ) ) {
 
-                    int returnCode = response.getStatusLine().getStatusCode();
-                    LOG.log( Level.FINE, () -> "ReturnCode " + returnCode + ": " + response.getStatusLine().getReasonPhrase() );
-                }
+                int returnCode = response.getStatusLine().getStatusCode();
+                LOG.log( Level.FINE, () -> "ReturnCode " + returnCode + ": " + response.getStatusLine().getReasonPhrase() );
+                EntityUtils.consume( response.getEntity() );
             }
         }
     }
@@ -32,7 +32,7 @@ public class HttpWrite
 
     public HttpWrite( FileSystemIO delegate, Map<String, Object> env )
     {
-        super( delegate, new HttpSender( delegate, env ) );
+        super( delegate, new HttpSender( delegate, env ), env );
     }
 
 }
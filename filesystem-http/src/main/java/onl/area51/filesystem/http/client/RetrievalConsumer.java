@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.http.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import onl.area51.filesystem.io.FileChannelWrapper;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.overlay.Validators;
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Writes the body of a response straight into the local filesystem as it arrives from the I/O reactor, so no thread is
+ * blocked waiting for the remote server.
+ *
+ * @author peter
+ */
+class RetrievalConsumer
+        extends AsyncByteConsumer<Validators>
+{
+
+    private static final Logger LOG = Logger.getLogger( "HTTP" );
+
+    private final char[] path;
+    private final FileSystemIO delegate;
+    private final String uri;
+    private FileChannel channel;
+    private HttpResponse response;
+    private int returnCode;
+
+    RetrievalConsumer( char[] path, String uri, FileSystemIO delegate )
+    {
+        this.path = path;
+        this.uri = uri;
+        this.delegate = delegate;
+    }
+
+    @Override
+    protected void onResponseReceived( HttpResponse response )
+            throws IOException
+    {
+        returnCode = response.getStatusLine().getStatusCode();
+        LOG.log( Level.FINE, () -> "ReturnCode " + returnCode + ": " + response.getStatusLine().getReasonPhrase() );
+
+        if( returnCode == 200 ) {
+            this.response = response;
+            channel = delegate.newWritableChannel( path );
+        }
+    }
+
+    @Override
+    protected void onByteReceived( ByteBuffer buf, IOControl ioctrl )
+            throws IOException
+    {
+        if( channel != null ) {
+            while( buf.hasRemaining() ) {
+                channel.write( buf );
+            }
+        }
+    }
+
+    @Override
+    protected Validators buildResult( HttpContext context )
+            throws Exception
+    {
+        if( response == null ) {
+            // Mapped as for a blocking retrieval so only a missing path is negative cached
+            throw HttpUtils.statusException( returnCode, uri, path );
+        }
+        // Closing commits the file
+        FileChannel c = channel;
+        channel = null;
+        c.close();
+        return HttpUtils.getValidators( response, null, true );
+    }
+
+    @Override
+    protected void releaseResources()
+    {
+        // Only still open if the exchange failed
+        if( channel != null ) {
+            try {
+                FileChannelWrapper.abort( channel );
+            }
+            catch( IOException ex ) {
+                LOG.log( Level.FINE, ex, () -> "Failed to abort " + String.valueOf( path ) );
+            }
+            channel = null;
+        }
+    }
+}
@@ -17,136 +17,310 @@ package onl.area51.filesystem.memory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
-import java.nio.file.OpenOption;
-import java.nio.file.Path;
-import java.nio.file.attribute.FileAttribute;
-import java.util.Set;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
+ * A random access {@link FileChannel} over a {@link MemoryBuffer}.
+ * <p>
+ * Each channel has its own position so any number of channels may read the same file concurrently. Positional reads and writes
+ * do not touch the position so a single channel can also be shared between threads.
  *
  * @author peter
  */
-abstract class MemChannel
-        implements SeekableByteChannel
+final class MemChannel
+        extends FileChannel
 {
 
     private final MemoryBuffer buffer;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+    private long position;
 
-    public MemChannel( MemoryBuffer buffer )
+    MemChannel( MemoryBuffer buffer, boolean readable, boolean writable, boolean append )
     {
         this.buffer = buffer;
+        this.readable = readable;
+        this.writable = writable || append;
+        this.append = append;
+        if( append ) {
+            position = buffer.size();
+        }
     }
 
     @Override
-    public long size()
+    public synchronized int read( ByteBuffer dst )
             throws IOException
     {
-        return buffer.size();
+        ensureReadable();
+        int n = buffer.read( position, dst );
+        if( n > 0 ) {
+            position += n;
+        }
+        return n;
     }
 
     @Override
-    public SeekableByteChannel truncate( long size )
+    public synchronized long read( ByteBuffer[] dsts, int offset, int length )
             throws IOException
     {
-        throw new UnsupportedOperationException();
+        ensureReadable();
+        long total = 0L;
+        for( int i = offset; i < offset + length; i++ ) {
+            if( dsts[i].hasRemaining() ) {
+                int n = read( dsts[i] );
+                if( n < 0 ) {
+                    return total == 0L ? -1L : total;
+                }
+                total += n;
+                if( dsts[i].hasRemaining() ) {
+                    break;
+                }
+            }
+        }
+        return total;
     }
 
     @Override
-    public boolean isOpen()
+    public int read( ByteBuffer dst, long position )
+            throws IOException
     {
-        return true;
+        if( position < 0L ) {
+            throw new IllegalArgumentException( "Negative position" );
+        }
+        ensureReadable();
+        return buffer.read( position, dst );
     }
 
     @Override
-    public void close()
+    public synchronized int write( ByteBuffer src )
             throws IOException
     {
+        ensureWritable();
+        int n;
+        if( append ) {
+            n = src.remaining();
+            position = buffer.append( src );
+        }
+        else {
+            n = buffer.write( position, src );
+            position += n;
+        }
+        return n;
     }
 
-    public static class Read
-            extends MemChannel
+    @Override
+    public synchronized long write( ByteBuffer[] srcs, int offset, int length )
+            throws IOException
     {
+        ensureWritable();
+        long total = 0L;
+        for( int i = offset; i < offset + length; i++ ) {
+            total += write( srcs[i] );
+        }
+        return total;
+    }
 
-        private final MemoryBuffer.Reader r;
-
-        public Read( MemoryBuffer buffer )
-        {
-            super( buffer );
-            r = buffer.getReader();
+    @Override
+    public int write( ByteBuffer src, long position )
+            throws IOException
+    {
+        if( position < 0L ) {
+            throw new IllegalArgumentException( "Negative position" );
         }
+        ensureWritable();
+        return buffer.write( position, src );
+    }
 
-        @Override
-        public int read( ByteBuffer dst )
-                throws IOException
-        {
-            return r.read( dst );
+    @Override
+    public synchronized long position()
+            throws IOException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position( long newPosition )
+            throws IOException
+    {
+        if( newPosition < 0L ) {
+            throw new IllegalArgumentException( "Negative position" );
         }
+        ensureOpen();
+        position = newPosition;
+        return this;
+    }
 
-        @Override
-        public int write( ByteBuffer src )
-                throws IOException
-        {
-            throw new UnsupportedOperationException();
+    @Override
+    public long size()
+            throws IOException
+    {
+        ensureOpen();
+        return buffer.size();
+    }
+
+    @Override
+    public synchronized FileChannel truncate( long size )
+            throws IOException
+    {
+        if( size < 0L ) {
+            throw new IllegalArgumentException( "Negative size" );
+        }
+        ensureWritable();
+        buffer.truncate( size );
+        if( position > size ) {
+            position = size;
         }
+        return this;
+    }
 
-        @Override
-        public long position()
-                throws IOException
-        {
-            return r.position();
+    @Override
+    public void force( boolean metaData )
+            throws IOException
+    {
+        ensureOpen();
+    }
+
+    @Override
+    public long transferTo( long position, long count, WritableByteChannel target )
+            throws IOException
+    {
+        if( position < 0L || count < 0L ) {
+            throw new IllegalArgumentException();
         }
+        ensureReadable();
+        return buffer.transferTo( position, count, target );
+    }
 
-        @Override
-        public SeekableByteChannel position( long newPosition )
-                throws IOException
-        {
-            r.seek( (int) newPosition );
-            return this;
+    @Override
+    public long transferFrom( ReadableByteChannel src, long position, long count )
+            throws IOException
+    {
+        if( position < 0L || count < 0L ) {
+            throw new IllegalArgumentException();
+        }
+        ensureWritable();
+        if( position > buffer.size() ) {
+            return 0L;
         }
 
+        ByteBuffer b = ByteBuffer.allocate( (int) Math.min( count, MemoryBuffer.PAGE_SIZE ) );
+        long total = 0L;
+        while( total < count ) {
+            b.clear();
+            if( count - total < b.capacity() ) {
+                b.limit( (int) (count - total) );
+            }
+            int n = src.read( b );
+            if( n <= 0 ) {
+                break;
+            }
+            b.flip();
+            total += buffer.write( position + total, b );
+        }
+        return total;
     }
 
-    public static class Appender
-            extends MemChannel
+    @Override
+    public MappedByteBuffer map( MapMode mode, long position, long size )
+            throws IOException
     {
+        throw new UnsupportedOperationException( "Cannot map a memory file" );
+    }
 
-        private final MemoryBuffer.Appender w;
+    /**
+     * A memory file cannot be locked by another process so this never waits. As with a {@link FileChannel} on disk a lock
+     * overlapping one already held by any channel on the same file throws {@link OverlappingFileLockException}.
+     */
+    @Override
+    public FileLock lock( long position, long size, boolean shared )
+            throws IOException
+    {
+        return tryLock( position, size, shared );
+    }
 
-        public Appender( MemoryBuffer buffer )
-        {
-            super( buffer );
-            w = buffer.getAppender();
+    @Override
+    public FileLock tryLock( long position, long size, boolean shared )
+            throws IOException
+    {
+        if( position < 0L || size < 0L || position + size < 0L ) {
+            throw new IllegalArgumentException();
         }
-
-        @Override
-        public int read( ByteBuffer dst )
-                throws IOException
-        {
-            throw new UnsupportedOperationException();
+        ensureOpen();
+        if( shared && !readable ) {
+            throw new NonReadableChannelException();
         }
-
-        @Override
-        public int write( ByteBuffer src )
-                throws IOException
-        {
-            return w.append( src );
+        if( !shared && !writable ) {
+            throw new NonWritableChannelException();
         }
 
-        @Override
-        public long position()
-                throws IOException
+        FileLock fileLock = new FileLock( this, position, size, shared )
         {
-            return w.position();
+            private boolean valid = true;
+
+            @Override
+            public synchronized boolean isValid()
+            {
+                return valid && channel().isOpen();
+            }
+
+            @Override
+            public synchronized void release()
+                    throws IOException
+            {
+                if( valid ) {
+                    if( !channel().isOpen() ) {
+                        throw new ClosedChannelException();
+                    }
+                    valid = false;
+                    buffer.removeLock( this );
+                }
+            }
+        };
+        buffer.addLock( fileLock );
+        return fileLock;
+    }
+
+    @Override
+    protected void implCloseChannel()
+            throws IOException
+    {
+        buffer.removeLocks( this );
+    }
+
+    private void ensureOpen()
+            throws IOException
+    {
+        if( !isOpen() ) {
+            throw new ClosedChannelException();
         }
+    }
 
-        @Override
-        public SeekableByteChannel position( long newPosition )
-                throws IOException
-        {
-            throw new UnsupportedOperationException();
+    private void ensureReadable()
+            throws IOException
+    {
+        ensureOpen();
+        if( !readable ) {
+            throw new NonReadableChannelException();
         }
+    }
 
+    private void ensureWritable()
+            throws IOException
+    {
+        ensureOpen();
+        if( !writable ) {
+            throw new NonWritableChannelException();
+        }
     }
 
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystemException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import onl.area51.filesystem.FileSystemUtils;
+
+/**
+ * Allocates the pages used by {@link MemoryBuffer} and accounts for the space used by a memory filesystem.
+ * <p>
+ * Pages are either on the heap or, when {@link #OFF_HEAP} is set, direct buffers outside of the heap so large filesystems do
+ * not add to garbage collection pauses. Full size direct pages are pooled when freed as direct buffers are expensive to
+ * allocate.
+ *
+ * @author peter
+ */
+public final class MemoryAllocator
+{
+
+    /**
+     * Environment key, if true then file contents are held off the heap in direct buffers
+     */
+    public static final String OFF_HEAP = "offHeap";
+    /**
+     * Environment key, the maximum number of bytes the filesystem may hold. Defaults to 0 which limits it only by the memory
+     * available to the JVM
+     */
+    public static final String CAPACITY = "capacity";
+    /**
+     * Environment key, the number of free off heap pages to keep for reuse. Defaults to 256, 16MB
+     */
+    public static final String POOL_SIZE = "offHeapPoolSize";
+
+    private final boolean offHeap;
+    private final long capacity;
+    private final int poolSize;
+    private final AtomicLong used = new AtomicLong();
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    // Extra references to pages shared between a file and its snapshot versions
+    private final Map<ByteBuffer, Integer> shared = new IdentityHashMap<>();
+    private volatile boolean anyShared;
+
+    public MemoryAllocator( boolean offHeap, long capacity, int poolSize )
+    {
+        this.offHeap = offHeap;
+        this.capacity = capacity > 0L ? capacity : Runtime.getRuntime().maxMemory();
+        this.poolSize = Math.max( 0, poolSize );
+    }
+
+    public static MemoryAllocator create( Map<String, ?> env )
+    {
+        return new MemoryAllocator( FileSystemUtils.isTrue( env, OFF_HEAP ),
+                                    FileSystemUtils.getLong( env, CAPACITY, 0L ),
+                                    (int) FileSystemUtils.getLong( env, POOL_SIZE, 256L ) );
+    }
+
+    public boolean isOffHeap()
+    {
+        return offHeap;
+    }
+
+    /**
+     * The capacity of the filesystem in bytes
+     *
+     * @return capacity
+     */
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * The number of bytes currently allocated to files
+     *
+     * @return bytes used
+     */
+    public long getUsed()
+    {
+        return used.get();
+    }
+
+    /**
+     * The number of bytes that may still be allocated
+     *
+     * @return bytes available
+     */
+    public long getAvailable()
+    {
+        return Math.max( 0L, capacity - used.get() );
+    }
+
+    /**
+     * Allocate a page
+     *
+     * @param size size of the page
+     *
+     * @return page with position 0 and limit at size
+     *
+     * @throws FileSystemException if the filesystem is full
+     */
+    ByteBuffer allocate( int size )
+            throws FileSystemException
+    {
+        long u;
+        do {
+            u = used.get();
+            if( u + size > capacity ) {
+                throw full();
+            }
+        } while( !used.compareAndSet( u, u + size ) );
+
+        if( !offHeap ) {
+            return ByteBuffer.allocate( size );
+        }
+
+        if( size == MemoryBuffer.PAGE_SIZE ) {
+            ByteBuffer page = pool.poll();
+            if( page != null ) {
+                pooled.decrementAndGet();
+                return page;
+            }
+        }
+
+        try {
+            return ByteBuffer.allocateDirect( size );
+        }
+        catch( OutOfMemoryError ex ) {
+            used.addAndGet( -size );
+            throw full();
+        }
+    }
+
+    /**
+     * Return a page once it is no longer used
+     *
+     * @param page page
+     */
+    void release( ByteBuffer page )
+    {
+        if( anyShared ) {
+            synchronized( shared ) {
+                Integer refs = shared.get( page );
+                if( refs != null ) {
+                    if( refs == 1 ) {
+                        shared.remove( page );
+                        anyShared = !shared.isEmpty();
+                    }
+                    else {
+                        shared.put( page, refs - 1 );
+                    }
+                    return;
+                }
+            }
+        }
+
+        used.addAndGet( -page.capacity() );
+        if( offHeap && page.capacity() == MemoryBuffer.PAGE_SIZE && pooled.incrementAndGet() <= poolSize ) {
+            pool.offer( page );
+        }
+        else if( offHeap && page.capacity() == MemoryBuffer.PAGE_SIZE ) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Add a reference to a page so it is not freed until {@link #release(ByteBuffer)} has been called once more than this
+     *
+     * @param page page
+     */
+    void retain( ByteBuffer page )
+    {
+        synchronized( shared ) {
+            shared.merge( page, 1, Integer::sum );
+            anyShared = true;
+        }
+    }
+
+    private FileSystemException full()
+    {
+        return new FileSystemException( null, null, "Memory filesystem full, capacity " + capacity + " bytes" );
+    }
+}
@@ -17,46 +17,640 @@ package onl.area51.filesystem.memory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * The contents of a {@link MemoryFile}.
+ * <p>
+ * The contents are held as a list of fixed size pages so appending never copies what has already been written. The first page
+ * starts small and doubles until it reaches {@link #PAGE_SIZE} so small files do not pay for a full page. Pages come from the
+ * filesystem's {@link MemoryAllocator} so may be off the heap. Their position and limit are never changed once allocated, so
+ * all access is through absolute gets and puts or a duplicate.
+ * <p>
+ * When the filesystem has open snapshots the state before the first change in a new generation is kept as a read only
+ * version sharing the same pages. A shared page is copied only when it is written to, so a snapshot costs one page of memory
+ * per page changed afterwards.
  *
  * @author peter
  */
 public class MemoryBuffer
+        implements Snapshots.Versioned
 {
 
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     final ReentrantReadWriteLock.ReadLock readLock = lock.readLock();
     final ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
 
-    private ByteBuffer buffer;
+    static final int PAGE_SHIFT = 16;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
 
     private static final int SIZE = 1024;
 
+    private final MemoryAllocator allocator;
+    private final Snapshots snapshots;
+    private ByteBuffer[] pages;
+    private int pageCount;
+    private int size;
+    // Pages shared with a version, copied before they are written to
+    private BitSet shared;
+    private Versions<MemoryBuffer> versions;
+    private int writeGeneration;
+    // Set once freed so a channel still open on a deleted file cannot allocate pages nothing would release
+    private boolean freed;
+    // Locks held by channels on this file, guarded by this
+    private List<FileLock> locks;
+
+    public MemoryBuffer( MemoryAllocator allocator )
+    {
+        this( allocator, null );
+    }
+
+    MemoryBuffer( MemoryAllocator allocator, Snapshots snapshots )
+    {
+        this.allocator = allocator;
+        this.snapshots = snapshots;
+        writeGeneration = snapshots == null ? 0 : snapshots.generation();
+    }
+
+    /**
+     * Called before any change, preserving the current state if an open snapshot can see it. Caller must hold the write lock.
+     */
+    private void beforeWrite()
+    {
+        if( snapshots != null ) {
+            int g = snapshots.generation();
+            if( writeGeneration < g ) {
+                if( snapshots.isOpen( writeGeneration, g - 1 ) ) {
+                    preserve( writeGeneration, g - 1 );
+                }
+                writeGeneration = g;
+            }
+        }
+    }
+
+    private void preserve( int from, int upTo )
+    {
+        MemoryBuffer v = new MemoryBuffer( allocator );
+        if( pageCount > 0 ) {
+            v.pages = Arrays.copyOf( pages, pageCount );
+            v.pageCount = pageCount;
+            for( int i = 0; i < pageCount; i++ ) {
+                allocator.retain( pages[i] );
+            }
+            if( shared == null ) {
+                shared = new BitSet();
+            }
+            shared.set( 0, pageCount );
+        }
+        v.size = size;
+
+        if( versions == null ) {
+            versions = new Versions<>();
+        }
+        versions.add( from, upTo, v );
+        snapshots.register( this );
+    }
+
+    /**
+     * The read only state of this buffer visible to a snapshot
+     *
+     * @param generation snapshot generation
+     *
+     * @return buffer or null if the snapshot is no longer open
+     */
+    MemoryBuffer at( int generation )
+    {
+        writeLock.lock();
+        try {
+            // Preserve the current state if it is what the snapshot sees so it cannot change under the reader
+            beforeWrite();
+            return versions == null ? null : versions.get( generation );
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void prune()
+    {
+        writeLock.lock();
+        try {
+            if( versions != null && !versions.prune( snapshots, MemoryBuffer::free ) ) {
+                versions = null;
+                snapshots.unregister( this );
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a page that can be written to, copying it first if it is shared with a version. Caller must hold the write
+     * lock.
+     *
+     * @param index page index
+     *
+     * @return page
+     *
+     * @throws IOException if the filesystem is full
+     */
+    private ByteBuffer writable( int index )
+            throws IOException
+    {
+        ByteBuffer page = pages[index];
+        if( shared != null && shared.get( index ) ) {
+            ByteBuffer copy = allocator.allocate( page.capacity() );
+            copy.duplicate().put( page.duplicate() );
+            allocator.release( page );
+            pages[index] = copy;
+            shared.clear( index );
+            return copy;
+        }
+        return page;
+    }
+
+    /**
+     * Returns the page that will hold the byte at position size, allocating or growing it as required.
+     *
+     * @return page
+     *
+     * @throws IOException if the buffer would exceed 2GB or has been freed
+     */
     private ByteBuffer allocate()
+            throws IOException
+    {
+        if( freed ) {
+            throw new ClosedChannelException();
+        }
+        if( size == Integer.MAX_VALUE ) {
+            throw new IOException( "Memory file too large" );
+        }
+
+        int index = size >>> PAGE_SHIFT;
+        int offset = size & PAGE_MASK;
+
+        if( index < pageCount ) {
+            ByteBuffer page = pages[index];
+            if( offset < page.capacity() ) {
+                return writable( index );
+            }
+            // Only the first page can be short, so double it
+            ByteBuffer newPage = allocator.allocate( Math.min( PAGE_SIZE, page.capacity() << 1 ) );
+            newPage.duplicate().put( page.duplicate() );
+            allocator.release( page );
+            pages[index] = newPage;
+            if( shared != null ) {
+                shared.clear( index );
+            }
+            return newPage;
+        }
+
+        if( pages == null ) {
+            pages = new ByteBuffer[4];
+        }
+        else if( pageCount == pages.length ) {
+            pages = Arrays.copyOf( pages, pageCount << 1 );
+        }
+
+        ByteBuffer page = allocator.allocate( pageCount == 0 ? SIZE : PAGE_SIZE );
+        pages[pageCount++] = page;
+        return page;
+    }
+
+    /**
+     * Copy bytes from the buffer. Caller must hold the read lock.
+     *
+     * @param pos position in the buffer
+     * @param b   destination
+     * @param off offset in b
+     * @param len maximum number of bytes to copy
+     *
+     * @return number of bytes copied, 0 if pos is at or beyond the end
+     */
+    int get( int pos, byte[] b, int off, int len )
+    {
+        int c = 0;
+        while( c < len && pos < size ) {
+            ByteBuffer page = pages[pos >>> PAGE_SHIFT];
+            int offset = pos & PAGE_MASK;
+            int n = Math.min( len - c, Math.min( page.capacity() - offset, size - pos ) );
+            if( page.hasArray() ) {
+                System.arraycopy( page.array(), page.arrayOffset() + offset, b, off + c, n );
+            }
+            else {
+                slice( page, offset, n ).get( b, off + c, n );
+            }
+            c += n;
+            pos += n;
+        }
+        return c;
+    }
+
+    /**
+     * Copy bytes from the buffer. Caller must hold the read lock.
+     *
+     * @param pos position in the buffer
+     * @param dst destination
+     *
+     * @return number of bytes copied, 0 if pos is at or beyond the end
+     */
+    int get( int pos, ByteBuffer dst )
+    {
+        int c = 0;
+        while( dst.hasRemaining() && pos < size ) {
+            ByteBuffer page = pages[pos >>> PAGE_SHIFT];
+            int offset = pos & PAGE_MASK;
+            int n = Math.min( dst.remaining(), Math.min( page.capacity() - offset, size - pos ) );
+            dst.put( slice( page, offset, n ) );
+            c += n;
+            pos += n;
+        }
+        return c;
+    }
+
+    /**
+     * Append bytes to the buffer. Caller must hold the write lock.
+     *
+     * @param b   source
+     * @param off offset in b
+     * @param len number of bytes to append
+     *
+     * @throws IOException if the buffer would exceed 2GB
+     */
+    void put( byte[] b, int off, int len )
+            throws IOException
     {
-        if( buffer == null || !buffer.hasRemaining() ) {
-            buffer = allocate( buffer, SIZE );
+        int c = 0;
+        while( c < len ) {
+            ByteBuffer page = allocate();
+            int offset = size & PAGE_MASK;
+            int n = Math.min( len - c, page.capacity() - offset );
+            if( page.hasArray() ) {
+                System.arraycopy( b, off + c, page.array(), page.arrayOffset() + offset, n );
+            }
+            else {
+                slice( page, offset, n ).put( b, off + c, n );
+            }
+            c += n;
+            size += n;
+        }
+    }
+
+    /**
+     * Append bytes to the buffer. Caller must hold the write lock.
+     *
+     * @param src source
+     *
+     * @return number of bytes appended
+     *
+     * @throws IOException if the buffer would exceed 2GB
+     */
+    int put( ByteBuffer src )
+            throws IOException
+    {
+        int c = 0;
+        while( src.hasRemaining() ) {
+            ByteBuffer page = allocate();
+            int offset = size & PAGE_MASK;
+            int n = Math.min( src.remaining(), page.capacity() - offset );
+            copy( src, page, offset, n );
+            c += n;
+            size += n;
+        }
+        return c;
+    }
+
+    /**
+     * Overwrite bytes in the buffer, appending any that fall beyond the end. Caller must hold the write lock.
+     *
+     * @param pos position in the buffer, no greater than the current size
+     * @param src source
+     *
+     * @return number of bytes written
+     *
+     * @throws IOException if the buffer would exceed 2GB
+     */
+    private int set( int pos, ByteBuffer src )
+            throws IOException
+    {
+        int c = 0;
+        while( src.hasRemaining() && pos < size ) {
+            ByteBuffer page = writable( pos >>> PAGE_SHIFT );
+            int offset = pos & PAGE_MASK;
+            int n = Math.min( src.remaining(), Math.min( page.capacity() - offset, size - pos ) );
+            copy( src, page, offset, n );
+            c += n;
+            pos += n;
+        }
+        return c + put( src );
+    }
+
+    /**
+     * Zero fill the buffer up to a new size. Caller must hold the write lock.
+     *
+     * @param newSize new size, greater than the current size
+     *
+     * @throws IOException if the buffer would exceed 2GB
+     */
+    private void extend( int newSize )
+            throws IOException
+    {
+        while( size < newSize ) {
+            ByteBuffer page = allocate();
+            int offset = size & PAGE_MASK;
+            int n = Math.min( newSize - size, page.capacity() - offset );
+            // Pages are reused after a truncate or from the pool so may not be clean
+            if( page.hasArray() ) {
+                Arrays.fill( page.array(), page.arrayOffset() + offset, page.arrayOffset() + offset + n, (byte) 0 );
+            }
+            else {
+                for( int i = offset; i < offset + n; i++ ) {
+                    page.put( i, (byte) 0 );
+                }
+            }
+            size += n;
+        }
+    }
+
+    /**
+     * A view of part of a page
+     *
+     * @param page   page
+     * @param offset offset in the page
+     * @param len    length of the view
+     *
+     * @return view with its position at offset and len remaining
+     */
+    private static ByteBuffer slice( ByteBuffer page, int offset, int len )
+    {
+        ByteBuffer b = page.duplicate();
+        b.limit( offset + len ).position( offset );
+        return b;
+    }
+
+    /**
+     * Copy bytes from a source buffer into a page
+     *
+     * @param src    source
+     * @param page   page
+     * @param offset offset in the page
+     * @param len    number of bytes to copy
+     */
+    private static void copy( ByteBuffer src, ByteBuffer page, int offset, int len )
+    {
+        int limit = src.limit();
+        src.limit( src.position() + len );
+        try {
+            slice( page, offset, len ).put( src );
+        }
+        finally {
+            src.limit( limit );
         }
-        return buffer;
     }
 
-    private ByteBuffer allocate( ByteBuffer b, int expandBy )
+    private static int toInt( long pos )
+            throws IOException
     {
-        int newSize = b == null ? expandBy : (b.limit() + expandBy);
-        ByteBuffer newBuffer = ByteBuffer.allocate( newSize );
-        if( b != null ) {
-            newBuffer.put( b );
+        if( pos > Integer.MAX_VALUE ) {
+            throw new IOException( "Memory file too large" );
+        }
+        return (int) pos;
+    }
+
+    /**
+     * Read from a position in the buffer
+     *
+     * @param pos position
+     * @param dst destination
+     *
+     * @return number of bytes read or -1 if pos is at or beyond the end of the buffer
+     */
+    int read( long pos, ByteBuffer dst )
+    {
+        readLock.lock();
+        try {
+            if( pos >= size ) {
+                return -1;
+            }
+            return get( (int) pos, dst );
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Write to a position in the buffer. If the position is beyond the end of the buffer then the gap is filled with zeros.
+     *
+     * @param pos position
+     * @param src source
+     *
+     * @return number of bytes written
+     *
+     * @throws IOException if the buffer would exceed 2GB
+     */
+    int write( long pos, ByteBuffer src )
+            throws IOException
+    {
+        writeLock.lock();
+        try {
+            beforeWrite();
+            toInt( pos + src.remaining() );
+            if( pos > size ) {
+                extend( (int) pos );
+            }
+            return set( (int) pos, src );
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Append to the end of the buffer
+     *
+     * @param src source
+     *
+     * @return the size of the buffer after the write
+     *
+     * @throws IOException if the buffer would exceed 2GB
+     */
+    int append( ByteBuffer src )
+            throws IOException
+    {
+        writeLock.lock();
+        try {
+            beforeWrite();
+            toInt( (long) size + src.remaining() );
+            put( src );
+            return size;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Write part of the buffer to a channel
+     *
+     * @param pos    position
+     * @param count  maximum number of bytes to write
+     * @param target channel
+     *
+     * @return number of bytes written
+     *
+     * @throws IOException on failure
+     */
+    long transferTo( long pos, long count, WritableByteChannel target )
+            throws IOException
+    {
+        readLock.lock();
+        try {
+            long c = 0L;
+            while( c < count && pos < size ) {
+                int p = (int) pos;
+                ByteBuffer page = pages[p >>> PAGE_SHIFT];
+                int offset = p & PAGE_MASK;
+                int n = (int) Math.min( count - c, Math.min( page.capacity() - offset, size - p ) );
+                int w = target.write( slice( page, offset, n ) );
+                c += w;
+                pos += w;
+                if( w < n ) {
+                    // Non-blocking target is full
+                    break;
+                }
+            }
+            return c;
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Truncate the buffer to a size. If the buffer is not larger than the new size then this does nothing.
+     *
+     * @param newSize new size
+     */
+    void truncate( long newSize )
+    {
+        if( newSize <= 0L ) {
+            truncate();
+            return;
+        }
+
+        writeLock.lock();
+        try {
+            beforeWrite();
+            if( newSize < size ) {
+                size = (int) newSize;
+                // Release any pages no longer in use
+                int count = ((size - 1) >>> PAGE_SHIFT) + 1;
+                release( count );
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Return pages to the allocator. Caller must hold the write lock.
+     *
+     * @param count number of pages to keep
+     */
+    private void release( int count )
+    {
+        for( int i = count; i < pageCount; i++ ) {
+            allocator.release( pages[i] );
+            pages[i] = null;
+        }
+        if( shared != null ) {
+            shared.clear( count, Math.max( count, pageCount ) );
+        }
+        pageCount = count;
+    }
+
+    /**
+     * Register a lock taken by a {@link MemChannel}
+     *
+     * @param fileLock
+     *
+     * @throws OverlappingFileLockException if a lock held by any channel on this file overlaps the region
+     */
+    synchronized void addLock( FileLock fileLock )
+    {
+        if( locks == null ) {
+            locks = new ArrayList<>();
+        }
+        for( FileLock l: locks ) {
+            if( l.overlaps( fileLock.position(), fileLock.size() ) ) {
+                throw new OverlappingFileLockException();
+            }
+        }
+        locks.add( fileLock );
+    }
+
+    /**
+     * Remove a lock when it is released
+     *
+     * @param fileLock
+     */
+    synchronized void removeLock( FileLock fileLock )
+    {
+        if( locks != null ) {
+            locks.remove( fileLock );
+        }
+    }
+
+    /**
+     * Remove all locks held by a channel when it is closed
+     *
+     * @param channel
+     */
+    synchronized void removeLocks( FileChannel channel )
+    {
+        if( locks != null ) {
+            locks.removeIf( l -> l.channel() == channel );
+        }
+    }
+
+    /**
+     * Release all storage. Called when the file is deleted. Any later write that needs storage fails with
+     * {@link ClosedChannelException}.
+     */
+    void free()
+    {
+        writeLock.lock();
+        try {
+            beforeWrite();
+            release( 0 );
+            pages = null;
+            size = 0;
+            freed = true;
+        }
+        finally {
+            writeLock.unlock();
         }
-        return newBuffer;
     }
 
     public boolean isEmpty()
     {
         readLock.lock();
         try {
-            return buffer == null || buffer.position() == 0;
+            return size == 0;
         }
         finally {
             readLock.unlock();
@@ -67,7 +661,7 @@ public class MemoryBuffer
     {
         readLock.lock();
         try {
-            return buffer == null ? 0 : buffer.position();
+            return size;
         }
         finally {
             readLock.unlock();
@@ -78,14 +672,13 @@ public class MemoryBuffer
     {
         writeLock.lock();
         try {
-            // Remove the buffer if we are over the initial block size
-            if( buffer != null && buffer.limit() > SIZE ) {
-                buffer = null;
-            }
-            // If we still have a buffer then set append position to the start
-            if( buffer != null ) {
-                buffer.position( 0 );
+            beforeWrite();
+            // Keep the first page only if it has not grown beyond the initial block size
+            if( pageCount > 1 || (pageCount == 1 && pages[0].capacity() > SIZE) ) {
+                release( 0 );
+                pages = null;
             }
+            size = 0;
         }
         finally {
             writeLock.unlock();
@@ -124,14 +717,11 @@ public class MemoryBuffer
             {
                 readLock.lock();
                 try {
-                    if( buffer == null ) {
-                        return 0;
-                    }
-
-                    int c = 0;
-                    for( ; buffer.hasRemaining() && dst.hasRemaining(); c++ ) {
-                        dst.put( buffer.get() );
+                    if( pos >= size ) {
+                        return -1;
                     }
+                    int c = get( pos, dst );
+                    pos += c;
                     return c;
                 }
                 finally {
@@ -145,7 +735,12 @@ public class MemoryBuffer
             {
                 readLock.lock();
                 try {
-                    return buffer == null || pos < buffer.position() ? buffer.get( pos++ ) : -1;
+                    if( pos >= size ) {
+                        return -1;
+                    }
+                    int b = Byte.toUnsignedInt( pages[pos >>> PAGE_SHIFT].get( pos & PAGE_MASK ) );
+                    pos++;
+                    return b;
                 }
                 finally {
                     readLock.unlock();
@@ -158,13 +753,11 @@ public class MemoryBuffer
             {
                 readLock.lock();
                 try {
-                    int c = 0;
-                    if( buffer != null ) {
-                        while( c < len && pos < buffer.position() ) {
-                            b[off + c] = buffer.get( pos++ );
-                            c++;
-                        }
+                    if( pos >= size ) {
+                        return len == 0 ? 0 : -1;
                     }
+                    int c = get( pos, b, off, len );
+                    pos += c;
                     return c;
                 }
                 finally {
@@ -185,7 +778,9 @@ public class MemoryBuffer
             {
                 writeLock.lock();
                 try {
-                    allocate().put( b );
+                    beforeWrite();
+                    allocate().put( size & PAGE_MASK, b );
+                    size++;
                 }
                 finally {
                     writeLock.unlock();
@@ -198,13 +793,8 @@ public class MemoryBuffer
             {
                 writeLock.lock();
                 try {
-                    ByteBuffer buf = allocate();
-                    for( int i = 0, j = off; i < len; i++, j++ ) {
-                        if( !buf.hasRemaining() ) {
-                            buf = allocate();
-                        }
-                        buf.put( b[j] );
-                    }
+                    beforeWrite();
+                    put( b, off, len );
                 }
                 finally {
                     writeLock.unlock();
@@ -217,16 +807,8 @@ public class MemoryBuffer
             {
                 writeLock.lock();
                 try {
-                    ByteBuffer dst = allocate();
-                    int c = 0;
-                    while( src.hasRemaining() ) {
-                        if( !dst.hasRemaining() ) {
-                            dst = allocate();
-                        }
-                        dst.put( src.get() );
-                        c++;
-                    }
-                    return c;
+                    beforeWrite();
+                    return put( src );
                 }
                 finally {
                     writeLock.unlock();
@@ -236,13 +818,7 @@ public class MemoryBuffer
             @Override
             public int position()
             {
-                readLock.lock();
-                try {
-                    return buffer == null ? 0 : buffer.position();
-                }
-                finally {
-                    readLock.unlock();
-                }
+                return size();
             }
 
         };
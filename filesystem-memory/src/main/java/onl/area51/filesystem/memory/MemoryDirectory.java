@@ -15,27 +15,121 @@
  */
 package onl.area51.filesystem.memory;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 /**
+ * A directory.
+ * <p>
+ * Lookups are lock free. Changes are synchronized on the directory so that, when the filesystem has open snapshots, the
+ * entries before the first change in a new generation can be kept for them.
  *
  * @author peter
  */
 public class MemoryDirectory
         extends MemoryNode
+        implements Snapshots.Versioned
 {
 
     private static final Logger logger = Logger.getLogger( "MemoryFS" );
 
-    private final Map<String, MemoryNode> files = new ConcurrentHashMap<>();
+    private final NameTable<MemoryNode> files = new NameTable<>();
+    private final Snapshots snapshots;
+    private Versions<NameTable<MemoryNode>> versions;
+    private int writeGeneration;
 
     public MemoryDirectory( MemoryDirectory parent, String name )
+    {
+        this( parent, name, parent.snapshots );
+    }
+
+    MemoryDirectory( MemoryDirectory parent, String name, Snapshots snapshots )
     {
         super( parent, name );
+        this.snapshots = snapshots;
+        writeGeneration = snapshots.generation();
+    }
+
+    Snapshots getSnapshots()
+    {
+        return snapshots;
+    }
+
+    /**
+     * Called before any change, preserving the current entries if an open snapshot can see them. Caller must hold our lock.
+     */
+    private void beforeWrite()
+    {
+        int g = snapshots.generation();
+        if( writeGeneration < g ) {
+            if( snapshots.isOpen( writeGeneration, g - 1 ) ) {
+                if( versions == null ) {
+                    versions = new Versions<>();
+                }
+                versions.add( writeGeneration, g - 1, files.copy() );
+                snapshots.register( this );
+            }
+            writeGeneration = g;
+        }
+    }
+
+    /**
+     * The entries visible to a snapshot
+     *
+     * @param generation snapshot generation
+     *
+     * @return entries or null if the snapshot is no longer open
+     */
+    private synchronized NameTable<MemoryNode> at( int generation )
+    {
+        // Preserve the current entries if they are what the snapshot sees so they cannot change under the reader
+        beforeWrite();
+        return versions == null ? null : versions.get( generation );
+    }
+
+    /**
+     * Return a memory node as seen by a snapshot by a name held within a char array.
+     *
+     * @param c          chars
+     * @param off        offset of the name
+     * @param len        length of the name
+     * @param generation snapshot generation
+     *
+     * @return node or null
+     */
+    MemoryNode get( char[] c, int off, int len, int generation )
+    {
+        if( len == 1 && c[off] == '.' ) {
+            return this;
+        }
+        if( len == 2 && c[off] == '.' && c[off + 1] == '.' ) {
+            return getParent();
+        }
+        NameTable<MemoryNode> t = at( generation );
+        return t == null ? null : t.get( c, off, len );
+    }
+
+    /**
+     * The entries visible to a snapshot
+     *
+     * @param generation snapshot generation
+     *
+     * @return entries
+     */
+    Stream<MemoryNode> entries( int generation )
+    {
+        NameTable<MemoryNode> t = at( generation );
+        return t == null ? Stream.empty() : t.values().stream();
+    }
+
+    @Override
+    public synchronized void prune()
+    {
+        if( versions != null && !versions.prune( snapshots, t -> {} ) ) {
+            versions = null;
+            snapshots.unregister( this );
+        }
     }
 
     public boolean isRoot()
@@ -64,24 +158,63 @@ public class MemoryDirectory
         return files.get( name );
     }
 
+    /**
+     * Return a memory node by a name held within a char array without creating a String.
+     * <p>
+     * "." will return this node
+     * ".." will return the parent or null if this is the root
+     *
+     * @param c   chars
+     * @param off offset of the name
+     * @param len length of the name
+     *
+     * @return node or null
+     */
+    public MemoryNode get( char[] c, int off, int len )
+    {
+        if( len == 1 && c[off] == '.' ) {
+            return this;
+        }
+        if( len == 2 && c[off] == '.' && c[off + 1] == '.' ) {
+            return getParent();
+        }
+        return files.get( c, off, len );
+    }
+
     /**
      * Put a memory node to an entry.
      *
      * @param name
      * @param node
      */
-    public void put( String name, MemoryNode node )
+    public synchronized void put( String name, MemoryNode node )
     {
         if( node == null ) {
             remove( name );
         }
         else {
+            beforeWrite();
             cleanup( files.put( name, node ) );
         }
     }
 
-    public void remove( String name )
+    /**
+     * Put a memory node to an entry if one does not already exist.
+     *
+     * @param name
+     * @param node
+     *
+     * @return the existing node or null if node was added
+     */
+    public synchronized MemoryNode putIfAbsent( String name, MemoryNode node )
+    {
+        beforeWrite();
+        return files.putIfAbsent( name, node );
+    }
+
+    public synchronized void remove( String name )
     {
+        beforeWrite();
         cleanup( files.remove( name ) );
     }
 
@@ -93,11 +226,12 @@ public class MemoryDirectory
     }
 
     @Override
-    protected void free()
+    protected synchronized void free()
     {
         logger.log( Level.INFO, () -> "Free " + getName() );
+        beforeWrite();
         // Free each entry. This will recurse as needed
-        files.values().forEach( MemoryNode::free );
+        files.forEach( MemoryNode::free );
         files.clear();
     }
 
@@ -18,6 +18,7 @@ package onl.area51.filesystem.memory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
@@ -37,17 +38,31 @@ public class MemoryFile
 
     private static final Logger logger = Logger.getLogger( "MemoryFS" );
 
-    private final MemoryBuffer buffer = new MemoryBuffer();
+    private final MemoryBuffer buffer;
 
-    public MemoryFile( MemoryDirectory parent, String name )
+    public MemoryFile( MemoryDirectory parent, String name, MemoryAllocator allocator )
     {
         super( parent, name );
+        buffer = new MemoryBuffer( allocator, parent.getSnapshots() );
+    }
+
+    /**
+     * The read only contents of this file visible to a snapshot
+     *
+     * @param generation snapshot generation
+     *
+     * @return contents or null if the snapshot is no longer open
+     */
+    MemoryBuffer getBuffer( int generation )
+    {
+        return buffer.at( generation );
     }
 
     @Override
     protected void free()
     {
         logger.log( Level.INFO, () -> "Free " + getName() );
+        buffer.free();
     }
 
     public boolean isEmpty()
@@ -167,26 +182,22 @@ public class MemoryFile
     public SeekableByteChannel newByteChannel( Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
             throws IOException
     {
-        boolean append = true;
-        if( options.contains( StandardOpenOption.APPEND ) ) {
-            append = true;
-        }
-        else if( options.contains( StandardOpenOption.TRUNCATE_EXISTING ) ) {
-            append = false;
-        }
+        return newFileChannel( path, options, attrs );
+    }
 
-        if( options.contains( StandardOpenOption.READ ) ) {
-            return new MemChannel.Read( buffer );
-        }
+    public FileChannel newFileChannel( Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        boolean append = options.contains( StandardOpenOption.APPEND );
+        boolean write = append || options.contains( StandardOpenOption.WRITE );
+        // Read is the default when no options are given
+        boolean read = !write || options.contains( StandardOpenOption.READ );
 
-        if( options.contains( StandardOpenOption.WRITE ) ) {
-            if( !append ) {
-                truncate();
-            }
-            return new MemChannel.Appender( buffer );
+        if( write && !append && options.contains( StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            truncate();
         }
 
-        throw new IOException( "Must read or write" );
+        return new MemChannel( buffer, read, write, append );
     }
 
 }
@@ -36,12 +36,40 @@ public class MemoryFileStore<F extends AbstractLocalFileSystem<F, P, ?>, P exten
     private final String name;
     private final String type;
     private final MemoryDirectory root;
+    private final MemoryAllocator allocator;
+    private final Snapshots snapshots = new Snapshots();
 
-    protected MemoryFileStore( String name, String type )
+    protected MemoryFileStore( String name, String type, MemoryAllocator allocator )
     {
         this.name = name;
         this.type = type;
-        root = new MemoryDirectory( null, name );
+        this.allocator = allocator;
+        root = new MemoryDirectory( null, name, snapshots );
+    }
+
+    /**
+     * Take a point in time, read only, snapshot of this store.
+     *
+     * @return snapshot
+     */
+    public MemorySnapshot snapshot()
+    {
+        return new MemorySnapshot( this, snapshots.take() );
+    }
+
+    void releaseSnapshot( int generation )
+    {
+        snapshots.release( generation );
+    }
+
+    boolean isSnapshotOpen( int generation )
+    {
+        return snapshots.isOpen( generation );
+    }
+
+    public MemoryAllocator getAllocator()
+    {
+        return allocator;
     }
 
     @Override
@@ -66,21 +94,21 @@ public class MemoryFileStore<F extends AbstractLocalFileSystem<F, P, ?>, P exten
     public long getTotalSpace()
             throws IOException
     {
-        return 0L;
+        return allocator.getCapacity();
     }
 
     @Override
     public long getUsableSpace()
             throws IOException
     {
-        return 0L;
+        return allocator.getAvailable();
     }
 
     @Override
     public long getUnallocatedSpace()
             throws IOException
     {
-        return 0L;
+        return allocator.getAvailable();
     }
 
     @Override
@@ -111,23 +139,78 @@ public class MemoryFileStore<F extends AbstractLocalFileSystem<F, P, ?>, P exten
     public MemoryNode findNode( MemoryPath p )
             throws IOException
     {
-        MemoryDirectory d = root;
-        MemoryNode n = d;
-        int i = 0, c = p.getNameCount();
-        while( n instanceof MemoryDirectory && i < c ) {
-            String s = p.getName( i++ ).toString();
-
-            n = d.get( s );
-            if( n instanceof MemoryDirectory ) {
-                d = (MemoryDirectory) n;
+        // Walk the path's chars directly so a lookup does not create a Path or String per name
+        char[] c = p.getChars();
+        MemoryNode n = root;
+        int i = 0;
+        while( i < c.length ) {
+            if( c[i] == '/' ) {
+                i++;
+            }
+            else {
+                if( !(n instanceof MemoryDirectory) ) {
+                    return null;
+                }
+                int e = nameEnd( c, i, c.length );
+                n = ((MemoryDirectory) n).get( c, i, e - i );
+                if( n == null ) {
+                    return null;
+                }
+                i = e;
             }
         }
-        if( i < c ) {
-            return null;
+        return n;
+    }
+
+    /**
+     * Find a node as seen by a snapshot
+     *
+     * @param p          path
+     * @param generation snapshot generation
+     *
+     * @return node or null if not found
+     */
+    MemoryNode findNode( MemoryPath p, int generation )
+    {
+        char[] c = p.getChars();
+        MemoryNode n = root;
+        int i = 0;
+        while( i < c.length ) {
+            if( c[i] == '/' ) {
+                i++;
+            }
+            else {
+                if( !(n instanceof MemoryDirectory) ) {
+                    return null;
+                }
+                int e = nameEnd( c, i, c.length );
+                n = ((MemoryDirectory) n).get( c, i, e - i, generation );
+                if( n == null ) {
+                    return null;
+                }
+                i = e;
+            }
         }
         return n;
     }
 
+    private static int nameEnd( char[] c, int i, int end )
+    {
+        while( i < end && c[i] != '/' ) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int lastSeparator( char[] c )
+    {
+        int i = c.length - 1;
+        while( i >= 0 && c[i] != '/' ) {
+            i--;
+        }
+        return i;
+    }
+
     public MemoryDirectory findDirectory( MemoryPath p )
             throws IOException
     {
@@ -169,20 +252,49 @@ public class MemoryFileStore<F extends AbstractLocalFileSystem<F, P, ?>, P exten
     public MemoryDirectory getOrCreateDirectory( MemoryPath p )
             throws IOException
     {
-        MemoryPath rp = p.toAbsolutePath();
+        char[] c = p.getChars();
+        return getOrCreateDirectory( p, c, c.length );
+    }
+
+    /**
+     * Get or create the directory formed by the start of a path
+     *
+     * @param p   path, for errors
+     * @param c   path's chars
+     * @param end end of the directory within c
+     *
+     * @return directory
+     *
+     * @throws IOException if part of the path is a file
+     */
+    private MemoryDirectory getOrCreateDirectory( MemoryPath p, char[] c, int end )
+            throws IOException
+    {
         MemoryDirectory d = root;
-        for( int i = 0; i < p.getNameCount(); i++ ) {
-            String s = p.getName( i ).toString();
-            MemoryNode n = d.get( s );
+        int i = 0;
+        while( i < end ) {
+            if( c[i] == '/' ) {
+                i++;
+                continue;
+            }
+            int e = nameEnd( c, i, end );
+            MemoryNode n = d.get( c, i, e - i );
             if( n == null ) {
-                d = new MemoryDirectory( d, name );
+                // Only allocate a name when we need to create the directory
+                String s = new String( c, i, e - i );
+                MemoryDirectory nd = new MemoryDirectory( d, s );
+                n = d.putIfAbsent( s, nd );
+                if( n == null ) {
+                    n = nd;
+                }
             }
-            else if( n instanceof MemoryDirectory ) {
+            if( n instanceof MemoryDirectory ) {
                 d = (MemoryDirectory) n;
             }
             else {
                 throw new FileNotFoundException( p.toString() );
             }
+            i = e;
         }
         return d;
     }
@@ -190,17 +302,25 @@ public class MemoryFileStore<F extends AbstractLocalFileSystem<F, P, ?>, P exten
     public MemoryFile getOrCreateFile( MemoryPath p )
             throws IOException
     {
-        MemoryDirectory d = getOrCreateDirectory( p.getParent() );
-        String s = p.getName( p.getNameCount() - 1 ).toString();
-        MemoryNode n = d.get( s );
+        char[] c = p.getChars();
+        int sep = lastSeparator( c );
+        int len = c.length - sep - 1;
+        if( len == 0 ) {
+            throw new FileNotFoundException( p.toString() );
+        }
+        MemoryDirectory d = getOrCreateDirectory( p, c, Math.max( sep, 0 ) );
+        MemoryNode n = d.get( c, sep + 1, len );
         if( n == null ) {
-            return new MemoryFile( d, s );
+            String s = new String( c, sep + 1, len );
+            MemoryFile f = new MemoryFile( d, s, allocator );
+            n = d.putIfAbsent( s, f );
+            if( n == null ) {
+                return f;
+            }
         }
-        else if( n instanceof MemoryFile ) {
+        if( n instanceof MemoryFile ) {
             return (MemoryFile) n;
         }
-        else {
-            throw new FileNotFoundException( p.toString() );
-        }
+        throw new FileNotFoundException( p.toString() );
     }
 }
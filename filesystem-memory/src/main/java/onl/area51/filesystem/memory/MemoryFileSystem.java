@@ -38,7 +38,7 @@ public class MemoryFileSystem
             throws IOException
     {
         super( uri, provider, env, cachePath, fileSystemIO );
-        fileStore = new MemoryFileStore( "name", "memory" );
+        fileStore = new MemoryFileStore( "name", "memory", MemoryAllocator.create( env ) );
     }
 
     public MemoryFileStore getFileStore()
@@ -46,6 +46,17 @@ public class MemoryFileSystem
         return fileStore;
     }
 
+    /**
+     * Take a point in time, read only, snapshot of this filesystem. This is O(1) as the snapshot shares everything with the live
+     * filesystem until it changes.
+     *
+     * @return snapshot, which should be closed when no longer required
+     */
+    public MemorySnapshot snapshot()
+    {
+        return fileStore.snapshot();
+    }
+
     @Override
     public MemoryPath createPath( char[] p )
     {
@@ -55,7 +66,8 @@ public class MemoryFileSystem
     @Override
     public MemoryFileStore createFileStore( MemoryPath p )
     {
-        return new MemoryFileStore( "", "memory" );
+        // There is only one store so space is accounted for the whole filesystem
+        return fileStore;
     }
 
 }
@@ -17,12 +17,14 @@ package onl.area51.filesystem.memory;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessMode;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileStore;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.ProviderMismatchException;
@@ -76,6 +78,13 @@ public class MemoryFileSystemProvider
         return toPath( path ).newByteChannel( options, attrs );
     }
 
+    @Override
+    public FileChannel newFileChannel( Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        return toPath( path ).newFileChannel( options, attrs );
+    }
+
     @Override
     public DirectoryStream<Path> newDirectoryStream( Path dir, DirectoryStream.Filter<? super Path> filter )
             throws IOException
@@ -141,6 +150,10 @@ public class MemoryFileSystemProvider
     public void checkAccess( Path path, AccessMode... modes )
             throws IOException
     {
+        // Files.exists() relies on this so we must at least fail if the path does not exist
+        if( !toPath( path ).exists() ) {
+            throw new NoSuchFileException( path.toString() );
+        }
     }
 
     @Override
@@ -24,6 +24,7 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
@@ -47,6 +48,16 @@ public class MemoryPath
         super( fs, path, true );
     }
 
+    /**
+     * The path's chars. These must not be modified
+     *
+     * @return chars
+     */
+    char[] getChars()
+    {
+        return path;
+    }
+
     @Override
     public MemoryPath getRoot()
     {
@@ -74,9 +85,14 @@ public class MemoryPath
     public void createDirectory( FileAttribute<?>... attrs )
             throws IOException
     {
+        if( getNameCount() == 0 ) {
+            throw new FileAlreadyExistsException( toString() );
+        }
         String name = getName( getNameCount() - 1 ).toString();
-        MemoryDirectory parent = fs.getFileStore().findDirectory( this ).getParent();
-        parent.put( name, new MemoryDirectory( parent, name ) );
+        MemoryDirectory parent = fs.getFileStore().findDirectory( toAbsolutePath().getParent() );
+        if( parent.putIfAbsent( name, new MemoryDirectory( parent, name ) ) != null ) {
+            throw new FileAlreadyExistsException( toString() );
+        }
     }
 
     @Override
@@ -100,9 +116,11 @@ public class MemoryPath
     public void delete()
             throws IOException
     {
-        String name = getName( getNameCount() - 1 ).toString();
-        MemoryDirectory parent = fs.getFileStore().findDirectory( this ).getParent();
-        parent.remove( name );
+        MemoryNode n = fs.getFileStore().findNode( this );
+        if( n == null || n.getParent() == null ) {
+            throw new FileNotFoundException( toString() );
+        }
+        n.getParent().remove( n.getName() );
     }
 
     @Override
@@ -142,6 +160,13 @@ public class MemoryPath
     @Override
     public SeekableByteChannel newByteChannel( Set<? extends OpenOption> options, FileAttribute<?>... attrs )
             throws IOException
+    {
+        return newFileChannel( options, attrs );
+    }
+
+    @Override
+    public FileChannel newFileChannel( Set<? extends OpenOption> options, FileAttribute<?>... attrs )
+            throws IOException
     {
         MemoryFileStore mfs = fs.getFileStore();
         MemoryFile file;
@@ -156,14 +181,7 @@ public class MemoryPath
             file = mfs.findFile( this );
         }
 
-        return file.newByteChannel( this, options, attrs );
-    }
-
-    @Override
-    public FileChannel newFileChannel( Set<? extends OpenOption> options, FileAttribute<?>... attrs )
-            throws IOException
-    {
-        throw new UnsupportedOperationException();
+        return file.newFileChannel( this, options, attrs );
     }
 
     @Override
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.util.stream.Stream;
+
+/**
+ * A point in time, read only, view of a memory filesystem.
+ * <p>
+ * Taking a snapshot is O(1). Nothing is copied until the live filesystem changes, when the directory entries or the pages of
+ * a file that change are copied once per snapshot generation. Pages that are not written to afterwards remain shared.
+ * <p>
+ * Snapshots should be closed once no longer needed so the versions kept for them can be released. Channels opened on the
+ * live filesystem before a snapshot was taken continue to write to the live files.
+ *
+ * @author peter
+ */
+public final class MemorySnapshot
+        implements Closeable
+{
+
+    private final MemoryFileStore<?, ?> store;
+    private final int generation;
+
+    MemorySnapshot( MemoryFileStore<?, ?> store, int generation )
+    {
+        this.store = store;
+        this.generation = generation;
+    }
+
+    /**
+     * The generation of this snapshot. Later snapshots have higher generations
+     *
+     * @return generation
+     */
+    public int getGeneration()
+    {
+        return generation;
+    }
+
+    public boolean isOpen()
+    {
+        return store.isSnapshotOpen( generation );
+    }
+
+    private MemoryNode findNode( Path path )
+    {
+        if( !(path instanceof MemoryPath) ) {
+            throw new ProviderMismatchException();
+        }
+        if( !isOpen() ) {
+            throw new ClosedFileSystemException();
+        }
+        return store.findNode( (MemoryPath) path.toAbsolutePath(), generation );
+    }
+
+    private MemoryBuffer findBuffer( Path path )
+            throws IOException
+    {
+        MemoryNode n = findNode( path );
+        if( !(n instanceof MemoryFile) ) {
+            throw new FileNotFoundException( path.toString() );
+        }
+        MemoryBuffer b = ((MemoryFile) n).getBuffer( generation );
+        if( b == null ) {
+            throw new ClosedFileSystemException();
+        }
+        return b;
+    }
+
+    public boolean exists( Path path )
+    {
+        return findNode( path ) != null;
+    }
+
+    public boolean isDirectory( Path path )
+    {
+        return findNode( path ) instanceof MemoryDirectory;
+    }
+
+    public boolean isRegularFile( Path path )
+    {
+        return findNode( path ) instanceof MemoryFile;
+    }
+
+    public long size( Path path )
+            throws IOException
+    {
+        return findBuffer( path ).size();
+    }
+
+    public FileChannel newFileChannel( Path path )
+            throws IOException
+    {
+        return new MemChannel( findBuffer( path ), true, false, false );
+    }
+
+    public InputStream newInputStream( Path path )
+            throws IOException
+    {
+        return Channels.newInputStream( newFileChannel( path ) );
+    }
+
+    /**
+     * The entries of a directory as they were when the snapshot was taken
+     *
+     * @param dir directory
+     *
+     * @return stream of paths within dir
+     *
+     * @throws IOException if dir is not a directory
+     */
+    public Stream<Path> list( Path dir )
+            throws IOException
+    {
+        MemoryNode n = findNode( dir );
+        if( !(n instanceof MemoryDirectory) ) {
+            throw new FileNotFoundException( dir.toString() );
+        }
+        return ((MemoryDirectory) n).entries( generation )
+                .map( MemoryNode::getName )
+                .map( dir::resolve );
+    }
+
+    @Override
+    public void close()
+    {
+        store.releaseSnapshot( generation );
+    }
+
+}
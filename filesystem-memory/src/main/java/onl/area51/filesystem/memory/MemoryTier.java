@@ -0,0 +1,708 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.FileSystemException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import onl.area51.filesystem.FileSystemUtils;
+import onl.area51.filesystem.io.FileChannelWrapper;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.FileSystemIOWrapper;
+import org.kohsuke.MetaInfServices;
+
+/**
+ * A wrapper that keeps small, frequently read files in memory in front of a disk based {@link FileSystemIO} such as Cache or
+ * Flat, so reading them needs no system calls at all.
+ * <p>
+ * Use it by adding memorytier to fileSystemWrapper. A file is admitted once it has been read {@link #MIN_HITS} times and is
+ * no larger than {@link #MAX_FILE_SIZE}. The least recently used files are evicted once the tier holds {@link #SIZE} bytes.
+ * Writes always go through to the delegate, invalidating the file in memory. Changes made any other way, e.g. files removed
+ * by expiry, are not seen until the file is evicted or {@link #expire()} is called.
+ *
+ * @author peter
+ */
+@MetaInfServices(FileSystemIOWrapper.class)
+public class MemoryTier
+        extends FileSystemIOWrapper
+{
+
+    /**
+     * Environment key for the maximum number of bytes to hold in memory. Defaults to 64MB
+     */
+    public static final String SIZE = "memoryTierSize";
+    /**
+     * Environment key for the largest file to hold in memory. Defaults to 64K
+     */
+    public static final String MAX_FILE_SIZE = "memoryTierMaxFileSize";
+    /**
+     * Environment key for the number of reads before a file is admitted. Defaults to 2
+     */
+    public static final String MIN_HITS = "memoryTierMinHits";
+    /**
+     * Environment key, if true then files are held off the heap
+     */
+    public static final String OFF_HEAP = "memoryTierOffHeap";
+
+    // The number of files whose reads are counted whilst not in memory
+    private static final int CANDIDATES = 10000;
+    // Marks a candidate as too large to admit
+    private static final int REJECTED = -1;
+
+    private final long maxFileSize;
+    private final int minHits;
+    private final MemoryAllocator allocator;
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>( 16, 0.75f, true );
+    private final LinkedHashMap<String, Integer> candidates = new LinkedHashMap<String, Integer>( 16, 0.75f, true )
+    {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Integer> eldest )
+        {
+            return size() > CANDIDATES;
+        }
+    };
+    private final Map<String, Integer> writers = new HashMap<>();
+    // Files being loaded. A write removes the file's token so a load that raced with it is discarded
+    private final Map<String, Object> loads = new HashMap<>();
+
+    public MemoryTier( FileSystemIO delegate, Map<String, ?> env )
+    {
+        super( delegate );
+        maxFileSize = FileSystemUtils.getLong( env, MAX_FILE_SIZE, 65536L );
+        minHits = (int) Math.max( 1L, FileSystemUtils.getLong( env, MIN_HITS, 2L ) );
+        // No pool so pages of an evicted file are never reused whilst a reader still has it open
+        allocator = new MemoryAllocator( FileSystemUtils.isTrue( env, OFF_HEAP ),
+                                         Math.max( MemoryBuffer.PAGE_SIZE, FileSystemUtils.getLong( env, SIZE, 64L << 20 ) ),
+                                         0 );
+    }
+
+    /**
+     * The number of bytes held in memory, including files evicted whilst still being read
+     *
+     * @return bytes
+     */
+    public long getUsed()
+    {
+        return allocator.getUsed();
+    }
+
+    /**
+     * Is a file held in memory
+     *
+     * @param path path
+     *
+     * @return true if in memory
+     */
+    public boolean isResident( char[] path )
+    {
+        synchronized( lock ) {
+            return entries.containsKey( String.valueOf( path ) );
+        }
+    }
+
+    /**
+     * Get a file held in memory, retaining it so it is not freed until released
+     *
+     * @param key path
+     *
+     * @return entry or null if not in memory
+     */
+    private Entry retain( String key )
+    {
+        synchronized( lock ) {
+            Entry e = entries.get( key );
+            if( e != null ) {
+                e.retain();
+            }
+            return e;
+        }
+    }
+
+    private Entry peek( String key )
+    {
+        synchronized( lock ) {
+            return entries.get( key );
+        }
+    }
+
+    /**
+     * Count a read of a file not in memory, loading it if it should now be admitted
+     *
+     * @param path path
+     * @param key  path as a String
+     *
+     * @return the entry retained for the caller or null if the file should be read from the delegate
+     *
+     * @throws IOException on failure
+     */
+    private Entry admit( char[] path, String key )
+            throws IOException
+    {
+        Object token = new Object();
+        synchronized( lock ) {
+            Integer hits = candidates.get( key );
+            if( hits != null && hits == REJECTED ) {
+                return null;
+            }
+            int h = hits == null ? 1 : hits + 1;
+            if( h < minHits || writers.containsKey( key ) ) {
+                candidates.put( key, h );
+                return null;
+            }
+            if( loads.putIfAbsent( key, token ) != null ) {
+                // Another reader is loading it
+                return null;
+            }
+        }
+
+        try {
+            return load( path, key, token );
+        }
+        finally {
+            synchronized( lock ) {
+                loads.remove( key, token );
+            }
+        }
+    }
+
+    /**
+     * Load a file into memory
+     *
+     * @param path  path
+     * @param key   path as a String
+     * @param token registered in loads, if it has been removed when loaded then the file was written whilst it was being read
+     *
+     * @return the entry retained for the caller or null if the file should be read from the delegate
+     *
+     * @throws IOException on failure
+     */
+    private Entry load( char[] path, String key, Object token )
+            throws IOException
+    {
+        long size = super.size( path );
+        if( size > maxFileSize || size > allocator.getCapacity() / 2 ) {
+            synchronized( lock ) {
+                candidates.put( key, REJECTED );
+            }
+            return null;
+        }
+
+        MemoryBuffer buffer = new MemoryBuffer( allocator );
+        try {
+            makeRoom( size );
+            MemoryBuffer.Appender a = buffer.getAppender();
+            byte[] b = new byte[(int) Math.min( Math.max( size, 1L ), 8192L )];
+            try( InputStream is = super.newInputStream( path ) ) {
+                for( int n = is.read( b ); n > -1; n = is.read( b ) ) {
+                    if( buffer.size() + n > maxFileSize ) {
+                        // Grew whilst we were reading it
+                        buffer.free();
+                        return null;
+                    }
+                    a.append( b, 0, n );
+                }
+            }
+        }
+        catch( FileSystemException ex ) {
+            // The tier is full of files still being read so serve this one from the delegate
+            buffer.free();
+            return null;
+        }
+
+        synchronized( lock ) {
+            if( loads.get( key ) != token ) {
+                buffer.free();
+                return null;
+            }
+            Entry e = new Entry( buffer );
+            candidates.remove( key );
+            release( entries.put( key, e ) );
+            e.retain();
+            return e;
+        }
+    }
+
+    /**
+     * Evict the least recently used files until there is room for a new one
+     *
+     * @param size size of the new file
+     */
+    private void makeRoom( long size )
+    {
+        // Allow for the first page doubling as it is filled
+        long need = Math.max( 1024L, Long.highestOneBit( Math.max( 1L, size - 1L ) ) << 2 );
+        synchronized( lock ) {
+            Iterator<Entry> it = entries.values().iterator();
+            while( allocator.getAvailable() < need && it.hasNext() ) {
+                Entry e = it.next();
+                it.remove();
+                e.release();
+            }
+        }
+    }
+
+    private static void release( Entry e )
+    {
+        if( e != null ) {
+            e.release();
+        }
+    }
+
+    /**
+     * A file is about to be written to so remove it from memory
+     *
+     * @param path path
+     */
+    private void written( char[] path )
+    {
+        String key = String.valueOf( path );
+        synchronized( lock ) {
+            loads.remove( key );
+            candidates.remove( key );
+            release( entries.remove( key ) );
+        }
+    }
+
+    private void startWrite( char[] path )
+    {
+        written( path );
+        synchronized( lock ) {
+            writers.merge( String.valueOf( path ), 1, Integer::sum );
+        }
+    }
+
+    private void endWrite( char[] path )
+    {
+        String key = String.valueOf( path );
+        synchronized( lock ) {
+            writers.computeIfPresent( key, ( k, v ) -> v > 1 ? v - 1 : null );
+        }
+        written( path );
+    }
+
+    private void clear()
+    {
+        synchronized( lock ) {
+            loads.clear();
+            entries.values().forEach( Entry::release );
+            entries.clear();
+            candidates.clear();
+        }
+    }
+
+    /**
+     * Open a file for reading from memory if it is or should now be held there
+     *
+     * @param path path
+     *
+     * @return channel or null to read from the delegate
+     *
+     * @throws IOException on failure
+     */
+    private FileChannel openResident( char[] path )
+            throws IOException
+    {
+        return openResident( path, true );
+    }
+
+    /**
+     * Open a file for reading from memory
+     *
+     * @param path  path
+     * @param admit true to admit the file if it is not held but should now be
+     *
+     * @return channel or null to read from the delegate
+     *
+     * @throws IOException on failure
+     */
+    private FileChannel openResident( char[] path, boolean admit )
+            throws IOException
+    {
+        String key = String.valueOf( path );
+        Entry e = retain( key );
+        if( e == null ) {
+            e = admit ? admit( path, key ) : null;
+            if( e == null ) {
+                return null;
+            }
+        }
+
+        Entry entry = e;
+        return new FileChannelWrapper( new MemChannel( entry.buffer, true, false, false ) )
+        {
+            @Override
+            protected void implCloseChannel()
+                    throws IOException
+            {
+                try {
+                    super.implCloseChannel();
+                }
+                finally {
+                    entry.release();
+                }
+            }
+        };
+    }
+
+    private static boolean isWrite( Set<? extends OpenOption> options )
+    {
+        return options.contains( StandardOpenOption.WRITE )
+               || options.contains( StandardOpenOption.APPEND )
+               || options.contains( StandardOpenOption.DELETE_ON_CLOSE );
+    }
+
+    @Override
+    public boolean exists( char[] path )
+            throws IOException
+    {
+        return peek( String.valueOf( path ) ) != null || super.exists( path );
+    }
+
+    @Override
+    public boolean isFile( char[] path )
+            throws IOException
+    {
+        return peek( String.valueOf( path ) ) != null || super.isFile( path );
+    }
+
+    @Override
+    public long size( char[] path )
+            throws IOException
+    {
+        Entry e = peek( String.valueOf( path ) );
+        return e != null ? e.buffer.size() : super.size( path );
+    }
+
+    @Override
+    public InputStream newInputStream( char[] path )
+            throws IOException
+    {
+        FileChannel c = openResident( path );
+        return c == null ? super.newInputStream( path ) : Channels.newInputStream( c );
+    }
+
+    @Override
+    public InputStream newStreamingInputStream( char[] path )
+            throws IOException
+    {
+        // Polled whilst a retrieval is in progress so never admit here, that would read the file before it exists
+        FileChannel c = openResident( path, false );
+        return c == null ? super.newStreamingInputStream( path ) : Channels.newInputStream( c );
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel( char[] path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        if( isWrite( options ) ) {
+            startWrite( path );
+            try {
+                return new TrackingByteChannel( path, super.newByteChannel( path, options, attrs ) );
+            }
+            catch( IOException | RuntimeException ex ) {
+                endWrite( path );
+                throw ex;
+            }
+        }
+        FileChannel c = openResident( path );
+        return c == null ? super.newByteChannel( path, options, attrs ) : c;
+    }
+
+    @Override
+    public FileChannel newFileChannel( char[] path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        if( isWrite( options ) ) {
+            startWrite( path );
+            try {
+                return new TrackingFileChannel( path, super.newFileChannel( path, options, attrs ) );
+            }
+            catch( IOException | RuntimeException ex ) {
+                endWrite( path );
+                throw ex;
+            }
+        }
+        FileChannel c = openResident( path );
+        return c == null ? super.newFileChannel( path, options, attrs ) : c;
+    }
+
+    @Override
+    public FileChannel newWritableChannel( char[] path )
+            throws IOException
+    {
+        startWrite( path );
+        try {
+            return new TrackingFileChannel( path, super.newWritableChannel( path ) );
+        }
+        catch( IOException | RuntimeException ex ) {
+            endWrite( path );
+            throw ex;
+        }
+    }
+
+    @Override
+    public OutputStream newOutputStream( char[] path, OpenOption... options )
+            throws IOException
+    {
+        startWrite( path );
+        OutputStream os;
+        try {
+            os = super.newOutputStream( path, options );
+        }
+        catch( IOException | RuntimeException ex ) {
+            endWrite( path );
+            throw ex;
+        }
+        AtomicBoolean open = new AtomicBoolean( true );
+        return new FilterOutputStream( os )
+        {
+            @Override
+            public void write( byte[] b, int off, int len )
+                    throws IOException
+            {
+                out.write( b, off, len );
+            }
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                try {
+                    super.close();
+                }
+                finally {
+                    if( open.getAndSet( false ) ) {
+                        endWrite( path );
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Invalidates the path when the channel is opened for writing. As the channel is not wrapped, a file read whilst it is
+     * being written may be admitted with partial content.
+     */
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel( char[] path, Set<? extends OpenOption> options,
+                                                               ExecutorService exec, FileAttribute<?>... attrs )
+            throws IOException
+    {
+        if( isWrite( options ) ) {
+            written( path );
+        }
+        return super.newAsynchronousFileChannel( path, options, exec, attrs );
+    }
+
+    @Override
+    public void deleteFile( char[] path, boolean exists )
+            throws IOException
+    {
+        try {
+            super.deleteFile( path, exists );
+        }
+        finally {
+            written( path );
+        }
+    }
+
+    @Override
+    public void copyFile( boolean b, char[] src, char[] dest, CopyOption... options )
+            throws IOException
+    {
+        try {
+            super.copyFile( b, src, dest, options );
+        }
+        finally {
+            written( dest );
+        }
+    }
+
+    @Override
+    public void expire()
+    {
+        try {
+            super.expire();
+        }
+        finally {
+            clear();
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try {
+            super.close();
+        }
+        finally {
+            clear();
+        }
+    }
+
+    /**
+     * A file held in memory. The tier holds one reference whilst it is resident and each open reader another, so its pages
+     * are only freed once it is evicted and no longer being read.
+     */
+    private static final class Entry
+    {
+
+        private final MemoryBuffer buffer;
+        private int refs = 1;
+
+        Entry( MemoryBuffer buffer )
+        {
+            this.buffer = buffer;
+        }
+
+        synchronized void retain()
+        {
+            refs++;
+        }
+
+        synchronized void release()
+        {
+            if( --refs == 0 ) {
+                buffer.free();
+            }
+        }
+    }
+
+    private class TrackingFileChannel
+            extends FileChannelWrapper
+    {
+
+        private final char[] path;
+
+        TrackingFileChannel( char[] path, FileChannel delegate )
+        {
+            super( delegate );
+            this.path = path;
+        }
+
+        @Override
+        protected void implCloseChannel()
+                throws IOException
+        {
+            try {
+                super.implCloseChannel();
+            }
+            finally {
+                endWrite( path );
+            }
+        }
+    }
+
+    private class TrackingByteChannel
+            implements SeekableByteChannel
+    {
+
+        private final char[] path;
+        private final SeekableByteChannel delegate;
+        private final AtomicBoolean open = new AtomicBoolean( true );
+
+        TrackingByteChannel( char[] path, SeekableByteChannel delegate )
+        {
+            this.path = path;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int read( ByteBuffer dst )
+                throws IOException
+        {
+            return delegate.read( dst );
+        }
+
+        @Override
+        public int write( ByteBuffer src )
+                throws IOException
+        {
+            return delegate.write( src );
+        }
+
+        @Override
+        public long position()
+                throws IOException
+        {
+            return delegate.position();
+        }
+
+        @Override
+        public SeekableByteChannel position( long newPosition )
+                throws IOException
+        {
+            delegate.position( newPosition );
+            return this;
+        }
+
+        @Override
+        public long size()
+                throws IOException
+        {
+            return delegate.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate( long size )
+                throws IOException
+        {
+            delegate.truncate( size );
+            return this;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            try {
+                delegate.close();
+            }
+            finally {
+                if( open.getAndSet( false ) ) {
+                    endWrite( path );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hash table keyed by name which can be probed with a range of a char array so walking a path does not need to create a
+ * String per name.
+ * <p>
+ * Reads are lock free. Entries are immutable apart from their value so a reader always sees a consistent chain, whilst writes
+ * are synchronized and replace the chain or the table as needed. Hashes are the same as {@link String#hashCode()} so a String
+ * key never has to be rehashed.
+ *
+ * @author peter
+ * @param <V> value type
+ */
+final class NameTable<V>
+{
+
+    private static final int INITIAL_SIZE = 8;
+
+    private static final class Entry<V>
+    {
+
+        final String name;
+        final int hash;
+        final Entry<V> next;
+        volatile V value;
+
+        Entry( String name, int hash, Entry<V> next, V value )
+        {
+            this.name = name;
+            this.hash = hash;
+            this.next = next;
+            this.value = value;
+        }
+
+        boolean matches( char[] c, int off, int len )
+        {
+            if( name.length() != len ) {
+                return false;
+            }
+            for( int i = 0; i < len; i++ ) {
+                if( name.charAt( i ) != c[off + i] ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private volatile Entry<V>[] table;
+    private int size;
+
+    NameTable()
+    {
+        table = newTable( INITIAL_SIZE );
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <V> Entry<V>[] newTable( int length )
+    {
+        return new Entry[length];
+    }
+
+    private static int spread( int h )
+    {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The hash of part of a char array, the same as {@link String#hashCode()} of the equivalent String
+     *
+     * @param c   chars
+     * @param off offset
+     * @param len length
+     *
+     * @return hash
+     */
+    static int hash( char[] c, int off, int len )
+    {
+        int h = 0;
+        for( int i = off, e = off + len; i < e; i++ ) {
+            h = 31 * h + c[i];
+        }
+        return h;
+    }
+
+    V get( String name )
+    {
+        int h = spread( name.hashCode() );
+        Entry<V>[] t = table;
+        for( Entry<V> e = t[h & (t.length - 1)]; e != null; e = e.next ) {
+            if( e.hash == h && e.name.equals( name ) ) {
+                return e.value;
+            }
+        }
+        return null;
+    }
+
+    V get( char[] c, int off, int len )
+    {
+        int h = spread( hash( c, off, len ) );
+        Entry<V>[] t = table;
+        for( Entry<V> e = t[h & (t.length - 1)]; e != null; e = e.next ) {
+            if( e.hash == h && e.matches( c, off, len ) ) {
+                return e.value;
+            }
+        }
+        return null;
+    }
+
+    synchronized V put( String name, V value )
+    {
+        return put( name, value, false );
+    }
+
+    synchronized V putIfAbsent( String name, V value )
+    {
+        return put( name, value, true );
+    }
+
+    private V put( String name, V value, boolean onlyIfAbsent )
+    {
+        int h = spread( name.hashCode() );
+        Entry<V>[] t = table;
+        int i = h & (t.length - 1);
+        for( Entry<V> e = t[i]; e != null; e = e.next ) {
+            if( e.hash == h && e.name.equals( name ) ) {
+                V old = e.value;
+                if( !onlyIfAbsent ) {
+                    e.value = value;
+                }
+                return old;
+            }
+        }
+
+        t[i] = new Entry<>( name, h, t[i], value );
+        size++;
+        if( size > (t.length >> 1) + (t.length >> 2) ) {
+            resize( t );
+        }
+        else {
+            // Publish the new chain
+            table = t;
+        }
+        return null;
+    }
+
+    private void resize( Entry<V>[] t )
+    {
+        Entry<V>[] nt = newTable( t.length << 1 );
+        int mask = nt.length - 1;
+        for( Entry<V> head: t ) {
+            for( Entry<V> e = head; e != null; e = e.next ) {
+                int i = e.hash & mask;
+                nt[i] = new Entry<>( e.name, e.hash, nt[i], e.value );
+            }
+        }
+        table = nt;
+    }
+
+    synchronized V remove( String name )
+    {
+        int h = spread( name.hashCode() );
+        Entry<V>[] t = table;
+        int i = h & (t.length - 1);
+        Entry<V> head = t[i];
+        for( Entry<V> e = head; e != null; e = e.next ) {
+            if( e.hash == h && e.name.equals( name ) ) {
+                // Entries are immutable so copy those before the one being removed
+                Entry<V> chain = e.next;
+                for( Entry<V> p = head; p != e; p = p.next ) {
+                    chain = new Entry<>( p.name, p.hash, chain, p.value );
+                }
+                t[i] = chain;
+                size--;
+                table = t;
+                return e.value;
+            }
+        }
+        return null;
+    }
+
+    synchronized void clear()
+    {
+        table = newTable( INITIAL_SIZE );
+        size = 0;
+    }
+
+    /**
+     * A copy of this table sharing the values
+     *
+     * @return copy
+     */
+    synchronized NameTable<V> copy()
+    {
+        NameTable<V> t = new NameTable<>();
+        Entry<V>[] src = table;
+        Entry<V>[] dst = newTable( src.length );
+        for( int i = 0; i < src.length; i++ ) {
+            for( Entry<V> e = src[i]; e != null; e = e.next ) {
+                dst[i] = new Entry<>( e.name, e.hash, dst[i], e.value );
+            }
+        }
+        t.table = dst;
+        t.size = size;
+        return t;
+    }
+
+    synchronized int size()
+    {
+        return size;
+    }
+
+    void forEach( Consumer<? super V> action )
+    {
+        for( Entry<V> head: table ) {
+            for( Entry<V> e = head; e != null; e = e.next ) {
+                action.accept( e.value );
+            }
+        }
+    }
+
+    /**
+     * A snapshot of the values in the table
+     *
+     * @return values
+     */
+    List<V> values()
+    {
+        List<V> l = new ArrayList<>();
+        forEach( l::add );
+        return l;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tracks the snapshot generations of a memory filesystem.
+ * <p>
+ * Taking a snapshot only bumps the generation. A node which is about to change for the first time in a new generation first
+ * preserves its current state as a {@link Versions version} if any open snapshot can still see it, so the cost of a snapshot
+ * is paid lazily and only by the nodes that change afterwards.
+ * <p>
+ * Lock order is always node then this, never the reverse.
+ *
+ * @author peter
+ */
+final class Snapshots
+{
+
+    /**
+     * A node which keeps versions for snapshots
+     */
+    interface Versioned
+    {
+
+        /**
+         * Drop any versions no open snapshot can see
+         */
+        void prune();
+    }
+
+    private volatile int generation;
+    private final TreeSet<Integer> open = new TreeSet<>();
+    private final Set<Versioned> versioned = Collections.newSetFromMap( new IdentityHashMap<>() );
+
+    /**
+     * The current generation. A node whose last change was in an earlier generation must call {@link #isOpen(int, int)}
+     * before it changes again.
+     *
+     * @return generation
+     */
+    int generation()
+    {
+        return generation;
+    }
+
+    /**
+     * Take a snapshot
+     *
+     * @return the generation the snapshot sees
+     */
+    synchronized int take()
+    {
+        int g = generation;
+        open.add( g );
+        generation = g + 1;
+        return g;
+    }
+
+    /**
+     * Release a snapshot, discarding any versions that were only kept for it
+     *
+     * @param g snapshot generation
+     */
+    void release( int g )
+    {
+        List<Versioned> l;
+        synchronized( this ) {
+            if( !open.remove( g ) ) {
+                return;
+            }
+            l = new ArrayList<>( versioned );
+        }
+        // Prune outside of our lock as it takes the node locks
+        l.forEach( Versioned::prune );
+    }
+
+    /**
+     * Is any snapshot open that can see a state which existed in a range of generations
+     *
+     * @param from first generation
+     * @param upTo last generation, inclusive
+     *
+     * @return true if the state must be preserved
+     */
+    synchronized boolean isOpen( int from, int upTo )
+    {
+        Integer g = open.ceiling( from );
+        return g != null && g <= upTo;
+    }
+
+    /**
+     * Is a snapshot open
+     *
+     * @param g generation
+     *
+     * @return true if open
+     */
+    synchronized boolean isOpen( int g )
+    {
+        return open.contains( g );
+    }
+
+    /**
+     * Register a node that holds versions. Must be called whilst holding the node's lock
+     *
+     * @param v node
+     */
+    synchronized void register( Versioned v )
+    {
+        versioned.add( v );
+    }
+
+    /**
+     * Unregister a node that no longer holds versions. Must be called whilst holding the node's lock
+     *
+     * @param v node
+     */
+    synchronized void unregister( Versioned v )
+    {
+        versioned.remove( v );
+    }
+}
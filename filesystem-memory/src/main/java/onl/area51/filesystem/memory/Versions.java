@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The preserved states of a node, each visible to the snapshots taken within a range of generations. Not thread safe, the
+ * owning node guards it with its own lock.
+ *
+ * @author peter
+ * @param <T> state type
+ */
+final class Versions<T>
+{
+
+    private static final class Version<T>
+    {
+
+        final int from;
+        final int upTo;
+        final T state;
+
+        Version( int from, int upTo, T state )
+        {
+            this.from = from;
+            this.upTo = upTo;
+            this.state = state;
+        }
+    }
+
+    private final List<Version<T>> versions = new ArrayList<>( 1 );
+
+    void add( int from, int upTo, T state )
+    {
+        versions.add( new Version<>( from, upTo, state ) );
+    }
+
+    /**
+     * The state visible to a snapshot
+     *
+     * @param generation snapshot generation
+     *
+     * @return state or null if none is held
+     */
+    T get( int generation )
+    {
+        for( Version<T> v: versions ) {
+            if( v.from <= generation && generation <= v.upTo ) {
+                return v.state;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop any versions no open snapshot can see
+     *
+     * @param snapshots snapshots
+     * @param onDrop    called with the state of each dropped version
+     *
+     * @return true if any versions remain
+     */
+    boolean prune( Snapshots snapshots, Consumer<T> onDrop )
+    {
+        for( Iterator<Version<T>> it = versions.iterator(); it.hasNext(); ) {
+            Version<T> v = it.next();
+            if( !snapshots.isOpen( v.from, v.upTo ) ) {
+                it.remove();
+                onDrop.accept( v.state );
+            }
+        }
+        return !versions.isEmpty();
+    }
+}
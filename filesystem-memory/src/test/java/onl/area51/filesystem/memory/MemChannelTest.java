@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class MemChannelTest
+{
+
+    private static final String URI_PREFIX = "memory://channel.test";
+
+    @BeforeClass
+    public static void setUpClass()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        FileSystems.newFileSystem( URI.create( URI_PREFIX ), env );
+    }
+
+    private static ByteBuffer bytes( String s )
+    {
+        return ByteBuffer.wrap( s.getBytes( StandardCharsets.US_ASCII ) );
+    }
+
+    private static String read( FileChannel c, long pos, int len )
+            throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate( len );
+        while( b.hasRemaining() && c.read( b, pos + b.position() ) > 0 ) {
+        }
+        return new String( b.array(), 0, b.position(), StandardCharsets.US_ASCII );
+    }
+
+    @Test
+    public void randomAccess()
+            throws IOException
+    {
+        MemoryBuffer buffer = new MemoryBuffer( new MemoryAllocator( false, 0L, 0 ) );
+        try( FileChannel c = new MemChannel( buffer, true, true, false ) ) {
+            c.write( bytes( "hello world" ) );
+            c.position( 6 ).write( bytes( "there" ) );
+            assertEquals( 11, c.position() );
+            assertEquals( "hello there", read( c, 0, 20 ) );
+
+            // Write past the end leaves a zero filled hole spanning a page boundary
+            long far = MemoryBuffer.PAGE_SIZE + 10;
+            c.write( bytes( "end" ), far );
+            assertEquals( far + 3, c.size() );
+            assertEquals( 11, c.position() );
+            assertEquals( "\0\0", read( c, MemoryBuffer.PAGE_SIZE - 1, 2 ) );
+            assertEquals( "end", read( c, far, 10 ) );
+
+            ByteBuffer b = ByteBuffer.allocate( 5 );
+            assertEquals( 5, c.position( 0 ).read( b ) );
+            assertEquals( 5, c.position() );
+
+            c.truncate( 5 );
+            assertEquals( 5, c.size() );
+            assertEquals( 5, c.position() );
+            assertEquals( -1, c.read( ByteBuffer.allocate( 1 ) ) );
+
+            // Extending again must not expose the truncated bytes
+            c.write( bytes( "!" ), 8 );
+            assertEquals( "hello\0\0\0!", read( c, 0, 20 ) );
+        }
+    }
+
+    @Test
+    public void append()
+            throws IOException
+    {
+        MemoryBuffer buffer = new MemoryBuffer( new MemoryAllocator( false, 0L, 0 ) );
+        buffer.getAppender().append( "abc".getBytes( StandardCharsets.US_ASCII ) );
+        try( FileChannel c = new MemChannel( buffer, false, false, true ) ) {
+            assertEquals( 3, c.position() );
+            c.position( 0 ).write( bytes( "def" ) );
+            assertEquals( 6, c.position() );
+        }
+        try( FileChannel c = new MemChannel( buffer, true, false, false ) ) {
+            assertEquals( "abcdef", read( c, 0, 10 ) );
+            try {
+                c.write( bytes( "x" ) );
+                fail( "Read only channel was written to" );
+            }
+            catch( NonWritableChannelException ex ) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void independentReaders()
+            throws IOException
+    {
+        MemoryBuffer buffer = new MemoryBuffer( new MemoryAllocator( false, 0L, 0 ) );
+        buffer.getAppender().append( "0123456789".getBytes( StandardCharsets.US_ASCII ) );
+        try( FileChannel a = new MemChannel( buffer, true, false, false );
+             FileChannel b = new MemChannel( buffer, true, false, false ) ) {
+            ByteBuffer x = ByteBuffer.allocate( 4 );
+            ByteBuffer y = ByteBuffer.allocate( 2 );
+            a.read( x );
+            b.position( 7 ).read( y );
+            assertEquals( 4, a.position() );
+            assertEquals( 9, b.position() );
+            assertEquals( "0123", new String( x.array(), StandardCharsets.US_ASCII ) );
+            assertEquals( "78", new String( y.array(), StandardCharsets.US_ASCII ) );
+        }
+    }
+
+    @Test
+    public void transfer()
+            throws IOException
+    {
+        byte[] data = new byte[MemoryBuffer.PAGE_SIZE * 2 + 17];
+        for( int i = 0; i < data.length; i++ ) {
+            data[i] = (byte) i;
+        }
+
+        MemoryBuffer buffer = new MemoryBuffer( new MemoryAllocator( false, 0L, 0 ) );
+        try( FileChannel c = new MemChannel( buffer, true, true, false ) ) {
+            assertEquals( data.length, c.transferFrom( Channels.newChannel( new ByteArrayInputStream( data ) ), 0, Long.MAX_VALUE ) );
+            assertEquals( data.length, c.size() );
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            assertEquals( data.length - 1, c.transferTo( 1, Long.MAX_VALUE, Channels.newChannel( bos ) ) );
+            byte[] out = bos.toByteArray();
+            assertEquals( data.length - 1, out.length );
+            assertEquals( data[1], out[0] );
+            assertEquals( data[data.length - 1], out[out.length - 1] );
+        }
+    }
+
+    @Test
+    public void locks()
+            throws IOException
+    {
+        MemoryBuffer buffer = new MemoryBuffer( new MemoryAllocator( false, 0L, 0 ) );
+        try( FileChannel a = new MemChannel( buffer, true, true, false );
+             FileChannel b = new MemChannel( buffer, true, true, false ) ) {
+            FileLock lock = a.lock( 0L, 10L, false );
+            try {
+                b.tryLock( 5L, 10L, true );
+                fail( "Overlapping lock granted" );
+            }
+            catch( OverlappingFileLockException ex ) {
+                // Expected
+            }
+
+            // Regions which do not overlap can be locked
+            FileLock other = b.tryLock( 10L, 10L, false );
+            assertTrue( other.isValid() );
+
+            lock.release();
+            assertFalse( lock.isValid() );
+            assertTrue( b.tryLock( 0L, 5L, true ).isValid() );
+
+            // Closing a channel releases its locks
+            b.close();
+            assertFalse( other.isValid() );
+            assertTrue( a.tryLock( 10L, 10L, false ).isValid() );
+        }
+    }
+
+    @Test
+    public void fileChannelFromProvider()
+            throws IOException
+    {
+        Path p = Paths.get( URI.create( URI_PREFIX + "/index.db" ) );
+        try( FileChannel c = FileChannel.open( p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+            c.write( bytes( "header" ), 0 );
+            c.write( bytes( "body" ), 100 );
+        }
+        try( FileChannel c = FileChannel.open( p, StandardOpenOption.READ ) ) {
+            assertEquals( 104, c.size() );
+            assertEquals( "body", read( c, 100, 4 ) );
+            assertEquals( "header", read( c, 0, 6 ) );
+        }
+    }
+}
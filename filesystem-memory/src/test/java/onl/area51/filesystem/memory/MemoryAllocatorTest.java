@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class MemoryAllocatorTest
+{
+
+    @Test
+    public void offHeap()
+            throws IOException
+    {
+        MemoryAllocator allocator = new MemoryAllocator( true, 0L, 4 );
+        MemoryBuffer buffer = new MemoryBuffer( allocator );
+
+        byte[] data = new byte[MemoryBuffer.PAGE_SIZE * 2 + 5];
+        for( int i = 0; i < data.length; i++ ) {
+            data[i] = (byte) (i * 7);
+        }
+        buffer.getAppender().append( data );
+        assertEquals( MemoryBuffer.PAGE_SIZE * 3, allocator.getUsed() );
+
+        try( FileChannel c = new MemChannel( buffer, true, true, false ) ) {
+            c.write( ByteBuffer.wrap( new byte[]{ 1, 2, 3 } ), MemoryBuffer.PAGE_SIZE - 1 );
+            ByteBuffer b = ByteBuffer.allocate( 4 );
+            c.read( b, MemoryBuffer.PAGE_SIZE - 2 );
+            assertArrayEquals( new byte[]{ data[MemoryBuffer.PAGE_SIZE - 2], 1, 2, 3 }, b.array() );
+        }
+
+        byte[] actual = new byte[data.length];
+        assertEquals( data.length, buffer.getReader().read( actual ) );
+        assertEquals( data[0], actual[0] );
+        assertEquals( data[data.length - 1], actual[data.length - 1] );
+
+        buffer.free();
+        assertEquals( 0L, allocator.getUsed() );
+    }
+
+    @Test
+    public void capacity()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( MemoryAllocator.CAPACITY, MemoryBuffer.PAGE_SIZE * 2 );
+        env.put( MemoryAllocator.OFF_HEAP, true );
+        try( FileSystem fs = FileSystems.newFileSystem( URI.create( "memory://capacity.test" ), env ) ) {
+            Path p = fs.getPath( "/big.bin" );
+            FileStore store = Files.getFileStore( fs.getPath( "/" ) );
+            assertEquals( MemoryBuffer.PAGE_SIZE * 2, store.getTotalSpace() );
+            assertEquals( MemoryBuffer.PAGE_SIZE * 2, store.getUsableSpace() );
+
+            try( OutputStream os = Files.newOutputStream( p ) ) {
+                os.write( new byte[MemoryBuffer.PAGE_SIZE + 10] );
+            }
+            assertEquals( MemoryBuffer.PAGE_SIZE * 2, store.getTotalSpace() );
+            assertEquals( 0L, store.getUsableSpace() );
+
+            try( OutputStream os = Files.newOutputStream( fs.getPath( "/more.bin" ) ) ) {
+                os.write( 1 );
+                fail( "Write beyond capacity succeeded" );
+            }
+            catch( FileSystemException ex ) {
+                // Expected
+            }
+
+            Files.delete( p );
+            assertEquals( MemoryBuffer.PAGE_SIZE * 2, store.getUsableSpace() );
+        }
+    }
+
+    @Test
+    public void writeAfterDelete()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( MemoryAllocator.CAPACITY, MemoryBuffer.PAGE_SIZE * 4 );
+        try( FileSystem fs = FileSystems.newFileSystem( URI.create( "memory://deleted.test" ), env ) ) {
+            Path p = fs.getPath( "/file.bin" );
+            FileStore store = Files.getFileStore( fs.getPath( "/" ) );
+            try( FileChannel c = FileChannel.open( p, StandardOpenOption.CREATE, StandardOpenOption.WRITE ) ) {
+                c.write( ByteBuffer.allocate( 100 ) );
+                Files.delete( p );
+                assertEquals( MemoryBuffer.PAGE_SIZE * 4, store.getUsableSpace() );
+
+                try {
+                    c.write( ByteBuffer.allocate( MemoryBuffer.PAGE_SIZE ) );
+                    fail( "Wrote to a deleted file" );
+                }
+                catch( ClosedChannelException ex ) {
+                    // Expected
+                }
+            }
+            // Nothing was allocated that would never be released
+            assertEquals( MemoryBuffer.PAGE_SIZE * 4, store.getUsableSpace() );
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class MemoryBufferTest
+{
+
+    private static byte[] data( int len )
+    {
+        byte[] b = new byte[len];
+        for( int i = 0; i < len; i++ ) {
+            b[i] = (byte) (i * 31 + (i >>> 8));
+        }
+        return b;
+    }
+
+    @Test
+    public void appendAcrossPages()
+            throws IOException
+    {
+        MemoryBuffer buffer = new MemoryBuffer( new MemoryAllocator( false, 0L, 0 ) );
+        byte[] expected = data( MemoryBuffer.PAGE_SIZE * 3 + 123 );
+
+        // Mix of single byte, array and ByteBuffer appends with odd sizes so writes straddle page boundaries
+        MemoryBuffer.Appender a = buffer.getAppender();
+        int pos = 0;
+        a.append( expected[pos++] );
+        while( pos < expected.length ) {
+            int len = Math.min( 7919, expected.length - pos );
+            if( (pos & 1) == 0 ) {
+                a.append( expected, pos, len );
+            }
+            else {
+                assertEquals( len, a.append( ByteBuffer.wrap( expected, pos, len ) ) );
+            }
+            pos += len;
+        }
+
+        assertEquals( expected.length, buffer.size() );
+        assertEquals( expected.length, a.position() );
+
+        byte[] actual = new byte[expected.length];
+        MemoryBuffer.Reader r = buffer.getReader();
+        int c = 0;
+        for( int n; (n = r.read( actual, c, Math.min( 5003, actual.length - c ) )) > 0; ) {
+            c += n;
+        }
+        assertEquals( expected.length, c );
+        assertArrayEquals( expected, actual );
+        assertEquals( -1, r.read() );
+
+        ByteBuffer dst = ByteBuffer.allocate( expected.length );
+        r.seek( 0 );
+        while( r.read( dst ) > 0 ) {
+        }
+        assertArrayEquals( expected, dst.array() );
+
+        r.seek( MemoryBuffer.PAGE_SIZE - 1 );
+        assertEquals( Byte.toUnsignedInt( expected[MemoryBuffer.PAGE_SIZE - 1] ), r.read() );
+        assertEquals( Byte.toUnsignedInt( expected[MemoryBuffer.PAGE_SIZE] ), r.read() );
+    }
+
+    @Test
+    public void truncate()
+            throws IOException
+    {
+        MemoryBuffer buffer = new MemoryBuffer( new MemoryAllocator( false, 0L, 0 ) );
+        buffer.getAppender().append( data( MemoryBuffer.PAGE_SIZE + 1 ) );
+        buffer.truncate();
+        assertTrue( buffer.isEmpty() );
+        assertEquals( -1, buffer.getReader().read() );
+
+        buffer.getAppender().append( data( 10 ) );
+        assertEquals( 10, buffer.size() );
+        byte[] b = new byte[20];
+        assertEquals( 10, buffer.getReader().read( b ) );
+    }
+}
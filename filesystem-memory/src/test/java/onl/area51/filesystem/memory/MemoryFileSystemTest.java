@@ -16,13 +16,21 @@
 package onl.area51.filesystem.memory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 /**
  *
  * @author peter
@@ -48,7 +56,41 @@ public class MemoryFileSystemTest
             throws IOException
     {
         write( URI.create( URI_PREFIX + "/file1.txt" ) );
-        
-        
+    }
+
+    @Test
+    public void exists()
+            throws IOException
+    {
+        Path path = Paths.get( URI.create( URI_PREFIX + "/exists/file.txt" ) );
+        assertFalse( Files.exists( path ) );
+
+        Files.createDirectories( path.getParent() );
+        Files.write( path, "exists".getBytes( StandardCharsets.UTF_8 ) );
+        assertTrue( Files.exists( path ) );
+
+        Files.delete( path );
+        assertFalse( Files.exists( path ) );
+    }
+
+    @Test
+    public void writeThenRead()
+            throws IOException
+    {
+        Path path = Paths.get( URI.create( URI_PREFIX + "/read/dir/file.txt" ) );
+        byte[] data = "Hello world".getBytes( StandardCharsets.UTF_8 );
+        Files.createDirectories( path.getParent() );
+        Files.write( path, data );
+
+        // Read through a stream so the end of file is detected by read returning -1
+        try( InputStream is = Files.newInputStream( path ) ) {
+            byte[] b = new byte[data.length + 10];
+            int n = 0;
+            for( int r = is.read( b ); r > -1; r = is.read( b, n, b.length - n ) ) {
+                n += r;
+            }
+            assertEquals( data.length, n );
+            assertArrayEquals( data, Arrays.copyOf( b, n ) );
+        }
     }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class MemorySnapshotTest
+{
+
+    private static final int PAGE = MemoryBuffer.PAGE_SIZE;
+
+    private MemoryFileSystem fs;
+    private MemoryAllocator allocator;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        FileSystem f = FileSystems.newFileSystem( URI.create( "memory://snapshot.test" ), new HashMap<>() );
+        fs = (MemoryFileSystem) f;
+        allocator = fs.getFileStore().getAllocator();
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        fs.close();
+    }
+
+    private static byte[] data( int len, int seed )
+    {
+        byte[] b = new byte[len];
+        for( int i = 0; i < len; i++ ) {
+            b[i] = (byte) (i + seed);
+        }
+        return b;
+    }
+
+    private static byte[] read( MemorySnapshot s, Path p )
+            throws IOException
+    {
+        try( FileChannel c = s.newFileChannel( p ) ) {
+            ByteBuffer b = ByteBuffer.allocate( (int) c.size() );
+            while( b.hasRemaining() && c.read( b ) > 0 ) {
+            }
+            return b.array();
+        }
+    }
+
+    @Test
+    public void pointInTime()
+            throws IOException
+    {
+        Path a = fs.getPath( "/data/a.bin" );
+        Path b = fs.getPath( "/data/b.bin" );
+        Path c = fs.getPath( "/data/c.bin" );
+        byte[] original = data( PAGE * 4, 0 );
+        Files.write( a, original );
+        Files.write( c, data( 10, 1 ) );
+
+        try( MemorySnapshot s = fs.snapshot() ) {
+            // Change the live filesystem in every way we can
+            try( FileChannel ch = FileChannel.open( a, StandardOpenOption.WRITE ) ) {
+                ch.write( ByteBuffer.wrap( new byte[]{ 9, 9, 9 } ), PAGE + 5 );
+                ch.write( ByteBuffer.wrap( new byte[]{ 7 } ), PAGE * 4 );
+            }
+            Files.write( b, data( 10, 2 ) );
+            Files.delete( c );
+
+            assertArrayEquals( original, read( s, a ) );
+            assertFalse( s.exists( b ) );
+            assertArrayEquals( data( 10, 1 ), read( s, c ) );
+            assertTrue( s.isDirectory( fs.getPath( "/data" ) ) );
+
+            Set<String> names = s.list( fs.getPath( "/data" ) )
+                    .map( Path::getFileName )
+                    .map( Path::toString )
+                    .collect( Collectors.toSet() );
+            assertEquals( 2, names.size() );
+            assertTrue( names.contains( "a.bin" ) );
+            assertTrue( names.contains( "c.bin" ) );
+
+            byte[] live = Files.readAllBytes( a );
+            assertEquals( PAGE * 4 + 1, live.length );
+            assertEquals( 9, live[PAGE + 5] );
+            assertEquals( 7, live[PAGE * 4] );
+            assertEquals( original[PAGE * 2], live[PAGE * 2] );
+            assertFalse( Files.exists( c ) );
+        }
+    }
+
+    @Test
+    public void pagesShared()
+            throws IOException
+    {
+        Path a = fs.getPath( "/a.bin" );
+        Files.write( a, data( PAGE * 8, 0 ) );
+        long used = allocator.getUsed();
+
+        MemorySnapshot s = fs.snapshot();
+        assertEquals( used, allocator.getUsed() );
+
+        // Only the page written to is copied
+        try( FileChannel ch = FileChannel.open( a, StandardOpenOption.WRITE ) ) {
+            ch.write( ByteBuffer.wrap( new byte[]{ 1 } ), PAGE * 3 );
+            ch.write( ByteBuffer.wrap( new byte[]{ 1 } ), PAGE * 3 + 10 );
+        }
+        assertEquals( used + PAGE, allocator.getUsed() );
+        assertEquals( PAGE * 8, s.size( a ) );
+
+        // Deleting the live file keeps the snapshot's pages
+        Files.delete( a );
+        assertEquals( used, allocator.getUsed() );
+        assertArrayEquals( data( PAGE * 8, 0 ), read( s, a ) );
+
+        s.close();
+        assertEquals( 0L, allocator.getUsed() );
+        assertFalse( s.isOpen() );
+    }
+
+    @Test
+    public void generations()
+            throws IOException
+    {
+        Path a = fs.getPath( "/a.txt" );
+        Files.write( a, data( 5, 1 ) );
+        MemorySnapshot s1 = fs.snapshot();
+        Files.write( a, data( 5, 2 ) );
+        MemorySnapshot s2 = fs.snapshot();
+        MemorySnapshot s3 = fs.snapshot();
+        Files.write( a, data( 5, 3 ) );
+
+        assertTrue( s1.getGeneration() < s2.getGeneration() );
+        assertArrayEquals( data( 5, 1 ), read( s1, a ) );
+        assertArrayEquals( data( 5, 2 ), read( s2, a ) );
+        assertArrayEquals( data( 5, 2 ), read( s3, a ) );
+        assertArrayEquals( data( 5, 3 ), Files.readAllBytes( a ) );
+
+        s2.close();
+        assertArrayEquals( data( 5, 2 ), read( s3, a ) );
+        s1.close();
+        s3.close();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import onl.area51.filesystem.io.FileSystemIO;
+import onl.area51.filesystem.io.FileSystemIORepository;
+import onl.area51.filesystem.io.Flat;
+import onl.area51.filesystem.io.LocalFileSystemIO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class MemoryTierTest
+{
+
+    private FileSystemIO delegate;
+    private MemoryTier tier;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( LocalFileSystemIO.SCAN_DELAY, -1L );
+        env.put( MemoryTier.SIZE, 65536L );
+        env.put( MemoryTier.MAX_FILE_SIZE, 8192L );
+        env.put( MemoryTier.MIN_HITS, 2L );
+        delegate = new Flat( Files.createTempDirectory( "memorytier" ), env );
+        tier = new MemoryTier( delegate, env );
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        tier.close();
+    }
+
+    private void write( String name, byte[] b )
+            throws IOException
+    {
+        try( OutputStream os = tier.newOutputStream( name.toCharArray() ) ) {
+            os.write( b );
+        }
+    }
+
+    private byte[] read( String name )
+            throws IOException
+    {
+        try( InputStream is = tier.newInputStream( name.toCharArray() ) ) {
+            return toByteArray( is );
+        }
+    }
+
+    private static byte[] toByteArray( InputStream is )
+            throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] b = new byte[1024];
+        for( int n = is.read( b ); n > -1; n = is.read( b ) ) {
+            bos.write( b, 0, n );
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] data( int len, int seed )
+    {
+        byte[] b = new byte[len];
+        Arrays.fill( b, (byte) seed );
+        return b;
+    }
+
+    @Test
+    public void admittedAfterHits()
+            throws IOException
+    {
+        char[] path = "a.json".toCharArray();
+        write( "a.json", data( 100, 1 ) );
+
+        assertArrayEquals( data( 100, 1 ), read( "a.json" ) );
+        assertFalse( tier.isResident( path ) );
+        assertArrayEquals( data( 100, 1 ), read( "a.json" ) );
+        assertTrue( tier.isResident( path ) );
+
+        // Served from memory even when the file has gone from underneath us
+        delegate.deleteFile( path, true );
+        assertArrayEquals( data( 100, 1 ), read( "a.json" ) );
+        assertTrue( tier.exists( path ) );
+        assertEquals( 100L, tier.size( path ) );
+
+        // Writing through the tier invalidates it
+        write( "a.json", data( 50, 2 ) );
+        assertFalse( tier.isResident( path ) );
+        assertArrayEquals( data( 50, 2 ), read( "a.json" ) );
+        assertArrayEquals( data( 50, 2 ), read( "a.json" ) );
+        assertTrue( tier.isResident( path ) );
+
+        tier.deleteFile( path, true );
+        assertFalse( tier.isResident( path ) );
+        assertFalse( tier.exists( path ) );
+    }
+
+    @Test
+    public void failedWriteStillAdmitted()
+            throws IOException
+    {
+        char[] path = "a.json".toCharArray();
+        write( "a.json", data( 100, 1 ) );
+
+        try {
+            tier.newFileChannel( path, EnumSet.of( StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW ) ).close();
+            fail( "Opened an existing file with CREATE_NEW" );
+        }
+        catch( FileAlreadyExistsException ex ) {
+            // Expected
+        }
+
+        read( "a.json" );
+        read( "a.json" );
+        assertTrue( tier.isResident( path ) );
+    }
+
+    @Test
+    public void streamingNotAdmitted()
+            throws IOException
+    {
+        char[] path = "s.json".toCharArray();
+        // Polled by a reader waiting for a retrieval to start writing
+        for( int i = 0; i < 3; i++ ) {
+            assertNull( tier.newStreamingInputStream( path ) );
+        }
+
+        write( "s.json", data( 100, 4 ) );
+        for( int i = 0; i < 3; i++ ) {
+            assertNull( tier.newStreamingInputStream( path ) );
+        }
+        assertFalse( tier.isResident( path ) );
+    }
+
+    @Test
+    public void largeFilesNotAdmitted()
+            throws IOException
+    {
+        write( "big.bin", data( 10000, 3 ) );
+        for( int i = 0; i < 3; i++ ) {
+            assertArrayEquals( data( 10000, 3 ), read( "big.bin" ) );
+        }
+        assertFalse( tier.isResident( "big.bin".toCharArray() ) );
+        assertEquals( 0L, tier.getUsed() );
+    }
+
+    @Test
+    public void evictsUnderPressure()
+            throws IOException
+    {
+        for( int i = 0; i < 40; i++ ) {
+            write( "f" + i, data( 4000, i ) );
+        }
+
+        // Keep the first file open whilst it is evicted
+        InputStream first = null;
+        try {
+            for( int i = 0; i < 40; i++ ) {
+                read( "f" + i );
+                if( i == 0 ) {
+                    first = tier.newInputStream( "f0".toCharArray() );
+                }
+                else {
+                    read( "f" + i );
+                }
+                assertTrue( tier.getUsed() <= 65536L );
+            }
+
+            assertFalse( tier.isResident( "f0".toCharArray() ) );
+            assertTrue( tier.isResident( "f39".toCharArray() ) );
+            assertArrayEquals( data( 4000, 0 ), toByteArray( first ) );
+        }
+        finally {
+            if( first != null ) {
+                first.close();
+            }
+        }
+
+        for( int i = 0; i < 40; i++ ) {
+            assertArrayEquals( data( 4000, i ), read( "f" + i ) );
+        }
+    }
+
+    @Test
+    public void registered()
+            throws IOException
+    {
+        Map<String, Object> env = new HashMap<>();
+        env.put( FileSystemIO.DELETE_ON_EXIT, true );
+        env.put( LocalFileSystemIO.SCAN_DELAY, -1L );
+        env.put( FileSystemIORepository.WRAPPER, "memorytier" );
+        try( FileSystemIO io = FileSystemIORepository.create( Files.createTempDirectory( "memorytier" ), env ) ) {
+            assertTrue( io instanceof MemoryTier );
+        }
+    }
+}
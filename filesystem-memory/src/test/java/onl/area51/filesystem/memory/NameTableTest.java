@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.filesystem.memory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author peter
+ */
+public class NameTableTest
+{
+
+    @Test
+    public void charRangeLookup()
+    {
+        NameTable<String> t = new NameTable<>();
+        for( int i = 0; i < 1000; i++ ) {
+            assertNull( t.putIfAbsent( "name" + i, "value" + i ) );
+        }
+        assertEquals( 1000, t.size() );
+
+        char[] c = "/a/name123/name999".toCharArray();
+        assertEquals( "value123", t.get( c, 3, 7 ) );
+        assertEquals( "value999", t.get( c, 11, 7 ) );
+        assertNull( t.get( c, 1, 1 ) );
+        assertNull( t.get( c, 3, 3 ) );
+
+        assertEquals( "value5", t.putIfAbsent( "name5", "other" ) );
+        assertEquals( "value5", t.put( "name5", "other" ) );
+        assertEquals( "other", t.get( "name5" ) );
+
+        for( int i = 0; i < 1000; i += 2 ) {
+            assertNotNull( t.remove( "name" + i ) );
+        }
+        assertEquals( 500, t.size() );
+        assertNull( t.get( "name0" ) );
+        assertEquals( "value1", t.get( "name1".toCharArray(), 0, 5 ) );
+
+        Set<String> values = new HashSet<>( t.values() );
+        assertEquals( 500, values.size() );
+        assertTrue( values.contains( "value999" ) );
+    }
+
+    @Test
+    public void nestedPaths()
+            throws IOException
+    {
+        try( FileSystem fs = FileSystems.newFileSystem( URI.create( "memory://names.test" ), new HashMap<>() ) ) {
+            Path dir = fs.getPath( "/a/b/c/d" );
+            // Creating a file creates its parent directories
+            CommonTestUtils.write( dir.resolve( "file.txt" ) );
+
+            MemoryFileStore store = ((MemoryFileSystem) fs).getFileStore();
+            assertTrue( store.findNode( (MemoryPath) dir ) instanceof MemoryDirectory );
+            assertTrue( store.findNode( (MemoryPath) dir.resolve( "file.txt" ) ) instanceof MemoryFile );
+            assertNull( store.findNode( (MemoryPath) dir.resolve( "file.txt/x" ) ) );
+            assertNull( store.findNode( (MemoryPath) fs.getPath( "/a/x/c" ) ) );
+            assertSame( store.findNode( (MemoryPath) fs.getPath( "/a/b" ) ),
+                        store.findNode( (MemoryPath) fs.getPath( "/a/b/c/.." ) ) );
+        }
+    }
+}
@@ -33,6 +33,6 @@ public class MinioRead
 
     public MinioRead( FileSystemIO delegate, Map<String, Object> env )
     {
-        super( delegate, new PathSynchronizer(), new MinioRetriever( delegate, env ) );
+        super( delegate, new PathSynchronizer(), new MinioRetriever( delegate, env ), env );
     }
 }
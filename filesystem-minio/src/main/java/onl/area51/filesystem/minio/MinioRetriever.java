@@ -22,6 +22,7 @@ import io.minio.errors.InvalidArgumentException;
 import io.minio.errors.InvalidBucketNameException;
 import io.minio.errors.NoResponseException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
@@ -30,15 +31,24 @@ import java.util.logging.Logger;
 import onl.area51.filesystem.FileSystemUtils;
 import onl.area51.filesystem.io.FileSystemIO;
 import onl.area51.filesystem.io.overlay.OverlayRetriever;
+import onl.area51.filesystem.io.overlay.RangeRetriever;
 import org.xmlpull.v1.XmlPullParserException;
 
 /**
+ * Retrieves a path from a bucket.
+ * <p>
+ * The Minio client only has a blocking API so {@link #retrieveAsync(char[])} is the default, running the retrieval on a
+ * background thread.
+ * <p>
+ * Ranged GETs allow the sparse fetch mode of {@link onl.area51.filesystem.io.overlay.OverlayFileSystemIO} to retrieve just
+ * the blocks read.
  *
  * @author peter
  */
 public class MinioRetriever
         extends AbstractMinioAction
-        implements OverlayRetriever
+        implements OverlayRetriever,
+                   RangeRetriever
 {
 
     private static final Logger LOG = Logger.getLogger( "Minio" );
@@ -54,22 +64,61 @@ public class MinioRetriever
     {
         String pathValue = String.valueOf( path );
         LOG.log( Level.FINE, () -> "Retrieving " + getBucketName() + ":" + pathValue );
-        FileSystemUtils.copyFromRemote( () -> {
-            try {
-                return getMinioClient().getObject( getBucketName(), pathValue );
-            }
-            catch( InvalidBucketNameException |
-                   NoSuchAlgorithmException |
-                   InsufficientDataException |
-                   InvalidKeyException |
-                   NoResponseException |
-                   XmlPullParserException |
-                   ErrorResponseException |
-                   InternalException |
-                   InvalidArgumentException ex ) {
-                throw new IOException( ex );
-            }
-        }, getDelegate(), path );
+        FileSystemUtils.copyFromRemote( () -> call( () -> getMinioClient().getObject( getBucketName(), pathValue ) ),
+                                        getDelegate(), path );
         LOG.log( Level.FINE, () -> "Retrieved " + getBucketName() + ":" + pathValue );
     }
+
+    @Override
+    public long getRemoteSize( char[] path )
+            throws IOException
+    {
+        String pathValue = String.valueOf( path );
+        return call( () -> getMinioClient().statObject( getBucketName(), pathValue ).length() );
+    }
+
+    @Override
+    public InputStream retrieveRange( char[] path, long offset, long length )
+            throws IOException
+    {
+        String pathValue = String.valueOf( path );
+        LOG.log( Level.FINE, () -> "Retrieving " + getBucketName() + ":" + pathValue + " " + offset + "+" + length );
+        return call( () -> getMinioClient().getObject( getBucketName(), pathValue, offset, length ) );
+    }
+
+    private static <T> T call( MinioCall<T> c )
+            throws IOException
+    {
+        try {
+            return c.call();
+        }
+        catch( InvalidBucketNameException |
+               NoSuchAlgorithmException |
+               InsufficientDataException |
+               InvalidKeyException |
+               NoResponseException |
+               XmlPullParserException |
+               ErrorResponseException |
+               InternalException |
+               InvalidArgumentException ex ) {
+            throw new IOException( ex );
+        }
+    }
+
+    @FunctionalInterface
+    private static interface MinioCall<T>
+    {
+
+        T call()
+                throws IOException,
+                       InvalidBucketNameException,
+                       NoSuchAlgorithmException,
+                       InsufficientDataException,
+                       InvalidKeyException,
+                       NoResponseException,
+                       XmlPullParserException,
+                       ErrorResponseException,
+                       InternalException,
+                       InvalidArgumentException;
+    }
 }
@@ -31,6 +31,6 @@ public class MinioWrite
 
     public MinioWrite( FileSystemIO delegate, Map<String, Object> env )
     {
-        super( delegate, new MinioSender( delegate, env ) );
+        super( delegate, new MinioSender( delegate, env ), env );
     }
 }
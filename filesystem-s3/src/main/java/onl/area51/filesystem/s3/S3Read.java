@@ -33,6 +33,6 @@ public class S3Read
 
     public S3Read( FileSystemIO delegate, Map<String, Object> env )
     {
-        super( delegate, new PathSynchronizer(), new S3Retriever( delegate, env ) );
+        super( delegate, new PathSynchronizer(), new S3Retriever( delegate, env ), env );
     }
 }
@@ -20,20 +20,30 @@ import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import onl.area51.filesystem.FileSystemUtils;
 import onl.area51.filesystem.io.FileSystemIO;
 import onl.area51.filesystem.io.overlay.OverlayRetriever;
+import onl.area51.filesystem.io.overlay.RangeRetriever;
 
 /**
+ * Retrieves a path from a bucket.
+ * <p>
+ * The AWS S3 client only has a blocking API so {@link #retrieveAsync(char[])} is the default, running the retrieval on a
+ * background thread.
+ * <p>
+ * Ranged GETs allow the sparse fetch mode of {@link onl.area51.filesystem.io.overlay.OverlayFileSystemIO} to retrieve just
+ * the blocks read.
  *
  * @author peter
  */
 public class S3Retriever
         extends AbstractS3Action
-        implements OverlayRetriever
+        implements OverlayRetriever,
+                   RangeRetriever
 {
 
     private static final Logger LOG = Logger.getLogger( "S3" );
@@ -64,4 +74,44 @@ public class S3Retriever
             throw new IOException( "Cannot access " + pathValue, ex );
         }
     }
+
+    @Override
+    public long getRemoteSize( char[] path )
+            throws IOException
+    {
+        String pathValue = String.valueOf( path );
+        try
+        {
+            return getS3().getObjectMetadata( getBucketName(), pathValue ).getContentLength();
+        } catch( AmazonS3Exception ex )
+        {
+            throw error( pathValue, ex );
+        }
+    }
+
+    @Override
+    public InputStream retrieveRange( char[] path, long offset, long length )
+            throws IOException
+    {
+        String pathValue = String.valueOf( path );
+        try
+        {
+            LOG.log( Level.FINE, () -> "Retrieving " + getBucketName() + ":" + pathValue + " " + offset + "+" + length );
+            return getS3().getObject( new GetObjectRequest( getBucketName(), pathValue ).withRange( offset, offset + length - 1L ) )
+                    .getObjectContent();
+        } catch( AmazonS3Exception ex )
+        {
+            throw error( pathValue, ex );
+        }
+    }
+
+    private IOException error( String pathValue, AmazonS3Exception ex )
+    {
+        LOG.log( Level.FINE, () -> "Error " + ex.getStatusCode() + " " + getBucketName() + ":" + pathValue );
+        if( ex.getStatusCode() == 404 )
+        {
+            return new FileNotFoundException( pathValue );
+        }
+        return new IOException( "Cannot access " + pathValue, ex );
+    }
 }
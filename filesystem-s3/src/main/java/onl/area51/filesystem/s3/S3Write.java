@@ -31,6 +31,6 @@ public class S3Write
 
     public S3Write( FileSystemIO delegate, Map<String, Object> env )
     {
-        super( delegate, new S3Sender( delegate, env ) );
+        super( delegate, new S3Sender( delegate, env ), env );
     }
 }